@@ -22,6 +22,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 public interface CommitTable {
 
@@ -42,6 +43,14 @@ public interface CommitTable {
          */
         void flush() throws IOException;
 
+        /**
+         * Starts flushing all the buffered events to the underlying datastore without waiting for them to be
+         * stored. The events added afterwards are buffered for the next flush, so several flushes can be outstanding
+         *
+         * @return a future completed when all the events of this flush are stored
+         */
+        ListenableFuture<Void> flushAsync();
+
         /**
          * Allows to clean the write's current buffer. It is required for HA
          */
@@ -59,6 +68,15 @@ public interface CommitTable {
          */
         ListenableFuture<Optional<CommitTimestamp>> getCommitTimestamp(long startTimestamp);
 
+        /**
+         * Batched version of getCommitTimestamp(). The commit tables that support it look up all the transactions in
+         * a single round trip.
+         *
+         * @param startTimestamps the start timestamps of the transactions
+         * @return the Optional of CommitTimestamp of each transaction, in the same order than startTimestamps
+         */
+        ListenableFuture<List<Optional<CommitTimestamp>>> getCommitTimestamps(long[] startTimestamps);
+
         ListenableFuture<Long> readLowWatermark();
 
         ListenableFuture<Void> completeTransaction(long startTimestamp);
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.committable;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of the commit decisions read from a commit table, keyed by the start timestamp of the transactions.
+ *
+ * Only final decisions can be cached: a commit timestamp or the invalidation marker. A transaction that is not in
+ * the commit table may still commit or be invalidated, so its absence must never be cached.
+ *
+ * The entries are kept in primitive arrays split in stripes, each one guarded by its own lock. Inside a stripe the
+ * entries are grouped in small sets and a start timestamp can only be stored in the set selected by its hash. When
+ * a set is full, the entry of the oldest transaction is replaced, as it is less likely to be read again. Entries
+ * older than the low watermark are considered free slots.
+ */
+public class CommitTimestampCache {
+
+    public static final long NOT_CACHED = Long.MIN_VALUE;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int NUM_STRIPES = 64;
+    private static final int ASSOCIATIVITY = 8;
+
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    private volatile long lowWatermark = EMPTY;
+
+    /**
+     * @param size the maximum number of cached decisions
+     */
+    public CommitTimestampCache(int size) {
+        Preconditions.checkArgument(size > 0, "Cache size [%s] must be positive", size);
+        int setsPerStripe = Math.max(1, size / (NUM_STRIPES * ASSOCIATIVITY));
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe(setsPerStripe);
+        }
+    }
+
+    /**
+     * @return the commit timestamp or the invalidation marker of the transaction, or NOT_CACHED
+     */
+    public long get(long startTimestamp) {
+        long hash = hash(startTimestamp);
+        return stripeOf(hash).get(startTimestamp, hash);
+    }
+
+    /**
+     * @param value the commit timestamp of the transaction or CommitTable.INVALID_TRANSACTION_MARKER
+     */
+    public void put(long startTimestamp, long value) {
+        long hash = hash(startTimestamp);
+        stripeOf(hash).put(startTimestamp, value, hash, lowWatermark);
+    }
+
+    public void remove(long startTimestamp) {
+        long hash = hash(startTimestamp);
+        stripeOf(hash).remove(startTimestamp, hash);
+    }
+
+    /**
+     * Lets the entries of the transactions started before the low watermark be replaced before any other entry
+     */
+    public void updateLowWatermark(long lowWatermark) {
+        if (lowWatermark > this.lowWatermark) {
+            this.lowWatermark = lowWatermark;
+        }
+    }
+
+    private Stripe stripeOf(long hash) {
+        return stripes[(int) (hash >>> 58)]; // NUM_STRIPES = 2^6
+    }
+
+    private static long hash(long startTimestamp) {
+        long h = startTimestamp * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static class Stripe {
+
+        private final long[] keys;
+        private final long[] values;
+        private final int numSets;
+
+        Stripe(int numSets) {
+            this.numSets = numSets;
+            this.keys = new long[numSets * ASSOCIATIVITY];
+            this.values = new long[numSets * ASSOCIATIVITY];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        synchronized long get(long key, long hash) {
+            int first = firstSlot(hash);
+            for (int i = first; i < first + ASSOCIATIVITY; i++) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return NOT_CACHED;
+        }
+
+        synchronized void put(long key, long value, long hash, long lowWatermark) {
+            int first = firstSlot(hash);
+            int victim = first;
+            for (int i = first; i < first + ASSOCIATIVITY; i++) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                if (keys[victim] != EMPTY && keys[victim] >= lowWatermark
+                        && (keys[i] == EMPTY || keys[i] < lowWatermark || keys[i] < keys[victim])) {
+                    victim = i;
+                }
+            }
+            keys[victim] = key;
+            values[victim] = value;
+        }
+
+        synchronized void remove(long key, long hash) {
+            int first = firstSlot(hash);
+            for (int i = first; i < first + ASSOCIATIVITY; i++) {
+                if (keys[i] == key) {
+                    keys[i] = EMPTY;
+                    return;
+                }
+            }
+        }
+
+        private int firstSlot(long hash) {
+            return (int) ((hash & Long.MAX_VALUE) % numSets) * ASSOCIATIVITY;
+        }
+
+    }
+
+}
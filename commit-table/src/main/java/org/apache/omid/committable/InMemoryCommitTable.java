@@ -18,11 +18,14 @@
 package org.apache.omid.committable;
 
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.apache.omid.committable.CommitTable.CommitTimestamp.Location;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class InMemoryCommitTable implements CommitTable {
@@ -60,6 +63,11 @@ public class InMemoryCommitTable implements CommitTable {
             // noop
         }
 
+        @Override
+        public ListenableFuture<Void> flushAsync() {
+            return Futures.immediateFuture(null);
+        }
+
         @Override
         public void clearWriteBuffer() {
             table.clear();
@@ -74,17 +82,30 @@ public class InMemoryCommitTable implements CommitTable {
         @Override
         public ListenableFuture<Optional<CommitTimestamp>> getCommitTimestamp(long startTimestamp) {
             SettableFuture<Optional<CommitTimestamp>> f = SettableFuture.create();
+            f.set(lookUp(startTimestamp));
+            return f;
+        }
+
+        @Override
+        public ListenableFuture<List<Optional<CommitTimestamp>>> getCommitTimestamps(long[] startTimestamps) {
+            SettableFuture<List<Optional<CommitTimestamp>>> f = SettableFuture.create();
+            List<Optional<CommitTimestamp>> results = new ArrayList<>(startTimestamps.length);
+            for (long startTimestamp : startTimestamps) {
+                results.add(lookUp(startTimestamp));
+            }
+            f.set(results);
+            return f;
+        }
+
+        private Optional<CommitTimestamp> lookUp(long startTimestamp) {
             Long result = table.get(startTimestamp);
             if (result == null) {
-                f.set(Optional.<CommitTimestamp>absent());
-            } else {
-                if (result == INVALID_TRANSACTION_MARKER) {
-                    f.set(Optional.of(new CommitTimestamp(Location.COMMIT_TABLE, INVALID_TRANSACTION_MARKER, false)));
-                } else {
-                    f.set(Optional.of(new CommitTimestamp(Location.COMMIT_TABLE, result, true)));
-                }
+                return Optional.absent();
             }
-            return f;
+            if (result == INVALID_TRANSACTION_MARKER) {
+                return Optional.of(new CommitTimestamp(Location.COMMIT_TABLE, INVALID_TRANSACTION_MARKER, false));
+            }
+            return Optional.of(new CommitTimestamp(Location.COMMIT_TABLE, result, true));
         }
 
         @Override
@@ -18,10 +18,12 @@
 package org.apache.omid.committable;
 
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.IOException;
+import java.util.List;
 
 public class NullCommitTable implements CommitTable {
     @Override
@@ -55,6 +57,11 @@ public class NullCommitTable implements CommitTable {
             // noop
         }
 
+        @Override
+        public ListenableFuture<Void> flushAsync() {
+            return Futures.immediateFuture(null);
+        }
+
         @Override
         public void close() {
         }
@@ -67,6 +74,11 @@ public class NullCommitTable implements CommitTable {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public ListenableFuture<List<Optional<CommitTimestamp>>> getCommitTimestamps(long[] startTimestamps) {
+            throw new UnsupportedOperationException();
+        }
+
         @Override
         public ListenableFuture<Long> readLowWatermark() {
             throw new UnsupportedOperationException();
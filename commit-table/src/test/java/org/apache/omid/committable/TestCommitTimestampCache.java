@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.committable;
+
+import org.testng.annotations.Test;
+
+import static org.apache.omid.committable.CommitTable.INVALID_TRANSACTION_MARKER;
+import static org.apache.omid.committable.CommitTimestampCache.NOT_CACHED;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestCommitTimestampCache {
+
+    private static final int CACHE_SIZE = 1024;
+
+    @Test(timeOut = 10_000)
+    public void testDecisionsAreCachedAndRemoved() {
+
+        CommitTimestampCache cache = new CommitTimestampCache(CACHE_SIZE);
+
+        assertEquals(cache.get(1L), NOT_CACHED);
+        cache.put(1L, 2L);
+        cache.put(3L, INVALID_TRANSACTION_MARKER);
+        assertEquals(cache.get(1L), 2L);
+        assertEquals(cache.get(3L), INVALID_TRANSACTION_MARKER);
+
+        cache.remove(1L);
+        assertEquals(cache.get(1L), NOT_CACHED);
+        assertEquals(cache.get(3L), INVALID_TRANSACTION_MARKER);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testCacheIsBoundedAndKeepsTheNewestTransactions() {
+
+        CommitTimestampCache cache = new CommitTimestampCache(CACHE_SIZE);
+
+        int numTransactions = 100 * CACHE_SIZE;
+        for (long st = 1; st <= numTransactions; st++) {
+            cache.put(st, st + 1);
+        }
+        int cached = 0;
+        int recentCached = 0;
+        for (long st = 1; st <= numTransactions; st++) {
+            long value = cache.get(st);
+            if (value != NOT_CACHED) {
+                assertEquals(value, st + 1);
+                cached++;
+                if (st > numTransactions - CACHE_SIZE) {
+                    recentCached++;
+                }
+            }
+        }
+        assertTrue(cached <= CACHE_SIZE, "Cached entries: " + cached);
+        // The oldest transactions are the ones evicted
+        assertTrue(recentCached > CACHE_SIZE / 2, "Recent cached entries: " + recentCached);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testTransactionsBelowTheLowWatermarkAreReplacedFirst() {
+
+        CommitTimestampCache cache = new CommitTimestampCache(CACHE_SIZE);
+
+        for (long st = 1; st <= CACHE_SIZE; st++) {
+            cache.put(st, st + 1);
+        }
+        cache.updateLowWatermark(CACHE_SIZE / 2);
+        // Newer transactions evict mostly the transactions below the low watermark
+        for (long st = 10 * CACHE_SIZE; st < 10 * CACHE_SIZE + CACHE_SIZE / 4; st++) {
+            cache.put(st, st + 1);
+        }
+        for (long st = 10 * CACHE_SIZE; st < 10 * CACHE_SIZE + CACHE_SIZE / 4; st++) {
+            assertEquals(cache.get(st), st + 1);
+        }
+        int evictedAboveLowWatermark = 0;
+        for (long st = CACHE_SIZE / 2; st <= CACHE_SIZE; st++) {
+            if (cache.get(st) == NOT_CACHED) {
+                evictedAboveLowWatermark++;
+            }
+        }
+        // Only the sets that got few entries below the low watermark have to evict others
+        assertTrue(evictedAboveLowWatermark < CACHE_SIZE / 16, "Evicted: " + evictedAboveLowWatermark);
+
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.transaction;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.omid.committable.hbase.CompletionWatermarkStorage;
+import org.apache.omid.tso.client.TSOClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the transactions of a client whose commit table entries may still be needed, and periodically publishes
+ * the completion watermark of the client, so the HBaseCommitTableCollector can remove the entries of the rest in
+ * bulk instead of the client deleting them one by one.
+ *
+ * A transaction is tracked from its begin until it's rolled back, committed as read-only or its shadow cells are
+ * written. The watermark is the lowest start timestamp among the tracked transactions and the begins in progress,
+ * whose start timestamps are known to be greater than the last timestamp seen before they started, as the TSO hands
+ * out increasing timestamps. A fresh timestamp bounds the watermark when nothing is in flight.
+ *
+ * Transactions whose shadow cells couldn't be written hold back the watermark of the client till a retry succeeds,
+ * and so does the last watermark published by a client that crashed, until it's explicitly forgotten. A
+ * begin that fails holds it back until the same thread begins another transaction.
+ */
+class CompletionWatermarkTracker implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompletionWatermarkTracker.class);
+
+    private final String clientId = UUID.randomUUID().toString();
+
+    private final TSOClient tsoClient;
+    private final CompletionWatermarkStorage storage;
+    private final ScheduledExecutorService publisher;
+    private final long publishPeriodInMs;
+
+    private final ConcurrentSkipListSet<Long> activeTransactions = new ConcurrentSkipListSet<>();
+    // Last timestamp seen by each thread beginning a transaction
+    private final ConcurrentMap<Thread, Long> beginsInProgress = new ConcurrentHashMap<>();
+    private final AtomicLong lastSeenTimestamp = new AtomicLong(0L);
+
+    /**
+     * The first watermark is published before returning, so the collector knows about the client before it begins
+     * any transaction
+     *
+     * @throws IOException if the first watermark can't be published
+     */
+    CompletionWatermarkTracker(TSOClient tsoClient, CompletionWatermarkStorage storage, long publishPeriodInMs)
+            throws IOException {
+
+        this.tsoClient = tsoClient;
+        this.storage = storage;
+        this.publishPeriodInMs = publishPeriodInMs;
+        long firstWatermark = computeWatermark();
+        if (firstWatermark == -1L) {
+            storage.close();
+            throw new IOException("Can't get a timestamp to register the completion watermark of client " + clientId);
+        }
+        storage.publish(clientId, firstWatermark);
+        this.publisher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("omid-completion-watermark-%d").setDaemon(true).build());
+        publisher.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    publish();
+                } catch (Throwable t) {
+                    LOG.warn("Error publishing completion watermark of client {}", clientId, t);
+                }
+            }
+        }, publishPeriodInMs, publishPeriodInMs, TimeUnit.MILLISECONDS);
+        LOG.info("Publishing completion watermark of client {} every {} ms", clientId, publishPeriodInMs);
+
+    }
+
+    void beginStarted() {
+        beginsInProgress.put(Thread.currentThread(), lastSeenTimestamp.get());
+    }
+
+    void beginFinished(long startTimestamp) {
+        // Tracked before removing the begin in progress, so it's always covered by one of them
+        activeTransactions.add(startTimestamp);
+        beginsInProgress.remove(Thread.currentThread());
+        updateLastSeenTimestamp(startTimestamp);
+    }
+
+    void transactionFinished(long startTimestamp) {
+        activeTransactions.remove(startTimestamp);
+    }
+
+    /**
+     * Runs a task holding back the watermark, e.g. writing again the shadow cells of a transaction, after a publish
+     * period
+     */
+    void retryLater(final Runnable task) {
+        try {
+            publisher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        LOG.warn("Error retrying task of client {}", clientId, t);
+                    }
+                }
+            }, publishPeriodInMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Client {} already closed. Task not retried", clientId);
+        }
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return the completion watermark of the client or -1 if it can't be computed now
+     */
+    long computeWatermark() {
+
+        long watermark;
+        try {
+            // The transactions beginning from now on get greater timestamps
+            watermark = tsoClient.getNewStartTimestamp().get();
+        } catch (ExecutionException e) {
+            LOG.warn("Can't get a timestamp to compute the completion watermark", e.getCause());
+            return -1L;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return -1L;
+        }
+        updateLastSeenTimestamp(watermark);
+        // Begins in progress are read before the active transactions, so none is missed while moving between them
+        for (long timestampSeenBefore : beginsInProgress.values()) {
+            watermark = Math.min(watermark, timestampSeenBefore + 1);
+        }
+        Iterator<Long> oldestActiveTransaction = activeTransactions.iterator();
+        if (oldestActiveTransaction.hasNext()) {
+            watermark = Math.min(watermark, oldestActiveTransaction.next());
+        }
+        return watermark;
+
+    }
+
+    private void publish() throws IOException {
+        long watermark = computeWatermark();
+        if (watermark != -1L) {
+            storage.publish(clientId, watermark);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        publisher.shutdownNow();
+        try {
+            if (!publisher.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.warn("Completion watermark publisher did not shutdown");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (activeTransactions.isEmpty() && beginsInProgress.isEmpty()) {
+            storage.remove(clientId);
+        } else {
+            LOG.warn("Client {} closed with {} transactions in flight. Keeping its completion watermark",
+                     clientId, activeTransactions.size() + beginsInProgress.size());
+            publish();
+        }
+        storage.close();
+
+    }
+
+    private void updateLastSeenTimestamp(long timestamp) {
+        long lastSeen = lastSeenTimestamp.get();
+        while (timestamp > lastSeen && !lastSeenTimestamp.compareAndSet(lastSeen, timestamp)) {
+            lastSeen = lastSeenTimestamp.get();
+        }
+    }
+
+}
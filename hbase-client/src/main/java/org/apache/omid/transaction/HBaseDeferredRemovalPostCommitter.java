@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.transaction;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.omid.tso.client.CellId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the shadow cells with the post committer passed, but leaves the commit table entries in place. Instead of
+ * deleting the entry, the transaction is reported as finished to the completion watermark tracker, and the entry is
+ * removed later on in bulk by the HBaseCommitTableCollector.
+ *
+ * The transaction is reported as soon as its shadow cells are written, as the transaction manager doesn't ask for the
+ * removal of the entries of the transactions whose commit was recovered from the commit table. When the shadow cells
+ * can't be written, the entry is still needed to heal them, so they are written again in the background till they
+ * succeed, holding back the watermark of the client meanwhile.
+ */
+class HBaseDeferredRemovalPostCommitter implements PostCommitActions {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HBaseDeferredRemovalPostCommitter.class);
+
+    private final PostCommitActions postCommitter;
+    private final CompletionWatermarkTracker completionTracker;
+
+    HBaseDeferredRemovalPostCommitter(PostCommitActions postCommitter, CompletionWatermarkTracker completionTracker) {
+        this.postCommitter = postCommitter;
+        this.completionTracker = completionTracker;
+    }
+
+    @Override
+    public ListenableFuture<Void> updateShadowCells(final AbstractTransaction<? extends CellId> transaction) {
+        ListenableFuture<Void> updateResult = postCommitter.updateShadowCells(transaction);
+        Futures.addCallback(updateResult, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                completionTracker.transactionFinished(transaction.getStartTimestamp());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.warn("{}: Error writing shadow cells. Retrying later", transaction, t);
+                completionTracker.retryLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateShadowCells(transaction);
+                    }
+                });
+            }
+        });
+        return updateResult;
+    }
+
+    @Override
+    public ListenableFuture<Void> removeCommitTableEntry(AbstractTransaction<? extends CellId> transaction) {
+        // The transaction was already reported as finished when its shadow cells were written
+        return Futures.immediateFuture(null);
+    }
+
+}
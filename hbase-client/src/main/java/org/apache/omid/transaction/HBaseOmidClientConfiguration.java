@@ -40,6 +40,8 @@ public class HBaseOmidClientConfiguration extends SecureHBaseConfig {
     @Inject
     private OmidClientConfiguration omidClientConfiguration;
     private MetricsRegistry metrics;
+    private boolean deferCommitTableEntryRemoval = false;
+    private long completionWatermarkPeriodInMs = 5000;
 
     // ----------------------------------------------------------------------------------------------------------------
     // Instantiation
@@ -101,6 +103,26 @@ public class HBaseOmidClientConfiguration extends SecureHBaseConfig {
         this.metrics = metrics;
     }
 
+    public boolean isDeferCommitTableEntryRemoval() {
+        return deferCommitTableEntryRemoval;
+    }
+
+    @Inject(optional = true)
+    @Named("omid.client.hbase.deferCommitTableEntryRemoval")
+    public void setDeferCommitTableEntryRemoval(boolean deferCommitTableEntryRemoval) {
+        this.deferCommitTableEntryRemoval = deferCommitTableEntryRemoval;
+    }
+
+    public long getCompletionWatermarkPeriodInMs() {
+        return completionWatermarkPeriodInMs;
+    }
+
+    @Inject(optional = true)
+    @Named("omid.client.hbase.completionWatermarkPeriodInMs")
+    public void setCompletionWatermarkPeriodInMs(long completionWatermarkPeriodInMs) {
+        this.completionWatermarkPeriodInMs = completionWatermarkPeriodInMs;
+    }
+
     // Delegation to make end-user life better
 
     public OmidClientConfiguration.ConnType getConnectionType() {
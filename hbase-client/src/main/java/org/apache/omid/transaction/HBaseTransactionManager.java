@@ -25,6 +25,7 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.omid.committable.CommitTable;
 import org.apache.omid.committable.CommitTable.CommitTimestamp;
+import org.apache.omid.committable.hbase.CompletionWatermarkStorage;
 import org.apache.omid.committable.hbase.HBaseCommitTable;
 import org.apache.omid.committable.hbase.HBaseCommitTableConfig;
 import org.apache.omid.tools.hbase.HBaseLogin;
@@ -46,6 +47,9 @@ public class HBaseTransactionManager extends AbstractTransactionManager implemen
 
     private static final Logger LOG = LoggerFactory.getLogger(HBaseTransactionManager.class);
 
+    // Present when the commit table entries are removed in bulk by the commit table collector
+    private final Optional<CompletionWatermarkTracker> completionTracker;
+
     private static class HBaseTransactionFactory implements TransactionFactory<HBaseCellId> {
 
         @Override
@@ -108,10 +112,17 @@ public class HBaseTransactionManager extends AbstractTransactionManager implemen
             PostCommitActions postCommitter = this.postCommitter.or(buildPostCommitter(commitTableClient)).get();
             TSOClient tsoClient = this.tsoClient.or(buildTSOClient()).get();
 
+            Optional<CompletionWatermarkTracker> completionTracker = Optional.absent();
+            if (hbaseOmidClientConf.isDeferCommitTableEntryRemoval()) {
+                completionTracker = Optional.of(buildCompletionTracker(tsoClient));
+                postCommitter = new HBaseDeferredRemovalPostCommitter(postCommitter, completionTracker.get());
+            }
+
             return new HBaseTransactionManager(hbaseOmidClientConf,
                                                postCommitter,
                                                tsoClient,
                                                commitTableClient,
+                                               completionTracker,
                                                new HBaseTransactionFactory());
         }
 
@@ -121,10 +132,24 @@ public class HBaseTransactionManager extends AbstractTransactionManager implemen
 
 
         private Optional<CommitTable.Client> buildCommitTableClient() throws IOException {
+            CommitTable commitTable = new HBaseCommitTable(hbaseOmidClientConf.getHBaseConfiguration(),
+                                                           buildCommitTableConfig(),
+                                                           hbaseOmidClientConf.getMetrics());
+            return Optional.of(commitTable.getClient());
+        }
+
+        private CompletionWatermarkTracker buildCompletionTracker(TSOClient tsoClient) throws IOException {
+            CompletionWatermarkStorage storage =
+                    new CompletionWatermarkStorage(hbaseOmidClientConf.getHBaseConfiguration(), buildCommitTableConfig());
+            return new CompletionWatermarkTracker(tsoClient,
+                                                  storage,
+                                                  hbaseOmidClientConf.getCompletionWatermarkPeriodInMs());
+        }
+
+        private HBaseCommitTableConfig buildCommitTableConfig() {
             HBaseCommitTableConfig commitTableConf = new HBaseCommitTableConfig();
             commitTableConf.setTableName(hbaseOmidClientConf.getCommitTableName());
-            CommitTable commitTable = new HBaseCommitTable(hbaseOmidClientConf.getHBaseConfiguration(), commitTableConf);
-            return Optional.of(commitTable.getClient());
+            return commitTableConf;
         }
 
         private Optional<PostCommitActions> buildPostCommitter(CommitTable.Client commitTableClient ) {
@@ -159,6 +184,7 @@ public class HBaseTransactionManager extends AbstractTransactionManager implemen
                                     PostCommitActions postCommitter,
                                     TSOClient tsoClient,
                                     CommitTable.Client commitTableClient,
+                                    Optional<CompletionWatermarkTracker> completionTracker,
                                     HBaseTransactionFactory hBaseTransactionFactory) {
 
         super(hBaseOmidClientConfiguration.getMetrics(),
@@ -166,6 +192,7 @@ public class HBaseTransactionManager extends AbstractTransactionManager implemen
               tsoClient,
               commitTableClient,
               hBaseTransactionFactory);
+        this.completionTracker = completionTracker;
 
     }
 
@@ -173,6 +200,20 @@ public class HBaseTransactionManager extends AbstractTransactionManager implemen
     // AbstractTransactionManager overwritten methods
     // ----------------------------------------------------------------------------------------------------------------
 
+    @Override
+    public void preBegin() throws TransactionManagerException {
+        if (completionTracker.isPresent()) {
+            completionTracker.get().beginStarted();
+        }
+    }
+
+    @Override
+    public void postBegin(AbstractTransaction<? extends CellId> transaction) throws TransactionManagerException {
+        if (completionTracker.isPresent()) {
+            completionTracker.get().beginFinished(transaction.getStartTimestamp());
+        }
+    }
+
     @Override
     public void preCommit(AbstractTransaction<? extends CellId> transaction) throws TransactionManagerException {
         try {
@@ -184,6 +225,14 @@ public class HBaseTransactionManager extends AbstractTransactionManager implemen
         }
     }
 
+    @Override
+    public void postCommit(AbstractTransaction<? extends CellId> transaction) throws TransactionManagerException {
+        // Regular transactions are finished once their shadow cells are written, see HBaseDeferredRemovalPostCommitter
+        if (completionTracker.isPresent() && transaction.getStatus() == Transaction.Status.COMMITTED_RO) {
+            completionTracker.get().transactionFinished(transaction.getStartTimestamp());
+        }
+    }
+
     @Override
     public void preRollback(AbstractTransaction<? extends CellId> transaction) throws TransactionManagerException {
         try {
@@ -195,6 +244,20 @@ public class HBaseTransactionManager extends AbstractTransactionManager implemen
         }
     }
 
+    @Override
+    public void postRollback(AbstractTransaction<? extends CellId> transaction) throws TransactionManagerException {
+        if (completionTracker.isPresent()) {
+            completionTracker.get().transactionFinished(transaction.getStartTimestamp());
+        }
+    }
+
+    @Override
+    public void preClose() throws IOException {
+        if (completionTracker.isPresent()) {
+            completionTracker.get().close();
+        }
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // HBaseTransactionClient method implementations
     // ----------------------------------------------------------------------------------------------------------------
@@ -23,6 +23,7 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimaps;
+import com.google.common.primitives.Longs;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Cell;
@@ -54,12 +55,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Set;
 
 /**
  * Provides transactional methods for accessing and modifying a given snapshot of data identified by an opaque {@link
@@ -346,12 +349,14 @@ public class TTable implements Closeable {
         }
 
         Map<Long, Long> commitCache = buildCommitCache(rawCells);
+        Map<Long, Optional<CommitTimestamp>> commitTableEntries =
+            readPendingCommitTimestamps(rawCells, transaction, commitCache);
 
         for (Collection<Cell> columnCells : groupCellsByColumnFilteringShadowCells(rawCells)) {
             boolean snapshotValueFound = false;
             Cell oldestCell = null;
             for (Cell cell : columnCells) {
-                if (isCellInSnapshot(cell, transaction, commitCache)) {
+                if (isCellInSnapshot(cell, transaction, commitCache, commitTableEntries)) {
                     if (!CellUtil.matchingValue(cell, CellUtils.DELETE_TOMBSTONE)) {
                         keyValuesInSnapshot.add(cell);
                     }
@@ -396,7 +401,35 @@ public class TTable implements Closeable {
         return commitCache;
     }
 
-    private boolean isCellInSnapshot(Cell kv, HBaseTransaction transaction, Map<Long, Long> commitCache)
+    /**
+     * Looks up in the commit table all the transactions of the cells without a shadow cell at once, instead of one
+     * by one when each cell is checked. Only worth when there's more than one, as a single transaction is looked up
+     * with a single round trip anyway.
+     */
+    private Map<Long, Optional<CommitTimestamp>> readPendingCommitTimestamps(List<Cell> rawCells,
+                                                                            HBaseTransaction transaction,
+                                                                            Map<Long, Long> commitCache)
+        throws IOException {
+
+        Set<Long> pendingStartTimestamps = new HashSet<>();
+        for (Cell cell : rawCells) {
+            long cellStartTimestamp = cell.getTimestamp();
+            if (!CellUtils.isShadowCell(cell)
+                && cellStartTimestamp != transaction.getStartTimestamp()
+                && !commitCache.containsKey(cellStartTimestamp)) {
+                pendingStartTimestamps.add(cellStartTimestamp);
+            }
+        }
+        if (pendingStartTimestamps.size() < 2) {
+            return Collections.emptyMap();
+        }
+        return transaction.getTransactionManager()
+                          .readCommitTimestampsFromCommitTable(Longs.toArray(pendingStartTimestamps));
+
+    }
+
+    private boolean isCellInSnapshot(Cell kv, HBaseTransaction transaction, Map<Long, Long> commitCache,
+                                     Map<Long, Optional<CommitTimestamp>> commitTableEntries)
         throws IOException {
 
         long startTimestamp = transaction.getStartTimestamp();
@@ -407,7 +440,7 @@ public class TTable implements Closeable {
 
         Optional<Long> commitTimestamp =
             tryToLocateCellCommitTimestamp(transaction.getTransactionManager(), transaction.getEpoch(), kv,
-                                           commitCache);
+                                           commitCache, commitTableEntries);
 
         return commitTimestamp.isPresent() && commitTimestamp.get() < startTimestamp;
     }
@@ -428,7 +461,8 @@ public class TTable implements Closeable {
     private Optional<Long> tryToLocateCellCommitTimestamp(AbstractTransactionManager transactionManager,
                                                           long epoch,
                                                           Cell cell,
-                                                          Map<Long, Long> commitCache)
+                                                          Map<Long, Long> commitCache,
+                                                          Map<Long, Optional<CommitTimestamp>> commitTableEntries)
         throws IOException {
 
         CommitTimestamp tentativeCommitTimestamp =
@@ -441,7 +475,8 @@ public class TTable implements Closeable {
                                     CellUtil.cloneFamily(cell),
                                     CellUtil.cloneQualifier(cell),
                                     cell.getTimestamp()),
-                    commitCache));
+                    commitCache),
+                commitTableEntries);
 
         // If transaction that added the cell was invalidated
         if (!tentativeCommitTimestamp.isValid()) {
@@ -17,6 +17,8 @@
  */
 package org.apache.omid.transaction;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.KeyValue;
@@ -28,9 +30,16 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.omid.TestUtils;
 import org.apache.omid.committable.CommitTable;
 import org.apache.omid.committable.InMemoryCommitTable;
+import org.apache.omid.committable.hbase.CompletionWatermarkStorage;
+import org.apache.omid.committable.hbase.HBaseCommitTableConfig;
 import org.apache.omid.transaction.Transaction.Status;
 import org.apache.omid.tso.ProgrammableTSOServer;
+import org.apache.omid.tso.client.ForwardingTSOFuture;
+import org.apache.omid.tso.client.ServiceUnavailableException;
 import org.apache.omid.tso.client.TSOClient;
+import org.apache.omid.tso.client.TSOFuture;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.annotations.BeforeClass;
@@ -39,10 +48,18 @@ import org.testng.annotations.Test;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
-
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 @Test(groups = "sharedHBase")
@@ -131,6 +148,65 @@ public class TestTxMgrFailover extends OmidTestBase {
 
     }
 
+    @Test(timeOut = 30_000)
+    public void testCompletionWatermarkAdvancesWhenTheCommitIsRecoveredFromTheCommitTable() throws Exception {
+
+        HBaseOmidClientConfiguration hbaseOmidClientConf = new HBaseOmidClientConfiguration();
+        hbaseOmidClientConf.setConnectionString(TSO_SERVER_HOST + ":" + TSO_SERVER_PORT);
+        hbaseOmidClientConf.setHBaseConfiguration(hbaseConf);
+        hbaseOmidClientConf.setDeferCommitTableEntryRemoval(true);
+        hbaseOmidClientConf.setCompletionWatermarkPeriodInMs(100);
+
+        // The TSO hands out increasing timestamps but can't be reached to commit
+        TSOClient mockedTSOClient = mock(TSOClient.class);
+        final AtomicLong timestamps = new AtomicLong(TX1_ST);
+        doAnswer(new Answer<TSOFuture<Long>>() {
+            @Override
+            public TSOFuture<Long> answer(InvocationOnMock invocation) {
+                return new ForwardingTSOFuture<>(Futures.immediateFuture(timestamps.getAndAdd(10)));
+            }
+        }).when(mockedTSOClient).getNewStartTimestamp();
+        SettableFuture<Long> unavailable = SettableFuture.create();
+        unavailable.setException(new ServiceUnavailableException("TSO not reachable"));
+        doReturn(new ForwardingTSOFuture<>(unavailable))
+                .when(mockedTSOClient).commit(anyLong(), anySetOf(HBaseCellId.class));
+
+        HBaseCommitTableConfig commitTableConfig = new HBaseCommitTableConfig();
+        try (HBaseTransactionManager deferringTM = HBaseTransactionManager.builder(hbaseOmidClientConf)
+                .tsoClient(mockedTSOClient)
+                .commitTableClient(commitTableClient)
+                .build();
+             TTable txTable = new TTable(hbaseConf, TEST_TABLE);
+             CompletionWatermarkStorage completionWatermarks = new CompletionWatermarkStorage(hbaseConf,
+                                                                                              commitTableConfig)) {
+
+            HBaseTransaction tx1 = (HBaseTransaction) deferringTM.begin();
+            Put put = new Put(row1);
+            put.add(TEST_FAMILY.getBytes(), qualifier, data1);
+            txTable.put(tx1, put);
+
+            // The TSO committed the transaction before becoming unreachable
+            CommitTable.Writer writer = commitTable.getWriter();
+            writer.addCommittedTransaction(tx1.getStartTimestamp(), tx1.getStartTimestamp() + 1);
+            writer.flush();
+
+            deferringTM.commit(tx1);
+            assertEquals(tx1.getStatus(), Status.COMMITTED);
+            // The commit table entry is kept...
+            assertTrue(commitTable.getClient().getCommitTimestamp(tx1.getStartTimestamp()).get().isPresent());
+
+            // ...but the watermark of the client moves past the transaction once its shadow cells are written
+            boolean watermarkAdvanced = false;
+            while (!watermarkAdvanced) {
+                Thread.sleep(100);
+                Map<String, Long> watermarks = completionWatermarks.readAll();
+                assertEquals(watermarks.size(), 1);
+                watermarkAdvanced = watermarks.values().iterator().next() > tx1.getStartTimestamp();
+            }
+        }
+
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Helper methods
     // ----------------------------------------------------------------------------------------------------------------
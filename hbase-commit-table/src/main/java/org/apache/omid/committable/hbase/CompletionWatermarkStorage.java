@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.committable.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.COMPLETION_WATERMARK_ROW;
+
+/**
+ * Keeps the completion watermarks of the clients that leave the removal of their commit table entries to the
+ * HBaseCommitTableCollector. The shadow cells of all the transactions of a client that started before its completion
+ * watermark are written, so their commit table entries are not needed anymore.
+ *
+ * Each client publishes its watermark in a column of its own in a single row of the low watermark family.
+ */
+public class CompletionWatermarkStorage implements Closeable {
+
+    private final HTable table;
+    private final byte[] lowWatermarkFamily;
+
+    public CompletionWatermarkStorage(Configuration hbaseConfig, HBaseCommitTableConfig config) throws IOException {
+        this.table = new HTable(hbaseConfig, config.getTableName());
+        this.lowWatermarkFamily = config.getLowWatermarkFamily();
+    }
+
+    public synchronized void publish(String clientId, long completionWatermark) throws IOException {
+        Put put = new Put(COMPLETION_WATERMARK_ROW);
+        put.add(lowWatermarkFamily, Bytes.toBytes(clientId), Bytes.toBytes(completionWatermark));
+        table.put(put);
+    }
+
+    public synchronized void remove(String clientId) throws IOException {
+        Delete delete = new Delete(COMPLETION_WATERMARK_ROW);
+        delete.deleteColumns(lowWatermarkFamily, Bytes.toBytes(clientId));
+        table.delete(delete);
+    }
+
+    /**
+     * @return the completion watermark of each client, by client id
+     */
+    public synchronized Map<String, Long> readAll() throws IOException {
+        Get get = new Get(COMPLETION_WATERMARK_ROW);
+        get.addFamily(lowWatermarkFamily);
+        Result result = table.get(get);
+        Map<String, Long> completionWatermarks = new HashMap<>();
+        if (!result.isEmpty()) {
+            for (Map.Entry<byte[], byte[]> column : result.getFamilyMap(lowWatermarkFamily).entrySet()) {
+                completionWatermarks.put(Bytes.toString(column.getKey()), Bytes.toLong(column.getValue()));
+            }
+        }
+        return completionWatermarks;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        table.close();
+    }
+
+}
@@ -17,15 +17,27 @@
  */
 package org.apache.omid.committable.hbase;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
 import org.apache.omid.committable.CommitTable;
 import org.apache.omid.committable.CommitTable.CommitTimestamp.Location;
+import org.apache.omid.committable.CommitTimestampCache;
+import org.apache.omid.committable.hbase.HBaseCommitTableConfig.COMPLETION_OVERFLOW_POLICY;
+import org.apache.omid.metrics.Counter;
+import org.apache.omid.metrics.Histogram;
+import org.apache.omid.metrics.MetricsRegistry;
+import org.apache.omid.metrics.NullMetricsProvider;
+import org.apache.omid.metrics.Timer;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
@@ -39,18 +51,26 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.COMMIT_TABLE_QUALIFIER;
 import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.INVALID_TX_QUALIFIER;
 import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.LOW_WATERMARK_QUALIFIER;
 import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.LOW_WATERMARK_ROW;
+import static org.apache.omid.metrics.MetricsUtils.name;
 
 public class HBaseCommitTable implements CommitTable {
 
@@ -60,23 +80,50 @@ public class HBaseCommitTable implements CommitTable {
     private final String tableName;
     private final byte[] commitTableFamily;
     private final byte[] lowWatermarkFamily;
+    private final int commitTimestampCacheSize;
+    private final int clientIOThreads;
+    private final long lookupCoalescingWindowInNanos;
+    private final int completionThreads;
+    private final int completionQueueSize;
+    private final COMPLETION_OVERFLOW_POLICY completionOverflowPolicy;
+    private final int writerFlushThreads;
+    private final MetricsRegistry metrics;
     private final KeyGenerator keygen;
 
     /**
      * Create a hbase commit table.
      * Note that we do not take ownership of the passed htable, it is just used to construct the writer and client.
      */
-    @Inject
     public HBaseCommitTable(Configuration hbaseConfig, HBaseCommitTableConfig config) {
-        this(hbaseConfig, config, KeyGeneratorImplementations.defaultKeyGenerator());
+        this(hbaseConfig, config, new NullMetricsProvider());
+    }
+
+    @Inject
+    public HBaseCommitTable(Configuration hbaseConfig, HBaseCommitTableConfig config, MetricsRegistry metrics) {
+        this(hbaseConfig, config, KeyGeneratorImplementations.defaultKeyGenerator(), metrics);
     }
 
     public HBaseCommitTable(Configuration hbaseConfig, HBaseCommitTableConfig config, KeyGenerator keygen) {
+        this(hbaseConfig, config, keygen, new NullMetricsProvider());
+    }
+
+    public HBaseCommitTable(Configuration hbaseConfig,
+                            HBaseCommitTableConfig config,
+                            KeyGenerator keygen,
+                            MetricsRegistry metrics) {
 
         this.hbaseConfig = hbaseConfig;
         this.tableName = config.getTableName();
         this.commitTableFamily = config.getCommitTableFamily();
         this.lowWatermarkFamily = config.getLowWatermarkFamily();
+        this.commitTimestampCacheSize = config.getCommitTimestampCacheSize();
+        this.clientIOThreads = config.getClientIOThreads();
+        this.lookupCoalescingWindowInNanos = TimeUnit.MICROSECONDS.toNanos(config.getLookupCoalescingWindowInUs());
+        this.completionThreads = config.getCompletionThreads();
+        this.completionQueueSize = config.getCompletionQueueSize();
+        this.completionOverflowPolicy = config.getCompletionOverflowPolicy();
+        this.writerFlushThreads = config.getWriterFlushThreads();
+        this.metrics = metrics;
         this.keygen = keygen;
 
     }
@@ -85,16 +132,33 @@ public class HBaseCommitTable implements CommitTable {
     // Reader and Writer
     // ----------------------------------------------------------------------------------------------------------------
 
-    private class HBaseWriter implements Writer {
+    /**
+     * The puts of each flush are grouped by the region server hosting their rows and the groups are written in
+     * parallel, each one with its own HTable. A flush doesn't wait for the previous ones to complete, so several
+     * flushes can be outstanding at the same time. The groups are written by a fixed number of threads, which bounds
+     * the threads and HTables of the writer however slow the region servers are.
+     */
+    class HBaseWriter implements Writer {
 
         private static final long INITIAL_LWM_VALUE = -1L;
+        // Only used by the thread adding the events, to locate the regions of the rows
         final HTable table;
         // Our own buffer for operations
-        final List<Put> writeBuffer = new LinkedList<>();
+        List<Put> writeBuffer = new ArrayList<>();
         volatile long lowWatermarkToStore = INITIAL_LWM_VALUE;
 
+        final ListeningExecutorService flushExecutor;
+        // HTables are not thread-safe, so each group is written with a table taken from this pool. As each flush
+        // thread holds at most one table, there are never more tables than threads
+        final BlockingQueue<HTable> flushTables = new LinkedBlockingQueue<>();
+
         HBaseWriter() throws IOException {
+            Preconditions.checkArgument(writerFlushThreads > 0, "# of writer flush threads [%s] must be positive",
+                                        writerFlushThreads);
             table = new HTable(hbaseConfig, tableName);
+            flushExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                    writerFlushThreads,
+                    new ThreadFactoryBuilder().setNameFormat("omid-ct-writer-%d").setDaemon(true).build()));
         }
 
         @Override
@@ -114,15 +178,50 @@ public class HBaseCommitTable implements CommitTable {
         @Override
         public void flush() throws IOException {
             try {
-                addLowWatermarkToStoreToWriteBuffer();
-                table.put(writeBuffer);
-                writeBuffer.clear();
+                Futures.get(flushAsync(), IOException.class);
             } catch (IOException e) {
                 LOG.error("Error flushing data", e);
                 throw e;
             }
         }
 
+        @Override
+        public ListenableFuture<Void> flushAsync() {
+            addLowWatermarkToStoreToWriteBuffer();
+            List<Put> puts = writeBuffer;
+            writeBuffer = new ArrayList<>();
+            if (puts.isEmpty()) {
+                return Futures.immediateFuture(null);
+            }
+
+            Map<String, List<Put>> putsByServer = new HashMap<>();
+            try {
+                for (Put put : puts) {
+                    String server = table.getRegionLocation(put.getRow()).getHostnamePort();
+                    List<Put> group = putsByServer.get(server);
+                    if (group == null) {
+                        group = new ArrayList<>();
+                        putsByServer.put(server, group);
+                    }
+                    group.add(put);
+                }
+            } catch (IOException e) {
+                LOG.error("Error locating the regions of the data to flush", e);
+                return Futures.immediateFailedFuture(e);
+            }
+
+            List<ListenableFuture<Void>> groupFlushes = new ArrayList<>(putsByServer.size());
+            for (List<Put> group : putsByServer.values()) {
+                groupFlushes.add(flushExecutor.submit(new GroupFlush(group)));
+            }
+            return Futures.transform(Futures.allAsList(groupFlushes), new Function<List<Void>, Void>() {
+                @Override
+                public Void apply(List<Void> results) {
+                    return null;
+                }
+            });
+        }
+
         @Override
         public void clearWriteBuffer() {
             writeBuffer.clear();
@@ -131,6 +230,17 @@ public class HBaseCommitTable implements CommitTable {
         @Override
         public void close() throws IOException {
             clearWriteBuffer();
+            flushExecutor.shutdown();
+            try {
+                if (!flushExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOG.warn("Flush executor did not shutdown");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            for (HTable flushTable : flushTables) {
+                flushTable.close();
+            }
             table.close();
         }
 
@@ -143,181 +253,308 @@ public class HBaseCommitTable implements CommitTable {
             }
         }
 
+        private class GroupFlush implements Callable<Void> {
+
+            final List<Put> puts;
+
+            GroupFlush(List<Put> puts) {
+                this.puts = puts;
+            }
+
+            @Override
+            public Void call() throws IOException {
+                HTable flushTable = flushTables.poll();
+                if (flushTable == null) {
+                    flushTable = new HTable(hbaseConfig, tableName);
+                }
+                try {
+                    flushTable.put(puts);
+                } finally {
+                    flushTables.offer(flushTable);
+                }
+                return null;
+            }
+
+        }
+
     }
 
+    /**
+     * The client never blocks its callers on HBase. The lookups of single commit timestamps that are not cached are
+     * queued, and a coalescer thread dispatches them at once when there's no multi-get in flight. Otherwise, the ones
+     * received whilst the previous multi-get is in flight, up to the coalescing window, are merged in a single one. The
+     * multi-gets and the rest of the reads and writes are executed by a small pool of I/O threads, and the futures
+     * returned to the callers are completed when the results arrive.
+     */
     class HBaseClient implements Client, Runnable {
 
-        final HTable table;
+        final static int MAX_LOOKUPS_PER_BATCH = 1024;
+
+        // Only used by the completor thread, to locate the regions of the entries to delete
         final HTable deleteTable;
         final ExecutorService deleteBatchExecutor;
         final BlockingQueue<DeleteRequest> deleteQueue;
-        boolean isClosed = false; // @GuardedBy("this")
+        final ListeningExecutorService completionExecutor;
+        // Groups of deletes in flight, up to one per completion thread
+        final Semaphore deleteSlots;
+        volatile boolean isClosed = false; // Written @GuardedBy("this")
         final static int DELETE_BATCH_SIZE = 1024;
+        // Read-through cache of the final commit decisions. Null if disabled
+        final CommitTimestampCache commitTimestampCache;
+
+        final Histogram completionQueueDepth;
+        final Timer deleteLatency;
+        final Counter discardedCompletions;
+
+        final BlockingQueue<LookupRequest> lookupQueue = new LinkedBlockingQueue<>();
+        final ExecutorService lookupCoalescerExecutor;
+        // Taken by the multi-get in flight, if any, and released when its results arrive
+        final Semaphore lookupSlot = new Semaphore(1);
+        final ListeningExecutorService ioExecutor;
+        // HTables are not thread-safe, so each I/O or completion task uses a table taken from this pool
+        final BlockingQueue<HTable> ioTables = new LinkedBlockingQueue<>();
 
         HBaseClient() throws IOException {
-            table = new HTable(hbaseConfig, tableName);
-            table.setAutoFlush(false, true);
             deleteTable = new HTable(hbaseConfig, tableName);
-            deleteQueue = new ArrayBlockingQueue<>(DELETE_BATCH_SIZE);
+            deleteQueue = new ArrayBlockingQueue<>(completionQueueSize);
+            commitTimestampCache =
+                    commitTimestampCacheSize > 0 ? new CommitTimestampCache(commitTimestampCacheSize) : null;
+            completionQueueDepth = metrics.histogram(name("omid", "ct", "client", "completion", "queue", "depth"));
+            deleteLatency = metrics.timer(name("omid", "ct", "client", "completion", "delete", "latency"));
+            discardedCompletions = metrics.counter(name("omid", "ct", "client", "completion", "discarded"));
 
             deleteBatchExecutor = Executors.newSingleThreadExecutor(
                     new ThreadFactoryBuilder().setNameFormat("omid-completor-%d").build());
+            completionExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(completionThreads,
+                    new ThreadFactoryBuilder().setNameFormat("omid-ct-client-completion-%d").setDaemon(true).build()));
+            deleteSlots = new Semaphore(completionThreads);
             deleteBatchExecutor.submit(this);
 
+            ioExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(clientIOThreads,
+                    new ThreadFactoryBuilder().setNameFormat("omid-ct-client-io-%d").setDaemon(true).build()));
+            lookupCoalescerExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("omid-ct-lookup-coalescer-%d").setDaemon(true).build());
+            lookupCoalescerExecutor.submit(new LookupCoalescer());
+
         }
 
         @Override
         public ListenableFuture<Optional<CommitTimestamp>> getCommitTimestamp(long startTimestamp) {
 
-            SettableFuture<Optional<CommitTimestamp>> f = SettableFuture.create();
-            try {
-                Get get = new Get(startTimestampToKey(startTimestamp));
-                get.addColumn(commitTableFamily, COMMIT_TABLE_QUALIFIER);
-                get.addColumn(commitTableFamily, INVALID_TX_QUALIFIER);
-
-                Result result = table.get(get);
+            Optional<CommitTimestamp> cached = readFromCache(startTimestamp);
+            if (cached.isPresent()) {
+                return Futures.immediateFuture(cached);
+            }
+            LookupRequest request = new LookupRequest(startTimestamp);
+            lookupQueue.add(request);
+            if (isClosed) {
+                // The coalescer may be gone already, so nobody else would complete the request
+                failQueuedLookups();
+            }
+            return request;
+        }
 
-                if (containsInvalidTransaction(result)) {
-                    CommitTimestamp invalidCT =
-                            new CommitTimestamp(Location.COMMIT_TABLE, INVALID_TRANSACTION_MARKER, false);
-                    f.set(Optional.of(invalidCT));
-                    return f;
+        @Override
+        public ListenableFuture<List<Optional<CommitTimestamp>>> getCommitTimestamps(final long[] startTimestamps) {
+
+            final List<Optional<CommitTimestamp>> commitTimestamps = new ArrayList<>(startTimestamps.length);
+            // The transactions not found in the cache are looked up with a single multi-get
+            final List<Integer> getPositions = new ArrayList<>();
+            for (int i = 0; i < startTimestamps.length; i++) {
+                Optional<CommitTimestamp> cached = readFromCache(startTimestamps[i]);
+                commitTimestamps.add(cached);
+                if (!cached.isPresent()) {
+                    getPositions.add(i);
+                }
+            }
+            if (getPositions.isEmpty()) {
+                return Futures.immediateFuture(commitTimestamps);
+            }
+            return submitIO(new IOTask<List<Optional<CommitTimestamp>>>() {
+                @Override
+                List<Optional<CommitTimestamp>> execute(HTable table) throws IOException {
+                    List<Get> gets = new ArrayList<>(getPositions.size());
+                    for (int position : getPositions) {
+                        gets.add(createCommitTimestampGet(startTimestamps[position]));
+                    }
+                    try {
+                        Result[] results = table.get(gets);
+                        for (int i = 0; i < results.length; i++) {
+                            int position = getPositions.get(i);
+                            commitTimestamps.set(position,
+                                                 decodeCommitTimestampResult(startTimestamps[position], results[i]));
+                        }
+                    } catch (IOException e) {
+                        LOG.error("Error getting commit timestamps for {} TXs", gets.size(), e);
+                        throw e;
+                    }
+                    return commitTimestamps;
                 }
+            });
+        }
 
-                if (containsATimestamp(result)) {
-                    long commitTSValue =
-                            decodeCommitTimestamp(startTimestamp, result.getValue(commitTableFamily, COMMIT_TABLE_QUALIFIER));
-                    CommitTimestamp validCT = new CommitTimestamp(Location.COMMIT_TABLE, commitTSValue, true);
-                    f.set(Optional.of(validCT));
-                } else {
-                    f.set(Optional.<CommitTimestamp>absent());
+        private Optional<CommitTimestamp> readFromCache(long startTimestamp) {
+            if (commitTimestampCache != null) {
+                long cachedValue = commitTimestampCache.get(startTimestamp);
+                if (cachedValue != CommitTimestampCache.NOT_CACHED) {
+                    boolean isValid = cachedValue != INVALID_TRANSACTION_MARKER;
+                    return Optional.of(new CommitTimestamp(Location.COMMIT_TABLE, cachedValue, isValid));
                 }
-            } catch (IOException e) {
-                LOG.error("Error getting commit timestamp for TX {}", startTimestamp, e);
-                f.setException(e);
             }
-            return f;
+            return Optional.absent();
+        }
+
+        private Get createCommitTimestampGet(long startTimestamp) throws IOException {
+            Get get = new Get(startTimestampToKey(startTimestamp));
+            get.addColumn(commitTableFamily, COMMIT_TABLE_QUALIFIER);
+            get.addColumn(commitTableFamily, INVALID_TX_QUALIFIER);
+            return get;
+        }
+
+        private Optional<CommitTimestamp> decodeCommitTimestampResult(long startTimestamp, Result result)
+                throws IOException {
+
+            if (containsInvalidTransaction(result)) {
+                CommitTimestamp invalidCT =
+                        new CommitTimestamp(Location.COMMIT_TABLE, INVALID_TRANSACTION_MARKER, false);
+                cacheDecision(startTimestamp, INVALID_TRANSACTION_MARKER);
+                return Optional.of(invalidCT);
+            }
+
+            if (containsATimestamp(result)) {
+                long commitTSValue =
+                        decodeCommitTimestamp(startTimestamp, result.getValue(commitTableFamily, COMMIT_TABLE_QUALIFIER));
+                CommitTimestamp validCT = new CommitTimestamp(Location.COMMIT_TABLE, commitTSValue, true);
+                cacheDecision(startTimestamp, commitTSValue);
+                return Optional.of(validCT);
+            }
+            // The transaction may still commit or be invalidated, so its absence is not cached
+            return Optional.absent();
+
         }
 
         @Override
         public ListenableFuture<Long> readLowWatermark() {
-            SettableFuture<Long> f = SettableFuture.create();
-            try {
-                Get get = new Get(LOW_WATERMARK_ROW);
-                get.addColumn(lowWatermarkFamily, LOW_WATERMARK_QUALIFIER);
-                Result result = table.get(get);
-                if (containsLowWatermark(result)) {
-                    long lowWatermark = Bytes.toLong(result.getValue(lowWatermarkFamily, LOW_WATERMARK_QUALIFIER));
-                    f.set(lowWatermark);
-                } else {
-                    f.set(0L);
+            return submitIO(new IOTask<Long>() {
+                @Override
+                Long execute(HTable table) throws IOException {
+                    try {
+                        Get get = new Get(LOW_WATERMARK_ROW);
+                        get.addColumn(lowWatermarkFamily, LOW_WATERMARK_QUALIFIER);
+                        Result result = table.get(get);
+                        if (!containsLowWatermark(result)) {
+                            return 0L;
+                        }
+                        long lowWatermark = Bytes.toLong(result.getValue(lowWatermarkFamily, LOW_WATERMARK_QUALIFIER));
+                        if (commitTimestampCache != null) {
+                            commitTimestampCache.updateLowWatermark(lowWatermark);
+                        }
+                        return lowWatermark;
+                    } catch (IOException e) {
+                        LOG.error("Error getting low watermark", e);
+                        throw e;
+                    }
                 }
-            } catch (IOException e) {
-                LOG.error("Error getting low watermark", e);
-                f.setException(e);
-            }
-            return f;
+            });
         }
 
         @Override
-        public ListenableFuture<Void> completeTransaction(long startTimestamp) {
-            try {
-                synchronized (this) {
-
-                    if (isClosed) {
-                        SettableFuture<Void> f = SettableFuture.create();
-                        f.setException(new IOException("Not accepting requests anymore"));
-                        return f;
+        public ListenableFuture<Boolean> tryInvalidateTransaction(final long startTimestamp) {
+            return submitIO(new IOTask<Boolean>() {
+                @Override
+                Boolean execute(HTable table) throws IOException {
+                    byte[] row = startTimestampToKey(startTimestamp);
+                    Put invalidationPut = new Put(row, startTimestamp);
+                    invalidationPut.add(commitTableFamily, INVALID_TX_QUALIFIER, null);
+
+                    // We need to write to the invalid column only if the commit timestamp
+                    // is empty. This has to be done atomically. Otherwise, if we first
+                    // check the commit timestamp and right before the invalidation a commit
+                    // timestamp is added and read by a transaction, then snapshot isolation
+                    // might not be hold (due to the invalidation)
+                    // TODO: Decide what we should we do if we can not contact the commit table. loop till succeed???
+                    boolean result =
+                            table.checkAndPut(row, commitTableFamily, COMMIT_TABLE_QUALIFIER, null, invalidationPut);
+                    if (result) {
+                        cacheDecision(startTimestamp, INVALID_TRANSACTION_MARKER);
                     }
-
-                    DeleteRequest req = new DeleteRequest(
-                            new Delete(startTimestampToKey(startTimestamp), startTimestamp));
-                    deleteQueue.put(req);
-                    return req;
+                    return result;
                 }
-            } catch (IOException ioe) {
-                LOG.warn("Error generating timestamp for transaction completion", ioe);
-                SettableFuture<Void> f = SettableFuture.create();
-                f.setException(ioe);
-                return f;
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                SettableFuture<Void> f = SettableFuture.create();
-                f.setException(ie);
-                return f;
-            }
+            });
         }
 
         @Override
-        public ListenableFuture<Boolean> tryInvalidateTransaction(long startTimestamp) {
-            SettableFuture<Boolean> f = SettableFuture.create();
+        public ListenableFuture<Void> completeTransaction(long startTimestamp) {
+
+            if (isClosed) {
+                return Futures.immediateFailedFuture(new IOException("Not accepting requests anymore"));
+            }
+            if (commitTimestampCache != null) {
+                // Once completed, the commit timestamp is found in the shadow cells
+                commitTimestampCache.remove(startTimestamp);
+            }
+            DeleteRequest req;
             try {
-                byte[] row = startTimestampToKey(startTimestamp);
-                Put invalidationPut = new Put(row, startTimestamp);
-                invalidationPut.add(commitTableFamily, INVALID_TX_QUALIFIER, null);
-
-                // We need to write to the invalid column only if the commit timestamp
-                // is empty. This has to be done atomically. Otherwise, if we first
-                // check the commit timestamp and right before the invalidation a commit
-                // timestamp is added and read by a transaction, then snapshot isolation
-                // might not be hold (due to the invalidation)
-                // TODO: Decide what we should we do if we can not contact the commit table. loop till succeed???
-                boolean result = table.checkAndPut(row, commitTableFamily, COMMIT_TABLE_QUALIFIER, null, invalidationPut);
-                f.set(result);
+                req = new DeleteRequest(new Delete(startTimestampToKey(startTimestamp), startTimestamp));
             } catch (IOException ioe) {
-                f.setException(ioe);
+                LOG.warn("Error generating timestamp for transaction completion", ioe);
+                return Futures.immediateFailedFuture(ioe);
             }
-            return f;
+            switch (completionOverflowPolicy) {
+                case BLOCK:
+                    try {
+                        deleteQueue.put(req);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return Futures.immediateFailedFuture(ie);
+                    }
+                    break;
+                case DISCARD:
+                    if (!deleteQueue.offer(req)) {
+                        discardedCompletions.inc();
+                        LOG.warn("Completion queue full. Entry for TX {} left in the commit table", startTimestamp);
+                        req.error(new IOException("Completion queue full. Entry for TX " + startTimestamp
+                                                          + " left in the commit table"));
+                        return req;
+                    }
+                    break;
+            }
+            if (isClosed) {
+                // The completor may be gone already, so nobody else would complete the request
+                failQueuedDeletes();
+            }
+            return req;
+
         }
 
+        /**
+         * Takes the completions in batches of up to DELETE_BATCH_SIZE, groups the deletes of each batch by the region
+         * server hosting their rows and hands each group to the completion threads. No more groups than completion
+         * threads are in flight, so when HBase can't keep up the queue fills and the overflow policy applies.
+         */
         @Override
         @SuppressWarnings("InfiniteLoopStatement")
         public void run() {
             List<DeleteRequest> reqbatch = new ArrayList<>();
             try {
                 while (true) {
-                    DeleteRequest r = deleteQueue.poll();
-                    if (r == null && reqbatch.size() == 0) {
-                        r = deleteQueue.take();
-                    }
-
-                    if (r != null) {
-                        reqbatch.add(r);
-                    }
-
-                    if (r == null || reqbatch.size() == DELETE_BATCH_SIZE) {
-                        List<Delete> deletes = new ArrayList<>();
-                        for (DeleteRequest dr : reqbatch) {
-                            deletes.add(dr.getDelete());
-                        }
-                        try {
-                            deleteTable.delete(deletes);
-                            for (DeleteRequest dr : reqbatch) {
-                                dr.complete();
-                            }
-                        } catch (IOException ioe) {
-                            LOG.warn("Error contacting hbase", ioe);
-                            for (DeleteRequest dr : reqbatch) {
-                                dr.error(ioe);
-                            }
-                        } finally {
-                            reqbatch.clear();
-                        }
+                    reqbatch.add(deleteQueue.take());
+                    deleteQueue.drainTo(reqbatch, DELETE_BATCH_SIZE - 1);
+                    completionQueueDepth.update(deleteQueue.size());
+                    for (List<DeleteRequest> group : groupByRegionServer(reqbatch)) {
+                        deleteSlots.acquire();
+                        dispatchDeletes(group);
                     }
+                    reqbatch = new ArrayList<>();
                 }
             } catch (InterruptedException ie) {
                 // Drain the queue and place the exception in the future
                 // for those who placed requests
                 LOG.warn("Draining delete queue");
-                DeleteRequest queuedRequest = deleteQueue.poll();
-                while (queuedRequest != null) {
-                    reqbatch.add(queuedRequest);
-                    queuedRequest = deleteQueue.poll();
-                }
                 for (DeleteRequest dr : reqbatch) {
                     dr.error(new IOException("HBase CommitTable is going to be closed"));
                 }
-                reqbatch.clear();
+                failQueuedDeletes();
                 Thread.currentThread().interrupt();
             } catch (Throwable t) {
                 LOG.error("Transaction completion thread threw exception", t);
@@ -337,14 +574,169 @@ public class HBaseCommitTable implements CommitTable {
             }
 
             LOG.warn("Re-Draining delete queue just in case");
+            failQueuedDeletes();
+
+            // The deletes in flight are completed before closing their tables
+            completionExecutor.shutdown();
+            try {
+                if (!completionExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOG.warn("Completion executor did not shutdown");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+
+            lookupCoalescerExecutor.shutdownNow(); // may need to interrupt take
+            try {
+                if (!lookupCoalescerExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOG.warn("Lookup coalescer did not shutdown");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            failQueuedLookups();
+
+            // The I/O tasks already submitted are completed before closing their tables
+            ioExecutor.shutdown();
+            try {
+                if (!ioExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOG.warn("I/O executor did not shutdown");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            for (HTable ioTable : ioTables) {
+                ioTable.close();
+            }
+            deleteTable.close();
+        }
+
+        private <T> ListenableFuture<T> submitIO(IOTask<T> task) {
+            return submitIO(ioExecutor, task);
+        }
+
+        private <T> ListenableFuture<T> submitIO(ListeningExecutorService executor, IOTask<T> task) {
+            try {
+                return executor.submit(task);
+            } catch (RejectedExecutionException e) {
+                return Futures.immediateFailedFuture(new IOException("Not accepting requests anymore"));
+            }
+        }
+
+        private void dispatchLookups(final List<LookupRequest> lookups, final boolean holdsLookupSlot) {
+            ListenableFuture<Void> multiGet = submitIO(new IOTask<Void>() {
+                @Override
+                Void execute(HTable table) throws IOException {
+                    List<Get> gets = new ArrayList<>(lookups.size());
+                    for (LookupRequest lookup : lookups) {
+                        gets.add(createCommitTimestampGet(lookup.startTimestamp));
+                    }
+                    Result[] results = table.get(gets);
+                    for (int i = 0; i < results.length; i++) {
+                        LookupRequest lookup = lookups.get(i);
+                        lookup.complete(decodeCommitTimestampResult(lookup.startTimestamp, results[i]));
+                    }
+                    return null;
+                }
+            });
+            Futures.addCallback(multiGet, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    releaseLookupSlot();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    releaseLookupSlot();
+                    LOG.error("Error getting commit timestamps for {} TXs", lookups.size(), t);
+                    IOException ioe = t instanceof IOException ? (IOException) t : new IOException(t);
+                    for (LookupRequest lookup : lookups) {
+                        lookup.error(ioe);
+                    }
+                }
+
+                private void releaseLookupSlot() {
+                    if (holdsLookupSlot) {
+                        lookupSlot.release();
+                    }
+                }
+            });
+        }
+
+        private Collection<List<DeleteRequest>> groupByRegionServer(List<DeleteRequest> requests) {
+            Map<String, List<DeleteRequest>> requestsByServer = new HashMap<>();
+            try {
+                for (DeleteRequest request : requests) {
+                    String server = deleteTable.getRegionLocation(request.getDelete().getRow()).getHostnamePort();
+                    List<DeleteRequest> group = requestsByServer.get(server);
+                    if (group == null) {
+                        group = new ArrayList<>();
+                        requestsByServer.put(server, group);
+                    }
+                    group.add(request);
+                }
+            } catch (IOException e) {
+                LOG.warn("Error locating the regions of the entries to delete. Deleting them all together", e);
+                return Collections.singletonList(requests);
+            }
+            return requestsByServer.values();
+        }
+
+        private void dispatchDeletes(final List<DeleteRequest> requests) {
+            ListenableFuture<Void> groupDelete = submitIO(completionExecutor, new IOTask<Void>() {
+                @Override
+                Void execute(HTable table) throws IOException {
+                    List<Delete> deletes = new ArrayList<>(requests.size());
+                    for (DeleteRequest dr : requests) {
+                        deletes.add(dr.getDelete());
+                    }
+                    long startTime = System.nanoTime();
+                    table.delete(deletes);
+                    deleteLatency.update(System.nanoTime() - startTime);
+                    for (DeleteRequest dr : requests) {
+                        dr.complete();
+                    }
+                    return null;
+                }
+            });
+            Futures.addCallback(groupDelete, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    deleteSlots.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    deleteSlots.release();
+                    LOG.warn("Error contacting hbase", t);
+                    IOException ioe = t instanceof IOException ? (IOException) t : new IOException(t);
+                    for (DeleteRequest dr : requests) {
+                        dr.error(ioe);
+                    }
+                }
+            });
+        }
+
+        private void failQueuedDeletes() {
             DeleteRequest queuedRequest = deleteQueue.poll();
             while (queuedRequest != null) {
                 queuedRequest.error(new IOException("HBase CommitTable is going to be closed"));
                 queuedRequest = deleteQueue.poll();
             }
+        }
 
-            deleteTable.close();
-            table.close();
+        private void failQueuedLookups() {
+            LookupRequest queuedLookup = lookupQueue.poll();
+            while (queuedLookup != null) {
+                queuedLookup.error(new IOException("HBase CommitTable is going to be closed"));
+                queuedLookup = lookupQueue.poll();
+            }
+        }
+
+        private void cacheDecision(long startTimestamp, long value) {
+            if (commitTimestampCache != null) {
+                commitTimestampCache.put(startTimestamp, value);
+            }
         }
 
         private boolean containsATimestamp(Result result) {
@@ -378,6 +770,78 @@ public class HBaseCommitTable implements CommitTable {
                 return delete;
             }
         }
+
+        private class LookupRequest extends AbstractFuture<Optional<CommitTimestamp>> {
+            final long startTimestamp;
+
+            LookupRequest(long startTimestamp) {
+                this.startTimestamp = startTimestamp;
+            }
+
+            void error(IOException ioe) {
+                setException(ioe);
+            }
+
+            void complete(Optional<CommitTimestamp> commitTimestamp) {
+                set(commitTimestamp);
+            }
+        }
+
+        /**
+         * Hands the queued lookups, up to MAX_LOOKUPS_PER_BATCH, to the I/O threads as a single multi-get. When the
+         * previous multi-get is still in flight, the lookups received meanwhile are merged till it completes or the
+         * coalescing window expires, whatever happens first
+         */
+        private class LookupCoalescer implements Runnable {
+
+            @Override
+            @SuppressWarnings("InfiniteLoopStatement")
+            public void run() {
+                List<LookupRequest> batch = new ArrayList<>();
+                try {
+                    while (true) {
+                        batch.add(lookupQueue.take());
+                        boolean holdsLookupSlot = lookupSlot.tryAcquire()
+                                || lookupSlot.tryAcquire(lookupCoalescingWindowInNanos, TimeUnit.NANOSECONDS);
+                        lookupQueue.drainTo(batch, MAX_LOOKUPS_PER_BATCH - batch.size());
+                        dispatchLookups(batch, holdsLookupSlot);
+                        batch = new ArrayList<>();
+                    }
+                } catch (InterruptedException ie) {
+                    LOG.warn("Draining lookup queue");
+                    for (LookupRequest lookup : batch) {
+                        lookup.error(new IOException("HBase CommitTable is going to be closed"));
+                    }
+                    failQueuedLookups();
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    LOG.error("Commit timestamp lookup thread threw exception", t);
+                }
+            }
+
+        }
+
+        /**
+         * An operation executed by an I/O thread with an HTable of its own
+         */
+        private abstract class IOTask<T> implements Callable<T> {
+
+            abstract T execute(HTable table) throws IOException;
+
+            @Override
+            public T call() throws IOException {
+                HTable ioTable = ioTables.poll();
+                if (ioTable == null) {
+                    ioTable = new HTable(hbaseConfig, tableName);
+                }
+                try {
+                    return execute(ioTable);
+                } finally {
+                    ioTables.offer(ioTable);
+                }
+            }
+
+        }
     }
 
     // ----------------------------------------------------------------------------------------------------------------
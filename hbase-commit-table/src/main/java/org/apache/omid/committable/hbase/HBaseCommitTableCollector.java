@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.committable.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.COMMIT_TABLE_QUALIFIER;
+import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.INVALID_TX_QUALIFIER;
+import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.LOW_WATERMARK_QUALIFIER;
+import static org.apache.omid.committable.hbase.HBaseCommitTableConfig.LOW_WATERMARK_ROW;
+
+/**
+ * Removes in bulk the commit table entries that are not needed anymore. Only the rows of the start timestamps below
+ * the persisted low watermark are scanned, following the layout of the KeyGenerator, and the collector deletes:
+ *
+ * 1) The entries of the invalidated transactions. As they started below the low watermark, the TSO won't commit them.
+ * 2) If explicitly enabled, the entries of the committed transactions that started below the completion watermarks
+ *    of all the clients, as their shadow cells are written (see CompletionWatermarkStorage). If no client publishes
+ *    its completion watermark, the committed entries are left untouched.
+ *
+ * Collecting the committed entries is only safe when all the clients writing transactional data publish their
+ * completion watermark: the readers may still need the entry of a transaction whose shadow cells are not written yet.
+ * Those clients register their watermark before beginning any transaction and don't need to delete their entries one
+ * by one. As the collector can't know about the clients that don't publish, it must be told that all of them do.
+ */
+public class HBaseCommitTableCollector implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HBaseCommitTableCollector.class);
+
+    static final int DELETE_BATCH_SIZE = 1024;
+    private static final int SCAN_CACHING = 1024;
+
+    private final HTable table;
+    private final byte[] commitTableFamily;
+    private final byte[] lowWatermarkFamily;
+    private final KeyGenerator keygen;
+    private final CompletionWatermarkStorage completionWatermarks;
+    private final boolean collectCommittedEntries;
+
+    /**
+     * Creates a collector that only removes the entries of the invalidated transactions
+     */
+    public HBaseCommitTableCollector(Configuration hbaseConfig, HBaseCommitTableConfig config) throws IOException {
+        this(hbaseConfig, config, false);
+    }
+
+    /**
+     * @param collectCommittedEntries
+     *            whether the entries of the committed transactions are collected too. Only when all the clients
+     *            writing transactional data publish their completion watermark
+     */
+    public HBaseCommitTableCollector(Configuration hbaseConfig,
+                                     HBaseCommitTableConfig config,
+                                     boolean collectCommittedEntries) throws IOException {
+        this(hbaseConfig, config, KeyGeneratorImplementations.defaultKeyGenerator(), collectCommittedEntries);
+    }
+
+    public HBaseCommitTableCollector(Configuration hbaseConfig,
+                                     HBaseCommitTableConfig config,
+                                     KeyGenerator keygen,
+                                     boolean collectCommittedEntries) throws IOException {
+
+        this.collectCommittedEntries = collectCommittedEntries;
+        this.table = new HTable(hbaseConfig, config.getTableName());
+        this.commitTableFamily = config.getCommitTableFamily();
+        this.lowWatermarkFamily = config.getLowWatermarkFamily();
+        this.keygen = keygen;
+        this.completionWatermarks = new CompletionWatermarkStorage(hbaseConfig, config);
+
+    }
+
+    /**
+     * Performs a full collection of the commit table
+     *
+     * @return the number of entries removed
+     */
+    public long collect() throws IOException {
+
+        long lowWatermark = readLowWatermark();
+        Map<String, Long> clientWatermarks = completionWatermarks.readAll();
+        long completionWatermark = 0;
+        if (collectCommittedEntries && !clientWatermarks.isEmpty()) {
+            completionWatermark = lowWatermark;
+            for (long clientWatermark : clientWatermarks.values()) {
+                completionWatermark = Math.min(completionWatermark, clientWatermark);
+            }
+        }
+        LOG.info("Collecting commit table entries. Low watermark {}, completion watermark {} ({} clients)",
+                 lowWatermark, completionWatermark, clientWatermarks.size());
+
+        long collected = 0;
+        List<Delete> deletes = new ArrayList<>(DELETE_BATCH_SIZE);
+        for (byte[][] rowRange : keygen.rowRangesBefore(lowWatermark)) {
+            Scan scan = new Scan(rowRange[0], rowRange[1]);
+            scan.addColumn(commitTableFamily, COMMIT_TABLE_QUALIFIER);
+            scan.addColumn(commitTableFamily, INVALID_TX_QUALIFIER);
+            scan.setCaching(SCAN_CACHING);
+            scan.setCacheBlocks(false);
+            try (ResultScanner scanner = table.getScanner(scan)) {
+                for (Result result : scanner) {
+                    long startTimestamp = keygen.keyToStartTimestamp(result.getRow());
+                    if (startTimestamp >= lowWatermark) {
+                        continue; // The random layouts scan the whole table
+                    }
+                    boolean isInvalidated = result.containsColumn(commitTableFamily, INVALID_TX_QUALIFIER);
+                    if (isInvalidated || startTimestamp < completionWatermark) {
+                        deletes.add(new Delete(result.getRow(), startTimestamp));
+                        if (deletes.size() == DELETE_BATCH_SIZE) {
+                            collected += deleteAll(deletes);
+                        }
+                    }
+                }
+            }
+        }
+        collected += deleteAll(deletes);
+        LOG.info("{} commit table entries collected", collected);
+        return collected;
+
+    }
+
+    /**
+     * Forgets the completion watermark of a client that crashed, so it doesn't hold back the collection of the
+     * committed entries anymore. The entries of its transactions whose shadow cells weren't written will be removed
+     * too, so this must only be done once the data tables have been compacted past its completion watermark.
+     */
+    public void forgetClient(String clientId) throws IOException {
+        completionWatermarks.remove(clientId);
+        LOG.info("Completion watermark of client {} removed", clientId);
+    }
+
+    public Map<String, Long> getCompletionWatermarks() throws IOException {
+        return completionWatermarks.readAll();
+    }
+
+    @Override
+    public void close() throws IOException {
+        completionWatermarks.close();
+        table.close();
+    }
+
+    private long readLowWatermark() throws IOException {
+        Get get = new Get(LOW_WATERMARK_ROW);
+        get.addColumn(lowWatermarkFamily, LOW_WATERMARK_QUALIFIER);
+        Result result = table.get(get);
+        if (!result.containsColumn(lowWatermarkFamily, LOW_WATERMARK_QUALIFIER)) {
+            return 0L;
+        }
+        return Bytes.toLong(result.getValue(lowWatermarkFamily, LOW_WATERMARK_QUALIFIER));
+    }
+
+    private int deleteAll(List<Delete> deletes) throws IOException {
+        int numDeletes = deletes.size();
+        if (numDeletes > 0) {
+            table.delete(deletes); // Removes from the list the deletes applied
+            deletes.clear();
+        }
+        return numDeletes;
+    }
+
+}
@@ -28,15 +28,40 @@ public class HBaseCommitTableConfig {
     public static final String COMMIT_TABLE_NAME_KEY = "omid.committable.tablename";
     public static final String COMMIT_TABLE_CF_NAME_KEY = "omid.committable.cfname";
     public static final String COMMIT_TABLE_LWM_CF_NAME_KEY = "omid.committable.lwm.cfname";
+    public static final String COMMIT_TIMESTAMP_CACHE_SIZE_KEY = "omid.committable.ct.cache.size";
+    public static final String CLIENT_IO_THREADS_KEY = "omid.committable.client.io.threads";
+    public static final String LOOKUP_COALESCING_WINDOW_KEY = "omid.committable.client.lookup.window.us";
+    public static final String COMPLETION_THREADS_KEY = "omid.committable.client.completion.threads";
+    public static final String COMPLETION_QUEUE_SIZE_KEY = "omid.committable.client.completion.queue.size";
+    public static final String COMPLETION_OVERFLOW_POLICY_KEY = "omid.committable.client.completion.overflow.policy";
+    public static final String WRITER_FLUSH_THREADS_KEY = "omid.committable.writer.flush.threads";
 
     public static final String DEFAULT_COMMIT_TABLE_NAME = "OMID_COMMIT_TABLE";
     public static final String DEFAULT_COMMIT_TABLE_CF_NAME = "F";
     public static final String DEFAULT_COMMIT_TABLE_LWM_CF_NAME = "LWF";
+    public static final int DEFAULT_COMMIT_TIMESTAMP_CACHE_SIZE = 65536;
+    public static final int DEFAULT_CLIENT_IO_THREADS = 4;
+    public static final int DEFAULT_LOOKUP_COALESCING_WINDOW_IN_US = 100;
+    public static final int DEFAULT_COMPLETION_THREADS = 2;
+    public static final int DEFAULT_COMPLETION_QUEUE_SIZE = 16384;
+    public static final int DEFAULT_WRITER_FLUSH_THREADS = 8;
 
     static final byte[] COMMIT_TABLE_QUALIFIER = "C".getBytes(UTF_8);
     static final byte[] INVALID_TX_QUALIFIER = "IT".getBytes(UTF_8);
     static final byte[] LOW_WATERMARK_QUALIFIER = "LWC".getBytes(UTF_8);
     static final byte[] LOW_WATERMARK_ROW = "LOW_WATERMARK".getBytes(UTF_8);
+    static final byte[] COMPLETION_WATERMARK_ROW = "COMPLETION_WATERMARK".getBytes(UTF_8);
+
+    /**
+     * What to do with a completed transaction when the queue of commit table entries to delete is full
+     */
+    public enum COMPLETION_OVERFLOW_POLICY {
+        // Wait for room in the queue, blocking the thread completing the transaction
+        BLOCK,
+        // Fail the completion right away. The entry stays in the commit table until it's removed by other means, like
+        // the HBaseCommitTableCollector, so the commit table may grow without bound
+        DISCARD
+    }
 
     // ----------------------------------------------------------------------------------------------------------------
     // Configuration parameters
@@ -45,6 +70,18 @@ public class HBaseCommitTableConfig {
     private String tableName = DEFAULT_COMMIT_TABLE_NAME;
     private byte[] commitTableFamily = Bytes.toBytes(DEFAULT_COMMIT_TABLE_CF_NAME);
     private byte[] lowWatermarkFamily = Bytes.toBytes(DEFAULT_COMMIT_TABLE_LWM_CF_NAME);
+    // Commit decisions cached by each client. 0 disables the cache
+    private int commitTimestampCacheSize = DEFAULT_COMMIT_TIMESTAMP_CACHE_SIZE;
+    // Threads of each client doing the calls to HBase
+    private int clientIOThreads = DEFAULT_CLIENT_IO_THREADS;
+    // Time a client waits for more commit timestamp lookups to merge them in a single multi-get. 0 doesn't wait
+    private int lookupCoalescingWindowInUs = DEFAULT_LOOKUP_COALESCING_WINDOW_IN_US;
+    // Threads of each client deleting the entries of the completed transactions in parallel
+    private int completionThreads = DEFAULT_COMPLETION_THREADS;
+    private int completionQueueSize = DEFAULT_COMPLETION_QUEUE_SIZE;
+    private COMPLETION_OVERFLOW_POLICY completionOverflowPolicy = COMPLETION_OVERFLOW_POLICY.BLOCK;
+    // Threads of each writer flushing the groups of puts, each one with its own HTable. The groups beyond it wait
+    private int writerFlushThreads = DEFAULT_WRITER_FLUSH_THREADS;
 
     // ----------------------------------------------------------------------------------------------------------------
     // Getters and setters
@@ -79,4 +116,68 @@ public class HBaseCommitTableConfig {
         this.lowWatermarkFamily = lowWatermarkFamily.getBytes(UTF_8);
     }
 
+    public int getCommitTimestampCacheSize() {
+        return commitTimestampCacheSize;
+    }
+
+    @Inject(optional = true)
+    public void setCommitTimestampCacheSize(@Named(COMMIT_TIMESTAMP_CACHE_SIZE_KEY) int commitTimestampCacheSize) {
+        this.commitTimestampCacheSize = commitTimestampCacheSize;
+    }
+
+    public int getClientIOThreads() {
+        return clientIOThreads;
+    }
+
+    @Inject(optional = true)
+    public void setClientIOThreads(@Named(CLIENT_IO_THREADS_KEY) int clientIOThreads) {
+        this.clientIOThreads = clientIOThreads;
+    }
+
+    public int getLookupCoalescingWindowInUs() {
+        return lookupCoalescingWindowInUs;
+    }
+
+    @Inject(optional = true)
+    public void setLookupCoalescingWindowInUs(@Named(LOOKUP_COALESCING_WINDOW_KEY) int lookupCoalescingWindowInUs) {
+        this.lookupCoalescingWindowInUs = lookupCoalescingWindowInUs;
+    }
+
+    public int getCompletionThreads() {
+        return completionThreads;
+    }
+
+    @Inject(optional = true)
+    public void setCompletionThreads(@Named(COMPLETION_THREADS_KEY) int completionThreads) {
+        this.completionThreads = completionThreads;
+    }
+
+    public int getCompletionQueueSize() {
+        return completionQueueSize;
+    }
+
+    @Inject(optional = true)
+    public void setCompletionQueueSize(@Named(COMPLETION_QUEUE_SIZE_KEY) int completionQueueSize) {
+        this.completionQueueSize = completionQueueSize;
+    }
+
+    public COMPLETION_OVERFLOW_POLICY getCompletionOverflowPolicy() {
+        return completionOverflowPolicy;
+    }
+
+    @Inject(optional = true)
+    public void setCompletionOverflowPolicy(
+            @Named(COMPLETION_OVERFLOW_POLICY_KEY) COMPLETION_OVERFLOW_POLICY completionOverflowPolicy) {
+        this.completionOverflowPolicy = completionOverflowPolicy;
+    }
+
+    public int getWriterFlushThreads() {
+        return writerFlushThreads;
+    }
+
+    @Inject(optional = true)
+    public void setWriterFlushThreads(@Named(WRITER_FLUSH_THREADS_KEY) int writerFlushThreads) {
+        this.writerFlushThreads = writerFlushThreads;
+    }
+
 }
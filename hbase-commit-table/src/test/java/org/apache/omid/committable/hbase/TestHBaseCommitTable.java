@@ -18,6 +18,7 @@
 package org.apache.omid.committable.hbase;
 
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
@@ -34,7 +35,9 @@ import org.apache.omid.committable.CommitTable;
 import org.apache.omid.committable.CommitTable.Client;
 import org.apache.omid.committable.CommitTable.CommitTimestamp;
 import org.apache.omid.committable.CommitTable.Writer;
+import org.apache.omid.committable.CommitTimestampCache;
 import org.apache.omid.committable.hbase.HBaseCommitTable.HBaseClient;
+import org.apache.omid.committable.hbase.HBaseCommitTableConfig.COMPLETION_OVERFLOW_POLICY;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -44,8 +47,12 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
@@ -289,6 +296,274 @@ public class TestHBaseCommitTable {
 
     }
 
+    @Test(timeOut = 30_000)
+    public void testCompletionsOverflowingTheQueueAreDiscarded() throws Throwable {
+        HBaseCommitTableConfig config = new HBaseCommitTableConfig();
+        config.setTableName(TEST_TABLE);
+        config.setCompletionThreads(1);
+        config.setCompletionQueueSize(1);
+        config.setCompletionOverflowPolicy(COMPLETION_OVERFLOW_POLICY.DISCARD);
+        HBaseCommitTable commitTable = new HBaseCommitTable(hbaseConf, config);
+
+        Writer writer = commitTable.getWriter();
+        Client client = commitTable.getClient();
+
+        for (int i = 0; i < 1000; i++) {
+            writer.addCommittedTransaction(i, i + 1);
+        }
+        writer.flush();
+
+        // Enqueuing never blocks. The completions that don't fit in the queue fail and leave their entries behind
+        List<ListenableFuture<Void>> completions = new ArrayList<>(1000);
+        for (long i = 0; i < 1000; i++) {
+            completions.add(client.completeTransaction(i));
+        }
+        int discarded = 0;
+        for (ListenableFuture<Void> completion : completions) {
+            try {
+                completion.get();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                discarded++;
+            }
+        }
+        assertTrue(discarded > 0, "Some completions should have overflowed the queue");
+        assertEquals(rowCount(TABLE_NAME, commitTableFamily), discarded, "Only discarded entries should be left");
+
+    }
+
+    @Test(timeOut = 30_000)
+    public void testSeveralFlushesInFlight() throws Throwable {
+        HBaseCommitTableConfig config = new HBaseCommitTableConfig();
+        config.setTableName(TEST_TABLE);
+        HBaseCommitTable commitTable = new HBaseCommitTable(hbaseConf, config);
+
+        Writer writer = commitTable.getWriter();
+        Client client = commitTable.getClient();
+
+        // Start the second flush without waiting for the first one
+        for (int i = 0; i < 500; i++) {
+            writer.addCommittedTransaction(i, i + 1);
+        }
+        ListenableFuture<Void> firstFlush = writer.flushAsync();
+        for (int i = 500; i < 1000; i++) {
+            writer.addCommittedTransaction(i, i + 1);
+        }
+        ListenableFuture<Void> secondFlush = writer.flushAsync();
+        secondFlush.get();
+        firstFlush.get();
+        assertEquals(rowCount(TABLE_NAME, commitTableFamily), 1000, "Rows should be 1000!");
+
+        for (long i = 0; i < 1000; i++) {
+            Optional<CommitTimestamp> commitTimestamp = client.getCommitTimestamp(i).get();
+            assertTrue(commitTimestamp.isPresent());
+            assertEquals(commitTimestamp.get().getValue(), (i + 1), "Commit timestamp should be " + (i + 1));
+        }
+
+        // Nothing left to flush
+        writer.flushAsync().get();
+        assertEquals(rowCount(TABLE_NAME, commitTableFamily), 1000, "Rows should be 1000!");
+
+    }
+
+    @Test(timeOut = 30_000)
+    public void testFlushesInFlightAreWrittenByABoundedNumberOfThreadsAndTables() throws Throwable {
+        HBaseCommitTableConfig config = new HBaseCommitTableConfig();
+        config.setTableName(TEST_TABLE);
+        config.setWriterFlushThreads(2);
+        HBaseCommitTable commitTable = new HBaseCommitTable(hbaseConf, config);
+
+        HBaseCommitTable.HBaseWriter writer = (HBaseCommitTable.HBaseWriter) commitTable.getWriter();
+
+        // Many more flushes in flight than threads. The ones beyond the bound wait for a thread and its table
+        List<ListenableFuture<Void>> flushes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 50; j++) {
+                long startTimestamp = i * 50 + j;
+                writer.addCommittedTransaction(startTimestamp, startTimestamp + 1);
+            }
+            flushes.add(writer.flushAsync());
+        }
+        Futures.allAsList(flushes).get();
+        assertEquals(rowCount(TABLE_NAME, commitTableFamily), 1000, "Rows should be 1000!");
+        assertTrue(writer.flushTables.size() <= 2, "No more tables than flush threads should be created");
+
+        writer.close();
+
+    }
+
+    @Test(timeOut = 30_000)
+    public void testCommitDecisionsAreCached() throws Throwable {
+        HBaseCommitTableConfig config = new HBaseCommitTableConfig();
+        config.setTableName(TEST_TABLE);
+        HBaseCommitTable commitTable = new HBaseCommitTable(hbaseConf, config);
+
+        Writer writer = commitTable.getWriter();
+        HBaseClient client = (HBaseClient) commitTable.getClient();
+
+        // Absent transactions may still commit, so they're not cached
+        assertFalse(client.getCommitTimestamp(1L).get().isPresent());
+        assertEquals(client.commitTimestampCache.get(1L), CommitTimestampCache.NOT_CACHED);
+
+        writer.addCommittedTransaction(1L, 2L);
+        writer.flush();
+        assertEquals(client.getCommitTimestamp(1L).get().get().getValue(), 2L);
+        assertEquals(client.commitTimestampCache.get(1L), 2L);
+
+        assertTrue(client.tryInvalidateTransaction(3L).get());
+        assertEquals(client.commitTimestampCache.get(3L), CommitTable.INVALID_TRANSACTION_MARKER);
+        assertFalse(client.getCommitTimestamp(3L).get().get().isValid());
+
+        // Completed transactions leave the cache
+        client.completeTransaction(1L).get();
+        assertEquals(client.commitTimestampCache.get(1L), CommitTimestampCache.NOT_CACHED);
+        assertFalse(client.getCommitTimestamp(1L).get().isPresent());
+
+    }
+
+    @Test(timeOut = 30_000)
+    public void testSeveralCommitTimestampsAreReadAtOnce() throws Throwable {
+        HBaseCommitTableConfig config = new HBaseCommitTableConfig();
+        config.setTableName(TEST_TABLE);
+        HBaseCommitTable commitTable = new HBaseCommitTable(hbaseConf, config);
+
+        Writer writer = commitTable.getWriter();
+        Client client = commitTable.getClient();
+
+        writer.addCommittedTransaction(1L, 2L);
+        writer.addCommittedTransaction(5L, 6L);
+        writer.flush();
+        assertTrue(client.tryInvalidateTransaction(3L).get());
+
+        // The results come in the same order as the requested start timestamps, absent ones included
+        List<Optional<CommitTimestamp>> commitTimestamps = client.getCommitTimestamps(new long[]{5L, 4L, 3L, 1L}).get();
+        assertEquals(commitTimestamps.size(), 4);
+        assertEquals(commitTimestamps.get(0).get().getValue(), 6L);
+        assertTrue(commitTimestamps.get(0).get().isValid());
+        assertFalse(commitTimestamps.get(1).isPresent());
+        assertFalse(commitTimestamps.get(2).get().isValid());
+        assertEquals(commitTimestamps.get(3).get().getValue(), 2L);
+        assertTrue(commitTimestamps.get(3).get().isValid());
+
+    }
+
+    @Test(timeOut = 30_000)
+    public void testConcurrentLookupsAreMergedAndCompletedAsynchronously() throws Throwable {
+        HBaseCommitTableConfig config = new HBaseCommitTableConfig();
+        config.setTableName(TEST_TABLE);
+        config.setCommitTimestampCacheSize(0);
+        // Wide enough for all the lookups issued whilst the first multi-get is in flight to be merged in another one
+        config.setLookupCoalescingWindowInUs(500_000);
+        HBaseCommitTable commitTable = new HBaseCommitTable(hbaseConf, config);
+
+        Writer writer = commitTable.getWriter();
+        Client client = commitTable.getClient();
+
+        final int numTxs = 100;
+        for (long st = 1; st <= numTxs; st += 2) {
+            writer.addCommittedTransaction(st, st + 1000);
+        }
+        writer.flush();
+
+        List<ListenableFuture<Optional<CommitTimestamp>>> lookups = new ArrayList<>(numTxs);
+        for (long st = 1; st <= numTxs; st++) {
+            lookups.add(client.getCommitTimestamp(st));
+        }
+        for (long st = 1; st <= numTxs; st++) {
+            Optional<CommitTimestamp> commitTimestamp = lookups.get((int) st - 1).get();
+            if (st % 2 == 1) {
+                assertEquals(commitTimestamp.get().getValue(), st + 1000);
+            } else {
+                assertFalse(commitTimestamp.isPresent());
+            }
+        }
+
+        // Lookups issued after closing the client fail instead of waiting forever
+        client.close();
+        try {
+            client.getCommitTimestamp(1L).get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+    }
+
+    @Test(timeOut = 30_000)
+    public void testLookupsDoNotWaitForTheCoalescingWindowWhenThereIsNoMultiGetInFlight() throws Throwable {
+        HBaseCommitTableConfig config = new HBaseCommitTableConfig();
+        config.setTableName(TEST_TABLE);
+        config.setCommitTimestampCacheSize(0);
+        // Longer than the timeouts below, so the lookups would time out if they had to wait for the window
+        config.setLookupCoalescingWindowInUs(60_000_000);
+        HBaseCommitTable commitTable = new HBaseCommitTable(hbaseConf, config);
+
+        Writer writer = commitTable.getWriter();
+        Client client = commitTable.getClient();
+
+        writer.addCommittedTransaction(1L, 2L);
+        writer.flush();
+
+        // Lookups issued one after the other are dispatched at once
+        for (int i = 0; i < 3; i++) {
+            assertEquals(client.getCommitTimestamp(1L).get(10, TimeUnit.SECONDS).get().getValue(), 2L);
+            assertFalse(client.getCommitTimestamp(3L).get(10, TimeUnit.SECONDS).isPresent());
+        }
+
+        client.close();
+
+    }
+
+    @Test(timeOut = 60_000)
+    public void testEntriesBelowTheWatermarksAreCollectedInBulk() throws Throwable {
+        HBaseCommitTableConfig config = new HBaseCommitTableConfig();
+        config.setTableName(TEST_TABLE);
+        // The lookups below must reach the table
+        config.setCommitTimestampCacheSize(0);
+        HBaseCommitTable commitTable = new HBaseCommitTable(hbaseConf, config);
+
+        Writer writer = commitTable.getWriter();
+        Client client = commitTable.getClient();
+
+        for (long st = 10; st <= 40; st += 10) {
+            writer.addCommittedTransaction(st, st + 1);
+        }
+        writer.updateLowWatermark(35L);
+        writer.flush();
+        assertTrue(client.tryInvalidateTransaction(15L).get());
+        assertTrue(client.tryInvalidateTransaction(45L).get());
+        assertEquals(rowCount(TABLE_NAME, commitTableFamily), 6);
+
+        try (HBaseCommitTableCollector collector = new HBaseCommitTableCollector(hbaseConf, config, true);
+             CompletionWatermarkStorage completionWatermarks = new CompletionWatermarkStorage(hbaseConf, config)) {
+
+            // Without completion watermarks only the invalidated entries below the low watermark are collected
+            assertEquals(collector.collect(), 1);
+            assertEquals(rowCount(TABLE_NAME, commitTableFamily), 5);
+
+            // The committed entries are collected below the lowest completion watermark
+            completionWatermarks.publish("client-1", 25L);
+            completionWatermarks.publish("client-2", 100L);
+            assertEquals(collector.getCompletionWatermarks().size(), 2);
+            // Unless it's told that all the clients publish their watermark
+            try (HBaseCommitTableCollector failClosedCollector = new HBaseCommitTableCollector(hbaseConf, config)) {
+                assertEquals(failClosedCollector.collect(), 0);
+            }
+            assertEquals(collector.collect(), 2);
+            assertFalse(client.getCommitTimestamp(20L).get().isPresent());
+            assertTrue(client.getCommitTimestamp(30L).get().isPresent());
+
+            // And never above the low watermark
+            collector.forgetClient("client-1");
+            assertEquals(collector.collect(), 1);
+            assertFalse(client.getCommitTimestamp(30L).get().isPresent());
+            assertTrue(client.getCommitTimestamp(40L).get().isPresent());
+            assertFalse(client.getCommitTimestamp(45L).get().get().isValid());
+            assertEquals(rowCount(TABLE_NAME, commitTableFamily), 2);
+        }
+
+    }
+
     private static long rowCount(TableName table, byte[] family) throws Throwable {
         Scan scan = new Scan();
         scan.addFamily(family);
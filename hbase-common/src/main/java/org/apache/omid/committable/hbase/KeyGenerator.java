@@ -18,6 +18,7 @@
 package org.apache.omid.committable.hbase;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Implementations of this interface determine how keys are spread in HBase
@@ -26,4 +27,11 @@ public interface KeyGenerator {
     byte[] startTimestampToKey(long startTimestamp) throws IOException;
 
     long keyToStartTimestamp(byte[] key) throws IOException;
+
+    /**
+     * Returns the row ranges holding the keys of all the start timestamps lower than the one passed, as pairs of
+     * inclusive start row and exclusive stop row. An empty row stands for the beginning or the end of the table.
+     * The ranges may hold the keys of greater start timestamps too, when the layout doesn't allow to leave them out.
+     */
+    List<byte[][]> rowRangesBefore(long startTimestamp) throws IOException;
 }
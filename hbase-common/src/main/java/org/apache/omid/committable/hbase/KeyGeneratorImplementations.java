@@ -21,12 +21,17 @@ import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Contains implementations of the KeyGenerator interface
  */
 public class KeyGeneratorImplementations {
 
+    private static final byte[] EMPTY_ROW = new byte[0];
+
     public static KeyGenerator defaultKeyGenerator() {
         return new BucketKeyGenerator();
     }
@@ -64,6 +69,23 @@ public class KeyGeneratorImplementations {
                     | ((long) key[8] & 0xFF);
         }
 
+        /**
+         * The keys of each bucket are sorted by start timestamp, so there's a range per bucket
+         */
+        @Override
+        public List<byte[][]> rowRangesBefore(long startTimestamp) throws IOException {
+            List<byte[][]> ranges = new ArrayList<>(16);
+            byte[] stopKey = startTimestampToKey(startTimestamp);
+            for (int bucket = 0; bucket < 16; bucket++) {
+                byte[] bucketStartRow = new byte[9];
+                bucketStartRow[0] = (byte) bucket;
+                byte[] bucketStopRow = stopKey.clone();
+                bucketStopRow[0] = (byte) bucket;
+                ranges.add(new byte[][]{bucketStartRow, bucketStopRow});
+            }
+            return ranges;
+        }
+
     }
 
     public static class FullRandomKeyGenerator implements KeyGenerator {
@@ -101,6 +123,11 @@ public class KeyGeneratorImplementations {
             // 2) Reverse to obtain the original value
             return Long.reverse(startTimestamp);
         }
+
+        @Override
+        public List<byte[][]> rowRangesBefore(long startTimestamp) {
+            return wholeTable();
+        }
     }
 
     public static class BadRandomKeyGenerator implements KeyGenerator {
@@ -121,6 +148,11 @@ public class KeyGeneratorImplementations {
             return Long.reverse(cis.readSFixed64());
         }
 
+        @Override
+        public List<byte[][]> rowRangesBefore(long startTimestamp) {
+            return wholeTable();
+        }
+
     }
 
     public static class SeqKeyGenerator implements KeyGenerator {
@@ -155,6 +187,15 @@ public class KeyGeneratorImplementations {
                     | ((long) key[7] & 0xFF);
         }
 
+        @Override
+        public List<byte[][]> rowRangesBefore(long startTimestamp) throws IOException {
+            return Collections.singletonList(new byte[][]{EMPTY_ROW, startTimestampToKey(startTimestamp)});
+        }
+
+    }
+
+    private static List<byte[][]> wholeTable() {
+        return Collections.singletonList(new byte[][]{EMPTY_ROW, EMPTY_ROW});
     }
 
 }
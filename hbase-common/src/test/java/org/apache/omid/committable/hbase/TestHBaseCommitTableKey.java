@@ -21,12 +21,16 @@ import org.apache.omid.committable.hbase.KeyGeneratorImplementations.BadRandomKe
 import org.apache.omid.committable.hbase.KeyGeneratorImplementations.BucketKeyGenerator;
 import org.apache.omid.committable.hbase.KeyGeneratorImplementations.FullRandomKeyGenerator;
 import org.apache.omid.committable.hbase.KeyGeneratorImplementations.SeqKeyGenerator;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.List;
 
 import static java.lang.Long.MAX_VALUE;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 public class TestHBaseCommitTableKey {
 
@@ -38,6 +42,40 @@ public class TestHBaseCommitTableKey {
         testKeyGen(new SeqKeyGenerator());
     }
 
+    @Test(timeOut = 10_000)
+    public void testRowRangesBefore() throws Exception {
+        // Ordered layouts leave out the keys of greater start timestamps
+        testRowRanges(new BucketKeyGenerator(), true);
+        testRowRanges(new SeqKeyGenerator(), true);
+        // Random layouts need the whole table
+        testRowRanges(new BadRandomKeyGenerator(), false);
+        testRowRanges(new FullRandomKeyGenerator(), false);
+    }
+
+    private void testRowRanges(KeyGenerator keyGen, boolean isOrdered) throws IOException {
+        long bound = 0xdeadbeefL;
+        List<byte[][]> ranges = keyGen.rowRangesBefore(bound);
+        for (long startTimestamp : new long[]{0, 1, 15, 16, 1234, bound - 17, bound - 1}) {
+            assertTrue(isInRanges(keyGen.startTimestampToKey(startTimestamp), ranges), "Key should be in range");
+        }
+        if (isOrdered) {
+            for (long startTimestamp : new long[]{bound, bound + 1, bound + 16, bound + 1234, MAX_VALUE}) {
+                assertFalse(isInRanges(keyGen.startTimestampToKey(startTimestamp), ranges), "Key should be out");
+            }
+        }
+    }
+
+    private static boolean isInRanges(byte[] key, List<byte[][]> ranges) {
+        for (byte[][] range : ranges) {
+            boolean afterStart = range[0].length == 0 || Bytes.compareTo(key, range[0]) >= 0;
+            boolean beforeStop = range[1].length == 0 || Bytes.compareTo(key, range[1]) < 0;
+            if (afterStart && beforeStop) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Test(enabled = false, timeOut = 10_000)
     private void testKeyGen(KeyGenerator keyGen) throws IOException {
         assertEquals(keyGen.keyToStartTimestamp(keyGen.startTimestampToKey(0)), 0, "Should match");
@@ -21,6 +21,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
+import com.google.common.primitives.Longs;
 import org.apache.omid.HBaseShims;
 import org.apache.omid.committable.CommitTable;
 import org.apache.omid.committable.CommitTable.Client;
@@ -42,9 +43,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.ExecutionException;
 
@@ -104,6 +107,7 @@ public class CompactorScanner implements InternalScanner {
             // 2) Traverse result list separating normal cells from shadow
             // cells and building a map to access easily the shadow cells.
             SortedMap<Cell, Optional<Cell>> cellToSc = CellUtils.mapCellsToShadowCells(scanResult);
+            Map<Long, Optional<CommitTimestamp>> commitTableEntries = readPendingCommitTimestamps(cellToSc);
 
             // 3) traverse the list of row key values isolated before and
             // check which ones should be discarded
@@ -136,7 +140,7 @@ public class CompactorScanner implements InternalScanner {
                         if (shadowCellOp.isPresent()) {
                             skipToNextColumn(cell, iter);
                         } else {
-                            Optional<CommitTimestamp> commitTimestamp = queryCommitTimestamp(cell);
+                            Optional<CommitTimestamp> commitTimestamp = queryCommitTimestamp(cell, commitTableEntries);
                             // Clean the cell only if it is valid
                             if (commitTimestamp.isPresent() && commitTimestamp.get().isValid()) {
                                 skipToNextColumn(cell, iter);
@@ -149,7 +153,7 @@ public class CompactorScanner implements InternalScanner {
                 if (shadowCellOp.isPresent()) {
                     saveLastTimestampedCell(lastTimestampedCellsInRow, cell, shadowCellOp.get());
                 } else {
-                    Optional<CommitTimestamp> commitTimestamp = queryCommitTimestamp(cell);
+                    Optional<CommitTimestamp> commitTimestamp = queryCommitTimestamp(cell, commitTableEntries);
                     if (commitTimestamp.isPresent() && commitTimestamp.get().isValid()) {
                         // Build the missing shadow cell...
                         byte[] shadowCellValue = Bytes.toBytes(commitTimestamp.get().getValue());
@@ -227,9 +231,51 @@ public class CompactorScanner implements InternalScanner {
         }
     }
 
-    private Optional<CommitTimestamp> queryCommitTimestamp(Cell cell) throws IOException {
+    /**
+     * Looks up in the commit table all the transactions of the row cells that will need it at once, instead of one
+     * by one when each cell is processed. Only worth when there's more than one.
+     */
+    private Map<Long, Optional<CommitTimestamp>> readPendingCommitTimestamps(SortedMap<Cell, Optional<Cell>> cellToSc)
+            throws IOException {
+
+        Set<Long> pendingStartTimestamps = new HashSet<>();
+        for (Map.Entry<Cell, Optional<Cell>> entry : cellToSc.entrySet()) {
+            Cell cell = entry.getKey();
+            if (cell.getTimestamp() <= lowWatermark
+                    && !shouldRetainNonTransactionallyDeletedCell(cell)
+                    && !entry.getValue().isPresent()) {
+                pendingStartTimestamps.add(cell.getTimestamp());
+            }
+        }
+        if (pendingStartTimestamps.size() < 2) {
+            return Collections.emptyMap();
+        }
+        long[] startTimestamps = Longs.toArray(pendingStartTimestamps);
+        try {
+            List<Optional<CommitTimestamp>> commitTimestamps =
+                    commitTableClient.getCommitTimestamps(startTimestamps).get();
+            Map<Long, Optional<CommitTimestamp>> commitTableEntries = new HashMap<>();
+            for (int i = 0; i < startTimestamps.length; i++) {
+                commitTableEntries.put(startTimestamps[i], commitTimestamps.get(i));
+            }
+            return commitTableEntries;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while getting commit timestamps from commit table");
+        } catch (ExecutionException e) {
+            throw new IOException("Error getting commit timestamps from commit table", e);
+        }
+
+    }
+
+    private Optional<CommitTimestamp> queryCommitTimestamp(Cell cell,
+                                                           Map<Long, Optional<CommitTimestamp>> commitTableEntries)
+            throws IOException {
         try {
-            Optional<CommitTimestamp> ct = commitTableClient.getCommitTimestamp(cell.getTimestamp()).get();
+            Optional<CommitTimestamp> ct = commitTableEntries.get(cell.getTimestamp());
+            if (ct == null) {
+                ct = commitTableClient.getCommitTimestamp(cell.getTimestamp()).get();
+            }
             if (ct.isPresent()) {
                 return Optional.of(ct.get());
             } else {
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tools.hbase;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.omid.committable.hbase.HBaseCommitTableCollector;
+import org.apache.omid.committable.hbase.HBaseCommitTableConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service that periodically removes in bulk the commit table entries below the low watermark.
+ * See HBaseCommitTableCollector for the conditions the clients must meet.
+ */
+public class OmidCommitTableCollector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OmidCommitTableCollector.class);
+
+    private JCommander commandLine;
+    private Config config = new Config();
+
+    public OmidCommitTableCollector(String... args) {
+        commandLine = new JCommander(config);
+        try {
+            commandLine.parse(args);
+        } catch (ParameterException ex) {
+            commandLine.usage();
+            throw new IllegalArgumentException(ex.getMessage());
+        }
+    }
+
+    public void run(Configuration hbaseConf) throws IOException, InterruptedException {
+
+        HBaseLogin.loginIfNeeded(config.loginFlags);
+
+        HBaseCommitTableConfig commitTableConf = new HBaseCommitTableConfig();
+        commitTableConf.setTableName(config.tableName);
+        try (HBaseCommitTableCollector collector = new HBaseCommitTableCollector(hbaseConf,
+                                                                                  commitTableConf,
+                                                                                  config.collectCommittedEntries)) {
+            for (String clientId : config.forgottenClients) {
+                collector.forgetClient(clientId);
+                LOG.info("Completion watermark of client {} forgotten", clientId);
+            }
+            do {
+                for (Map.Entry<String, Long> watermark : collector.getCompletionWatermarks().entrySet()) {
+                    LOG.info("\tClient {} completion watermark: {}", watermark.getKey(), watermark.getValue());
+                }
+                try {
+                    long removed = collector.collect();
+                    LOG.info("{} entries removed from commit table {}", removed, config.tableName);
+                } catch (IOException e) {
+                    if (config.periodInSecs == 0) {
+                        throw e;
+                    }
+                    LOG.error("Error collecting entries from commit table {}", config.tableName, e);
+                }
+                TimeUnit.SECONDS.sleep(config.periodInSecs);
+            } while (config.periodInSecs > 0);
+        }
+
+    }
+
+    public static void main(String... args) throws Exception {
+
+        OmidCommitTableCollector collector = new OmidCommitTableCollector(args);
+        collector.run(HBaseConfiguration.create());
+
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Configuration-related classes
+    // ----------------------------------------------------------------------------------------------------------------
+
+    static class Config {
+
+        @ParametersDelegate
+        SecureHBaseConfig loginFlags = new SecureHBaseConfig();
+
+        @Parameter(names = "-tableName", description = "Table name where the commits are stored", required = false)
+        String tableName = HBaseCommitTableConfig.DEFAULT_COMMIT_TABLE_NAME;
+
+        @Parameter(names = "-periodInSecs", description = "Seconds between collections. 0 collects only once",
+                   required = false)
+        int periodInSecs = 0;
+
+        @Parameter(names = "-collectCommittedEntries", description = "Collect the entries of the committed "
+                + "transactions too. Only when all the clients defer the removal of their entries", required = false)
+        boolean collectCommittedEntries = false;
+
+        @Parameter(names = "-forgetClient", description = "Id of a crashed client whose completion watermark "
+                + "doesn't hold back the collection anymore. Can be repeated", required = false)
+        List<String> forgottenClients = new ArrayList<>();
+
+    }
+
+}
@@ -35,6 +35,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import static org.apache.omid.committable.CommitTable.CommitTimestamp.Location.CACHE;
@@ -303,6 +307,23 @@ public abstract class AbstractTransactionManager implements TransactionManager {
     public CommitTimestamp locateCellCommitTimestamp(long cellStartTimestamp, long epoch,
                                                      CommitTimestampLocator locator) throws IOException {
 
+        return locateCellCommitTimestamp(cellStartTimestamp, epoch, locator,
+                                         Collections.<Long, Optional<CommitTimestamp>>emptyMap());
+
+    }
+
+    /**
+     * Same as locateCellCommitTimestamp(long, long, CommitTimestampLocator), but the first commit table look up of
+     * the cell is taken from commitTableEntries when the cell is there. This allows to resolve the cells of a whole
+     * row or batch with a single commit table round trip, see readCommitTimestampsFromCommitTable().
+     * @param commitTableEntries
+     *          the commit table entries already read, by start timestamp
+     */
+    public CommitTimestamp locateCellCommitTimestamp(long cellStartTimestamp, long epoch,
+                                                     CommitTimestampLocator locator,
+                                                     Map<Long, Optional<CommitTimestamp>> commitTableEntries)
+            throws IOException {
+
         try {
             // 1) First check the cache
             Optional<Long> commitTimestamp = locator.readCommitTimestampFromCache(cellStartTimestamp);
@@ -312,7 +333,10 @@ public abstract class AbstractTransactionManager implements TransactionManager {
 
             // 2) Then check the commit table
             // If the data was written at a previous epoch, check whether the transaction was invalidated
-            Optional<CommitTimestamp> commitTimeStamp = commitTableClient.getCommitTimestamp(cellStartTimestamp).get();
+            Optional<CommitTimestamp> commitTimeStamp = commitTableEntries.get(cellStartTimestamp);
+            if (commitTimeStamp == null) {
+                commitTimeStamp = commitTableClient.getCommitTimestamp(cellStartTimestamp).get();
+            }
             if (commitTimeStamp.isPresent()) {
                 return commitTimeStamp.get();
             }
@@ -355,12 +379,48 @@ public abstract class AbstractTransactionManager implements TransactionManager {
 
     }
 
+    /**
+     * Reads the commit table entries of several cells with a single round trip, to be passed afterwards to
+     * locateCellCommitTimestamp()
+     * @param cellStartTimestamps
+     *          start timestamps of the cells to look up
+     * @return the commit table entry of each start timestamp, absent if the transaction was not found
+     * @throws IOException  in case of any I/O issues
+     */
+    public Map<Long, Optional<CommitTimestamp>> readCommitTimestampsFromCommitTable(long[] cellStartTimestamps)
+            throws IOException {
+
+        try {
+            List<Optional<CommitTimestamp>> commitTimestamps =
+                    commitTableClient.getCommitTimestamps(cellStartTimestamps).get();
+            Map<Long, Optional<CommitTimestamp>> commitTableEntries = new HashMap<>();
+            for (int i = 0; i < cellStartTimestamps.length; i++) {
+                commitTableEntries.put(cellStartTimestamps[i], commitTimestamps.get(i));
+            }
+            return commitTableEntries;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading commit timestamps", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Problem reading commit timestamps", e);
+        }
+
+    }
+
+    /**
+     * Allows transaction manager developers to release their resources before closing the transaction manager,
+     * while the TSO client and the commit table client are still available.
+     * @throws IOException in case of any issues
+     */
+    public void preClose() throws IOException {}
+
     /**
      * @see java.io.Closeable#close()
      */
     @Override
     public final void close() throws IOException {
 
+        preClose();
         tsoClient.close();
         commitTableClient.close();
 
@@ -53,8 +53,10 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -73,6 +75,9 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
     // Basic configuration constants & defaults TODO: Move DEFAULT_ZK_CLUSTER to a conf class???
     public static final String DEFAULT_ZK_CLUSTER = "localhost:2181";
 
+    // Max number of concurrent timestamp requests coalesced in a single request for a range of timestamps
+    static final int MAX_TIMESTAMPS_PER_REQUEST = 1024;
+
     private static final long DEFAULT_EPOCH = -1L;
     private volatile long epoch = DEFAULT_EPOCH;
 
@@ -329,6 +334,10 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
 
     }
 
+    private static class FlushTimestampRequestsEvent implements StateMachine.Event {
+
+    }
+
     private static class TimestampRequestTimeoutEvent implements StateMachine.Event {
 
     }
@@ -395,6 +404,11 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
             LOG.error("Unhandled event {} while in state {}", e, this.getClass().getName());
             return this;
         }
+
+        public StateMachine.State handleEvent(FlushTimestampRequestsEvent e) {
+            // Ignored. The timestamp requests coalesced in a previous connection have been already retried or errored
+            return this;
+        }
     }
 
     class DisconnectedState extends BaseState {
@@ -534,7 +548,9 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
                 if (timeout != null) {
                     timeout.cancel();
                 }
-                return new ConnectedState(fsm, channel, timeoutExecutor);
+                // Servers that don't advertise any capability reply a single timestamp per request
+                TSOProto.Capabilities serverCapabilities = e.getParam().getHandshakeResponse().getServerCapabilities();
+                return new ConnectedState(fsm, channel, timeoutExecutor, serverCapabilities.getTimestampRanges());
             } else {
                 cleanupState();
                 LOG.error("Client incompatible with server");
@@ -617,15 +633,26 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
         final Map<Long, RequestAndTimeout> commitRequests;
         final Channel channel;
 
+        // Timestamp requests received but not sent yet. They are coalesced in a single request for a range of
+        // timestamps, which is sent when the FSM has processed all the requests that arrived concurrently. Only when
+        // the server advertised that it replies ranges of timestamps in the handshake
+        final List<RequestEvent> timestampRequestsToSend;
+        boolean timestampFlushScheduled;
+        final boolean timestampRanges;
+
         final HashedWheelTimer timeoutExecutor;
 
-        ConnectedState(StateMachine.Fsm fsm, Channel channel, HashedWheelTimer timeoutExecutor) {
+        ConnectedState(StateMachine.Fsm fsm, Channel channel, HashedWheelTimer timeoutExecutor,
+                       boolean timestampRanges) {
             super(fsm);
             LOG.debug("NEW STATE: CONNECTED");
             this.channel = channel;
             this.timeoutExecutor = timeoutExecutor;
+            this.timestampRanges = timestampRanges;
             timestampRequests = new ArrayDeque<>();
             commitRequests = new HashMap<>();
+            timestampRequestsToSend = new ArrayList<>();
+            timestampFlushScheduled = false;
         }
 
         private Timeout newTimeout(final StateMachine.Event timeoutEvent) {
@@ -644,8 +671,18 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
         private void sendRequest(final StateMachine.Fsm fsm, RequestEvent request) {
             TSOProto.Request req = request.getRequest();
 
-            if (req.hasTimestampRequest()) {
+            if (req.hasTimestampRequest() && !timestampRanges) {
                 timestampRequests.add(new RequestAndTimeout(request, newTimeout(new TimestampRequestTimeoutEvent())));
+            } else if (req.hasTimestampRequest()) {
+                timestampRequestsToSend.add(request);
+                if (timestampRequestsToSend.size() >= MAX_TIMESTAMPS_PER_REQUEST) {
+                    flushTimestampRequests(fsm);
+                } else if (!timestampFlushScheduled) {
+                    // Requests already queued in the FSM are processed before the flush, so they are coalesced
+                    timestampFlushScheduled = true;
+                    fsm.sendEvent(new FlushTimestampRequestsEvent());
+                }
+                return;
             } else if (req.hasCommitRequest()) {
                 TSOProto.CommitRequest commitReq = req.getCommitRequest();
                 commitRequests.put(commitReq.getStartTimestamp(), new RequestAndTimeout(
@@ -654,6 +691,34 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
                 request.error(new IllegalArgumentException("Unknown request type"));
                 return;
             }
+            writeRequest(fsm, req);
+        }
+
+        /**
+         * Sends all the pending timestamp requests as a single request for a range of consecutive timestamps. The
+         * timestamps in the range are assigned to the requests in order when the response arrives. As the range is
+         * allocated by the server when the request is received, all the timestamps in the range are as fresh as the
+         * ones that the individual requests would have got. No timestamp is kept for later requests.
+         */
+        private void flushTimestampRequests(final StateMachine.Fsm fsm) {
+            timestampFlushScheduled = false;
+            int numTimestamps = timestampRequestsToSend.size();
+            if (numTimestamps == 0) {
+                return;
+            }
+            for (RequestEvent request : timestampRequestsToSend) {
+                timestampRequests.add(new RequestAndTimeout(request, newTimeout(new TimestampRequestTimeoutEvent())));
+            }
+            timestampRequestsToSend.clear();
+
+            TSOProto.TimestampRequest.Builder tsreqBuilder = TSOProto.TimestampRequest.newBuilder();
+            if (numTimestamps > 1) {
+                tsreqBuilder.setCount(numTimestamps);
+            }
+            writeRequest(fsm, TSOProto.Request.newBuilder().setTimestampRequest(tsreqBuilder.build()).build());
+        }
+
+        private void writeRequest(final StateMachine.Fsm fsm, TSOProto.Request req) {
             ChannelFuture f = channel.write(req);
 
             f.addListener(new ChannelFutureListener() {
@@ -669,14 +734,18 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
         private void handleResponse(ResponseEvent response) {
             TSOProto.Response resp = response.getParam();
             if (resp.hasTimestampResponse()) {
-                if (timestampRequests.size() == 0) {
-                    LOG.debug("Received timestamp response when no requests outstanding");
-                    return;
-                }
-                RequestAndTimeout e = timestampRequests.remove();
-                e.getRequest().success(resp.getTimestampResponse().getStartTimestamp());
-                if (e.getTimeout() != null) {
-                    e.getTimeout().cancel();
+                // A response carries a range of timestamps that are assigned to the outstanding requests in order
+                TSOProto.TimestampResponse tsResp = resp.getTimestampResponse();
+                for (int i = 0; i < tsResp.getCount(); i++) {
+                    if (timestampRequests.size() == 0) {
+                        LOG.debug("Received timestamp response when no requests outstanding");
+                        return;
+                    }
+                    RequestAndTimeout e = timestampRequests.remove();
+                    e.getRequest().success(tsResp.getStartTimestamp() + i);
+                    if (e.getTimeout() != null) {
+                        e.getTimeout().cancel();
+                    }
                 }
             } else if (resp.hasCommitResponse()) {
                 long startTimestamp = resp.getCommitResponse().getStartTimestamp();
@@ -719,6 +788,11 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
             return this;
         }
 
+        public StateMachine.State handleEvent(FlushTimestampRequestsEvent e) {
+            flushTimestampRequests(fsm);
+            return this;
+        }
+
         public StateMachine.State handleEvent(CloseEvent e) {
             LOG.debug("CONNECTED STATE: CloseEvent");
             timeoutExecutor.stop();
@@ -762,6 +836,10 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
                 queueRetryOrError(fsm, r.getRequest());
                 iter.remove();
             }
+            for (RequestEvent r : timestampRequestsToSend) {
+                queueRetryOrError(fsm, r);
+            }
+            timestampRequestsToSend.clear();
             channel.close();
         }
 
@@ -800,6 +878,10 @@ public class TSOClient implements TSOProtocol, NodeCacheListener {
                 }
                 r.getRequest().error(new ClosingException());
             }
+            for (RequestEvent r : timestampRequestsToSend) {
+                r.error(new ClosingException());
+            }
+            timestampRequestsToSend.clear();
         }
     }
 
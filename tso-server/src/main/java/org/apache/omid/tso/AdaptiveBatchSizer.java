@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.base.Preconditions;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Decides how many events the current batch of the persistence stage accumulates before being flushed.
+ *
+ * Each Commit Table writer persists one batch per flush, so with N writers and a flush latency of L the stage can
+ * absorb a batch every L/N time units. Batches are sized to carry the events arriving in that period (with some
+ * headroom), so at low load they're flushed almost as soon as the events arrive and at high load they grow up to the
+ * max size to amortize the flushes. Both the arrival rate and the flush latency are smoothed with moving averages.
+ *
+ * The batches are registered by the request-0 thread, whilst the flush latencies are reported by the persistence
+ * handlers as soon as each flush completes.
+ */
+class AdaptiveBatchSizer {
+
+    // Weight of the newest sample in the moving averages
+    private static final double SMOOTHING_FACTOR = 0.2;
+    // Writers are expected to be busy only 1/WRITER_HEADROOM of the time, to absorb bursts without queueing
+    private static final double WRITER_HEADROOM = 2.0;
+    // Min period to compute a sample of the arrival rate
+    private static final long RATE_SAMPLING_PERIOD_IN_NS = MILLISECONDS.toNanos(10);
+
+    private final int maxBatchSize;
+    private final int numWriters;
+
+    private volatile double avgFlushLatencyInNs = 0; // Written @GuardedBy("this")
+    private double avgEventsPerNs = 0;
+
+    private long samplingPeriodStartInNs;
+    private long eventsInSamplingPeriod = 0;
+
+    private int targetBatchSize;
+
+    AdaptiveBatchSizer(int maxBatchSize, int numWriters) {
+
+        Preconditions.checkArgument(maxBatchSize > 0, "Max batch size [%s] must be positive", maxBatchSize);
+        Preconditions.checkArgument(numWriters > 0, "# of writers [%s] must be positive", numWriters);
+        this.maxBatchSize = maxBatchSize;
+        this.numWriters = numWriters;
+        this.targetBatchSize = maxBatchSize; // Till there's enough info, behave as with static batch sizes
+        this.samplingPeriodStartInNs = System.nanoTime();
+
+    }
+
+    /**
+     * Registers the latency of a Commit Table flush. Non-positive values are ignored
+     */
+    synchronized void recordFlushLatency(long latencyInNs) {
+
+        if (latencyInNs <= 0) {
+            return;
+        }
+        avgFlushLatencyInNs = smooth(avgFlushLatencyInNs, latencyInNs);
+
+    }
+
+    /**
+     * Registers a batch sent to the writers and, once per sampling period, recomputes the target batch size
+     */
+    void recordBatch(int numEvents, long nowInNs) {
+
+        eventsInSamplingPeriod += numEvents;
+        long elapsedInNs = nowInNs - samplingPeriodStartInNs;
+        if (elapsedInNs < RATE_SAMPLING_PERIOD_IN_NS) {
+            return;
+        }
+        avgEventsPerNs = smooth(avgEventsPerNs, (double) eventsInSamplingPeriod / elapsedInNs);
+        eventsInSamplingPeriod = 0;
+        samplingPeriodStartInNs = nowInNs;
+        double flushLatencyInNs = avgFlushLatencyInNs;
+        if (flushLatencyInNs > 0) {
+            double batchSize = Math.ceil(WRITER_HEADROOM * avgEventsPerNs * flushLatencyInNs / numWriters);
+            targetBatchSize = (int) Math.max(1, Math.min(batchSize, maxBatchSize));
+        }
+
+    }
+
+    int getTargetBatchSize() {
+        return targetBatchSize;
+    }
+
+    private static double smooth(double average, double sample) {
+        return average == 0 ? sample : SMOOTHING_FACTOR * sample + (1 - SMOOTHING_FACTOR) * average;
+    }
+
+}
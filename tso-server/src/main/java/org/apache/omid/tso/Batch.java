@@ -28,6 +28,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 
+import static org.apache.omid.tso.MonitoringContext.Stage.PERSISTENCE_ABORT;
+import static org.apache.omid.tso.MonitoringContext.Stage.PERSISTENCE_COMMIT;
+import static org.apache.omid.tso.MonitoringContext.Stage.PERSISTENCE_COMMIT_RETRY;
+import static org.apache.omid.tso.MonitoringContext.Stage.PERSISTENCE_TIMESTAMP;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.BATCH_ADDED;
+
 public class Batch {
 
     private static final Logger LOG = LoggerFactory.getLogger(Batch.class);
@@ -93,13 +99,14 @@ public class Batch {
 
     }
 
-    void addTimestamp(long startTimestamp, Channel c, MonitoringContext context) {
+    void addTimestamp(long startTimestamp, int numTimestamps, Channel c, MonitoringContext context) {
 
         Preconditions.checkState(!isFull(), "batch is full");
         int index = numEvents++;
         PersistEvent e = events[index];
-        context.timerStart("persistence.processor.timestamp.latency");
-        e.makePersistTimestamp(startTimestamp, c, context);
+        context.timerStart(PERSISTENCE_TIMESTAMP);
+        context.trace(BATCH_ADDED);
+        e.makePersistTimestamp(startTimestamp, numTimestamps, c, context);
 
     }
 
@@ -108,7 +115,8 @@ public class Batch {
         Preconditions.checkState(!isFull(), "batch is full");
         int index = numEvents++;
         PersistEvent e = events[index];
-        context.timerStart("persistence.processor.commit.latency");
+        context.timerStart(PERSISTENCE_COMMIT);
+        context.trace(BATCH_ADDED);
         e.makePersistCommit(startTimestamp, commitTimestamp, c, context);
 
     }
@@ -118,7 +126,8 @@ public class Batch {
         Preconditions.checkState(!isFull(), "batch is full");
         int index = numEvents++;
         PersistEvent e = events[index];
-        context.timerStart("persistence.processor.commit-retry.latency");
+        context.timerStart(PERSISTENCE_COMMIT_RETRY);
+        context.trace(BATCH_ADDED);
         e.makeCommitRetry(startTimestamp, c, context);
 
     }
@@ -128,7 +137,8 @@ public class Batch {
         Preconditions.checkState(!isFull(), "batch is full");
         int index = numEvents++;
         PersistEvent e = events[index];
-        context.timerStart("persistence.processor.abort.latency");
+        context.timerStart(PERSISTENCE_ABORT);
+        context.trace(BATCH_ADDED);
         e.makePersistAbort(startTimestamp, c, context);
 
     }
@@ -47,7 +47,8 @@ public class BatchPoolModule extends AbstractModule {
     @Singleton
     ObjectPool<Batch> getBatchPool() throws Exception {
 
-        int poolSize = config.getNumConcurrentCTWriters();
+        // Each writer can have several batches being flushed at the same time
+        int poolSize = config.getNumConcurrentCTWriters() * config.getNumFlushesInFlightPerCTWriter();
         int batchSize = config.getBatchSizePerCTWriter();
 
         LOG.info("Pool Size (# of Batches) {}; Batch Size {}", poolSize, batchSize);
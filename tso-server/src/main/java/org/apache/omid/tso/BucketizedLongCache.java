@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A long -> long cache with the same set()/get() semantics than LongCache, but with a layout designed to minimize
+ * the memory touched per probe:
+ *
+ * - Entries are grouped in buckets of ENTRIES_PER_BUCKET elements. A key is always searched only in its own bucket
+ *   instead of in a window that slides with the hash as in LongCache.
+ * - Keys and values are stored in separate lanes (arrays), so the keys of a bucket fit in a single 64 byte cache
+ *   line and a lookup only touches the value lane when there's a hit. As Java doesn't allow to align arrays, a
+ *   bucket may span two cache lines in the worst case.
+ * - The number of buckets is a power of two, so the bucket is selected with a mask of the mixed hash instead of
+ *   a division.
+ *
+ * The prefetch() method allows to bring the bucket of a key to the CPU caches before it's really accessed (e.g.
+ * for the cells of the next request while the current one is being processed).
+ */
+public class BucketizedLongCache implements Cache {
+
+    static final int ENTRIES_PER_BUCKET = 8; // 8 longs -> 64 bytes -> 1 cache line
+    private static final int BUCKET_SHIFT = 3;
+
+    private final long[] keys;
+    private final long[] values;
+    private final int bucketMask;
+
+    // Sink for the prefetched values so the JIT does not remove the loads
+    private long prefetchSink;
+
+    /**
+     * @param size
+     *            the minimum number of entries to store. It's rounded up to fill a power of two number of buckets
+     */
+    public BucketizedLongCache(int size) {
+        Preconditions.checkArgument(size > 0, "Size [%s] must be positive", size);
+        int numBuckets = Integer.highestOneBit(Math.max(1, (size - 1) >> BUCKET_SHIFT)) << 1;
+        Preconditions.checkArgument(numBuckets > 0 && numBuckets <= (1 << (30 - BUCKET_SHIFT)),
+                                    "Size [%s] too big", size);
+        this.bucketMask = numBuckets - 1;
+        this.keys = new long[numBuckets << BUCKET_SHIFT];
+        this.values = new long[numBuckets << BUCKET_SHIFT];
+    }
+
+    @Override
+    public long set(long key, long value) {
+        final int first = bucketStart(key);
+        final int last = first + ENTRIES_PER_BUCKET;
+        int oldestIndex = first;
+        long oldestValue = Long.MAX_VALUE;
+        for (int i = first; i < last; ++i) {
+            if (keys[i] == key) {
+                oldestValue = 0;
+                oldestIndex = i;
+                break;
+            }
+            if (values[i] <= oldestValue) {
+                oldestValue = values[i];
+                oldestIndex = i;
+            }
+        }
+        keys[oldestIndex] = key;
+        values[oldestIndex] = value;
+        return oldestValue;
+    }
+
+    @Override
+    public long get(long key) {
+        final int first = bucketStart(key);
+        final int last = first + ENTRIES_PER_BUCKET;
+        for (int i = first; i < last; ++i) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void prefetch(long key) {
+        final int first = bucketStart(key);
+        prefetchSink += keys[first] + values[first];
+    }
+
+    int capacity() {
+        return keys.length;
+    }
+
+    private int bucketStart(long key) {
+        // Fibonacci hashing. The high bits of the product are the best mixed ones
+        int hash = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+        return (hash & bucketMask) << BUCKET_SHIFT;
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+/**
+ * A fixed-size long -> long cache used to store the conflict map of the TSO.
+ * Keys are cell ids and values are commit timestamps.
+ */
+public interface Cache {
+
+    /**
+     * Stores the value for the key, evicting an existing entry if there's no room for it
+     *
+     * @return the value of the evicted entry or 0 if no entry was evicted (including when the key was already present)
+     */
+    long set(long key, long value);
+
+    /**
+     * @return the value stored for the key or 0 if the key is not in the cache
+     */
+    long get(long key);
+
+    /**
+     * Hints the cache that the key is going to be accessed soon, so the memory where it would be stored can be
+     * brought closer to the CPU in advance
+     */
+    void prefetch(long key);
+
+}
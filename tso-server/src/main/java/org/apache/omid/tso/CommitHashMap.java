@@ -17,9 +17,12 @@
  */
 package org.apache.omid.tso;
 
+import org.apache.omid.tso.TSOServerConfig.CONFLICT_MAP_STORAGE;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+
 /**
  * Stores the mapping between a particular cell id and the commit timestamp
  * of the last transaction that changed it.
@@ -29,6 +32,11 @@ import org.slf4j.LoggerFactory;
  * on even indexes and values on odd indexes. The rationale is that we want
  * queries to be fast and touch as least memory regions as possible.
  *
+ * The long [] can be stored either in the Java heap or off-heap (see
+ * CONFLICT_MAP_STORAGE) to avoid the garbage collector scanning big maps.
+ * Alternatively, the heap can use the cache-line-aware layout implemented
+ * in BucketizedLongCache.
+ *
  * Each time an entry is removed, the caller updates the largestDeletedTimestamp
  * if the entry's commit timestamp is greater than this value.
  *
@@ -40,7 +48,7 @@ class CommitHashMap {
 
     private static final Logger LOG = LoggerFactory.getLogger(CommitHashMap.class);
 
-    private final LongCache cellIdToCommitMap;
+    private final Cache cellIdToCommitMap;
 
     /**
      * Constructs a new, empty hashtable with a default size of 1000
@@ -58,12 +66,44 @@ class CommitHashMap {
      *             if the size is less than zero.
      */
     public CommitHashMap(int size) {
+        this(size, CONFLICT_MAP_STORAGE.HEAP, null);
+    }
+
+    /**
+     * Constructs a new, empty hashtable with the specified size in the specified storage
+     *
+     * @param size
+     *            the initial size of the hashtable.
+     * @param storage
+     *            where the elements of the hashtable are stored.
+     * @param mappedFileDir
+     *            the directory for the backing file when the storage is MEMORY_MAPPED.
+     *            If null, the default temporary-file directory is used.
+     * @throws IllegalArgumentException
+     *             if the size is less than zero.
+     */
+    public CommitHashMap(int size, CONFLICT_MAP_STORAGE storage, String mappedFileDir) {
         if (size < 0) {
             throw new IllegalArgumentException("Illegal size: " + size);
         }
 
-        this.cellIdToCommitMap = new LongCache(size, 32);
-        LOG.info("CellId -> CommitTS map created with [{}] buckets (32 elems/bucket)", size);
+        switch (storage) {
+            case HEAP_BUCKETIZED:
+                this.cellIdToCommitMap = new BucketizedLongCache(size);
+                break;
+            case OFF_HEAP:
+                this.cellIdToCommitMap = new OffHeapLongCache(size, 32);
+                break;
+            case MEMORY_MAPPED:
+                String dir = mappedFileDir != null ? mappedFileDir : System.getProperty("java.io.tmpdir");
+                this.cellIdToCommitMap = new OffHeapLongCache(size, 32, new File(dir));
+                break;
+            case HEAP:
+            default:
+                this.cellIdToCommitMap = new LongCache(size, 32);
+                break;
+        }
+        LOG.info("CellId -> CommitTS map created in {} storage with [{}] elements", storage, size);
     }
 
     public long getLatestWriteForCell(long hash) {
@@ -73,4 +113,8 @@ class CommitHashMap {
     public long putLatestWriteForCell(long hash, long commitTimestamp) {
         return cellIdToCommitMap.set(hash, commitTimestamp);
     }
+
+    public void prefetchLatestWriteForCell(long hash) {
+        cellIdToCommitMap.prefetch(hash);
+    }
 }
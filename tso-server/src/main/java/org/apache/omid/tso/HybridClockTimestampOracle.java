@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.omid.metrics.Gauge;
+import org.apache.omid.metrics.MetricsRegistry;
+import org.apache.omid.timestamp.storage.TimestampStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.omid.metrics.MetricsUtils.name;
+
+/**
+ * Timestamp Oracle that derives the timestamps from the wall clock, hybrid-logical-clock style. The upper bits of a
+ * timestamp hold the ms since the epoch and the lower LOGICAL_BITS a counter that orders the timestamps given in the
+ * same ms. The counter of each ms starts at a small offset taken from the ms itself, so the lowest bits of the
+ * timestamps, which select the bucket of the commit table rows (see BucketKeyGenerator), vary even under low load.
+ * When the counter of a ms is exhausted, the timestamps carry on into the next ms, running ahead of the clock.
+ *
+ * Only a coarse upper bound, BOUND_INTERVAL_IN_MS ahead of the clock or WINDOW_AHEAD_IN_MS ahead of the timestamps
+ * requested, whatever is greater, is stored in the TimestampStorage. It's renewed periodically by the ts-persist
+ * thread, out of the path of the requests, and no timestamp reaches the stored bound.
+ *
+ * The predecessor may have given any timestamp below the bound it stored, so a newly elected TSO reads it and never
+ * starts below it. As the bound interval is shorter than the lease period, the clock of a successor has usually
+ * passed the predecessor's bound by the time it's elected. Then the only storage round trip on the critical path is
+ * that read: the successor serves from its clock, up to WINDOW_AHEAD_IN_MS ahead of it, while the ts-persist
+ * thread stores its own bound. If it crashed before storing it, its successor would be elected at least a lease
+ * period later, so the clock of the successor would be past those timestamps as long as the clock skew among the TSO
+ * replicas is below the lease period minus the window. When the clock is behind the predecessor's bound, e.g. after
+ * a failover faster than the bound interval, the new TSO starts from the bound and stores its own one before
+ * serving, so it runs at most BOUND_INTERVAL_IN_MS ahead of its clock. As its own bound is only WINDOW_AHEAD_IN_MS
+ * above the timestamps requested, consecutive fast failovers add at most that window each to the drift, which
+ * vanishes once the clock passes the bound.
+ */
+@Singleton
+public class HybridClockTimestampOracle implements TimestampOracle {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HybridClockTimestampOracle.class);
+
+    static final int LOGICAL_BITS = 20; // ~1M timestamps per ms
+    // Shorter than the lease period, so the clock of a successor usually passes the bound stored by this TSO before
+    // it's elected. A storage outage longer than the interval minus the renewal period stalls the requests
+    static final long BOUND_INTERVAL_IN_MS = 5_000; // 5 secs
+    private static final long BOUND_RENEWAL_PERIOD_IN_MS = 1_000; // 1 sec
+    // Room for the timestamps ahead of the clock: a new master gives them before its first bound is stored, and the
+    // bounds leave it above the timestamps requested
+    static final long WINDOW_AHEAD_IN_MS = 1_000; // 1 sec
+
+    // Mask of the ms bits used as the offset of the logical counter of each ms
+    static final long COUNTER_OFFSET_MASK = 0x0F;
+
+    private class RenewBoundTask implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                renewBound();
+            } catch (Throwable e) {
+                panicker.panic("Can't store the new max timestamp", e);
+            }
+        }
+
+    }
+
+    private final TimestampStorage storage;
+    private final Panicker panicker;
+
+    // Only accessed by the thread requesting timestamps
+    private long lastTimestamp;
+    private long maxTimestamp;
+    private long stalls = 0;
+
+    // Only written by the ts-persist thread
+    private long persistedMaxTimestamp;
+    private volatile long maxAllocatedTimestamp;
+
+    // Highest timestamp the requesting thread needed beyond the stored bound. Only written when it stalls
+    private volatile long requestedTimestamp;
+    private final RenewBoundTask renewBoundTask = new RenewBoundTask();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ts-persist-%d").setDaemon(true).build());
+
+    @Inject
+    public HybridClockTimestampOracle(MetricsRegistry metrics,
+                                      TimestampStorage tsStorage,
+                                      Panicker panicker) throws IOException {
+
+        this.storage = tsStorage;
+        this.panicker = panicker;
+
+        metrics.gauge(name("tso", "maxTimestamp"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return maxTimestamp;
+            }
+        });
+        metrics.gauge(name("tso", "timestampOracle", "stalls"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stalls;
+            }
+        });
+
+    }
+
+    @Override
+    public void initialize() throws IOException {
+
+        long previousMaxTimestamp = storage.getMaxTimestamp();
+        long nowTimestamp = toTimestamp(currentTimeMillis());
+        this.persistedMaxTimestamp = previousMaxTimestamp;
+        if (nowTimestamp > previousMaxTimestamp) {
+            // The clock is past everything the predecessor may have given, so the first bound is stored off the
+            // critical path. Meanwhile, only a short window ahead of the clock is served
+            this.lastTimestamp = nowTimestamp - 1;
+            this.requestedTimestamp = lastTimestamp;
+            this.maxAllocatedTimestamp = nowTimestamp + toTimestamp(WINDOW_AHEAD_IN_MS);
+            scheduler.execute(renewBoundTask);
+        } else {
+            // The bound stored by the predecessor is the only safe floor: it may have given any timestamp below it
+            this.lastTimestamp = previousMaxTimestamp;
+            this.requestedTimestamp = lastTimestamp;
+            renewBound();
+        }
+        this.maxTimestamp = maxAllocatedTimestamp;
+
+        scheduler.scheduleAtFixedRate(renewBoundTask, BOUND_RENEWAL_PERIOD_IN_MS, BOUND_RENEWAL_PERIOD_IN_MS,
+                                      MILLISECONDS);
+
+        LOG.info("Initializing hybrid clock timestamp oracle with timestamp {}", this.lastTimestamp);
+    }
+
+    @Override
+    public long next() {
+        return next(1);
+    }
+
+    /**
+     * Returns the first timestamp of a range of numTimestamps consecutive timestamps, following the clock. Spins if
+     * the range would reach the stored bound.
+     */
+    @SuppressWarnings("StatementWithEmptyBody")
+    @Override
+    public long next(int numTimestamps) {
+        assert (numTimestamps > 0 && numTimestamps < (1 << LOGICAL_BITS));
+        long nowInMs = currentTimeMillis();
+        long firstTimestamp = Math.max(lastTimestamp + 1, toTimestamp(nowInMs) + (nowInMs & COUNTER_OFFSET_MASK));
+        long last = firstTimestamp + numTimestamps - 1;
+
+        if (last >= maxTimestamp) {
+            maxTimestamp = maxAllocatedTimestamp;
+            if (last >= maxTimestamp) {
+                stalls++;
+                requestedTimestamp = last;
+                scheduler.execute(renewBoundTask);
+                while (last >= maxAllocatedTimestamp) {
+                    // spin till the ts-persist thread stores a new bound
+                }
+                maxTimestamp = maxAllocatedTimestamp;
+            }
+        }
+
+        lastTimestamp = last;
+        return firstTimestamp;
+    }
+
+    @Override
+    public long getLast() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Stores a new bound ahead of both the clock and the timestamps requested. Invoked by the ts-persist thread, but
+     * for the first bound of a master whose clock is behind the predecessor's bound, stored when initializing
+     */
+    private void renewBound() throws IOException {
+        long newMaxTimestamp = Math.max(toTimestamp(currentTimeMillis() + BOUND_INTERVAL_IN_MS),
+                                        requestedTimestamp + toTimestamp(WINDOW_AHEAD_IN_MS));
+        if (newMaxTimestamp <= persistedMaxTimestamp) {
+            return;
+        }
+        storage.updateMaxTimestamp(persistedMaxTimestamp, newMaxTimestamp);
+        persistedMaxTimestamp = newMaxTimestamp;
+        maxAllocatedTimestamp = newMaxTimestamp;
+    }
+
+    @VisibleForTesting
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    static long toTimestamp(long timeInMs) {
+        return timeInMs << LOGICAL_BITS;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HybridClockTimestampOracle -> LastTimestamp: %d, MaxTimestamp: %d",
+                             lastTimestamp, maxTimestamp);
+    }
+
+}
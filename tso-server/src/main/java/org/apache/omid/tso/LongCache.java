@@ -17,18 +17,22 @@
  */
 package org.apache.omid.tso;
 
-public class LongCache {
+public class LongCache implements Cache {
 
     private final long[] cache;
     private final int size;
     private final int associativity;
 
+    // Sink for the prefetched values so the JIT does not remove the loads
+    private long prefetchSink;
+
     public LongCache(int size, int associativity) {
         this.size = size;
         this.cache = new long[2 * (size + associativity)];
         this.associativity = associativity;
     }
 
+    @Override
     public long set(long key, long value) {
         final int index = index(key);
         int oldestIndex = 0;
@@ -50,6 +54,7 @@ public class LongCache {
         return oldestValue;
     }
 
+    @Override
     public long get(long key) {
         final int index = index(key);
         for (int i = 0; i < associativity; ++i) {
@@ -61,6 +66,11 @@ public class LongCache {
         return 0;
     }
 
+    @Override
+    public void prefetch(long key) {
+        prefetchSink += cache[2 * index(key)];
+    }
+
     private int index(long hash) {
         return (int) (Math.abs(hash) % size);
     }
@@ -0,0 +1,692 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Functions;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.name.Named;
+import org.apache.omid.committable.CommitTable;
+import org.apache.omid.committable.CommitTable.CommitTimestamp.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A CommitTable stored in an append-only log in the local disk, for deployments where the clients run in the same
+ * host than the TSO and for benchmarking the TSO without the HBase round trips.
+ *
+ * The log is split in fixed size segments that are memory-mapped. Every change (commits, invalidations, completions
+ * and low watermark updates) is appended as a fixed size record in a single global order, and the index of the live
+ * transactions is kept in memory and rebuilt by replaying the segments on start up. The appends are made durable by
+ * a sync thread that forces the current segment once for all the appends done since the previous sync (group
+ * commit), so flushes and invalidations are acknowledged only after their records are synced. Reads wait for the
+ * sync as well when they return something that may not be durable yet.
+ *
+ * The oldest segments are deleted as soon as all their transactions are completed. When a segment is rolled, the
+ * few transactions still alive in the oldest segments (e.g. invalidated transactions, which are never completed) are
+ * relocated to the new segment, so a handful of them can't prevent the log from being trimmed. Each segment keeps the
+ * set of its live transactions, so relocating them doesn't require scanning the whole index, and the mappings of the
+ * trimmed segments are released as soon as the sync thread can't be forcing them anymore.
+ */
+public class MappedFileCommitTable implements CommitTable, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileCommitTable.class);
+
+    public static final String COMMIT_LOG_DIR_KEY = "omid.committable.log.dir";
+    public static final String COMMIT_LOG_SEGMENT_SIZE_KEY = "omid.committable.log.segment.size";
+
+    // Record layout: type (int), checksum (int), start timestamp or low watermark (long), value (long)
+    static final int RECORD_SIZE = 24;
+    private static final int EMPTY = 0;
+    private static final int COMMIT = 1;
+    private static final int INVALIDATION = 2;
+    private static final int COMPLETION = 3;
+    private static final int LOW_WATERMARK = 4;
+
+    private static final String SEGMENT_PREFIX = "commit-log-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String LOCK_FILE = "commit-log.lock";
+
+    private final File logDir;
+    private final int segmentSize;
+    private final int maxRecordsToRelocate;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    // Live transactions: start timestamp -> commit timestamp (or the invalidation marker) and its segment
+    private final ConcurrentHashMap<Long, Entry> index = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment currentSegment;
+    private int appendOffset;
+    private boolean relocating = false;
+    // Trimmed segments whose buffers are pending to be unmapped by the sync thread
+    private final List<Segment> segmentsToUnmap = new ArrayList<>();
+
+    private volatile long lowWatermark = 0;
+    // Positions in the log as a whole, across segments
+    private volatile long appendedPosition;
+    private volatile long syncedPosition;
+
+    private final BlockingQueue<SettableFuture<Void>> syncRequests = new LinkedBlockingQueue<>();
+    private final Thread syncThread;
+    private volatile boolean closed = false;
+
+    @Inject
+    public MappedFileCommitTable(@Named(COMMIT_LOG_DIR_KEY) String logDir,
+                                 @Named(COMMIT_LOG_SEGMENT_SIZE_KEY) int segmentSize) throws IOException {
+
+        Preconditions.checkArgument(segmentSize >= 16 * RECORD_SIZE, "Segment size [%s] is too small", segmentSize);
+        this.logDir = new File(logDir);
+        this.segmentSize = segmentSize - segmentSize % RECORD_SIZE;
+        this.maxRecordsToRelocate = this.segmentSize / RECORD_SIZE / 16;
+        if (!this.logDir.isDirectory() && !this.logDir.mkdirs()) {
+            throw new IOException("Can't create the commit log directory " + logDir);
+        }
+        this.lockFile = new RandomAccessFile(new File(this.logDir, LOCK_FILE), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null; // Locked by this process
+        }
+        this.lock = fileLock;
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("Commit log in " + logDir + " is in use by another process");
+        }
+
+        recover();
+        this.syncedPosition = appendedPosition;
+        this.syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "commit-log-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+        LOG.info("Commit log opened in {} with {} segments and {} live transactions",
+                 logDir, segments.size(), index.size());
+
+    }
+
+    @Override
+    public CommitTable.Writer getWriter() {
+        return new Writer();
+    }
+
+    @Override
+    public CommitTable.Client getClient() {
+        return new Client();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        syncThread.interrupt();
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            currentSegment.buffer.force();
+            unmapTrimmedSegments();
+        }
+        failPendingSyncs();
+        lock.release();
+        lockFile.close();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Writer and Client
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private class Writer implements CommitTable.Writer {
+
+        private long[] startTimestamps = new long[1024];
+        private long[] commitTimestamps = new long[1024];
+        private int numCommits = 0;
+        private long lowWatermarkToStore = -1L;
+
+        @Override
+        public void addCommittedTransaction(long startTimestamp, long commitTimestamp) {
+            if (numCommits == startTimestamps.length) {
+                startTimestamps = Arrays.copyOf(startTimestamps, numCommits * 2);
+                commitTimestamps = Arrays.copyOf(commitTimestamps, numCommits * 2);
+            }
+            startTimestamps[numCommits] = startTimestamp;
+            commitTimestamps[numCommits] = commitTimestamp;
+            numCommits++;
+        }
+
+        @Override
+        public void updateLowWatermark(long lowWatermark) {
+            lowWatermarkToStore = lowWatermark;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            Futures.get(flushAsync(), IOException.class);
+        }
+
+        @Override
+        public ListenableFuture<Void> flushAsync() {
+            if (numCommits == 0 && lowWatermarkToStore == -1L) {
+                return Futures.immediateFuture(null);
+            }
+            try {
+                appendCommits(startTimestamps, commitTimestamps, numCommits, lowWatermarkToStore);
+            } catch (IOException e) {
+                LOG.error("Error appending commits to the commit log", e);
+                return Futures.immediateFailedFuture(e);
+            } finally {
+                numCommits = 0;
+                lowWatermarkToStore = -1L;
+            }
+            return synced();
+        }
+
+        @Override
+        public void clearWriteBuffer() {
+            numCommits = 0;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private class Client implements CommitTable.Client {
+
+        @Override
+        public ListenableFuture<Optional<CommitTimestamp>> getCommitTimestamp(long startTimestamp) {
+            Optional<CommitTimestamp> commitTimestamp = lookUp(startTimestamp);
+            if (!commitTimestamp.isPresent()) {
+                return Futures.immediateFuture(commitTimestamp);
+            }
+            return Futures.transform(synced(), Functions.constant(commitTimestamp));
+        }
+
+        @Override
+        public ListenableFuture<List<Optional<CommitTimestamp>>> getCommitTimestamps(long[] startTimestamps) {
+            List<Optional<CommitTimestamp>> commitTimestamps = new ArrayList<>(startTimestamps.length);
+            for (long startTimestamp : startTimestamps) {
+                commitTimestamps.add(lookUp(startTimestamp));
+            }
+            // A single sync covers all the transactions found
+            return Futures.transform(synced(), Functions.constant(commitTimestamps));
+        }
+
+        private Optional<CommitTimestamp> lookUp(long startTimestamp) {
+            Entry entry = index.get(startTimestamp);
+            if (entry == null) {
+                return Optional.absent();
+            }
+            boolean isValid = entry.value != INVALID_TRANSACTION_MARKER;
+            return Optional.of(new CommitTimestamp(Location.COMMIT_TABLE, entry.value, isValid));
+        }
+
+        @Override
+        public ListenableFuture<Long> readLowWatermark() {
+            return Futures.transform(synced(), Functions.constant(lowWatermark));
+        }
+
+        @Override
+        public ListenableFuture<Void> completeTransaction(long startTimestamp) {
+            try {
+                appendCompletion(startTimestamp);
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+            // Losing a completion is harmless, as it only keeps the transaction in the commit table
+            return Futures.immediateFuture(null);
+        }
+
+        @Override
+        public ListenableFuture<Boolean> tryInvalidateTransaction(long startTimestamp) {
+            boolean isInvalidated;
+            try {
+                isInvalidated = appendInvalidation(startTimestamp);
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+            // The sync is requested after the append, so the invalidation is durable before it's acknowledged
+            return Futures.transform(synced(), Functions.constant(isInvalidated));
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Log management
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private synchronized void appendCommits(long[] startTimestamps, long[] commitTimestamps, int numCommits,
+                                            long lowWatermarkToStore) throws IOException {
+
+        for (int i = 0; i < numCommits; i++) {
+            // Invalidated transactions keep the invalidation, as putIfAbsent does in the other commit tables
+            if (!index.containsKey(startTimestamps[i])) {
+                Segment segment = append(COMMIT, startTimestamps[i], commitTimestamps[i]);
+                index.put(startTimestamps[i], new Entry(commitTimestamps[i], segment));
+                segment.liveTransactions.add(startTimestamps[i]);
+            }
+        }
+        if (lowWatermarkToStore != -1L) {
+            append(LOW_WATERMARK, lowWatermarkToStore, 0);
+            lowWatermark = lowWatermarkToStore;
+        }
+
+    }
+
+    private synchronized boolean appendInvalidation(long startTimestamp) throws IOException {
+
+        Entry entry = index.get(startTimestamp);
+        if (entry != null) {
+            return entry.value == INVALID_TRANSACTION_MARKER;
+        }
+        Segment segment = append(INVALIDATION, startTimestamp, INVALID_TRANSACTION_MARKER);
+        index.put(startTimestamp, new Entry(INVALID_TRANSACTION_MARKER, segment));
+        segment.liveTransactions.add(startTimestamp);
+        return true;
+
+    }
+
+    private synchronized void appendCompletion(long startTimestamp) throws IOException {
+
+        Entry entry = index.remove(startTimestamp);
+        if (entry != null) {
+            append(COMPLETION, startTimestamp, 0);
+            entry.segment.liveTransactions.remove(startTimestamp);
+        }
+
+    }
+
+    /**
+     * Appends a record to the current segment, rolling to a new segment when it's full
+     *
+     * @return the segment where the record was appended
+     */
+    private Segment append(int type, long key, long value) throws IOException {
+
+        if (closed) {
+            throw new IOException("Commit log closed");
+        }
+        if (appendOffset + RECORD_SIZE > segmentSize) {
+            rollSegment();
+        }
+        writeRecord(currentSegment.buffer, appendOffset, type, key, value);
+        appendOffset += RECORD_SIZE;
+        appendedPosition = currentSegment.id * segmentSize + appendOffset;
+        return currentSegment;
+
+    }
+
+    private void rollSegment() throws IOException {
+
+        // The sync thread only forces the current segment, so the previous one is forced here
+        currentSegment.buffer.force();
+        Segment segment = createSegment(currentSegment.id + 1);
+        segments.put(segment.id, segment);
+        currentSegment = segment;
+        appendOffset = 0;
+        // The latest low watermark is kept in the newest segment, so the older ones are never needed to recover it
+        append(LOW_WATERMARK, lowWatermark, 0);
+        if (!relocating) {
+            relocating = true;
+            try {
+                trimOldestSegments();
+            } finally {
+                relocating = false;
+            }
+        }
+
+    }
+
+    private void trimOldestSegments() throws IOException {
+
+        // Only the oldest segments are deleted, so the completions in a deleted segment never refer to transactions
+        // in the segments that are kept
+        int relocated = 0;
+        List<Segment> trimmed = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment == currentSegment || relocated + segment.liveTransactions.size() > maxRecordsToRelocate) {
+                break;
+            }
+            if (!segment.liveTransactions.isEmpty()) {
+                relocated += relocate(segment);
+            }
+            trimmed.add(segment);
+        }
+        if (trimmed.isEmpty()) {
+            return;
+        }
+        // The relocated records must be durable before deleting their previous copies
+        currentSegment.buffer.force();
+        for (Segment segment : trimmed) {
+            segments.remove(segment.id);
+            if (!segment.file.delete()) {
+                LOG.warn("Can't delete commit log segment {}", segment.file);
+            }
+            // The sync thread may still be forcing the segment, so it's the one that unmaps it later on
+            segmentsToUnmap.add(segment);
+        }
+        LOG.debug("Trimmed {} commit log segments relocating {} transactions", trimmed.size(), relocated);
+
+    }
+
+    private int relocate(Segment from) throws IOException {
+
+        // Only the transactions of the segment are visited, so the cost doesn't depend on the size of the index
+        for (long startTimestamp : from.liveTransactions) {
+            Entry entry = index.get(startTimestamp);
+            int type = entry.value == INVALID_TRANSACTION_MARKER ? INVALIDATION : COMMIT;
+            Segment segment = append(type, startTimestamp, entry.value);
+            index.put(startTimestamp, new Entry(entry.value, segment));
+            segment.liveTransactions.add(startTimestamp);
+        }
+        int relocated = from.liveTransactions.size();
+        from.liveTransactions.clear();
+        return relocated;
+
+    }
+
+    /**
+     * Releases the mappings of the trimmed segments, so the disk space of their deleted files is freed at once instead
+     * of when the buffers are garbage collected. Must be called when the sync thread is not forcing any buffer
+     */
+    private void unmapTrimmedSegments() {
+
+        for (Segment segment : segmentsToUnmap) {
+            unmap(segment.buffer);
+        }
+        segmentsToUnmap.clear();
+
+    }
+
+    /**
+     * Unmaps the buffer through its cleaner. The buffer must not be accessed anymore. When the JVM doesn't expose the
+     * cleaner, the mapping is released when the buffer is garbage collected
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            LOG.debug("Can't unmap commit log segment. It will be released by the GC", e);
+        }
+
+    }
+
+    /**
+     * @return a future completed when everything appended so far is durable
+     */
+    private ListenableFuture<Void> synced() {
+
+        if (syncedPosition >= appendedPosition) {
+            return Futures.immediateFuture(null);
+        }
+        SettableFuture<Void> f = SettableFuture.create();
+        syncRequests.add(f);
+        if (closed) {
+            failPendingSyncs();
+        }
+        return f;
+
+    }
+
+    private void syncLoop() {
+
+        List<SettableFuture<Void>> requests = new ArrayList<>();
+        try {
+            while (!closed) {
+                requests.add(syncRequests.take());
+                syncRequests.drainTo(requests);
+                // Every request was queued after its append, so syncing up to the current position covers them all
+                MappedByteBuffer buffer;
+                long position;
+                synchronized (this) {
+                    // The segments trimmed before this point can't be forced anymore
+                    unmapTrimmedSegments();
+                    buffer = currentSegment.buffer;
+                    position = appendedPosition;
+                }
+                if (position > syncedPosition) {
+                    buffer.force();
+                    syncedPosition = position;
+                }
+                for (SettableFuture<Void> request : requests) {
+                    request.set(null);
+                }
+                requests.clear();
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("Commit log sync thread interrupted");
+        } catch (Throwable t) {
+            LOG.error("Error syncing the commit log", t);
+            for (SettableFuture<Void> request : requests) {
+                request.setException(t);
+            }
+            closed = true;
+        }
+        failPendingSyncs();
+
+    }
+
+    private void failPendingSyncs() {
+
+        SettableFuture<Void> request;
+        while ((request = syncRequests.poll()) != null) {
+            request.setException(new IOException("Commit log closed"));
+        }
+
+    }
+
+    /**
+     * Rebuilds the index replaying the existing segments in order, and prepares the last one for appending
+     */
+    private void recover() throws IOException {
+
+        File[] files = logDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (File file : files) {
+            String id = file.getName().substring(SEGMENT_PREFIX.length(),
+                                                 file.getName().length() - SEGMENT_SUFFIX.length());
+            Segment segment = mapSegment(Long.parseLong(id), file);
+            segments.put(segment.id, segment);
+        }
+
+        if (segments.isEmpty()) {
+            currentSegment = createSegment(0);
+            segments.put(currentSegment.id, currentSegment);
+            appendOffset = 0;
+        } else {
+            for (Segment segment : segments.values()) {
+                currentSegment = segment;
+                appendOffset = replay(segment);
+            }
+            // Discard any partially written record, so it's not taken as valid when appending after it
+            MappedByteBuffer buffer = currentSegment.buffer;
+            for (int offset = appendOffset; offset + 8 <= buffer.capacity(); offset += 8) {
+                buffer.putLong(offset, 0L);
+            }
+            buffer.force();
+        }
+        appendedPosition = currentSegment.id * segmentSize + appendOffset;
+
+    }
+
+    /**
+     * @return the offset where the valid records of the segment end
+     */
+    private int replay(Segment segment) {
+
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        for (; offset + RECORD_SIZE <= buffer.capacity(); offset += RECORD_SIZE) {
+            int type = buffer.getInt(offset);
+            long key = buffer.getLong(offset + 8);
+            long value = buffer.getLong(offset + 16);
+            if (type == EMPTY || buffer.getInt(offset + 4) != checksum(type, key, value)) {
+                break;
+            }
+            switch (type) {
+                case COMMIT:
+                case INVALIDATION:
+                    if (index.putIfAbsent(key, new Entry(value, segment)) == null) {
+                        segment.liveTransactions.add(key);
+                    }
+                    break;
+                case COMPLETION:
+                    Entry entry = index.remove(key);
+                    if (entry != null) {
+                        entry.segment.liveTransactions.remove(key);
+                    }
+                    break;
+                case LOW_WATERMARK:
+                    lowWatermark = key;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record type " + type + " in " + segment.file);
+            }
+        }
+        return offset;
+
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        return mapSegment(id, new File(logDir, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+    }
+
+    private Segment mapSegment(long id, File file) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < segmentSize) {
+                raf.setLength(segmentSize);
+            }
+            // Mappings remain valid after closing the channel
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Segment(id, file, buffer);
+        }
+
+    }
+
+    private static void writeRecord(MappedByteBuffer buffer, int offset, int type, long key, long value) {
+        buffer.putLong(offset + 8, key);
+        buffer.putLong(offset + 16, value);
+        buffer.putInt(offset + 4, checksum(type, key, value));
+        // The type goes last, as a non empty type marks the record as present
+        buffer.putInt(offset, type);
+    }
+
+    private static int checksum(int type, long key, long value) {
+        long h = (type * 0x9E3779B97F4A7C15L) ^ key;
+        h = (h ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L ^ value;
+        h = (h ^ (h >>> 29)) * 0x94D049BB133111EBL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @VisibleForTesting
+    synchronized int getNumSegments() {
+        return segments.size();
+    }
+
+    @VisibleForTesting
+    long getAppendedPosition() {
+        return appendedPosition;
+    }
+
+    @VisibleForTesting
+    long getSyncedPosition() {
+        return syncedPosition;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Helper classes
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private static class Segment {
+
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        // Start timestamps of the live transactions whose latest record is in this segment. Guarded by the commit table
+        final Set<Long> liveTransactions = new HashSet<>();
+
+        Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+    }
+
+    private static class Entry {
+
+        final long value;
+        final Segment segment;
+
+        Entry(long value, Segment segment) {
+            this.value = value;
+            this.segment = segment;
+        }
+
+    }
+
+}
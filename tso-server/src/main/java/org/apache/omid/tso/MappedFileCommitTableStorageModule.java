@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
+import org.apache.omid.committable.CommitTable;
+
+import javax.inject.Singleton;
+import java.io.File;
+
+import static org.apache.omid.tso.MappedFileCommitTable.COMMIT_LOG_DIR_KEY;
+import static org.apache.omid.tso.MappedFileCommitTable.COMMIT_LOG_SEGMENT_SIZE_KEY;
+
+/**
+ * This class is instantiated by the yaml parser.
+ * Snake_yaml needs a public POJO style class to work properly with all the setters and getters.
+ */
+public class MappedFileCommitTableStorageModule extends AbstractModule {
+
+    private String logDir = System.getProperty("java.io.tmpdir") + File.separator + "omid-commit-log";
+    private int segmentSizeInMB = 64;
+
+    @Override
+    protected void configure() {
+        bindConstant().annotatedWith(Names.named(COMMIT_LOG_DIR_KEY)).to(logDir);
+        bindConstant().annotatedWith(Names.named(COMMIT_LOG_SEGMENT_SIZE_KEY)).to(segmentSizeInMB * 1024 * 1024);
+        bind(CommitTable.class).to(MappedFileCommitTable.class).in(Singleton.class);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // WARNING: Do not remove getters/setters, needed by snake_yaml!
+    // ----------------------------------------------------------------------------------------------------------------
+
+    public String getLogDir() {
+        return logDir;
+    }
+
+    public void setLogDir(String logDir) {
+        this.logDir = logDir;
+    }
+
+    public int getSegmentSizeInMB() {
+        return segmentSizeInMB;
+    }
+
+    public void setSegmentSizeInMB(int segmentSizeInMB) {
+        this.segmentSizeInMB = segmentSizeInMB;
+    }
+
+}
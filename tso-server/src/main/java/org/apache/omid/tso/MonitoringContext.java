@@ -17,60 +17,294 @@
  */
 package org.apache.omid.tso;
 
-import com.google.common.base.Stopwatch;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import org.apache.omid.metrics.Histogram;
 import org.apache.omid.metrics.MetricsRegistry;
+import org.apache.omid.metrics.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.concurrent.NotThreadSafe;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static org.apache.omid.metrics.MetricsUtils.name;
 
+/**
+ * Measures the time a request spends in each stage of the TSO pipeline. The start time of each stage is kept in a
+ * fixed slot indexed by the stage, and the timers where the latencies are published are resolved only once.
+ *
+ * The contexts are handed from stage to stage through the Disruptor rings, which guarantee the visibility of the
+ * slots, so a context is only accessed by one thread at a time. Contexts created by a Factory are sampled: only one
+ * out of each samplingRatio requests gets a real context, the rest share a context that measures nothing. The real
+ * ones are recycled when they are published, so a context must not be used after calling publish().
+ *
+ * Sampled contexts also trace the moments a request goes through the main points of the pipeline. When published,
+ * the time elapsed between each pair of consecutive trace points is recorded in a histogram per point, and the whole
+ * trace is handed to the PipelineTraceWriter, if any, for offline analysis.
+ */
 @NotThreadSafe
 public class MonitoringContext {
 
     private static final Logger LOG = LoggerFactory.getLogger(MonitoringContext.class);
 
-    private volatile boolean flag;
-    private Map<String, Long> elapsedTimeMsMap = new ConcurrentHashMap<>();
-    private Map<String, Stopwatch> timers = new ConcurrentHashMap<>();
-    private MetricsRegistry metrics;
+    enum Stage {
+
+        REQUEST_TIMESTAMP("request.processor.timestamp.latency"),
+        REQUEST_COMMIT("request.processor.commit.latency"),
+        PERSISTENCE_TIMESTAMP("persistence.processor.timestamp.latency"),
+        PERSISTENCE_COMMIT("persistence.processor.commit.latency"),
+        PERSISTENCE_COMMIT_RETRY("persistence.processor.commit-retry.latency"),
+        PERSISTENCE_ABORT("persistence.processor.abort.latency"),
+        REPLY_TIMESTAMP("reply.processor.timestamp.latency"),
+        REPLY_COMMIT("reply.processor.commit.latency"),
+        REPLY_ABORT("reply.processor.abort.latency"),
+        RETRY_COMMIT_RETRY("retry.processor.commit-retry.latency");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+
+        String getMetricName() {
+            return metricName;
+        }
+
+    }
+
+    enum TracePoint {
+
+        RECEIVED("received"),
+        REQUEST_RING("request-ring"),
+        BATCH_ADDED("batch-added"),
+        FLUSH_STARTED("flush-started"),
+        FLUSH_FINISHED("flush-finished"),
+        REPLY_ORDERED("reply-ordered"),
+        WRITTEN("written");
+
+        private final String traceName;
+
+        TracePoint(String traceName) {
+            this.traceName = traceName;
+        }
+
+        String getTraceName() {
+            return traceName;
+        }
+
+    }
+
+    private static final int NUM_STAGES = Stage.values().length;
+    private static final int NUM_TRACE_POINTS = TracePoint.values().length;
+    static final long NOT_MEASURED = -1L;
+
+    // Shared by all the requests that are not sampled and by the internal events, which measure nothing
+    static final MonitoringContext NOT_SAMPLED = new MonitoringContext(null, null, null, null, null);
+
+    private final Timer[] stageTimers; // Null for the context of the requests that are not sampled
+    private final Histogram[] traceHistograms;
+    private final Histogram totalTraceHistogram;
+    private final PipelineTraceWriter traceWriter; // Null if the traces are not exported
+    private final BlockingQueue<MonitoringContext> pool; // Null if the context is not recycled
+
+    private final long[] startTimes = new long[NUM_STAGES];
+    private final long[] elapsedTimes = new long[NUM_STAGES];
+    private final long[] traceTimes = new long[NUM_TRACE_POINTS];
+    private boolean published;
 
     public MonitoringContext(MetricsRegistry metrics) {
-        this.metrics = metrics;
+        this(resolveTimers(metrics), resolveTraceHistograms(metrics), resolveTotalTraceHistogram(metrics), null, null);
+    }
+
+    private MonitoringContext(Timer[] stageTimers,
+                              Histogram[] traceHistograms,
+                              Histogram totalTraceHistogram,
+                              PipelineTraceWriter traceWriter,
+                              BlockingQueue<MonitoringContext> pool) {
+        this.stageTimers = stageTimers;
+        this.traceHistograms = traceHistograms;
+        this.totalTraceHistogram = totalTraceHistogram;
+        this.traceWriter = traceWriter;
+        this.pool = pool;
+        reset();
+    }
+
+    /**
+     * @return false for the shared context of the requests that are not measured
+     */
+    public boolean isSampled() {
+        return stageTimers != null;
     }
 
-    public void timerStart(String name) {
-        Stopwatch stopwatch = new Stopwatch();
-        stopwatch.start();
-        timers.put(name, stopwatch);
+    public void trace(TracePoint point) {
+        if (stageTimers == null) {
+            return;
+        }
+        traceTimes[point.ordinal()] = System.nanoTime();
     }
 
-    public void timerStop(String name) {
-        if (flag) {
-            LOG.warn("timerStop({}) called after publish. Measurement was ignored. {}", name, Throwables.getStackTraceAsString(new Exception()));
+    /**
+     * Traces a point with a time taken by the caller, so several contexts going through it together share the time
+     */
+    public void trace(TracePoint point, long nanoTime) {
+        if (stageTimers == null) {
             return;
         }
-        Stopwatch activeStopwatch = timers.get(name);
-        if (activeStopwatch == null) {
+        traceTimes[point.ordinal()] = nanoTime;
+    }
+
+    public void timerStart(Stage stage) {
+        if (stageTimers == null) {
+            return;
+        }
+        startTimes[stage.ordinal()] = System.nanoTime();
+    }
+
+    public void timerStop(Stage stage) {
+        if (stageTimers == null) {
+            return;
+        }
+        if (published) {
+            LOG.warn("timerStop({}) called after publish. Measurement was ignored. {}",
+                     stage, Throwables.getStackTraceAsString(new Exception()));
+            return;
+        }
+        long startTime = startTimes[stage.ordinal()];
+        if (startTime == NOT_MEASURED) {
             throw new IllegalStateException(
-                    String.format("There is no %s timer in the %s monitoring context.", name, this));
+                    String.format("There is no %s timer in the %s monitoring context.", stage, this));
         }
-        activeStopwatch.stop();
-        elapsedTimeMsMap.put(name, activeStopwatch.elapsedTime(TimeUnit.NANOSECONDS));
-        timers.remove(name);
+        elapsedTimes[stage.ordinal()] = System.nanoTime() - startTime;
+        startTimes[stage.ordinal()] = NOT_MEASURED;
     }
 
     public void publish() {
-        flag = true;
-        for (Map.Entry<String, Long> entry : elapsedTimeMsMap.entrySet()) {
-            metrics.timer(name("tso", entry.getKey())).update(entry.getValue());
+        if (stageTimers == null) {
+            return;
+        }
+        published = true;
+        for (int i = 0; i < NUM_STAGES; i++) {
+            if (elapsedTimes[i] != NOT_MEASURED) {
+                stageTimers[i].update(elapsedTimes[i]);
+            }
+        }
+        publishTrace();
+        if (pool != null) {
+            reset();
+            pool.offer(this);
+        }
+    }
+
+    private void reset() {
+        Arrays.fill(startTimes, NOT_MEASURED);
+        Arrays.fill(elapsedTimes, NOT_MEASURED);
+        Arrays.fill(traceTimes, NOT_MEASURED);
+        published = false;
+    }
+
+    private void publishTrace() {
+        long firstTime = NOT_MEASURED;
+        long previousTime = NOT_MEASURED;
+        for (int i = 0; i < NUM_TRACE_POINTS; i++) {
+            long time = traceTimes[i];
+            if (time == NOT_MEASURED) {
+                continue; // Not all the requests go through all the points
+            }
+            if (previousTime == NOT_MEASURED) {
+                firstTime = time;
+            } else {
+                traceHistograms[i].update(time - previousTime);
+            }
+            previousTime = time;
+        }
+        if (firstTime != NOT_MEASURED && previousTime != firstTime) {
+            totalTraceHistogram.update(previousTime - firstTime);
+        }
+        if (traceWriter != null && firstTime != NOT_MEASURED) {
+            traceWriter.append(elapsedTimes[Stage.REQUEST_TIMESTAMP.ordinal()] != NOT_MEASURED, traceTimes);
         }
     }
 
+    private static Timer[] resolveTimers(MetricsRegistry metrics) {
+        Timer[] timers = new Timer[NUM_STAGES];
+        for (Stage stage : Stage.values()) {
+            timers[stage.ordinal()] = metrics.timer(name("tso", stage.getMetricName()));
+        }
+        return timers;
+    }
+
+    private static Histogram[] resolveTraceHistograms(MetricsRegistry metrics) {
+        Histogram[] histograms = new Histogram[NUM_TRACE_POINTS];
+        for (TracePoint point : TracePoint.values()) {
+            histograms[point.ordinal()] = metrics.histogram(name("tso", "trace", point.getTraceName(), "latency"));
+        }
+        return histograms;
+    }
+
+    private static Histogram resolveTotalTraceHistogram(MetricsRegistry metrics) {
+        return metrics.histogram(name("tso", "trace", "total", "latency"));
+    }
+
+    /**
+     * Creates the monitoring contexts of the requests, sampling and recycling them. The contexts start tracing the
+     * request when they are created, so they must be created as soon as the request is received.
+     */
+    static class Factory implements Closeable {
+
+        private static final int MAX_POOLED_CONTEXTS = 4096;
+
+        private final Timer[] stageTimers;
+        private final Histogram[] traceHistograms;
+        private final Histogram totalTraceHistogram;
+        private final PipelineTraceWriter traceWriter;
+        private final int samplingRatio;
+        private final BlockingQueue<MonitoringContext> pool = new ArrayBlockingQueue<>(MAX_POOLED_CONTEXTS);
+
+        Factory(MetricsRegistry metrics, int samplingRatio) {
+            this(metrics, samplingRatio, null);
+        }
+
+        /**
+         * @param samplingRatio
+         *            one out of each samplingRatio requests is measured. 1 measures all of them
+         * @param traceWriter
+         *            where the traces of the sampled requests are exported. Null to not export them
+         */
+        Factory(MetricsRegistry metrics, int samplingRatio, PipelineTraceWriter traceWriter) {
+            Preconditions.checkArgument(samplingRatio > 0, "Monitoring sampling ratio [%s] must be positive",
+                                        samplingRatio);
+            this.stageTimers = resolveTimers(metrics);
+            this.traceHistograms = resolveTraceHistograms(metrics);
+            this.totalTraceHistogram = resolveTotalTraceHistogram(metrics);
+            this.traceWriter = traceWriter;
+            this.samplingRatio = samplingRatio;
+        }
+
+        MonitoringContext newContext() {
+            if (samplingRatio > 1 && ThreadLocalRandom.current().nextInt(samplingRatio) != 0) {
+                return NOT_SAMPLED;
+            }
+            MonitoringContext monCtx = pool.poll();
+            if (monCtx == null) {
+                monCtx = new MonitoringContext(stageTimers, traceHistograms, totalTraceHistogram, traceWriter, pool);
+            }
+            monCtx.trace(TracePoint.RECEIVED);
+            return monCtx;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (traceWriter != null) {
+                traceWriter.close();
+            }
+        }
+
+    }
+
 }
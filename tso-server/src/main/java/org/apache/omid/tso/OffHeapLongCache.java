@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Same layout and semantics than LongCache, but the long [] is stored out of the Java heap, either in direct memory
+ * or in a memory-mapped file. This way the conflict map is not scanned by the garbage collector, which allows to
+ * configure big conflict maps keeping the heap small.
+ *
+ * As a single ByteBuffer can't address more than 2GB, the storage is split in segments of SEGMENT_SIZE longs.
+ */
+public class OffHeapLongCache implements Cache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapLongCache.class);
+
+    private static final int SEGMENT_SHIFT = 27;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT; // 1GB worth of longs per segment
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final LongBuffer[] segments;
+    private final int size;
+    private final int associativity;
+
+    // Sink for the prefetched values so the JIT does not remove the loads
+    private long prefetchSink;
+
+    /**
+     * Creates a cache backed by direct memory. Note that the total amount of direct memory that can be allocated is
+     * limited by the -XX:MaxDirectMemorySize JVM option.
+     */
+    public OffHeapLongCache(int size, int associativity) {
+        this(size, associativity, null);
+    }
+
+    /**
+     * Creates a cache backed by a memory-mapped file created in mappedFileDir. If mappedFileDir is null, the cache
+     * is backed by direct memory instead.
+     */
+    public OffHeapLongCache(int size, int associativity, File mappedFileDir) {
+        Preconditions.checkArgument(size > 0, "Size [%s] must be positive", size);
+        this.size = size;
+        this.associativity = associativity;
+        long capacity = 2L * (size + associativity);
+        int numSegments = (int) ((capacity + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        this.segments = new LongBuffer[numSegments];
+        try {
+            if (mappedFileDir == null) {
+                allocateDirectSegments(capacity);
+            } else {
+                mapSegments(capacity, mappedFileDir);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't map the off-heap cache storage in " + mappedFileDir, e);
+        }
+        LOG.info("Off-heap cache created with {} longs in {} segments ({})",
+                 capacity, numSegments, mappedFileDir == null ? "direct memory" : mappedFileDir);
+    }
+
+    @Override
+    public long set(long key, long value) {
+        final long index = index(key);
+        long oldestIndex = 0;
+        long oldestValue = Long.MAX_VALUE;
+        for (int i = 0; i < associativity; ++i) {
+            long currIndex = 2 * (index + i);
+            if (getAt(currIndex) == key) {
+                oldestValue = 0;
+                oldestIndex = currIndex;
+                break;
+            }
+            long currValue = getAt(currIndex + 1);
+            if (currValue <= oldestValue) {
+                oldestValue = currValue;
+                oldestIndex = currIndex;
+            }
+        }
+        putAt(oldestIndex, key);
+        putAt(oldestIndex + 1, value);
+        return oldestValue;
+    }
+
+    @Override
+    public long get(long key) {
+        final long index = index(key);
+        for (int i = 0; i < associativity; ++i) {
+            long currIndex = 2 * (index + i);
+            if (getAt(currIndex) == key) {
+                return getAt(currIndex + 1);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void prefetch(long key) {
+        prefetchSink += getAt(2 * index(key));
+    }
+
+    private long index(long hash) {
+        return (hash & Long.MAX_VALUE) % size;
+    }
+
+    private long getAt(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+    }
+
+    private void putAt(long position, long value) {
+        segments[(int) (position >>> SEGMENT_SHIFT)].put((int) (position & SEGMENT_MASK), value);
+    }
+
+    private void allocateDirectSegments(long capacity) {
+        for (int i = 0; i < segments.length; i++) {
+            int segmentLongs = segmentSize(i, capacity);
+            segments[i] = ByteBuffer.allocateDirect(segmentLongs * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+    }
+
+    private void mapSegments(long capacity, File mappedFileDir) throws IOException {
+        File file = File.createTempFile("omid-conflict-map-", ".bin", mappedFileDir);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < segments.length; i++) {
+                long offsetInBytes = ((long) i << SEGMENT_SHIFT) * 8;
+                int segmentLongs = segmentSize(i, capacity);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offsetInBytes, segmentLongs * 8L)
+                        .order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+        } finally {
+            // Mappings remain valid after closing the channel and removing the file
+            if (!file.delete()) {
+                LOG.warn("Can't delete conflict map backing file {}", file);
+            }
+        }
+    }
+
+    private int segmentSize(int segment, long capacity) {
+        return (int) Math.min(SEGMENT_SIZE, capacity - ((long) segment << SEGMENT_SHIFT));
+    }
+
+}
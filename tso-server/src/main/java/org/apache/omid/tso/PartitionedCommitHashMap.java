@@ -0,0 +1,449 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.omid.tso.TSOServerConfig.CONFLICT_MAP_STORAGE;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Splits the cellId -> commitTS mapping in N CommitHashMap partitions, selected by the hash of the cell id.
+ *
+ * Each partition is owned by its own handler thread. The conflict detection of a transaction happens in two phases:
+ * first all the cells of the write set are checked for conflicts and, if the transaction can commit, the commit
+ * timestamp is stored for each cell afterwards. Both phases are invoked from the request-0 thread, which sequences
+ * the commits: it assigns the commit timestamps and the low watermark in a single global order.
+ *
+ * The cells of large write sets are handed to the owners of their partitions, which publish a verdict per partition
+ * for the check phase. The commits are pipelined through the owners: the request-0 thread only waits for the verdicts,
+ * whilst the owners store the commit timestamps in the background. As each owner executes the phases in the order
+ * they were handed to it, the writes of a commit are always registered before the cells of the next one are checked
+ * in the same partition. The timestamps evicted by the writes are collected later on with drainLargestEvicted().
+ *
+ * Small write sets, for which the handoffs would cost more than the parallelism saves, are processed inline by the
+ * request-0 thread once the owners have finished the writes in flight, so the partitions are never accessed by two
+ * threads at the same time.
+ *
+ * With a single partition there are no owner threads and this behaves exactly as a plain CommitHashMap.
+ */
+class PartitionedCommitHashMap implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedCommitHashMap.class);
+
+    // Write sets smaller than this number of cells per partition are processed inline by the request-0 thread
+    static final int MIN_CELLS_PER_PARTITION_TO_FORK = 16;
+
+    // Iterations the threads busy-wait for the next phase (owners) or its results (caller) before parking
+    private static final int MAX_SPINS = 10_000;
+
+    private final int numPartitions;
+    private final CommitHashMap[] partitions;
+    private final PartitionOwner[] owners; // null when there's a single partition
+
+    // Owners with cells assigned in the current phase
+    private final PartitionOwner[] activeOwners;
+    private int numActiveOwners = 0;
+    private int assignment = 0;
+
+    // Owners storing the commit timestamps of the last commit in the background
+    private final PartitionOwner[] updatingOwners;
+    private final long[] updatePhases;
+    private int numUpdatingOwners = 0;
+
+    // Largest timestamp evicted since the last drain
+    private long largestEvicted = 0;
+
+    private volatile boolean closed = false;
+
+    PartitionedCommitHashMap(int size, int numPartitions) {
+        this(size, numPartitions, CONFLICT_MAP_STORAGE.HEAP, null);
+    }
+
+    PartitionedCommitHashMap(int size, int numPartitions, CONFLICT_MAP_STORAGE storage, String mappedFileDir) {
+
+        Preconditions.checkArgument(numPartitions > 0,
+                                    "# of conflict map partitions [%s] must be positive", numPartitions);
+        this.numPartitions = numPartitions;
+        this.partitions = new CommitHashMap[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            partitions[i] = new CommitHashMap(size / numPartitions, storage, mappedFileDir);
+        }
+        if (numPartitions > 1) {
+            ThreadFactory threadFactory =
+                    new ThreadFactoryBuilder().setNameFormat("conflict-%d").setDaemon(true).build();
+            this.owners = new PartitionOwner[numPartitions];
+            this.activeOwners = new PartitionOwner[numPartitions];
+            this.updatingOwners = new PartitionOwner[numPartitions];
+            this.updatePhases = new long[numPartitions];
+            for (int i = 0; i < numPartitions; i++) {
+                owners[i] = new PartitionOwner(partitions[i]);
+                owners[i].thread = threadFactory.newThread(owners[i]);
+            }
+            for (PartitionOwner owner : owners) {
+                owner.thread.start();
+            }
+        } else {
+            this.owners = null;
+            this.activeOwners = null;
+            this.updatingOwners = null;
+            this.updatePhases = null;
+        }
+        LOG.info("Conflict map created with [{}] partitions", numPartitions);
+
+    }
+
+    /**
+     * Checks the write set of a transaction against the latest writes registered in the partitions, including the
+     * ones of the previous commits that are still being stored in the background.
+     *
+     * @return true if any of the cells was written by a transaction committed after startTimestamp
+     */
+    boolean hasConflicts(long[] writeSet, int numCells, long startTimestamp) throws Exception {
+
+        if (!isForked(numCells)) {
+            awaitUpdates();
+            for (int i = 0; i < numCells; i++) {
+                long cellId = writeSet[i];
+                long value = partitions[partitionOf(cellId)].getLatestWriteForCell(cellId);
+                if (value != 0 && value >= startTimestamp) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        assignToOwners(writeSet, numCells, false, startTimestamp);
+        publishToActiveOwners();
+        boolean conflictFound = false;
+        for (int i = 0; i < numActiveOwners; i++) {
+            PartitionOwner owner = activeOwners[i];
+            conflictFound |= owner.awaitPhase(owner.lastPublishedPhase).conflictFound;
+        }
+        // The owners execute the phases in order, so the writes of the previous commit are already done by now
+        awaitUpdates();
+        return conflictFound;
+
+    }
+
+    /**
+     * Registers commitTimestamp as the latest write for each cell in the write set. The writes of large write sets
+     * are registered in the background by the owners of the partitions, so the timestamps evicted by them have to be
+     * collected later on with drainLargestEvicted()
+     */
+    void putLatestWrites(long[] writeSet, int numCells, long commitTimestamp) throws Exception {
+
+        // Only the writes of a single commit are in flight at any time
+        awaitUpdates();
+        if (!isForked(numCells)) {
+            for (int i = 0; i < numCells; i++) {
+                long cellId = writeSet[i];
+                long removed = partitions[partitionOf(cellId)].putLatestWriteForCell(cellId, commitTimestamp);
+                largestEvicted = Math.max(removed, largestEvicted);
+            }
+            return;
+        }
+
+        assignToOwners(writeSet, numCells, true, commitTimestamp);
+        publishToActiveOwners();
+        for (int i = 0; i < numActiveOwners; i++) {
+            updatingOwners[i] = activeOwners[i];
+            updatePhases[i] = activeOwners[i].lastPublishedPhase;
+        }
+        numUpdatingOwners = numActiveOwners;
+
+    }
+
+    /**
+     * Returns the largest commit timestamp evicted from the partitions since the previous call, or 0 if nothing was
+     * evicted
+     *
+     * @param waitForUpdates whether to wait for the writes in flight to include the timestamps evicted by them
+     */
+    long drainLargestEvicted(boolean waitForUpdates) throws Exception {
+
+        if (waitForUpdates) {
+            awaitUpdates();
+        }
+        long evicted = largestEvicted;
+        largestEvicted = 0;
+        return evicted;
+
+    }
+
+    /**
+     * Brings to the CPU caches the entries for the first cells of a write set that's going to be checked soon by the
+     * calling thread. The write sets checked by the owners of the partitions are skipped, as their caches can't be
+     * warmed up from the calling thread
+     *
+     * @return the number of cells prefetched
+     */
+    int prefetch(long[] writeSet, int numCells, int maxCellsToPrefetch) {
+
+        if (isForked(numCells)) {
+            return 0;
+        }
+        int cellsToPrefetch = Math.min(numCells, maxCellsToPrefetch);
+        for (int i = 0; i < cellsToPrefetch; i++) {
+            long cellId = writeSet[i];
+            partitions[partitionOf(cellId)].prefetchLatestWriteForCell(cellId);
+        }
+        return cellsToPrefetch;
+
+    }
+
+    int partitionOf(long cellId) {
+
+        if (numPartitions == 1) {
+            return 0;
+        }
+        // Mix the bits so the partition selection is not correlated with the bucket selection inside the partition
+        return (int) (((cellId * 0x9E3779B97F4A7C15L) >>> 33) % numPartitions);
+
+    }
+
+    private boolean isForked(int numCells) {
+        return owners != null && numCells >= MIN_CELLS_PER_PARTITION_TO_FORK * numPartitions;
+    }
+
+    /**
+     * Distributes the cells of the write set among the next phases of the owners of their partitions. Only the
+     * owners that receive any cell take part in the phase.
+     */
+    private void assignToOwners(long[] writeSet, int numCells, boolean isUpdate, long timestamp) {
+
+        assignment++;
+        numActiveOwners = 0;
+        for (int i = 0; i < numCells; i++) {
+            long cellId = writeSet[i];
+            PartitionOwner owner = owners[partitionOf(cellId)];
+            if (owner.assignment != assignment) {
+                owner.assignment = assignment;
+                owner.nextPhase().prepare(isUpdate, timestamp);
+                activeOwners[numActiveOwners++] = owner;
+            }
+            owner.nextPhase().addCell(cellId);
+        }
+
+    }
+
+    private void publishToActiveOwners() {
+
+        if (closed) {
+            throw new IllegalStateException("Conflict map already closed");
+        }
+        Thread caller = Thread.currentThread();
+        for (int i = 0; i < numActiveOwners; i++) {
+            activeOwners[i].publish(caller);
+        }
+
+    }
+
+    /**
+     * Waits for the writes in flight, if any, and collects the timestamps evicted by them
+     */
+    private void awaitUpdates() throws Exception {
+
+        for (int i = 0; i < numUpdatingOwners; i++) {
+            Phase update = updatingOwners[i].awaitPhase(updatePhases[i]);
+            largestEvicted = Math.max(update.largestEvicted, largestEvicted);
+            updatingOwners[i] = null;
+        }
+        numUpdatingOwners = 0;
+
+    }
+
+    @Override
+    public void close() {
+
+        if (owners == null) {
+            return;
+        }
+        closed = true;
+        for (PartitionOwner owner : owners) {
+            LockSupport.unpark(owner.thread);
+        }
+        try {
+            for (PartitionOwner owner : owners) {
+                owner.thread.join(SECONDS.toMillis(3));
+            }
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted whilst finishing conflict map partition owners");
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    /**
+     * Either the check or the update of the cells of a write set in a single partition, and its results
+     */
+    private static class Phase {
+
+        private long[] cells = new long[MIN_CELLS_PER_PARTITION_TO_FORK];
+        private int numCells = 0;
+
+        private boolean isUpdate;
+        private long timestamp;
+
+        // Results
+        private boolean conflictFound;
+        private long largestEvicted;
+        private Throwable failure;
+
+        void prepare(boolean isUpdate, long timestamp) {
+            this.numCells = 0;
+            this.isUpdate = isUpdate;
+            this.timestamp = timestamp;
+            this.conflictFound = false;
+            this.largestEvicted = 0;
+            this.failure = null;
+        }
+
+        void addCell(long cellId) {
+            if (numCells == cells.length) {
+                cells = Arrays.copyOf(cells, cells.length * 2);
+            }
+            cells[numCells++] = cellId;
+        }
+
+        void execute(CommitHashMap partition) {
+            if (isUpdate) {
+                for (int i = 0; i < numCells; i++) {
+                    long removed = partition.putLatestWriteForCell(cells[i], timestamp);
+                    largestEvicted = Math.max(removed, largestEvicted);
+                }
+            } else {
+                for (int i = 0; i < numCells; i++) {
+                    long value = partition.getLatestWriteForCell(cells[i]);
+                    if (value != 0 && value >= timestamp) {
+                        conflictFound = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Handler thread that executes, in order, the phases handed to it over the partition it owns.
+     *
+     * The phases are numbered consecutively and alternate between two slots, so the caller can prepare the check of
+     * the next commit whilst the update of the previous one is still in flight. The caller never publishes a phase
+     * till the one that used the same slot before has completed and its results have been read. The parameters of a
+     * phase are written by the caller before publishing it through the volatile requestedPhase and its results are
+     * written by the owner before publishing completedPhase, so each side sees the plain fields written by the other.
+     */
+    private final class PartitionOwner implements Runnable {
+
+        private final CommitHashMap partition;
+        private Thread thread;
+
+        private final Phase[] slots = new Phase[] { new Phase(), new Phase() };
+
+        // Only accessed by the caller
+        private long lastPublishedPhase = 0;
+        private int assignment = 0;
+
+        private Thread caller;
+        private volatile long requestedPhase = 0;
+        private volatile long completedPhase = 0;
+
+        PartitionOwner(CommitHashMap partition) {
+            this.partition = partition;
+        }
+
+        Phase nextPhase() {
+            return slots[(int) ((lastPublishedPhase + 1) & 1)];
+        }
+
+        void publish(Thread caller) {
+            this.caller = caller;
+            requestedPhase = ++lastPublishedPhase;
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * Waits till the given phase is completed. Its results remain available till the phase after the next one
+         * is published
+         *
+         * @return the completed phase
+         */
+        Phase awaitPhase(long phaseToAwait) throws Exception {
+
+            int spins = 0;
+            while (completedPhase < phaseToAwait) {
+                if (closed) {
+                    throw new IllegalStateException("Conflict map closed whilst checking the conflicts");
+                }
+                if (++spins > MAX_SPINS) {
+                    LockSupport.parkNanos(this, SECONDS.toNanos(1));
+                }
+            }
+            Phase phase = slots[(int) (phaseToAwait & 1)];
+            Throwable failure = phase.failure;
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return phase;
+
+        }
+
+        @Override
+        public void run() {
+
+            long lastPhase = 0;
+            while (!closed) {
+                int spins = 0;
+                while (requestedPhase == lastPhase) {
+                    if (closed) {
+                        return;
+                    }
+                    if (++spins > MAX_SPINS) {
+                        LockSupport.park(this);
+                    }
+                }
+                // Executed one by one, even if the caller has already published the next one
+                long phaseToExecute = lastPhase + 1;
+                Phase phase = slots[(int) (phaseToExecute & 1)];
+                try {
+                    phase.execute(partition);
+                } catch (Throwable t) {
+                    phase.failure = t;
+                }
+                lastPhase = phaseToExecute;
+                completedPhase = lastPhase;
+                LockSupport.unpark(caller);
+            }
+
+        }
+
+    }
+
+}
@@ -33,6 +33,7 @@ public final class PersistEvent {
 
     private long startTimestamp = 0L;
     private long commitTimestamp = 0L;
+    private int numTimestamps = 1;
 
     void makePersistCommit(long startTimestamp, long commitTimestamp, Channel c, MonitoringContext monCtx) {
 
@@ -62,10 +63,11 @@ public final class PersistEvent {
 
     }
 
-    void makePersistTimestamp(long startTimestamp, Channel c, MonitoringContext monCtx) {
+    void makePersistTimestamp(long startTimestamp, int numTimestamps, Channel c, MonitoringContext monCtx) {
 
         this.type = Type.TIMESTAMP;
         this.startTimestamp = startTimestamp;
+        this.numTimestamps = numTimestamps;
         this.channel = c;
         this.monCtx = monCtx;
 
@@ -101,12 +103,22 @@ public final class PersistEvent {
 
     }
 
+    /**
+     * @return the number of consecutive timestamps, starting at the start timestamp, of a TIMESTAMP event
+     */
+    int getNumTimestamps() {
+
+        return numTimestamps;
+
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
                 .add("type", type)
                 .add("ST", startTimestamp)
                 .add("CT", commitTimestamp)
+                .add("#TS", numTimestamps)
                 .toString();
     }
 
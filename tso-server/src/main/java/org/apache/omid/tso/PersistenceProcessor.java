@@ -31,9 +31,15 @@ interface PersistenceProcessor extends Closeable {
 
     void addAbortToBatch(long startTimestamp, Channel c, MonitoringContext monCtx) throws Exception;
 
-    void addTimestampToBatch(long startTimestamp, Channel c, MonitoringContext monCtx) throws Exception;
+    void addTimestampToBatch(long startTimestamp, int numTimestamps, Channel c, MonitoringContext monCtx)
+            throws Exception;
 
     void triggerCurrentBatchFlush() throws Exception;
 
+    /**
+     * Flushes the current batch if its first event was added more than ageInNs nanoseconds ago
+     */
+    void triggerCurrentBatchFlushIfOlderThan(long ageInNs) throws Exception;
+
     Future<Void> persistLowWatermark(long lowWatermark);
 }
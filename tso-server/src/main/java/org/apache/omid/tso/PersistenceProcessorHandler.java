@@ -17,6 +17,9 @@
  */
 package org.apache.omid.tso;
 
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.lmax.disruptor.WorkHandler;
 import org.apache.omid.committable.CommitTable;
 import org.apache.omid.metrics.Histogram;
@@ -31,6 +34,15 @@ import java.util.concurrent.ExecutionException;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static org.apache.omid.tso.PersistEvent.Type.*;
+import static org.apache.omid.tso.MonitoringContext.Stage.PERSISTENCE_ABORT;
+import static org.apache.omid.tso.MonitoringContext.Stage.PERSISTENCE_COMMIT;
+import static org.apache.omid.tso.MonitoringContext.Stage.PERSISTENCE_COMMIT_RETRY;
+import static org.apache.omid.tso.MonitoringContext.Stage.PERSISTENCE_TIMESTAMP;
+import static org.apache.omid.tso.MonitoringContext.Stage.REPLY_ABORT;
+import static org.apache.omid.tso.MonitoringContext.Stage.REPLY_COMMIT;
+import static org.apache.omid.tso.MonitoringContext.Stage.REPLY_TIMESTAMP;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.FLUSH_FINISHED;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.FLUSH_STARTED;
 
 public class PersistenceProcessorHandler implements WorkHandler<PersistenceProcessorImpl.PersistBatchEvent> {
 
@@ -44,11 +56,16 @@ public class PersistenceProcessorHandler implements WorkHandler<PersistenceProce
     private final CommitTable.Writer writer;
     final Panicker panicker;
 
+    // When greater than 1, the handler doesn't wait for a flush to complete before taking the next batch. The batches
+    // are still replied in sequence order by the reply processor
+    private final int numFlushesInFlight;
+    // Set by the persistence processor when the batch sizes adapt to the flush latency. Null otherwise
+    private AdaptiveBatchSizer batchSizer;
+
     private final Timer flushTimer;
     private final Histogram batchSizeHistogram;
     private final Histogram flushedCommitEventsHistogram;
 
-    @Inject
     PersistenceProcessorHandler(MetricsRegistry metrics,
                                 String tsoHostAndPort,
                                 LeaseManagement leaseManager,
@@ -57,7 +74,36 @@ public class PersistenceProcessorHandler implements WorkHandler<PersistenceProce
                                 RetryProcessor retryProcessor,
                                 Panicker panicker)
     throws InterruptedException, ExecutionException, IOException {
+        this(metrics, tsoHostAndPort, leaseManager, commitTable, replyProcessor, retryProcessor, panicker, 1);
+    }
+
+    @Inject
+    PersistenceProcessorHandler(MetricsRegistry metrics,
+                                String tsoHostAndPort,
+                                LeaseManagement leaseManager,
+                                CommitTable commitTable,
+                                ReplyProcessor replyProcessor,
+                                RetryProcessor retryProcessor,
+                                Panicker panicker,
+                                TSOServerConfig config)
+    throws InterruptedException, ExecutionException, IOException {
+        this(metrics, tsoHostAndPort, leaseManager, commitTable, replyProcessor, retryProcessor, panicker,
+             config.getNumFlushesInFlightPerCTWriter());
+    }
+
+    private PersistenceProcessorHandler(MetricsRegistry metrics,
+                                        String tsoHostAndPort,
+                                        LeaseManagement leaseManager,
+                                        CommitTable commitTable,
+                                        ReplyProcessor replyProcessor,
+                                        RetryProcessor retryProcessor,
+                                        Panicker panicker,
+                                        int numFlushesInFlight)
+    throws InterruptedException, ExecutionException, IOException {
 
+        Preconditions.checkArgument(numFlushesInFlight > 0, "# of flushes in flight [%s] must be positive",
+                                    numFlushesInFlight);
+        this.numFlushesInFlight = numFlushesInFlight;
         this.tsoHostAndPort = tsoHostAndPort;
         this.leaseManager = leaseManager;
         this.writer = commitTable.getWriter();
@@ -83,57 +129,114 @@ public class PersistenceProcessorHandler implements WorkHandler<PersistenceProce
             PersistEvent event = batch.get(i);
             switch (event.getType()) {
                 case TIMESTAMP:
-                    event.getMonCtx().timerStop("persistence.processor.timestamp.latency");
+                    event.getMonCtx().timerStop(PERSISTENCE_TIMESTAMP);
                     break;
                 case COMMIT:
                     writer.addCommittedTransaction(event.getStartTimestamp(), event.getCommitTimestamp());
                     commitEventsToFlush++;
                     break;
                 case COMMIT_RETRY:
-                    event.getMonCtx().timerStop("persistence.processor.commit-retry.latency");
+                    event.getMonCtx().timerStop(PERSISTENCE_COMMIT_RETRY);
                     break;
                 case ABORT:
-                    event.getMonCtx().timerStop("persistence.processor.abort.latency");
+                    event.getMonCtx().timerStop(PERSISTENCE_ABORT);
                     break;
                 default:
                     throw new IllegalStateException("Event not allowed in Persistent Processor Handler: " + event);
             }
         }
 
+        if (numFlushesInFlight > 1 && commitEventsToFlush > 0) {
+            flushAsync(batchEvent.getBatchSequence(), batch, commitEventsToFlush);
+            return;
+        }
+
         // Flush and send the responses back to the client. WARNING: Before sending the responses, first we need
         // to filter commit retries in the batch to disambiguate them.
-        flush(commitEventsToFlush);
+        long flushStartedTimeInNs = System.nanoTime();
+        long flushLatencyInNs = flush(commitEventsToFlush);
+        completeBatch(batchEvent.getBatchSequence(), batch, flushStartedTimeInNs, System.nanoTime(), flushLatencyInNs);
+
+    }
+
+    /**
+     * Registers the sizer the latency of each flush has to be reported to. Must be called before the handler starts
+     */
+    void setBatchSizer(AdaptiveBatchSizer batchSizer) {
+        this.batchSizer = batchSizer;
+    }
+
+    private void completeBatch(long batchSequence, Batch batch, long flushStartedTimeInNs, long flushFinishedTimeInNs,
+                               long flushLatencyInNs) {
+
+        if (batchSizer != null) {
+            batchSizer.recordFlushLatency(flushLatencyInNs);
+        }
         filterAndDissambiguateClientRetries(batch);
         for (int i=0; i < batch.getNumEvents(); i++) { // Just for statistics
             PersistEvent event = batch.get(i);
+            event.getMonCtx().trace(FLUSH_STARTED, flushStartedTimeInNs);
+            event.getMonCtx().trace(FLUSH_FINISHED, flushFinishedTimeInNs);
             switch (event.getType()) {
                 case TIMESTAMP:
-                    event.getMonCtx().timerStart("reply.processor.timestamp.latency");
+                    event.getMonCtx().timerStart(REPLY_TIMESTAMP);
                     break;
                 case COMMIT:
-                    event.getMonCtx().timerStop("persistence.processor.commit.latency");
-                    event.getMonCtx().timerStart("reply.processor.commit.latency");
+                    event.getMonCtx().timerStop(PERSISTENCE_COMMIT);
+                    event.getMonCtx().timerStart(REPLY_COMMIT);
                     break;
                 case COMMIT_RETRY:
                     throw new IllegalStateException("COMMIT_RETRY events must be filtered before this step: " + event);
                 case ABORT:
-                    event.getMonCtx().timerStart("reply.processor.abort.latency");
+                    event.getMonCtx().timerStart(REPLY_ABORT);
                     break;
                 default:
                     throw new IllegalStateException("Event not allowed in Persistent Processor Handler: " + event);
             }
         }
-        replyProcessor.manageResponsesBatch(batchEvent.getBatchSequence(), batch);
+        replyProcessor.manageResponsesBatch(batchSequence, batch);
+
+    }
+
+    /**
+     * Starts flushing the batch without waiting for the flush to complete. The batch is completed from the thread
+     * that completes the flush, and the reply processor takes care of replying the batches in sequence order
+     */
+    private void flushAsync(final long batchSequence, final Batch batch, final int commitEventsToFlush) {
+
+        commitSuicideIfNotMaster();
+        final long startFlushTimeInNs = System.nanoTime();
+        Futures.addCallback(writer.flushAsync(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                long flushFinishedTimeInNs = System.nanoTime();
+                long flushLatencyInNs = flushFinishedTimeInNs - startFlushTimeInNs;
+                flushTimer.update(flushLatencyInNs);
+                flushedCommitEventsHistogram.update(commitEventsToFlush);
+                commitSuicideIfNotMaster();
+                completeBatch(batchSequence, batch, startFlushTimeInNs, flushFinishedTimeInNs, flushLatencyInNs);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                panicker.panic("Error persisting commit batch", t);
+            }
+        });
 
     }
 
-    void flush(int commitEventsToFlush) {
+    /**
+     * @return the time spent flushing the commits to the Commit Table in ns, or 0 if there was nothing to flush
+     */
+    long flush(int commitEventsToFlush) {
 
+        long flushLatencyInNs = 0;
         commitSuicideIfNotMaster();
         try {
             long startFlushTimeInNs = System.nanoTime();
             if(commitEventsToFlush > 0) {
                 writer.flush();
+                flushLatencyInNs = System.nanoTime() - startFlushTimeInNs;
             }
             flushTimer.update(System.nanoTime() - startFlushTimeInNs);
             flushedCommitEventsHistogram.update(commitEventsToFlush);
@@ -141,6 +244,7 @@ public class PersistenceProcessorHandler implements WorkHandler<PersistenceProce
             panicker.panic("Error persisting commit batch", e);
         }
         commitSuicideIfNotMaster();
+        return flushLatencyInNs;
 
     }
 
@@ -28,6 +28,7 @@ import com.lmax.disruptor.dsl.Disruptor;
 
 import org.apache.commons.pool2.ObjectPool;
 import org.apache.omid.committable.CommitTable;
+import org.apache.omid.metrics.Gauge;
 import org.apache.omid.metrics.MetricsRegistry;
 import org.apache.omid.metrics.Timer;
 import org.jboss.netty.channel.Channel;
@@ -64,6 +65,11 @@ class PersistenceProcessorImpl implements PersistenceProcessor {
     // TODO Next two need to be either int or AtomicLong
     volatile private long batchSequence;
 
+    // Time when the first event was added to the current batch
+    private long currentBatchStartInNs;
+    // Null when batches are only flushed when full or too old
+    private final AdaptiveBatchSizer batchSizer;
+
     private CommitTable.Writer lowWatermarkWriter;
     private ExecutorService lowWatermarkWriterExecutor;
 
@@ -89,6 +95,15 @@ class PersistenceProcessorImpl implements PersistenceProcessor {
 
         this.disruptor = new Disruptor<>(EVENT_FACTORY, 1 << 20, disruptorExec , SINGLE, strategy);
         disruptor.handleExceptionsWith(new FatalExceptionHandler(panicker)); // This must be before handleEventsWith()
+        if (config.isAdaptiveBatchSize()) {
+            this.batchSizer = new AdaptiveBatchSizer(config.getBatchSizePerCTWriter(), config.getNumConcurrentCTWriters());
+            // The handlers report the latency of each flush as soon as it completes
+            for (PersistenceProcessorHandler handler : handlers) {
+                handler.setBatchSizer(batchSizer);
+            }
+        } else {
+            this.batchSizer = null;
+        }
         disruptor.handleEventsWithWorkerPool(handlers);
         this.persistRing = disruptor.start();
 
@@ -101,6 +116,14 @@ class PersistenceProcessorImpl implements PersistenceProcessor {
         this.batchSequence = 0L;
         this.batchPool = batchPool;
         this.currentBatch = batchPool.borrowObject();
+        if (batchSizer != null) {
+            metrics.gauge(name("tso", "persist", "batch", "target", "size"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return batchSizer.getTargetBatchSize();
+                }
+            });
+        }
         // Low Watermark writer
         ThreadFactoryBuilder lwmThreadFactory = new ThreadFactoryBuilder().setNameFormat("lwm-writer-%d");
         this.lowWatermarkWriterExecutor = Executors.newSingleThreadExecutor(lwmThreadFactory.build());
@@ -118,6 +141,9 @@ class PersistenceProcessorImpl implements PersistenceProcessor {
         if (currentBatch.isEmpty()) {
             return;
         }
+        if (batchSizer != null) {
+            batchSizer.recordBatch(currentBatch.getNumEvents(), System.nanoTime());
+        }
         long seq = persistRing.next();
         PersistBatchEvent e = persistRing.get(seq);
         makePersistBatch(e, batchSequence++, currentBatch);
@@ -126,23 +152,43 @@ class PersistenceProcessorImpl implements PersistenceProcessor {
 
     }
 
+    @Override
+    public void triggerCurrentBatchFlushIfOlderThan(long ageInNs) throws Exception {
+
+        if (!currentBatch.isEmpty() && System.nanoTime() - currentBatchStartInNs >= ageInNs) {
+            triggerCurrentBatchFlush();
+        }
+
+    }
+
+    /**
+     * Must be called after adding each event to the current batch
+     */
+    private void eventAddedToBatch() throws Exception {
+
+        if (currentBatch.getNumEvents() == 1) {
+            currentBatchStartInNs = System.nanoTime();
+        }
+        if (currentBatch.isFull()
+                || (batchSizer != null && currentBatch.getNumEvents() >= batchSizer.getTargetBatchSize())) {
+            triggerCurrentBatchFlush();
+        }
+
+    }
+
     @Override
     public void addCommitToBatch(long startTimestamp, long commitTimestamp, Channel c, MonitoringContext monCtx)
             throws Exception {
 
         currentBatch.addCommit(startTimestamp, commitTimestamp, c, monCtx);
-        if (currentBatch.isFull()) {
-            triggerCurrentBatchFlush();
-        }
+        eventAddedToBatch();
 
     }
 
     @Override
     public void addCommitRetryToBatch(long startTimestamp, Channel c, MonitoringContext monCtx) throws Exception {
         currentBatch.addCommitRetry(startTimestamp, c, monCtx);
-        if (currentBatch.isFull()) {
-            triggerCurrentBatchFlush();
-        }
+        eventAddedToBatch();
     }
 
     @Override
@@ -150,19 +196,16 @@ class PersistenceProcessorImpl implements PersistenceProcessor {
             throws Exception {
 
         currentBatch.addAbort(startTimestamp, c, context);
-        if (currentBatch.isFull()) {
-            triggerCurrentBatchFlush();
-        }
+        eventAddedToBatch();
 
     }
 
     @Override
-    public void addTimestampToBatch(long startTimestamp, Channel c, MonitoringContext context) throws Exception {
+    public void addTimestampToBatch(long startTimestamp, int numTimestamps, Channel c, MonitoringContext context)
+            throws Exception {
 
-        currentBatch.addTimestamp(startTimestamp, c, context);
-        if (currentBatch.isFull()) {
-            triggerCurrentBatchFlush();
-        }
+        currentBatch.addTimestamp(startTimestamp, numTimestamps, c, context);
+        eventAddedToBatch();
 
     }
 
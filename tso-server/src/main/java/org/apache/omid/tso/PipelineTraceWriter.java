@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.omid.metrics.Counter;
+import org.apache.omid.metrics.MetricsRegistry;
+import org.apache.omid.tso.MonitoringContext.TracePoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.omid.metrics.MetricsUtils.name;
+
+/**
+ * Exports the traces of the sampled requests to a CSV file for offline analysis. Each line contains the kind of
+ * request, the System.nanoTime() when it was received and the ns elapsed from then till each trace point, which is
+ * left empty if the request didn't go through it.
+ *
+ * The pipeline threads only copy the trace to a bounded queue, which is drained by a dedicated thread. Traces that
+ * don't fit in the queue are dropped instead of slowing down the pipeline.
+ */
+class PipelineTraceWriter implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineTraceWriter.class);
+
+    static final int MAX_PENDING_TRACES = 64 * 1024;
+
+    private static final int NUM_TRACE_POINTS = TracePoint.values().length;
+    private static final long TIMESTAMP_REQUEST = 0L;
+    private static final long COMMIT_REQUEST = 1L;
+
+    private final String fileName;
+    private final Writer out;
+    private final BlockingQueue<long[]> pendingTraces = new ArrayBlockingQueue<>(MAX_PENDING_TRACES);
+    private final Counter droppedTracesCounter;
+    private final Thread writerThread;
+
+    private volatile boolean closed = false;
+
+    PipelineTraceWriter(String fileName, MetricsRegistry metrics) throws IOException {
+
+        this.fileName = fileName;
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), Charsets.UTF_8));
+        this.droppedTracesCounter = metrics.counter(name("tso", "trace", "dropped"));
+        writeHeader();
+        this.writerThread = new ThreadFactoryBuilder().setNameFormat("trace-writer-%d").setDaemon(true).build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeTraces();
+                    }
+                });
+        writerThread.start();
+        LOG.info("Exporting the traces of the sampled requests to {}", fileName);
+
+    }
+
+    /**
+     * Called from the pipeline threads. The trace times are copied, so the caller can reuse the array
+     */
+    void append(boolean isTimestampRequest, long[] traceTimes) {
+
+        long[] trace = new long[NUM_TRACE_POINTS + 1];
+        trace[0] = isTimestampRequest ? TIMESTAMP_REQUEST : COMMIT_REQUEST;
+        System.arraycopy(traceTimes, 0, trace, 1, NUM_TRACE_POINTS);
+        if (!pendingTraces.offer(trace)) {
+            droppedTracesCounter.inc();
+        }
+
+    }
+
+    private void writeHeader() throws IOException {
+
+        out.write("request");
+        for (TracePoint point : TracePoint.values()) {
+            out.write(',');
+            out.write(point.getTraceName());
+        }
+        out.write('\n');
+
+    }
+
+    private void writeTraces() {
+
+        try {
+            while (!closed || !pendingTraces.isEmpty()) {
+                long[] trace = pendingTraces.poll(100, MILLISECONDS);
+                if (trace == null) {
+                    out.flush(); // Make the traces available when the load goes down
+                    continue;
+                }
+                writeTrace(trace);
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOG.error("Can't write the pipeline traces to {}. No more traces will be exported", fileName, e);
+        }
+
+    }
+
+    private void writeTrace(long[] trace) throws IOException {
+
+        out.write(trace[0] == TIMESTAMP_REQUEST ? "timestamp" : "commit");
+        long received = MonitoringContext.NOT_MEASURED;
+        for (int i = 1; i < trace.length; i++) {
+            out.write(',');
+            long time = trace[i];
+            if (time == MonitoringContext.NOT_MEASURED) {
+                continue;
+            }
+            if (received == MonitoringContext.NOT_MEASURED) {
+                received = time;
+                out.write(Long.toString(time));
+            } else {
+                out.write(Long.toString(time - received));
+            }
+        }
+        out.write('\n');
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        closed = true;
+        try {
+            writerThread.join(SECONDS.toMillis(3));
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted whilst finishing the trace writer");
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+
+    }
+
+}
@@ -34,6 +34,41 @@ interface ReplyProcessor extends Closeable {
      */
     void manageResponsesBatch(long batchSequence, Batch batch);
 
+    /**
+     * Sends a timestamp response without waiting for any batch. Only allowed when all the timestamps assigned before
+     * startTimestamp are below the durable watermark, so the response can't overtake any reply that must precede it.
+     *
+     * @param startTimestamp
+     *            the first timestamp of the range assigned to the client
+     * @param numTimestamps
+     *            the number of consecutive timestamps, starting at startTimestamp, assigned to the client
+     * @param channel
+     *            the channel used to send the response back to the client
+     * @param monCtx
+     *            the monitoring context of the request
+     */
+    void manageTimestampResponse(long startTimestamp, int numTimestamps, Channel channel, MonitoringContext monCtx);
+
+    /**
+     * Sends an abort response without waiting for any batch. Aborts write nothing to the Commit Table and the clients
+     * match them by start timestamp, so they don't need to be ordered with the rest of the replies.
+     *
+     * @param startTimestamp
+     *            the start timestamp representing the tx identifier that is going to receive the abort response
+     * @param channel
+     *            the channel used to send the response back to the client
+     * @param monCtx
+     *            the monitoring context of the request
+     */
+    void manageAbortResponse(long startTimestamp, Channel channel, MonitoringContext monCtx);
+
+    /**
+     * Returns the durable watermark, the highest commit or start timestamp sent back from a persisted batch. As the
+     * batches are replied in order, all the commits with a smaller commit timestamp are durable in the Commit Table
+     * and all the smaller start timestamps given out through batches have been replied.
+     */
+    long getDurableWatermark();
+
     /**
      * Allows to send a commit response back to the client.
      *
@@ -61,11 +96,13 @@ interface ReplyProcessor extends Closeable {
      *
      * @param startTimestamp
      *            the start timestamp to return that will represent the tx identifier for the created transaction
+     * @param numTimestamps
+     *            the number of consecutive timestamps, starting at startTimestamp, assigned to the client
      * @param channel
      *            the channel used to send the response back to the client
      */
 
-    void sendTimestampResponse(long startTimestamp, Channel channel);
+    void sendTimestampResponse(long startTimestamp, int numTimestamps, Channel channel);
 
 }
 
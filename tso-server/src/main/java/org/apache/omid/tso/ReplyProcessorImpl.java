@@ -30,26 +30,38 @@ import com.lmax.disruptor.dsl.Disruptor;
 import org.apache.commons.pool2.ObjectPool;
 import org.apache.omid.metrics.Meter;
 import org.apache.omid.metrics.MetricsRegistry;
-import org.apache.omid.proto.TSOProto;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static com.lmax.disruptor.dsl.ProducerType.MULTI;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.omid.tso.MonitoringContext.Stage.REPLY_ABORT;
+import static org.apache.omid.tso.MonitoringContext.Stage.REPLY_COMMIT;
+import static org.apache.omid.tso.MonitoringContext.Stage.REPLY_TIMESTAMP;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.REPLY_ORDERED;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.WRITTEN;
 import static org.apache.omid.tso.ReplyProcessorImpl.ReplyBatchEvent.EVENT_FACTORY;
 
 class ReplyProcessorImpl implements EventHandler<ReplyProcessorImpl.ReplyBatchEvent>, ReplyProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(ReplyProcessorImpl.class);
 
+    private static final int MAX_POOLED_RESPONSE_FRAMES = 1024;
+
     // Disruptor-related attributes
     private final ExecutorService disruptorExec;
     private final Disruptor<ReplyBatchEvent> disruptor;
@@ -57,16 +69,37 @@ class ReplyProcessorImpl implements EventHandler<ReplyProcessorImpl.ReplyBatchEv
 
     private final ObjectPool<Batch> batchPool;
 
+    // Only accessed by the reply thread
     @VisibleForTesting
-    AtomicLong nextIDToHandle = new AtomicLong();
+    long nextIDToHandle = 0;
 
+    // Reorder buffer for the batches that arrive before the ones with lower sequences, indexed by sequence modulo its
+    // length. The batches come from the batch pool, so the number of batches waiting in the buffer is bounded by the
+    // pool size, which is the number of concurrent commit table writers
+    @VisibleForTesting
+    Batch[] reorderBuffer;
     @VisibleForTesting
-    PriorityQueue<ReplyBatchEvent> futureEvents;
+    int numBufferedBatches = 0;
+
+    // Written only by the reply thread, once all the replies of a batch have been queued
+    private volatile long durableWatermark = 0;
+
+    // Frames of the responses for each channel, sent when no more events are available in the ring. The buffers
+    // are reused once written, so encoding a response doesn't allocate anything
+    private final Map<Channel, ResponseFrames> queuedResponses = new IdentityHashMap<>();
+    private Channel[] channelsToFlush = new Channel[64];
+    private int numChannelsToFlush = 0;
+    private final BlockingQueue<ResponseFrames> framesPool = new ArrayBlockingQueue<>(MAX_POOLED_RESPONSE_FRAMES);
+
+    // Monitoring contexts of the sampled responses, published once their responses have been written
+    private MonitoringContext[] contextsToPublish = new MonitoringContext[64];
+    private int numContextsToPublish = 0;
 
     // Metrics
     private final Meter abortMeter;
     private final Meter commitMeter;
     private final Meter timestampMeter;
+    private final Meter fastTimestampMeter;
 
     @Inject
     ReplyProcessorImpl(@Named("ReplyStrategy") WaitStrategy strategy,
@@ -89,85 +122,154 @@ class ReplyProcessorImpl implements EventHandler<ReplyProcessorImpl.ReplyBatchEv
         // ------------------------------------------------------------------------------------------------------------
 
         this.batchPool = batchPool;
-        this.nextIDToHandle.set(0);
-        this.futureEvents = new PriorityQueue<>(10, new Comparator<ReplyBatchEvent>() {
-            public int compare(ReplyBatchEvent replyBatchEvent1, ReplyBatchEvent replyBatchEvent2) {
-                return Long.compare(replyBatchEvent1.getBatchSequence(), replyBatchEvent2.getBatchSequence());
-            }
-        });
+        this.reorderBuffer = new Batch[ceilingPowerOfTwo(batchPool.getNumIdle() + batchPool.getNumActive())];
 
         // Metrics config
         this.abortMeter = metrics.meter(name("tso", "aborts"));
         this.commitMeter = metrics.meter(name("tso", "commits"));
         this.timestampMeter = metrics.meter(name("tso", "timestampAllocation"));
+        this.fastTimestampMeter = metrics.meter(name("tso", "timestampAllocation", "fastPath"));
 
         LOG.info("ReplyProcessor initialized");
 
     }
 
     @VisibleForTesting
-    void handleReplyBatchEvent(ReplyBatchEvent replyBatchEvent) throws Exception {
+    void handleReplyBatch(Batch batch) throws Exception {
 
-        Batch batch = replyBatchEvent.getBatch();
+        long highestTimestampReplied = durableWatermark;
         for (int i = 0; i < batch.getNumEvents(); i++) {
             PersistEvent event = batch.get(i);
 
             switch (event.getType()) {
                 case COMMIT:
-                    sendCommitResponse(event.getStartTimestamp(), event.getCommitTimestamp(), event.getChannel());
-                    event.getMonCtx().timerStop("reply.processor.commit.latency");
+                    event.getMonCtx().trace(REPLY_ORDERED);
+                    queueCommitResponse(event.getStartTimestamp(), event.getCommitTimestamp(), event.getChannel());
+                    event.getMonCtx().timerStop(REPLY_COMMIT);
                     commitMeter.mark();
+                    highestTimestampReplied = Math.max(event.getCommitTimestamp(), highestTimestampReplied);
                     break;
                 case ABORT:
-                    sendAbortResponse(event.getStartTimestamp(), event.getChannel());
-                    event.getMonCtx().timerStop("reply.processor.abort.latency");
+                    event.getMonCtx().trace(REPLY_ORDERED);
+                    queueAbortResponse(event.getStartTimestamp(), event.getChannel());
+                    event.getMonCtx().timerStop(REPLY_ABORT);
                     abortMeter.mark();
                     break;
                 case TIMESTAMP:
-                    sendTimestampResponse(event.getStartTimestamp(), event.getChannel());
-                    event.getMonCtx().timerStop("reply.processor.timestamp.latency");
-                    timestampMeter.mark();
+                    event.getMonCtx().trace(REPLY_ORDERED);
+                    queueTimestampResponse(event.getStartTimestamp(), event.getNumTimestamps(), event.getChannel());
+                    event.getMonCtx().timerStop(REPLY_TIMESTAMP);
+                    timestampMeter.mark(event.getNumTimestamps());
+                    highestTimestampReplied = Math.max(event.getStartTimestamp() + event.getNumTimestamps() - 1,
+                                                       highestTimestampReplied);
                     break;
                 case COMMIT_RETRY:
                     throw new IllegalStateException("COMMIT_RETRY events must be filtered before this step: " + event);
                 default:
                     throw new IllegalStateException("Event not allowed in Persistent Processor Handler: " + event);
             }
-            event.getMonCtx().publish();
+            publishAfterFlush(event.getMonCtx());
         }
+        durableWatermark = highestTimestampReplied;
 
         batchPool.returnObject(batch);
 
     }
 
-    private void processWaitingEvents() throws Exception {
+    private void handleDirectReply(ReplyBatchEvent event) {
+
+        event.getMonCtx().trace(REPLY_ORDERED);
+        switch (event.getType()) {
+            case TIMESTAMP:
+                queueTimestampResponse(event.getStartTimestamp(), event.getNumTimestamps(), event.getChannel());
+                event.getMonCtx().timerStop(REPLY_TIMESTAMP);
+                timestampMeter.mark(event.getNumTimestamps());
+                fastTimestampMeter.mark(event.getNumTimestamps());
+                break;
+            case ABORT:
+                queueAbortResponse(event.getStartTimestamp(), event.getChannel());
+                event.getMonCtx().timerStop(REPLY_ABORT);
+                abortMeter.mark();
+                break;
+            default:
+                throw new IllegalStateException("Event not allowed as a direct reply: " + event.getType());
+        }
+        publishAfterFlush(event.getMonCtx());
+
+    }
+
+    private void processWaitingBatches() throws Exception {
+
+        while (numBufferedBatches > 0) {
+            int slot = (int) (nextIDToHandle & (reorderBuffer.length - 1));
+            Batch batch = reorderBuffer[slot];
+            if (batch == null) {
+                return;
+            }
+            reorderBuffer[slot] = null;
+            numBufferedBatches--;
+            handleReplyBatch(batch);
+            nextIDToHandle++;
+        }
+
+    }
+
+    private void bufferBatch(long batchSequence, Batch batch) {
 
-        while (!futureEvents.isEmpty() && futureEvents.peek().getBatchSequence() == nextIDToHandle.get()) {
-            ReplyBatchEvent e = futureEvents.poll();
-            handleReplyBatchEvent(e);
-            nextIDToHandle.incrementAndGet();
+        long distance = batchSequence - nextIDToHandle;
+        if (distance >= reorderBuffer.length) {
+            // Only if there are more batches in flight than expected. Keep the buffered ones in their new slots
+            Batch[] newBuffer = new Batch[ceilingPowerOfTwo((int) distance + 1)];
+            for (long seq = nextIDToHandle; seq < nextIDToHandle + reorderBuffer.length; seq++) {
+                newBuffer[(int) (seq & (newBuffer.length - 1))] = reorderBuffer[(int) (seq & (reorderBuffer.length - 1))];
+            }
+            LOG.warn("Reorder buffer grown from {} to {} batches", reorderBuffer.length, newBuffer.length);
+            reorderBuffer = newBuffer;
         }
+        reorderBuffer[(int) (batchSequence & (reorderBuffer.length - 1))] = batch;
+        numBufferedBatches++;
 
     }
 
+    private static int ceilingPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
     public void onEvent(ReplyBatchEvent event, long sequence, boolean endOfBatch) throws Exception {
 
+        handleEvent(event);
+        // The responses queued while there were events available are sent with a single write per channel
+        if (endOfBatch) {
+            flushQueuedResponses();
+        }
+
+    }
+
+    private void handleEvent(ReplyBatchEvent event) throws Exception {
+
+        // Fast path timestamps and aborts don't belong to any batch, so they don't take part in the reordering
+        if (event.getType() != ReplyBatchEvent.Type.BATCH) {
+            handleDirectReply(event);
+            return;
+        }
+
         // Order of event's reply need to be guaranteed in order to preserve snapshot isolation.
         // This is done in order to present a scenario where a start id of N is returned
         // while commit smaller than still does not appear in the commit table.
 
-        // If previous events were not processed yet (events contain smaller id)
-        if (event.getBatchSequence() > nextIDToHandle.get()) {
-            futureEvents.add(event);
+        // If previous events were not processed yet (events contain smaller id). Only the batch is kept, as the
+        // event is reused by the Disruptor
+        if (event.getBatchSequence() > nextIDToHandle) {
+            bufferBatch(event.getBatchSequence(), event.getBatch());
             return;
         }
 
-        handleReplyBatchEvent(event);
+        handleReplyBatch(event.getBatch());
 
-        nextIDToHandle.incrementAndGet();
+        nextIDToHandle++;
 
-        // Process events that arrived before and kept in futureEvents.
-        processWaitingEvents();
+        // Process batches that arrived before and kept in the reorder buffer
+        processWaitingBatches();
 
     }
 
@@ -181,39 +283,132 @@ class ReplyProcessorImpl implements EventHandler<ReplyProcessorImpl.ReplyBatchEv
 
     }
 
+    @Override
+    public void manageTimestampResponse(long startTimestamp, int numTimestamps, Channel c, MonitoringContext monCtx) {
+
+        monCtx.timerStart(REPLY_TIMESTAMP);
+        long seq = replyRing.next();
+        ReplyBatchEvent e = replyRing.get(seq);
+        ReplyBatchEvent.makeTimestampReply(e, startTimestamp, numTimestamps, c, monCtx);
+        replyRing.publish(seq);
+
+    }
+
+    @Override
+    public void manageAbortResponse(long startTimestamp, Channel c, MonitoringContext monCtx) {
+
+        monCtx.timerStart(REPLY_ABORT);
+        long seq = replyRing.next();
+        ReplyBatchEvent e = replyRing.get(seq);
+        ReplyBatchEvent.makeAbortReply(e, startTimestamp, c, monCtx);
+        replyRing.publish(seq);
+
+    }
+
+    @Override
+    public long getDurableWatermark() {
+        return durableWatermark;
+    }
+
     @Override
     public void sendCommitResponse(long startTimestamp, long commitTimestamp, Channel c) {
 
-        TSOProto.Response.Builder builder = TSOProto.Response.newBuilder();
-        TSOProto.CommitResponse.Builder commitBuilder = TSOProto.CommitResponse.newBuilder();
-        commitBuilder.setAborted(false)
-                .setStartTimestamp(startTimestamp)
-                .setCommitTimestamp(commitTimestamp);
-        builder.setCommitResponse(commitBuilder.build());
-        c.write(builder.build());
+        ChannelBuffer frame = ChannelBuffers.buffer(TSOResponseEncoder.MAX_FIXED_RESPONSE_FRAME_SIZE);
+        TSOResponseEncoder.writeCommitResponseFrame(frame, startTimestamp, commitTimestamp);
+        c.write(frame);
 
     }
 
     @Override
     public void sendAbortResponse(long startTimestamp, Channel c) {
 
-        TSOProto.Response.Builder builder = TSOProto.Response.newBuilder();
-        TSOProto.CommitResponse.Builder commitBuilder = TSOProto.CommitResponse.newBuilder();
-        commitBuilder.setAborted(true);
-        commitBuilder.setStartTimestamp(startTimestamp);
-        builder.setCommitResponse(commitBuilder.build());
-        c.write(builder.build());
+        ChannelBuffer frame = ChannelBuffers.buffer(TSOResponseEncoder.MAX_FIXED_RESPONSE_FRAME_SIZE);
+        TSOResponseEncoder.writeAbortResponseFrame(frame, startTimestamp);
+        c.write(frame);
 
     }
 
     @Override
-    public void sendTimestampResponse(long startTimestamp, Channel c) {
+    public void sendTimestampResponse(long startTimestamp, int numTimestamps, Channel c) {
 
-        TSOProto.Response.Builder builder = TSOProto.Response.newBuilder();
-        TSOProto.TimestampResponse.Builder respBuilder = TSOProto.TimestampResponse.newBuilder();
-        respBuilder.setStartTimestamp(startTimestamp);
-        builder.setTimestampResponse(respBuilder.build());
-        c.write(builder.build());
+        ChannelBuffer frame = ChannelBuffers.buffer(TSOResponseEncoder.MAX_FIXED_RESPONSE_FRAME_SIZE);
+        TSOResponseEncoder.writeTimestampResponseFrame(frame, startTimestamp, numTimestamps);
+        c.write(frame);
+
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Response coalescing. Only accessed by the reply thread
+    // ----------------------------------------------------------------------------------------------------------------
+
+    @VisibleForTesting
+    void queueCommitResponse(long startTimestamp, long commitTimestamp, Channel c) {
+        TSOResponseEncoder.writeCommitResponseFrame(framesFor(c), startTimestamp, commitTimestamp);
+    }
+
+    @VisibleForTesting
+    void queueAbortResponse(long startTimestamp, Channel c) {
+        TSOResponseEncoder.writeAbortResponseFrame(framesFor(c), startTimestamp);
+    }
+
+    @VisibleForTesting
+    void queueTimestampResponse(long startTimestamp, int numTimestamps, Channel c) {
+        TSOResponseEncoder.writeTimestampResponseFrame(framesFor(c), startTimestamp, numTimestamps);
+    }
+
+    private ChannelBuffer framesFor(Channel c) {
+
+        ResponseFrames frames = queuedResponses.get(c);
+        if (frames == null) {
+            frames = framesPool.poll();
+            if (frames == null) {
+                frames = new ResponseFrames(framesPool);
+            }
+            queuedResponses.put(c, frames);
+            if (numChannelsToFlush == channelsToFlush.length) {
+                channelsToFlush = Arrays.copyOf(channelsToFlush, channelsToFlush.length * 2);
+            }
+            channelsToFlush[numChannelsToFlush++] = c;
+        }
+        return frames.buffer;
+
+    }
+
+    private void publishAfterFlush(MonitoringContext monCtx) {
+
+        if (!monCtx.isSampled()) {
+            return; // Nothing to publish
+        }
+        if (numContextsToPublish == contextsToPublish.length) {
+            contextsToPublish = Arrays.copyOf(contextsToPublish, contextsToPublish.length * 2);
+        }
+        contextsToPublish[numContextsToPublish++] = monCtx;
+
+    }
+
+    /**
+     * Sends the frames queued for each channel with a single write
+     */
+    @VisibleForTesting
+    void flushQueuedResponses() {
+
+        for (int i = 0; i < numChannelsToFlush; i++) {
+            Channel c = channelsToFlush[i];
+            ResponseFrames frames = queuedResponses.get(c);
+            // The buffer goes back to the pool when the I/O thread is done with it
+            c.write(frames.buffer).addListener(frames);
+            channelsToFlush[i] = null;
+        }
+        numChannelsToFlush = 0;
+        queuedResponses.clear();
+
+        long writtenTimeInNs = System.nanoTime();
+        for (int i = 0; i < numContextsToPublish; i++) {
+            contextsToPublish[i].trace(WRITTEN, writtenTimeInNs);
+            contextsToPublish[i].publish();
+            contextsToPublish[i] = null;
+        }
+        numContextsToPublish = 0;
 
     }
 
@@ -236,14 +431,76 @@ class ReplyProcessorImpl implements EventHandler<ReplyProcessorImpl.ReplyBatchEv
 
     }
 
+    /**
+     * Buffer of response frames for a channel. It returns itself to the pool once the write that sends it completes
+     */
+    static final class ResponseFrames implements ChannelFutureListener {
+
+        private static final int INITIAL_SIZE = 256;
+        // Buffers grown beyond this size after a burst are left for the GC
+        private static final int MAX_POOLED_SIZE = 64 * 1024;
+
+        private final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(INITIAL_SIZE);
+        private final BlockingQueue<ResponseFrames> pool;
+
+        ResponseFrames(BlockingQueue<ResponseFrames> pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (buffer.capacity() <= MAX_POOLED_SIZE) {
+                buffer.clear();
+                pool.offer(this);
+            }
+        }
+
+    }
+
     final static class ReplyBatchEvent {
 
+        enum Type {
+            BATCH, TIMESTAMP, ABORT
+        }
+
+        private Type type = null;
+
         private Batch batch;
         private long batchSequence;
 
+        private long startTimestamp;
+        private int numTimestamps;
+        private Channel channel;
+        private MonitoringContext monCtx;
+
         static void makeReplyBatch(ReplyBatchEvent e, Batch batch, long batchSequence) {
+            e.type = Type.BATCH;
             e.batch = batch;
             e.batchSequence = batchSequence;
+            e.channel = null;
+            e.monCtx = null;
+        }
+
+        static void makeTimestampReply(ReplyBatchEvent e, long startTimestamp, int numTimestamps, Channel c,
+                                       MonitoringContext monCtx) {
+            e.type = Type.TIMESTAMP;
+            e.batch = null;
+            e.startTimestamp = startTimestamp;
+            e.numTimestamps = numTimestamps;
+            e.channel = c;
+            e.monCtx = monCtx;
+        }
+
+        static void makeAbortReply(ReplyBatchEvent e, long startTimestamp, Channel c, MonitoringContext monCtx) {
+            e.type = Type.ABORT;
+            e.batch = null;
+            e.startTimestamp = startTimestamp;
+            e.channel = c;
+            e.monCtx = monCtx;
+        }
+
+        Type getType() {
+            return type;
         }
 
         Batch getBatch() {
@@ -254,6 +511,22 @@ class ReplyProcessorImpl implements EventHandler<ReplyProcessorImpl.ReplyBatchEv
             return batchSequence;
         }
 
+        long getStartTimestamp() {
+            return startTimestamp;
+        }
+
+        int getNumTimestamps() {
+            return numTimestamps;
+        }
+
+        Channel getChannel() {
+            return channel;
+        }
+
+        MonitoringContext getMonCtx() {
+            return monCtx;
+        }
+
         final static EventFactory<ReplyBatchEvent> EVENT_FACTORY = new EventFactory<ReplyBatchEvent>() {
             public ReplyBatchEvent newInstance() {
                 return new ReplyBatchEvent();
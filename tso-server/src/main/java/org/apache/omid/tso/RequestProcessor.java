@@ -20,13 +20,26 @@ package org.apache.omid.tso;
 import org.jboss.netty.channel.Channel;
 
 import java.io.Closeable;
-import java.util.Collection;
 
 // NOTE: public is required explicitly in the interface definition for Guice injection
 public interface RequestProcessor extends TSOStateManager.StateObserver, Closeable {
 
-    void timestampRequest(Channel c, MonitoringContext monCtx);
+    /**
+     * Enqueues a request for numTimestamps consecutive start timestamps, which are replied to the client as a range
+     */
+    void timestampRequest(int numTimestamps, Channel c, MonitoringContext monCtx);
 
-    void commitRequest(long startTimestamp, Collection<Long> writeSet, boolean isRetry, Channel c, MonitoringContext monCtx);
+    /**
+     * Enqueues a commit request. The first numCells elements of writeSet are copied before returning, so the caller
+     * can reuse the array afterwards.
+     */
+    void commitRequest(long startTimestamp, long[] writeSet, int numCells, boolean isRetry, Channel c,
+                       MonitoringContext monCtx);
+
+    /**
+     * Enqueues a commit request decoded from the network. The cell ids are parsed from the request straight into the
+     * request ring before returning, so the request can be reused afterwards.
+     */
+    void commitRequest(TSORequestDecoder.DecodedCommitRequest request, Channel c, MonitoringContext monCtx);
 
 }
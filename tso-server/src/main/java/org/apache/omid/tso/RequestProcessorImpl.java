@@ -18,11 +18,11 @@
 package org.apache.omid.tso;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lmax.disruptor.BlockingWaitStrategy;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
 import com.lmax.disruptor.RingBuffer;
-import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
-import com.lmax.disruptor.TimeoutHandler;
 import com.lmax.disruptor.dsl.Disruptor;
 import org.apache.omid.metrics.MetricsRegistry;
 import org.apache.omid.tso.TSOStateManager.TSOState;
@@ -32,19 +32,21 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.lmax.disruptor.dsl.ProducerType.MULTI;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.omid.tso.MonitoringContext.Stage.REQUEST_COMMIT;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.REQUEST_RING;
+import static org.apache.omid.tso.MonitoringContext.Stage.REQUEST_TIMESTAMP;
 import static org.apache.omid.tso.RequestProcessorImpl.RequestEvent.EVENT_FACTORY;
 
-class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestEvent>, RequestProcessor, TimeoutHandler {
+class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestEvent>, RequestProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(RequestProcessorImpl.class);
 
@@ -54,16 +56,42 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
     private final RingBuffer<RequestEvent> requestRing;
 
     private final TimestampOracle timestampOracle;
-    private final CommitHashMap hashmap;
+    private final PartitionedCommitHashMap hashmap;
     private final MetricsRegistry metrics;
     private final PersistenceProcessor persistProc;
+    private final ReplyProcessor replyProc;
+    private final LeaseManagement leaseManager;
 
     private long lowWatermark = -1L;
 
+    // Highest commit or start timestamp whose reply waits for a batch to be persisted. When the reply processor's
+    // durable watermark reaches it, nothing assigned before is still in flight, so the timestamp requests can be
+    // replied without waiting for the current batch. Disabled when timestampFastPath is false. As those replies skip
+    // the persistence stage, where the mastership is checked, the lease is checked here before replying
+    private long lastTimestampInFlight = 0L;
+    private final boolean timestampFastPath;
+
+    // Timer that bounds the age of the batches in the persistence stage. As only request-0 thread can access the
+    // current batch, it just enqueues FLUSH requests that are handled by request-0 in arrival order
+    private final ScheduledExecutorService batchFlushTimer;
+    private final AtomicBoolean flushRequestPending = new AtomicBoolean(false);
+    private final long flushTimerPeriodInMs;
+
+    // Max number of cells of the next write set to prefetch while the current one is processed
+    private static final int MAX_CELLS_TO_PREFETCH = 8;
+    // Max number of cells to prefetch for all the write sets of a batch of requests
+    private static final int MAX_CELLS_TO_PREFETCH_PER_BATCH = 1024;
+
+    // Requests accumulated till the end of the current Disruptor batch. Null when request batching is disabled
+    private final RequestEvent[] pendingEvents;
+    private int numPendingEvents = 0;
+
     @Inject
     RequestProcessorImpl(MetricsRegistry metrics,
                          TimestampOracle timestampOracle,
                          PersistenceProcessor persistProc,
+                         ReplyProcessor replyProc,
+                         LeaseManagement leaseManager,
                          Panicker panicker,
                          TSOServerConfig config)
             throws IOException {
@@ -72,12 +100,10 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
         // Disruptor initialization
         // ------------------------------------------------------------------------------------------------------------
 
-        TimeoutBlockingWaitStrategy timeoutStrategy = new TimeoutBlockingWaitStrategy(config.getBatchPersistTimeoutInMs(), MILLISECONDS);
-
         ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("request-%d").build();
         this.disruptorExec = Executors.newSingleThreadExecutor(threadFactory);
 
-        this.disruptor = new Disruptor<>(EVENT_FACTORY, 1 << 12, disruptorExec, MULTI, timeoutStrategy);
+        this.disruptor = new Disruptor<>(EVENT_FACTORY, 1 << 12, disruptorExec, MULTI, new BlockingWaitStrategy());
         disruptor.handleExceptionsWith(new FatalExceptionHandler(panicker)); // This must be before handleEventsWith()
         disruptor.handleEventsWith(this);
         this.requestRing = disruptor.start();
@@ -88,8 +114,28 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
 
         this.metrics = metrics;
         this.persistProc = persistProc;
+        this.replyProc = replyProc;
+        this.leaseManager = leaseManager;
+        this.timestampFastPath = config.isTimestampFastPath();
         this.timestampOracle = timestampOracle;
-        this.hashmap = new CommitHashMap(config.getConflictMapSize());
+        this.hashmap = new PartitionedCommitHashMap(config.getConflictMapSize(),
+                                                    config.getNumConflictMapPartitions(),
+                                                    config.getConflictMapStorageEnum(),
+                                                    config.getConflictMapDir());
+        this.pendingEvents = config.getRequestBatchSize() > 1 ? new RequestEvent[config.getRequestBatchSize()] : null;
+
+        // The timer checks the batch twice per max batch age, flushing the batches older than half of it. This way
+        // no batch waits for more than the max age
+        this.flushTimerPeriodInMs = Math.max(1, config.getBatchPersistTimeoutInMs() / 2);
+        ThreadFactory timerThreadFactory = new ThreadFactoryBuilder().setNameFormat("batch-flush-timer-%d")
+                .setDaemon(true).build();
+        this.batchFlushTimer = Executors.newSingleThreadScheduledExecutor(timerThreadFactory);
+        batchFlushTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                requestBatchFlush();
+            }
+        }, flushTimerPeriodInMs, flushTimerPeriodInMs, MILLISECONDS);
 
         LOG.info("RequestProcessor initialized");
 
@@ -109,6 +155,56 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
     @Override
     public void onEvent(RequestEvent event, long sequence, boolean endOfBatch) throws Exception {
 
+        event.getMonCtx().trace(REQUEST_RING);
+        if (pendingEvents != null) {
+            // The Disruptor does not reuse the events of a batch till the handler returns from its last event
+            pendingEvents[numPendingEvents++] = event;
+            if (endOfBatch || numPendingEvents == pendingEvents.length) {
+                handleEventBatch();
+            }
+            return;
+        }
+
+        if (!endOfBatch) { // The next event is already available, so we can start fetching its conflict map entries
+            RequestEvent nextEvent = requestRing.get(sequence + 1);
+            if (nextEvent.getType() == RequestEvent.Type.COMMIT) {
+                hashmap.prefetch(nextEvent.getWriteSet(), nextEvent.getNumCells(), MAX_CELLS_TO_PREFETCH);
+            }
+        }
+        handleEvent(event);
+        if (endOfBatch) { // Don't leave the low watermark behind the writes in flight while waiting for more requests
+            updateLowWatermark(hashmap.drainLargestEvicted(true));
+        }
+
+    }
+
+    /**
+     * Evaluates together the requests accumulated in the current batch. First, the conflict map entries for the
+     * write sets of all the commits in the batch are brought to the CPU caches, and then the requests are processed
+     * in arrival order. This way the conflicts between the transactions of the batch are resolved in favour of the
+     * first one that arrived and the commit timestamps are assigned in the same order than without batching.
+     */
+    private void handleEventBatch() throws Exception {
+
+        int cellsToPrefetch = MAX_CELLS_TO_PREFETCH_PER_BATCH;
+        for (int i = 0; i < numPendingEvents && cellsToPrefetch > 0; i++) {
+            RequestEvent event = pendingEvents[i];
+            if (event.getType() == RequestEvent.Type.COMMIT) {
+                cellsToPrefetch -= hashmap.prefetch(event.getWriteSet(), event.getNumCells(), cellsToPrefetch);
+            }
+        }
+
+        for (int i = 0; i < numPendingEvents; i++) {
+            handleEvent(pendingEvents[i]);
+            pendingEvents[i] = null;
+        }
+        numPendingEvents = 0;
+        updateLowWatermark(hashmap.drainLargestEvicted(true));
+
+    }
+
+    private void handleEvent(RequestEvent event) throws Exception {
+
         switch (event.getType()) {
             case TIMESTAMP:
                 handleTimestamp(event);
@@ -116,79 +212,114 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
             case COMMIT:
                 handleCommit(event);
                 break;
+            case FLUSH:
+                flushRequestPending.set(false);
+                persistProc.triggerCurrentBatchFlushIfOlderThan(MILLISECONDS.toNanos(flushTimerPeriodInMs));
+                break;
             default:
                 throw new IllegalStateException("Event not allowed in Request Processor: " + event);
         }
 
     }
 
-    @Override
-    public void onTimeout(long sequence) throws Exception {
+    /**
+     * Invoked by the flush timer. Enqueues a FLUSH request unless there's already one pending to be processed
+     */
+    private void requestBatchFlush() {
 
-        // TODO We can not use this as a timeout trigger for flushing. This timeout is related to the time between
-        // TODO (cont) arrivals of requests to the disruptor. We need another mechanism to trigger timeouts
-        // TODO (cont) WARNING!!! Take care with the implementation because if there's other thread than request-0
-        // TODO (cont) thread the one that calls persistProc.triggerCurrentBatchFlush(); we'll incur in concurrency issues
-        // TODO (cont) This is because, in the current implementation, only the request-0 thread calls the public methods
-        // TODO (cont) in persistProc and it is guaranteed that access them serially.
-        persistProc.triggerCurrentBatchFlush();
+        if (!flushRequestPending.compareAndSet(false, true)) {
+            return;
+        }
+        long seq;
+        try {
+            seq = requestRing.tryNext();
+        } catch (InsufficientCapacityException e) {
+            // request-0 is busy with a full ring, so batches are being filled anyway. Retry in the next tick
+            flushRequestPending.set(false);
+            return;
+        }
+        RequestEvent e = requestRing.get(seq);
+        RequestEvent.makeFlushRequest(e);
+        requestRing.publish(seq);
 
     }
 
     @Override
-    public void timestampRequest(Channel c, MonitoringContext monCtx) {
+    public void timestampRequest(int numTimestamps, Channel c, MonitoringContext monCtx) {
 
-        monCtx.timerStart("request.processor.timestamp.latency");
+        monCtx.timerStart(REQUEST_TIMESTAMP);
         long seq = requestRing.next();
         RequestEvent e = requestRing.get(seq);
-        RequestEvent.makeTimestampRequest(e, c, monCtx);
+        RequestEvent.makeTimestampRequest(e, numTimestamps, c, monCtx);
         requestRing.publish(seq);
 
     }
 
     @Override
-    public void commitRequest(long startTimestamp, Collection<Long> writeSet, boolean isRetry, Channel c,
+    public void commitRequest(long startTimestamp, long[] writeSet, int numCells, boolean isRetry, Channel c,
                               MonitoringContext monCtx) {
 
-        monCtx.timerStart("request.processor.commit.latency");
+        monCtx.timerStart(REQUEST_COMMIT);
         long seq = requestRing.next();
         RequestEvent e = requestRing.get(seq);
-        RequestEvent.makeCommitRequest(e, startTimestamp, monCtx, writeSet, isRetry, c);
+        RequestEvent.makeCommitRequest(e, startTimestamp, monCtx, writeSet, numCells, isRetry, c);
+        requestRing.publish(seq);
+
+    }
+
+    @Override
+    public void commitRequest(TSORequestDecoder.DecodedCommitRequest request, Channel c, MonitoringContext monCtx) {
+
+        monCtx.timerStart(REQUEST_COMMIT);
+        long seq = requestRing.next();
+        RequestEvent e = requestRing.get(seq);
+        RequestEvent.makeCommitRequest(e, request, c, monCtx);
         requestRing.publish(seq);
 
     }
 
     private void handleTimestamp(RequestEvent requestEvent) throws Exception {
 
-        long timestamp = timestampOracle.next();
-        requestEvent.getMonCtx().timerStop("request.processor.timestamp.latency");
-        persistProc.addTimestampToBatch(timestamp, requestEvent.getChannel(), requestEvent.getMonCtx());
+        // The whole range is allocated at once, so all the timestamps in it are ordered w.r.t. the in-flight commits
+        // in the same way as a single timestamp would be
+        int numTimestamps = requestEvent.getNumTimestamps();
+        long timestamp = timestampOracle.next(numTimestamps);
+        requestEvent.getMonCtx().timerStop(REQUEST_TIMESTAMP);
+        if (timestampFastPath
+                && lastTimestampInFlight <= replyProc.getDurableWatermark()
+                && leaseManager.stillInLeasePeriod()) {
+            // Every commit with a smaller commit timestamp is already durable and replied. Otherwise, or when the
+            // mastership may be lost, the timestamps are replied after the batch is persisted and the lease checked
+            replyProc.manageTimestampResponse(timestamp, numTimestamps, requestEvent.getChannel(),
+                                              requestEvent.getMonCtx());
+            return;
+        }
+        lastTimestampInFlight = timestamp + numTimestamps - 1;
+        persistProc.addTimestampToBatch(timestamp, numTimestamps, requestEvent.getChannel(), requestEvent.getMonCtx());
 
     }
 
     private void handleCommit(RequestEvent event) throws Exception {
 
         long startTimestamp = event.getStartTimestamp();
-        Iterable<Long> writeSet = event.writeSet();
+        long[] writeSet = event.getWriteSet();
         boolean isCommitRetry = event.isCommitRetry();
         Channel c = event.getChannel();
 
         boolean txCanCommit;
 
-        int numCellsInWriteset = 0;
+        int numCellsInWriteset = event.getNumCells();
         // 0. check if it should abort
         if (startTimestamp <= lowWatermark) {
             txCanCommit = false;
         } else {
             // 1. check the write-write conflicts
-            txCanCommit = true;
-            for (long cellId : writeSet) {
-                long value = hashmap.getLatestWriteForCell(cellId);
-                if (value != 0 && value >= startTimestamp) {
-                    txCanCommit = false;
-                    break;
-                }
-                numCellsInWriteset++;
+            txCanCommit = !hashmap.hasConflicts(writeSet, numCellsInWriteset, startTimestamp);
+            // The writes of the previous commit may have been stored in the background by the conflict map, so the
+            // low watermark must include the timestamps evicted by them before deciding
+            updateLowWatermark(hashmap.drainLargestEvicted(true));
+            if (startTimestamp <= lowWatermark) {
+                txCanCommit = false;
             }
         }
 
@@ -198,39 +329,45 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
             long commitTimestamp = timestampOracle.next();
 
             if (numCellsInWriteset > 0) {
-                long newLowWatermark = lowWatermark;
-
-                for (long r : writeSet) {
-                    long removed = hashmap.putLatestWriteForCell(r, commitTimestamp);
-                    newLowWatermark = Math.max(removed, newLowWatermark);
-                }
-
-                if (newLowWatermark != lowWatermark) {
-                    LOG.trace("Setting new low Watermark to {}", newLowWatermark);
-                    lowWatermark = newLowWatermark;
-                    persistProc.persistLowWatermark(newLowWatermark); // Async persist
-                }
+                hashmap.putLatestWrites(writeSet, numCellsInWriteset, commitTimestamp);
+                // Large write sets are stored in the background, so their evictions are collected with the next commit
+                updateLowWatermark(hashmap.drainLargestEvicted(false));
             }
-            event.getMonCtx().timerStop("request.processor.commit.latency");
+            event.getMonCtx().timerStop(REQUEST_COMMIT);
+            lastTimestampInFlight = commitTimestamp;
             persistProc.addCommitToBatch(startTimestamp, commitTimestamp, c, event.getMonCtx());
 
         } else {
 
-            event.getMonCtx().timerStop("request.processor.commit.latency");
+            event.getMonCtx().timerStop(REQUEST_COMMIT);
             if (isCommitRetry) { // Re-check if it was already committed but the client retried due to a lag replying
                 persistProc.addCommitRetryToBatch(startTimestamp, c, event.getMonCtx());
             } else {
-                persistProc.addAbortToBatch(startTimestamp, c, event.getMonCtx());
+                // Nothing to persist, so the client can retry without waiting for others' Commit Table writes. The
+                // timestamps of the retry are ordered by the durable watermark w.r.t. the commit that caused the abort
+                replyProc.manageAbortResponse(startTimestamp, c, event.getMonCtx());
             }
 
         }
 
     }
 
+    private void updateLowWatermark(long largestEvicted) {
+
+        long newLowWatermark = Math.max(largestEvicted, lowWatermark);
+        if (newLowWatermark != lowWatermark) {
+            LOG.trace("Setting new low Watermark to {}", newLowWatermark);
+            lowWatermark = newLowWatermark;
+            persistProc.persistLowWatermark(newLowWatermark); // Async persist
+        }
+
+    }
+
     @Override
     public void close() throws IOException {
 
         LOG.info("Terminating Request Processor...");
+        batchFlushTimer.shutdownNow();
         disruptor.halt();
         disruptor.shutdown();
         LOG.info("\tRequest Processor Disruptor shutdown");
@@ -242,14 +379,15 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
             LOG.error("Interrupted whilst finishing Request Processor Disruptor executor");
             Thread.currentThread().interrupt();
         }
+        hashmap.close();
         LOG.info("Request Processor terminated");
 
     }
 
-    final static class RequestEvent implements Iterable<Long> {
+    final static class RequestEvent {
 
         enum Type {
-            TIMESTAMP, COMMIT
+            TIMESTAMP, COMMIT, FLUSH
         }
 
         private Type type = null;
@@ -258,22 +396,32 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
         private boolean isCommitRetry = false;
         private long startTimestamp = 0;
         private MonitoringContext monCtx;
-        private long numCells = 0;
+        private int numCells = 0;
+        private int numTimestamps = 1;
 
         private static final int MAX_INLINE = 40;
-        private Long writeSet[] = new Long[MAX_INLINE];
-        private Collection<Long> writeSetAsCollection = null; // for the case where there's more than MAX_INLINE
+        // Beyond this size, the write set array is not kept for reuse after a big transaction
+        private static final int MAX_RETAINED = 64 * 1024;
+        private long writeSet[] = new long[MAX_INLINE];
 
-        static void makeTimestampRequest(RequestEvent e, Channel c, MonitoringContext monCtx) {
+        static void makeTimestampRequest(RequestEvent e, int numTimestamps, Channel c, MonitoringContext monCtx) {
             e.type = Type.TIMESTAMP;
+            e.numTimestamps = numTimestamps;
             e.channel = c;
             e.monCtx = monCtx;
         }
 
+        static void makeFlushRequest(RequestEvent e) {
+            e.type = Type.FLUSH;
+            e.channel = null;
+            e.monCtx = MonitoringContext.NOT_SAMPLED; // Handled like the client requests, but nothing is measured
+        }
+
         static void makeCommitRequest(RequestEvent e,
                                       long startTimestamp,
                                       MonitoringContext monCtx,
-                                      Collection<Long> writeSet,
+                                      long[] writeSet,
+                                      int numCells,
                                       boolean isRetry,
                                       Channel c) {
             e.monCtx = monCtx;
@@ -281,19 +429,36 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
             e.channel = c;
             e.startTimestamp = startTimestamp;
             e.isCommitRetry = isRetry;
-            if (writeSet.size() > MAX_INLINE) {
-                e.numCells = writeSet.size();
-                e.writeSetAsCollection = writeSet;
-            } else {
-                e.writeSetAsCollection = null;
-                e.numCells = writeSet.size();
-                int i = 0;
-                for (Long cellId : writeSet) {
-                    e.writeSet[i] = cellId;
-                    i++;
-                }
-            }
+            System.arraycopy(writeSet, 0, e.reserveWriteSet(numCells), 0, numCells);
+            e.numCells = numCells;
+        }
 
+        static void makeCommitRequest(RequestEvent e,
+                                      TSORequestDecoder.DecodedCommitRequest request,
+                                      Channel c,
+                                      MonitoringContext monCtx) {
+            e.monCtx = monCtx;
+            e.type = Type.COMMIT;
+            e.channel = c;
+            e.startTimestamp = request.getStartTimestamp();
+            e.isCommitRetry = request.isRetry();
+            // The write set goes from the frame to the event without intermediate copies
+            request.readCellIds(e.reserveWriteSet(request.getNumCells()));
+            e.numCells = request.getNumCells();
+        }
+
+        /**
+         * Makes room in the event for a write set of numCells cells
+         *
+         * @return the array where the cell ids have to be stored
+         */
+        long[] reserveWriteSet(int numCells) {
+            if (numCells > writeSet.length) {
+                writeSet = new long[Math.max(numCells, writeSet.length * 2)];
+            } else if (numCells <= MAX_INLINE && writeSet.length > MAX_RETAINED) {
+                writeSet = new long[MAX_INLINE];
+            }
+            return writeSet;
         }
 
         MonitoringContext getMonCtx() {
@@ -312,41 +477,19 @@ class RequestProcessorImpl implements EventHandler<RequestProcessorImpl.RequestE
             return channel;
         }
 
-        @Override
-        public Iterator<Long> iterator() {
-
-            if (writeSetAsCollection != null) {
-                return writeSetAsCollection.iterator();
-            }
-
-            return new Iterator<Long>() {
-                int i = 0;
-
-                @Override
-                public boolean hasNext() {
-                    return i < numCells;
-                }
-
-                @Override
-                public Long next() {
-                    if (!hasNext()) {
-                        throw new NoSuchElementException();
-                    }
-                    return writeSet[i++];
-                }
-
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
-            };
-
+        /**
+         * @return the cell ids of the write set. Only the first getNumCells() elements are valid
+         */
+        long[] getWriteSet() {
+            return writeSet;
         }
 
-        Iterable<Long> writeSet() {
-
-            return this;
+        int getNumCells() {
+            return numCells;
+        }
 
+        int getNumTimestamps() {
+            return numTimestamps;
         }
 
         boolean isCommitRetry() {
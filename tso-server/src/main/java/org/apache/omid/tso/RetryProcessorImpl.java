@@ -18,6 +18,7 @@
 package org.apache.omid.tso;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.name.Named;
 import com.lmax.disruptor.EventFactory;
@@ -29,6 +30,7 @@ import com.lmax.disruptor.dsl.Disruptor;
 import org.apache.commons.pool2.ObjectPool;
 import org.apache.omid.committable.CommitTable;
 import org.apache.omid.committable.CommitTable.CommitTimestamp;
+import org.apache.omid.metrics.Histogram;
 import org.apache.omid.metrics.Meter;
 import org.apache.omid.metrics.MetricsRegistry;
 import org.jboss.netty.channel.Channel;
@@ -38,6 +40,10 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -46,11 +52,17 @@ import java.util.concurrent.ThreadFactory;
 import static com.codahale.metrics.MetricRegistry.name;
 import static com.lmax.disruptor.dsl.ProducerType.SINGLE;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.omid.tso.MonitoringContext.Stage.RETRY_COMMIT_RETRY;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.WRITTEN;
 import static org.apache.omid.tso.RetryProcessorImpl.RetryEvent.EVENT_FACTORY;
 
 /**
  * Manages the disambiguation of the retry requests that clients send when they did not received a response in the
  * specified timeout. It replies directly to the client with the outcome identified.
+ *
+ * The retry-0 thread accumulates the commit retries till the end of each batch of events in the ring and hands them to
+ * a pool of workers, which look all of them up in the commit table at once and send the replies. The number of
+ * batches in flight is bounded, so the retry ring fills up when the workers can't keep up with the retries.
  */
 class RetryProcessorImpl implements EventHandler<RetryProcessorImpl.RetryEvent>, RetryProcessor {
 
@@ -66,13 +78,25 @@ class RetryProcessorImpl implements EventHandler<RetryProcessorImpl.RetryEvent>,
     final CommitTable.Client commitTableClient;
     final ObjectPool<Batch> batchPool;
 
+    // Small enough for a burst of retries to be spread among the workers, large enough to amortize the look ups
+    static final int MAX_RETRIES_PER_LOOKUP = 128;
+    static final int MAX_LOOKUPS_IN_FLIGHT_PER_WORKER = 2;
+
+    private final ExecutorService workerExec;
+    private final Panicker panicker;
+    // Batches not in flight. Only the retry-0 thread takes them, so it waits here when all of them are in flight
+    private final BlockingQueue<RetryBatch> freeBatches;
+    private RetryBatch currentBatch;
+
     // Metrics
     private final Meter txAlreadyCommittedMeter;
     private final Meter invalidTxMeter;
     private final Meter noCTFoundMeter;
+    private final Histogram retriesPerLookupHistogram;
 
     @Inject
-    RetryProcessorImpl(@Named("RetryStrategy") WaitStrategy strategy,
+    RetryProcessorImpl(TSOServerConfig config,
+                       @Named("RetryStrategy") WaitStrategy strategy,
                        MetricsRegistry metrics,
                        CommitTable commitTable,
                        ReplyProcessor replyProc,
@@ -90,7 +114,6 @@ class RetryProcessorImpl implements EventHandler<RetryProcessorImpl.RetryEvent>,
         this.disruptor = new Disruptor<>(EVENT_FACTORY, 1 << 12, disruptorExec, SINGLE, strategy);
         disruptor.handleExceptionsWith(new FatalExceptionHandler(panicker)); // This must be before handleEventsWith()
         disruptor.handleEventsWith(this);
-        this.retryRing = disruptor.start();
 
         // ------------------------------------------------------------------------------------------------------------
         // Attribute initialization
@@ -99,13 +122,28 @@ class RetryProcessorImpl implements EventHandler<RetryProcessorImpl.RetryEvent>,
         this.commitTableClient = commitTable.getClient();
         this.replyProc = replyProc;
         this.batchPool = batchPool;
+        this.panicker = panicker;
+
+        int numWorkers = config.getNumRetryWorkers();
+        Preconditions.checkArgument(numWorkers > 0, "# of retry workers [%s] must be positive", numWorkers);
+        this.workerExec = Executors.newFixedThreadPool(
+                numWorkers, new ThreadFactoryBuilder().setNameFormat("retry-worker-%d").build());
+        int numBatches = numWorkers * MAX_LOOKUPS_IN_FLIGHT_PER_WORKER;
+        this.freeBatches = new ArrayBlockingQueue<>(numBatches);
+        for (int i = 0; i < numBatches; i++) {
+            freeBatches.add(new RetryBatch());
+        }
 
         // Metrics configuration
         this.txAlreadyCommittedMeter = metrics.meter(name("tso", "retries", "commits", "tx-already-committed"));
         this.invalidTxMeter = metrics.meter(name("tso", "retries", "aborts", "tx-invalid"));
         this.noCTFoundMeter = metrics.meter(name("tso", "retries", "aborts", "tx-without-commit-timestamp"));
+        this.retriesPerLookupHistogram = metrics.histogram(name("tso", "retries", "lookup", "size"));
+
+        // Started once the handler is fully initialized
+        this.retryRing = disruptor.start();
 
-        LOG.info("RetryProcessor initialized");
+        LOG.info("RetryProcessor initialized with {} workers", numWorkers);
 
     }
 
@@ -114,42 +152,46 @@ class RetryProcessorImpl implements EventHandler<RetryProcessorImpl.RetryEvent>,
 
         switch (event.getType()) {
             case COMMIT:
-                handleCommitRetry(event);
-                event.getMonCtx().timerStop("retry.processor.commit-retry.latency");
+                if (currentBatch == null) {
+                    try {
+                        currentBatch = freeBatches.take();
+                    } catch (InterruptedException e) {
+                        LOG.error("Interrupted waiting for a commit retry batch. Retry of tx {} discarded",
+                                  event.getStartTimestamp());
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                currentBatch.add(event.getStartTimestamp(), event.getChannel(), event.getMonCtx());
                 break;
             default:
                 assert (false);
                 break;
         }
-        event.getMonCtx().publish();
+        if (endOfBatch || currentBatch.numRetries == MAX_RETRIES_PER_LOOKUP) {
+            retriesPerLookupHistogram.update(currentBatch.numRetries);
+            workerExec.execute(currentBatch);
+            currentBatch = null;
+        }
 
     }
 
-    private void handleCommitRetry(RetryEvent event) {
+    private void replyCommitRetry(long startTimestamp, Optional<CommitTimestamp> commitTimestamp, Channel channel) {
 
-        long startTimestamp = event.getStartTimestamp();
-        try {
-            Optional<CommitTimestamp> commitTimestamp = commitTableClient.getCommitTimestamp(startTimestamp).get();
-            if (commitTimestamp.isPresent()) {
-                if (commitTimestamp.get().isValid()) {
-                    LOG.trace("Tx {}: Valid commit TS found in Commit Table. Sending Commit to client.", startTimestamp);
-                    replyProc.sendCommitResponse(startTimestamp, commitTimestamp.get().getValue(), event.getChannel());
-                    txAlreadyCommittedMeter.mark();
-                } else {
-                    LOG.trace("Tx {}: Invalid tx marker found. Sending Abort to client.", startTimestamp);
-                    replyProc.sendAbortResponse(startTimestamp, event.getChannel());
-                    invalidTxMeter.mark();
-                }
+        if (commitTimestamp.isPresent()) {
+            if (commitTimestamp.get().isValid()) {
+                LOG.trace("Tx {}: Valid commit TS found in Commit Table. Sending Commit to client.", startTimestamp);
+                replyProc.sendCommitResponse(startTimestamp, commitTimestamp.get().getValue(), channel);
+                txAlreadyCommittedMeter.mark();
             } else {
-                LOG.trace("Tx {}: No Commit TS found in Commit Table. Sending Abort to client.", startTimestamp);
-                replyProc.sendAbortResponse(startTimestamp, event.getChannel());
-                noCTFoundMeter.mark();
+                LOG.trace("Tx {}: Invalid tx marker found. Sending Abort to client.", startTimestamp);
+                replyProc.sendAbortResponse(startTimestamp, channel);
+                invalidTxMeter.mark();
             }
-        } catch (InterruptedException e) {
-            LOG.error("Interrupted reading from commit table");
-            Thread.currentThread().interrupt();
-        } catch (ExecutionException e) {
-            LOG.error("Error reading from commit table", e);
+        } else {
+            LOG.trace("Tx {}: No Commit TS found in Commit Table. Sending Abort to client.", startTimestamp);
+            replyProc.sendAbortResponse(startTimestamp, channel);
+            noCTFoundMeter.mark();
         }
 
     }
@@ -158,7 +200,7 @@ class RetryProcessorImpl implements EventHandler<RetryProcessorImpl.RetryEvent>,
     public void disambiguateRetryRequestHeuristically(long startTimestamp, Channel c, MonitoringContext monCtx) {
         long seq = retryRing.next();
         RetryEvent e = retryRing.get(seq);
-        monCtx.timerStart("retry.processor.commit-retry.latency");
+        monCtx.timerStart(RETRY_COMMIT_RETRY);
         RetryEvent.makeCommitRetry(e, startTimestamp, c, monCtx);
         retryRing.publish(seq);
     }
@@ -178,10 +220,67 @@ class RetryProcessorImpl implements EventHandler<RetryProcessorImpl.RetryEvent>,
             LOG.error("Interrupted whilst finishing Retry Processor Disruptor executor");
             Thread.currentThread().interrupt();
         }
+        workerExec.shutdownNow();
+        try {
+            workerExec.awaitTermination(3, SECONDS);
+            LOG.info("\tRetry Processor worker executor shutdown");
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted whilst finishing Retry Processor worker executor");
+            Thread.currentThread().interrupt();
+        }
         LOG.info("Retry Processor terminated");
 
     }
 
+    /**
+     * Commit retries disambiguated together by one of the workers with a single commit table look up
+     */
+    private class RetryBatch implements Runnable {
+
+        private final long[] startTimestamps = new long[MAX_RETRIES_PER_LOOKUP];
+        private final Channel[] channels = new Channel[MAX_RETRIES_PER_LOOKUP];
+        private final MonitoringContext[] monCtxs = new MonitoringContext[MAX_RETRIES_PER_LOOKUP];
+        private int numRetries = 0;
+
+        void add(long startTimestamp, Channel channel, MonitoringContext monCtx) {
+            startTimestamps[numRetries] = startTimestamp;
+            channels[numRetries] = channel;
+            monCtxs[numRetries] = monCtx;
+            numRetries++;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                List<Optional<CommitTimestamp>> commitTimestamps =
+                        commitTableClient.getCommitTimestamps(Arrays.copyOf(startTimestamps, numRetries)).get();
+                for (int i = 0; i < numRetries; i++) {
+                    replyCommitRetry(startTimestamps[i], commitTimestamps.get(i), channels[i]);
+                }
+            } catch (InterruptedException e) {
+                LOG.error("Interrupted reading from commit table");
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOG.error("Error reading from commit table", e);
+            } catch (Throwable t) {
+                panicker.panic("Error disambiguating commit retries", t);
+            } finally {
+                for (int i = 0; i < numRetries; i++) {
+                    monCtxs[i].timerStop(RETRY_COMMIT_RETRY);
+                    monCtxs[i].trace(WRITTEN);
+                    monCtxs[i].publish();
+                    channels[i] = null;
+                    monCtxs[i] = null;
+                }
+                numRetries = 0;
+                freeBatches.add(this);
+            }
+
+        }
+
+    }
+
     public final static class RetryEvent {
 
         enum Type {
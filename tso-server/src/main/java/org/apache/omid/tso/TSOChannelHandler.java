@@ -37,9 +37,6 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
-import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
-import org.jboss.netty.handler.codec.protobuf.ProtobufDecoder;
-import org.jboss.netty.handler.codec.protobuf.ProtobufEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,6 +56,9 @@ public class TSOChannelHandler extends SimpleChannelHandler implements Closeable
 
     private static final Logger LOG = LoggerFactory.getLogger(TSOChannelHandler.class);
 
+    // Upper bound for the range of start timestamps that can be requested in a single timestamp request
+    static final int MAX_TIMESTAMPS_PER_REQUEST = 1024;
+
     private final ChannelFactory factory;
 
     private final ServerBootstrap bootstrap;
@@ -74,12 +74,17 @@ public class TSOChannelHandler extends SimpleChannelHandler implements Closeable
 
     private MetricsRegistry metrics;
 
+    private final MonitoringContext.Factory monCtxFactory;
+
     @Inject
     public TSOChannelHandler(TSOServerConfig config, RequestProcessor requestProcessor, MetricsRegistry metrics) {
 
         this.config = config;
         this.metrics = metrics;
         this.requestProcessor = requestProcessor;
+        this.monCtxFactory = new MonitoringContext.Factory(metrics,
+                                                           config.getMonitoringSamplingRatio(),
+                                                           createTraceWriter(config, metrics));
         // Setup netty listener
         this.factory = new NioServerSocketChannelFactory(
                 Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("boss-%d").build()),
@@ -153,7 +158,15 @@ public class TSOChannelHandler extends SimpleChannelHandler implements Closeable
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
         Object msg = e.getMessage();
-        if (msg instanceof TSOProto.Request) {
+        if (msg instanceof TSORequestDecoder.DecodedCommitRequest) {
+            if (!handshakeCompleted(ctx)) {
+                LOG.error("Handshake not completed. Closing channel {}", ctx.getChannel());
+                ctx.getChannel().close();
+            }
+            requestProcessor.commitRequest((TSORequestDecoder.DecodedCommitRequest) msg,
+                                           ctx.getChannel(),
+                                           monCtxFactory.newContext());
+        } else if (msg instanceof TSOProto.Request) {
             TSOProto.Request request = (TSOProto.Request) msg;
             if (request.hasHandshakeRequest()) {
                 checkHandshake(ctx, request.getHandshakeRequest());
@@ -165,14 +178,21 @@ public class TSOChannelHandler extends SimpleChannelHandler implements Closeable
             }
 
             if (request.hasTimestampRequest()) {
-                requestProcessor.timestampRequest(ctx.getChannel(), new MonitoringContext(metrics));
+                int numTimestamps = request.getTimestampRequest().getCount();
+                numTimestamps = Math.max(1, Math.min(numTimestamps, MAX_TIMESTAMPS_PER_REQUEST));
+                requestProcessor.timestampRequest(numTimestamps, ctx.getChannel(), monCtxFactory.newContext());
             } else if (request.hasCommitRequest()) {
                 TSOProto.CommitRequest cr = request.getCommitRequest();
+                long[] writeSet = new long[cr.getCellIdCount()];
+                for (int i = 0; i < writeSet.length; i++) {
+                    writeSet[i] = cr.getCellId(i);
+                }
                 requestProcessor.commitRequest(cr.getStartTimestamp(),
-                                               cr.getCellIdList(),
+                                               writeSet,
+                                               writeSet.length,
                                                cr.getIsRetry(),
                                                ctx.getChannel(),
-                                               new MonitoringContext(metrics));
+                                               monCtxFactory.newContext());
             } else {
                 LOG.error("Invalid request {}. Closing channel {}", request, ctx.getChannel());
                 ctx.getChannel().close();
@@ -200,12 +220,26 @@ public class TSOChannelHandler extends SimpleChannelHandler implements Closeable
     public void close() throws IOException {
         closeConnection();
         factory.releaseExternalResources();
+        monCtxFactory.close();
     }
 
     // ----------------------------------------------------------------------------------------------------------------
     // Helper methods and classes
     // ----------------------------------------------------------------------------------------------------------------
 
+    private static PipelineTraceWriter createTraceWriter(TSOServerConfig config, MetricsRegistry metrics) {
+
+        if (config.getPipelineTraceFile() == null) {
+            return null;
+        }
+        try {
+            return new PipelineTraceWriter(config.getPipelineTraceFile(), metrics);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't create the pipeline trace file " + config.getPipelineTraceFile(), e);
+        }
+
+    }
+
     /**
      * Contains the required context for handshake
      */
@@ -233,7 +267,7 @@ public class TSOChannelHandler extends SimpleChannelHandler implements Closeable
         if (request.hasClientCapabilities()) {
 
             response.setClientCompatible(true)
-                    .setServerCapabilities(TSOProto.Capabilities.newBuilder().build());
+                    .setServerCapabilities(TSOProto.Capabilities.newBuilder().setTimestampRanges(true).build());
             TSOChannelContext tsoCtx = new TSOChannelContext();
             tsoCtx.setHandshakeComplete();
             ctx.setAttachment(tsoCtx);
@@ -273,9 +307,10 @@ public class TSOChannelHandler extends SimpleChannelHandler implements Closeable
             // that the packet is rejected will receive a ServiceUnavailableException.
             // 10MB is enough for 2 million cells in a transaction though.
             pipeline.addLast("lengthbaseddecoder", new LengthFieldBasedFrameDecoder(10 * 1024 * 1024, 0, 4, 0, 4));
-            pipeline.addLast("lengthprepender", new LengthFieldPrepender(4));
-            pipeline.addLast("protobufdecoder", new ProtobufDecoder(TSOProto.Request.getDefaultInstance()));
-            pipeline.addLast("protobufencoder", new ProtobufEncoder());
+            // Commit requests are decoded by hand, with the write set parsed straight into the request ring
+            pipeline.addLast("protobufdecoder", new TSORequestDecoder());
+            // Responses are framed by hand so the reply stage can coalesce several of them in a single write
+            pipeline.addLast("responseencoder", new TSOResponseEncoder());
             pipeline.addLast("handler", handler);
 
             return pipeline;
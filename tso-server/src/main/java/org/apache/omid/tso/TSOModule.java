@@ -43,7 +43,16 @@ class TSOModule extends AbstractModule {
 
         bind(TSOChannelHandler.class).in(Singleton.class);
         bind(TSOStateManager.class).to(TSOStateManagerImpl.class).in(Singleton.class);
-        bind(TimestampOracle.class).to(TimestampOracleImpl.class).in(Singleton.class);
+        switch (config.getTimestampTypeEnum()) {
+        // Timestamps derived from the wall clock. A new master can serve without reserving timestamps first
+        case HYBRID_CLOCK:
+            bind(TimestampOracle.class).to(HybridClockTimestampOracle.class).in(Singleton.class);
+            break;
+        case INCREMENTAL:
+        default:
+            bind(TimestampOracle.class).to(TimestampOracleImpl.class).in(Singleton.class);
+            break;
+        }
         bind(Panicker.class).to(SystemExitPanicker.class).in(Singleton.class);
 
         install(new BatchPoolModule(config));
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.apache.omid.proto.TSOProto;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+/**
+ * Decodes the frames received by the TSO. Commit requests are not materialized as protobuf messages: the frame is
+ * validated and scanned for the start timestamp, the retry flag and the number of cells, and the cell ids are parsed
+ * later, straight into the slot of the request ring where the commit request is enqueued. The rest of the messages
+ * are decoded as regular TSOProto.Request messages.
+ *
+ * The DecodedCommitRequest is reused for all the commit requests of the channel and refers to the bytes of the frame,
+ * so it's only valid during the messageReceived() call of the next handler in the pipeline. For the same reason, a
+ * new decoder instance must be created for each channel pipeline.
+ */
+class TSORequestDecoder extends OneToOneDecoder {
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    private static final int COMMIT_REQUEST_TAG =
+            makeTag(TSOProto.Request.COMMITREQUEST_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int START_TIMESTAMP_TAG =
+            makeTag(TSOProto.CommitRequest.STARTTIMESTAMP_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int IS_RETRY_TAG =
+            makeTag(TSOProto.CommitRequest.ISRETRY_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int CELL_ID_TAG =
+            makeTag(TSOProto.CommitRequest.CELLID_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int PACKED_CELL_ID_TAG =
+            makeTag(TSOProto.CommitRequest.CELLID_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+
+    private final DecodedCommitRequest commitRequest = new DecodedCommitRequest();
+
+    // Used only for the frames that are not backed by an array
+    private byte[] copyBuffer = new byte[0];
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+
+        if (!(msg instanceof ChannelBuffer)) {
+            return msg;
+        }
+
+        ChannelBuffer buf = (ChannelBuffer) msg;
+        final byte[] array;
+        final int offset;
+        final int length = buf.readableBytes();
+        if (buf.hasArray()) {
+            array = buf.array();
+            offset = buf.arrayOffset() + buf.readerIndex();
+        } else {
+            if (copyBuffer.length < length) {
+                copyBuffer = new byte[length];
+            }
+            array = copyBuffer;
+            buf.getBytes(buf.readerIndex(), array, 0, length);
+            offset = 0;
+        }
+
+        if (commitRequest.scan(array, offset, offset + length)) {
+            return commitRequest;
+        }
+        return TSOProto.Request.newBuilder().mergeFrom(array, offset, length).build();
+
+    }
+
+    private static int makeTag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    /**
+     * A commit request whose cell ids are read from the bytes of the frame on demand
+     */
+    static final class DecodedCommitRequest {
+
+        private long startTimestamp;
+        private boolean isRetry;
+        private int numCells;
+
+        // Bytes of the CommitRequest message inside the frame
+        private byte[] array;
+        private int messageStart;
+        private int messageEnd;
+
+        // Read cursor
+        private int pos;
+
+        /**
+         * Validates the frame and extracts everything but the cell ids
+         *
+         * @return true if the frame contained only a commit request, false if it has to be parsed as a generic Request
+         */
+        boolean scan(byte[] array, int start, int end) throws InvalidProtocolBufferException {
+
+            this.array = array;
+            this.pos = start;
+            if (pos == end || readRawVarint32(end) != COMMIT_REQUEST_TAG) {
+                return false;
+            }
+            int messageLength = readRawVarint32(end);
+            if (messageLength < 0 || messageLength > end - pos) {
+                throw truncated();
+            }
+            messageStart = pos;
+            messageEnd = pos + messageLength;
+            if (messageEnd != end) {
+                // Anything else after the commit request, even another one to be merged, takes the generic path
+                return false;
+            }
+
+            startTimestamp = 0;
+            isRetry = false;
+            numCells = 0;
+            while (pos < messageEnd) {
+                int tag = readRawVarint32(messageEnd);
+                if (tag == START_TIMESTAMP_TAG) {
+                    startTimestamp = readRawVarint64(messageEnd);
+                } else if (tag == IS_RETRY_TAG) {
+                    isRetry = readRawVarint64(messageEnd) != 0;
+                } else if (tag == CELL_ID_TAG) {
+                    readRawVarint64(messageEnd);
+                    numCells++;
+                } else if (tag == PACKED_CELL_ID_TAG) {
+                    int packedEnd = readLengthDelimitedEnd(messageEnd);
+                    while (pos < packedEnd) {
+                        readRawVarint64(packedEnd);
+                        numCells++;
+                    }
+                } else {
+                    skipField(tag, messageEnd);
+                }
+            }
+            return true;
+
+        }
+
+        long getStartTimestamp() {
+            return startTimestamp;
+        }
+
+        boolean isRetry() {
+            return isRetry;
+        }
+
+        int getNumCells() {
+            return numCells;
+        }
+
+        /**
+         * Parses the cell ids of the write set into the first getNumCells() elements of cellIds. The message was
+         * validated by scan(), so this can't fail
+         */
+        void readCellIds(long[] cellIds) {
+
+            try {
+                int numRead = 0;
+                pos = messageStart;
+                while (pos < messageEnd) {
+                    int tag = readRawVarint32(messageEnd);
+                    if (tag == CELL_ID_TAG) {
+                        cellIds[numRead++] = readRawVarint64(messageEnd);
+                    } else if (tag == PACKED_CELL_ID_TAG) {
+                        int packedEnd = readLengthDelimitedEnd(messageEnd);
+                        while (pos < packedEnd) {
+                            cellIds[numRead++] = readRawVarint64(packedEnd);
+                        }
+                    } else {
+                        skipField(tag, messageEnd);
+                    }
+                }
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Commit request changed after being validated", e);
+            }
+
+        }
+
+        private void skipField(int tag, int end) throws InvalidProtocolBufferException {
+
+            switch (tag & 0x7) {
+                case WIRETYPE_VARINT:
+                    readRawVarint64(end);
+                    break;
+                case WIRETYPE_FIXED64:
+                    skipBytes(8, end);
+                    break;
+                case WIRETYPE_LENGTH_DELIMITED:
+                    pos = readLengthDelimitedEnd(end);
+                    break;
+                case WIRETYPE_FIXED32:
+                    skipBytes(4, end);
+                    break;
+                default: // Groups are not used in the TSO protocol
+                    throw new InvalidProtocolBufferException("Unexpected wire type in commit request tag " + tag);
+            }
+
+        }
+
+        private int readLengthDelimitedEnd(int end) throws InvalidProtocolBufferException {
+            int length = readRawVarint32(end);
+            skipBytes(length, end);
+            int fieldEnd = pos;
+            pos -= length;
+            return fieldEnd;
+        }
+
+        private void skipBytes(int length, int end) throws InvalidProtocolBufferException {
+            if (length < 0 || length > end - pos) {
+                throw truncated();
+            }
+            pos += length;
+        }
+
+        private int readRawVarint32(int end) throws InvalidProtocolBufferException {
+            return (int) readRawVarint64(end);
+        }
+
+        private long readRawVarint64(int end) throws InvalidProtocolBufferException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) {
+                    throw truncated();
+                }
+                byte b = array[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new InvalidProtocolBufferException("Malformed varint in commit request");
+        }
+
+        private static InvalidProtocolBufferException truncated() {
+            return new InvalidProtocolBufferException("Commit request truncated or with a wrong field length");
+        }
+
+    }
+
+}
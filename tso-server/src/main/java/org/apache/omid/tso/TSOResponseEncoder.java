@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.protobuf.CodedOutputStream;
+import org.apache.omid.proto.TSOProto;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+
+import java.io.IOException;
+
+/**
+ * Encodes the responses sent by the TSO as length-prefixed frames, the format expected by the clients'
+ * LengthFieldBasedFrameDecoder.
+ *
+ * Besides single TSOProto.Response messages, it accepts ChannelBuffers that already contain one or more complete
+ * frames built with the write*Frame() methods. These are written as they are, allowing the reply stage to send all
+ * the responses for a channel with a single write.
+ *
+ * The commit, abort and timestamp responses have a fixed shape, so they are written by hand straight into the
+ * buffers, producing the same bytes as the protobuf generated code without creating any builder or message.
+ */
+class TSOResponseEncoder extends OneToOneEncoder {
+
+    static final int LENGTH_FIELD_SIZE = 4;
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private static final int TIMESTAMP_RESPONSE_TAG =
+            makeTag(TSOProto.Response.TIMESTAMPRESPONSE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int COMMIT_RESPONSE_TAG =
+            makeTag(TSOProto.Response.COMMITRESPONSE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int TS_START_TIMESTAMP_TAG =
+            makeTag(TSOProto.TimestampResponse.STARTTIMESTAMP_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int TS_COUNT_TAG =
+            makeTag(TSOProto.TimestampResponse.COUNT_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int ABORTED_TAG =
+            makeTag(TSOProto.CommitResponse.ABORTED_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int COMMIT_START_TIMESTAMP_TAG =
+            makeTag(TSOProto.CommitResponse.STARTTIMESTAMP_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int COMMIT_TIMESTAMP_TAG =
+            makeTag(TSOProto.CommitResponse.COMMITTIMESTAMP_FIELD_NUMBER, WIRETYPE_VARINT);
+
+    private static final int MAX_VARINT64_SIZE = 10;
+    // Largest frame written by hand: a commit response with the aborted flag and two 64 bit timestamps. All the
+    // tags and the length of the nested message fit in a single byte
+    static final int MAX_FIXED_RESPONSE_FRAME_SIZE = LENGTH_FIELD_SIZE + 2 + 2 + 2 * (1 + MAX_VARINT64_SIZE);
+
+    @Override
+    protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+
+        if (msg instanceof TSOProto.Response) {
+            TSOProto.Response response = (TSOProto.Response) msg;
+            ChannelBuffer frame = ChannelBuffers.buffer(LENGTH_FIELD_SIZE + response.getSerializedSize());
+            writeFrame(response, frame);
+            return frame;
+        }
+        // Either pre-built frames or something else to be handled downstream
+        return msg;
+
+    }
+
+    /**
+     * Appends a commit response frame to the buffer
+     */
+    static void writeCommitResponseFrame(ChannelBuffer out, long startTimestamp, long commitTimestamp) {
+
+        int messageSize = 2
+                + 1 + CodedOutputStream.computeRawVarint64Size(startTimestamp)
+                + 1 + CodedOutputStream.computeRawVarint64Size(commitTimestamp);
+        writeResponseHeader(out, COMMIT_RESPONSE_TAG, messageSize);
+        out.writeByte(ABORTED_TAG);
+        out.writeByte(0);
+        out.writeByte(COMMIT_START_TIMESTAMP_TAG);
+        writeRawVarint64(out, startTimestamp);
+        out.writeByte(COMMIT_TIMESTAMP_TAG);
+        writeRawVarint64(out, commitTimestamp);
+
+    }
+
+    /**
+     * Appends an abort response frame to the buffer
+     */
+    static void writeAbortResponseFrame(ChannelBuffer out, long startTimestamp) {
+
+        int messageSize = 2 + 1 + CodedOutputStream.computeRawVarint64Size(startTimestamp);
+        writeResponseHeader(out, COMMIT_RESPONSE_TAG, messageSize);
+        out.writeByte(ABORTED_TAG);
+        out.writeByte(1);
+        out.writeByte(COMMIT_START_TIMESTAMP_TAG);
+        writeRawVarint64(out, startTimestamp);
+
+    }
+
+    /**
+     * Appends a timestamp response frame to the buffer. The count is only written for ranges, as it defaults to 1
+     */
+    static void writeTimestampResponseFrame(ChannelBuffer out, long startTimestamp, int numTimestamps) {
+
+        int messageSize = 1 + CodedOutputStream.computeRawVarint64Size(startTimestamp);
+        if (numTimestamps > 1) {
+            messageSize += 1 + CodedOutputStream.computeRawVarint32Size(numTimestamps);
+        }
+        writeResponseHeader(out, TIMESTAMP_RESPONSE_TAG, messageSize);
+        out.writeByte(TS_START_TIMESTAMP_TAG);
+        writeRawVarint64(out, startTimestamp);
+        if (numTimestamps > 1) {
+            out.writeByte(TS_COUNT_TAG);
+            writeRawVarint64(out, numTimestamps);
+        }
+
+    }
+
+    /**
+     * Writes the frame length and the header of the only field of the Response. The nested message must be shorter
+     * than 128 bytes, so its length is encoded in a single byte
+     */
+    private static void writeResponseHeader(ChannelBuffer out, int fieldTag, int messageSize) {
+
+        out.ensureWritableBytes(LENGTH_FIELD_SIZE + 2 + messageSize);
+        out.writeInt(2 + messageSize);
+        out.writeByte(fieldTag);
+        out.writeByte(messageSize);
+
+    }
+
+    private static void writeRawVarint64(ChannelBuffer out, long value) {
+
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+
+    }
+
+    private static int makeTag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    /**
+     * Appends the response to the buffer as a length-prefixed frame. The buffer must be backed by an array
+     */
+    static void writeFrame(TSOProto.Response response, ChannelBuffer out) throws IOException {
+
+        int size = response.getSerializedSize();
+        out.ensureWritableBytes(LENGTH_FIELD_SIZE + size);
+        out.writeInt(size);
+        CodedOutputStream cos = CodedOutputStream.newInstance(out.array(), out.arrayOffset() + out.writerIndex(), size);
+        response.writeTo(cos);
+        cos.checkNoSpaceLeft();
+        out.writerIndex(out.writerIndex() + size);
+
+    }
+
+}
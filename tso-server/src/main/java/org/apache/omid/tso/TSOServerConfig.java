@@ -44,6 +44,18 @@ public class TSOServerConfig extends SecureHBaseConfig {
         LOW_CPU
     };
 
+    public static enum TIMESTAMP_TYPE {
+        INCREMENTAL,
+        HYBRID_CLOCK
+    };
+
+    public static enum CONFLICT_MAP_STORAGE {
+        HEAP,
+        HEAP_BUCKETIZED,
+        OFF_HEAP,
+        MEMORY_MAPPED
+    };
+
     // ----------------------------------------------------------------------------------------------------------------
     // Instantiation
     // ----------------------------------------------------------------------------------------------------------------
@@ -72,12 +84,34 @@ public class TSOServerConfig extends SecureHBaseConfig {
 
     private int conflictMapSize;
 
+    private int numConflictMapPartitions = 1;
+
+    private String conflictMapStorage = CONFLICT_MAP_STORAGE.HEAP.name();
+
+    private String conflictMapDir;
+
+    private int requestBatchSize = 1;
+
     private int numConcurrentCTWriters;
 
     private int batchSizePerCTWriter;
 
     private int batchPersistTimeoutInMs;
 
+    private int numFlushesInFlightPerCTWriter = 1;
+
+    private int numRetryWorkers = 2;
+
+    private boolean adaptiveBatchSize = false;
+
+    private boolean timestampFastPath = true;
+
+    private int monitoringSamplingRatio = 1;
+
+    private String pipelineTraceFile;
+
+    private String timestampType = TIMESTAMP_TYPE.INCREMENTAL.name();
+
     private String waitStrategy;
 
     private String networkIfaceName = NetworkUtils.getDefaultNetworkInterface();
@@ -98,6 +132,42 @@ public class TSOServerConfig extends SecureHBaseConfig {
         this.conflictMapSize = conflictMapSize;
     }
 
+    public int getNumConflictMapPartitions() {
+        return numConflictMapPartitions;
+    }
+
+    public void setNumConflictMapPartitions(int numConflictMapPartitions) {
+        this.numConflictMapPartitions = numConflictMapPartitions;
+    }
+
+    public String getConflictMapStorage() {
+        return conflictMapStorage;
+    }
+
+    public CONFLICT_MAP_STORAGE getConflictMapStorageEnum() {
+        return TSOServerConfig.CONFLICT_MAP_STORAGE.valueOf(conflictMapStorage);
+    }
+
+    public void setConflictMapStorage(String conflictMapStorage) {
+        this.conflictMapStorage = conflictMapStorage;
+    }
+
+    public String getConflictMapDir() {
+        return conflictMapDir;
+    }
+
+    public void setConflictMapDir(String conflictMapDir) {
+        this.conflictMapDir = conflictMapDir;
+    }
+
+    public int getRequestBatchSize() {
+        return requestBatchSize;
+    }
+
+    public void setRequestBatchSize(int requestBatchSize) {
+        this.requestBatchSize = requestBatchSize;
+    }
+
     public int getNumConcurrentCTWriters() {
         return numConcurrentCTWriters;
     }
@@ -122,6 +192,38 @@ public class TSOServerConfig extends SecureHBaseConfig {
         this.batchPersistTimeoutInMs = value;
     }
 
+    public boolean isAdaptiveBatchSize() {
+        return adaptiveBatchSize;
+    }
+
+    public void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+        this.adaptiveBatchSize = adaptiveBatchSize;
+    }
+
+    public boolean isTimestampFastPath() {
+        return timestampFastPath;
+    }
+
+    public void setTimestampFastPath(boolean timestampFastPath) {
+        this.timestampFastPath = timestampFastPath;
+    }
+
+    public int getMonitoringSamplingRatio() {
+        return monitoringSamplingRatio;
+    }
+
+    public void setMonitoringSamplingRatio(int monitoringSamplingRatio) {
+        this.monitoringSamplingRatio = monitoringSamplingRatio;
+    }
+
+    public String getPipelineTraceFile() {
+        return pipelineTraceFile;
+    }
+
+    public void setPipelineTraceFile(String pipelineTraceFile) {
+        this.pipelineTraceFile = pipelineTraceFile;
+    }
+
     public String getNetworkIfaceName() {
         return networkIfaceName;
     }
@@ -162,6 +264,34 @@ public class TSOServerConfig extends SecureHBaseConfig {
         this.metrics = metrics;
     }
 
+    public int getNumFlushesInFlightPerCTWriter() {
+        return numFlushesInFlightPerCTWriter;
+    }
+
+    public void setNumFlushesInFlightPerCTWriter(int numFlushesInFlightPerCTWriter) {
+        this.numFlushesInFlightPerCTWriter = numFlushesInFlightPerCTWriter;
+    }
+
+    public int getNumRetryWorkers() {
+        return numRetryWorkers;
+    }
+
+    public void setNumRetryWorkers(int numRetryWorkers) {
+        this.numRetryWorkers = numRetryWorkers;
+    }
+
+    public String getTimestampType() {
+        return timestampType;
+    }
+
+    public TIMESTAMP_TYPE getTimestampTypeEnum() {
+        return TSOServerConfig.TIMESTAMP_TYPE.valueOf(timestampType);
+    }
+
+    public void setTimestampType(String timestampType) {
+        this.timestampType = timestampType;
+    }
+
     public String getWaitStrategy() {
         return waitStrategy;
     }
@@ -36,6 +36,11 @@ public interface TimestampOracle {
      */
     long next();
 
+    /**
+     * Returns the first of numTimestamps consecutive timestamps. The last one of the range is returned by getLast().
+     */
+    long next(int numTimestamps);
+
     /**
      * Returns the last timestamp assigned.
      */
@@ -31,10 +31,16 @@ import java.io.IOException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.omid.metrics.MetricsUtils.name;
 
 /**
  * The Timestamp Oracle that gives monotonically increasing timestamps.
+ *
+ * The timestamps are reserved in ranges by storing the new max timestamp in the TimestampStorage from a dedicated
+ * ts-persist thread. Ranges are requested ahead of time, up to MAX_RANGES_IN_FLIGHT at once, so the thread asking
+ * for timestamps doesn't wait for the storage as long as it keeps up with the allocation rate.
  */
 @Singleton
 public class TimestampOracleImpl implements TimestampOracle {
@@ -59,20 +65,28 @@ public class TimestampOracleImpl implements TimestampOracle {
 
     }
 
+    /**
+     * Stores a new max timestamp that reserves the next range of timestamps. The tasks are executed one after the
+     * other by the ts-persist thread, so each one continues the range stored by the previous one.
+     */
     private class AllocateTimestampBatchTask implements Runnable {
-        long previousMaxTimestamp;
 
-        AllocateTimestampBatchTask(long previousMaxTimestamp) {
-            this.previousMaxTimestamp = previousMaxTimestamp;
+        private final long rangeSize;
+
+        AllocateTimestampBatchTask(long rangeSize) {
+            this.rangeSize = rangeSize;
         }
 
         @Override
         public void run() {
-            long newMaxTimestamp = previousMaxTimestamp + TIMESTAMP_BATCH;
+            long newMaxTimestamp = persistedMaxTimestamp + rangeSize;
             try {
-                storage.updateMaxTimestamp(previousMaxTimestamp, newMaxTimestamp);
+                long startTimeInNs = System.nanoTime();
+                storage.updateMaxTimestamp(persistedMaxTimestamp, newMaxTimestamp);
+                updateStorageLatency(System.nanoTime() - startTimeInNs);
+                persistedMaxTimestamp = newMaxTimestamp;
                 maxAllocatedTimestamp = newMaxTimestamp;
-                previousMaxTimestamp = newMaxTimestamp;
+                allocatedRanges++; // Only written by this thread
             } catch (Throwable e) {
                 panicker.panic("Can't store the new max timestamp", e);
             }
@@ -80,9 +94,21 @@ public class TimestampOracleImpl implements TimestampOracle {
 
     }
 
+    // Size of the first ranges reserved, when the allocation rate is still unknown
     static final long TIMESTAMP_BATCH = 10_000_000; // 10 million
+    static final long MIN_TIMESTAMP_BATCH = 1_000_000; // 1 million
+    static final long MAX_TIMESTAMP_BATCH = 100_000_000; // 100 million
+    // Min number of timestamps still available when the next range is requested
     private static final long TIMESTAMP_REMAINING_THRESHOLD = 1_000_000; // 1 million
 
+    // A range lasts for about this time at the observed allocation rate
+    private static final long TARGET_RANGE_DURATION_IN_NS = SECONDS.toNanos(1);
+    // Times the storage latency the timestamps still available have to last when the next range is requested
+    private static final long STORAGE_LATENCY_SAFETY_FACTOR = 4;
+    static final int MAX_RANGES_IN_FLIGHT = 4;
+    private static final long MIN_RATE_SAMPLE_INTERVAL_IN_NS = MILLISECONDS.toNanos(10);
+    private static final double EWMA_WEIGHT = 0.25;
+
     private long lastTimestamp;
 
     private long maxTimestamp;
@@ -90,14 +116,25 @@ public class TimestampOracleImpl implements TimestampOracle {
     private TimestampStorage storage;
     private Panicker panicker;
 
+    // Only accessed by the thread requesting timestamps
     private long nextAllocationThreshold;
+    private long maxRequestedTimestamp; // Max timestamp once all the ranges requested are stored
+    private long requestedRanges = 0;
+    private long rangeSize = TIMESTAMP_BATCH;
+    private double allocationRatePerNs = 0;
+    private long rateSampleTimeInNs;
+    private long rateSampleTimestamp;
+    private long stalls = 0;
+
+    // Only written by the ts-persist thread
+    private long persistedMaxTimestamp;
     private volatile long maxAllocatedTimestamp;
+    private volatile long allocatedRanges = 0;
+    private volatile long storageLatencyInNs = 0;
 
     private Executor executor = Executors.newSingleThreadExecutor(
             new ThreadFactoryBuilder().setNameFormat("ts-persist-%d").build());
 
-    private Runnable allocateTimestampsBatchTask;
-
     @Inject
     public TimestampOracleImpl(MetricsRegistry metrics,
                                TimestampStorage tsStorage,
@@ -112,6 +149,18 @@ public class TimestampOracleImpl implements TimestampOracle {
                 return maxTimestamp;
             }
         });
+        metrics.gauge(name("tso", "timestampOracle", "rangeSize"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return rangeSize;
+            }
+        });
+        metrics.gauge(name("tso", "timestampOracle", "stalls"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stalls;
+            }
+        });
 
     }
 
@@ -119,11 +168,12 @@ public class TimestampOracleImpl implements TimestampOracle {
     public void initialize() throws IOException {
 
         this.lastTimestamp = this.maxTimestamp = storage.getMaxTimestamp();
+        this.maxRequestedTimestamp = this.persistedMaxTimestamp = this.maxAllocatedTimestamp = lastTimestamp;
+        this.rateSampleTimeInNs = System.nanoTime();
+        this.rateSampleTimestamp = lastTimestamp;
 
-        this.allocateTimestampsBatchTask = new AllocateTimestampBatchTask(lastTimestamp);
-
-        // Trigger first allocation of timestamps
-        executor.execute(allocateTimestampsBatchTask);
+        // Trigger first allocations of timestamps
+        reserveTimestamps();
 
         LOG.info("Initializing timestamp oracle with timestamp {}", this.lastTimestamp);
     }
@@ -131,28 +181,105 @@ public class TimestampOracleImpl implements TimestampOracle {
     /**
      * Returns the next timestamp if available. Otherwise spins till the ts-persist thread allocates a new timestamp.
      */
-    @SuppressWarnings("StatementWithEmptyBody")
     @Override
     public long next() {
-        lastTimestamp++;
+        return next(1);
+    }
+
+    /**
+     * Returns the first timestamp of a range of numTimestamps consecutive timestamps. As the range must be available
+     * as a whole, it spins till the ts-persist thread allocates new timestamps if the range exceeds maxTimestamp.
+     * That only happens if the storage can't keep up with the reservations requested ahead of time.
+     */
+    @SuppressWarnings("StatementWithEmptyBody")
+    @Override
+    public long next(int numTimestamps) {
+        assert (numTimestamps > 0 && numTimestamps < TIMESTAMP_REMAINING_THRESHOLD);
+        long firstTimestamp = lastTimestamp + 1;
+        lastTimestamp += numTimestamps;
 
-        if (lastTimestamp == nextAllocationThreshold) {
-            executor.execute(allocateTimestampsBatchTask);
+        if (lastTimestamp >= nextAllocationThreshold) {
+            reserveTimestamps();
         }
 
         if (lastTimestamp >= maxTimestamp) {
-            assert (maxTimestamp <= maxAllocatedTimestamp);
-            while (maxAllocatedTimestamp == maxTimestamp) {
-                // spin
-            }
-            assert (maxAllocatedTimestamp > maxTimestamp);
             maxTimestamp = maxAllocatedTimestamp;
-            nextAllocationThreshold = maxTimestamp - TIMESTAMP_REMAINING_THRESHOLD;
-            assert (nextAllocationThreshold > lastTimestamp && nextAllocationThreshold < maxTimestamp);
+            if (lastTimestamp >= maxTimestamp) {
+                stalls++;
+                while (lastTimestamp >= maxAllocatedTimestamp) {
+                    // spin
+                }
+                maxTimestamp = maxAllocatedTimestamp;
+            }
             assert (lastTimestamp < maxTimestamp);
         }
 
-        return lastTimestamp;
+        return firstTimestamp;
+    }
+
+    /**
+     * Requests new ranges to the ts-persist thread till the reserved timestamps are expected to last longer than
+     * storing a new range takes, with one spare range. The size of the ranges and the number of timestamps still
+     * available when requesting them follow the allocation rate and the latency of the storage.
+     */
+    private void reserveTimestamps() {
+
+        long now = System.nanoTime();
+        updateAllocationRate(now);
+        maxTimestamp = Math.max(maxTimestamp, maxAllocatedTimestamp);
+
+        long threshold = Math.max(TIMESTAMP_REMAINING_THRESHOLD,
+                                  (long) (allocationRatePerNs * storageLatencyInNs * STORAGE_LATENCY_SAFETY_FACTOR));
+        if (allocationRatePerNs > 0) {
+            rangeSize = Math.max(MIN_TIMESTAMP_BATCH,
+                                 Math.min((long) (allocationRatePerNs * TARGET_RANGE_DURATION_IN_NS),
+                                          MAX_TIMESTAMP_BATCH));
+        }
+        while (maxRequestedTimestamp - lastTimestamp <= threshold + rangeSize
+                && requestedRanges - allocatedRanges < MAX_RANGES_IN_FLIGHT) {
+            executor.execute(new AllocateTimestampBatchTask(rangeSize));
+            maxRequestedTimestamp += rangeSize;
+            requestedRanges++;
+        }
+
+        // Check again when the spare range starts to be used or, if too many ranges were in flight, soon
+        nextAllocationThreshold = Math.max(maxRequestedTimestamp - rangeSize - threshold,
+                                           lastTimestamp + TIMESTAMP_REMAINING_THRESHOLD / MAX_RANGES_IN_FLIGHT);
+
+    }
+
+    private void updateAllocationRate(long now) {
+
+        long elapsedInNs = now - rateSampleTimeInNs;
+        if (elapsedInNs < MIN_RATE_SAMPLE_INTERVAL_IN_NS) {
+            return;
+        }
+        double sampledRatePerNs = (double) (lastTimestamp - rateSampleTimestamp) / elapsedInNs;
+        allocationRatePerNs = (allocationRatePerNs == 0)
+                ? sampledRatePerNs
+                : EWMA_WEIGHT * sampledRatePerNs + (1 - EWMA_WEIGHT) * allocationRatePerNs;
+        rateSampleTimeInNs = now;
+        rateSampleTimestamp = lastTimestamp;
+
+    }
+
+    private void updateStorageLatency(long latencyInNs) {
+
+        long previousLatencyInNs = storageLatencyInNs;
+        storageLatencyInNs = (previousLatencyInNs == 0)
+                ? latencyInNs
+                : (long) (EWMA_WEIGHT * latencyInNs + (1 - EWMA_WEIGHT) * previousLatencyInNs);
+
+    }
+
+    @VisibleForTesting
+    long getRangeSize() {
+        return rangeSize;
+    }
+
+    @VisibleForTesting
+    long getMaxRequestedTimestamp() {
+        return maxRequestedTimestamp;
     }
 
     @Override
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the conflict map layouts. Each invocation emulates the conflict checking of a write set:
+ * first all the cells are probed and then the new commit timestamp is stored for them.
+ *
+ * Run it from the test classpath with: java org.apache.omid.tso.LongCacheBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-XX:MaxDirectMemorySize=4g"})
+public class LongCacheBenchmark {
+
+    private static final int NUM_KEYS = 1 << 20; // Must be a power of two
+    private static final int WRITE_SET_SIZE = 16;
+
+    @Param({"1000000", "10000000", "100000000"})
+    int size;
+
+    @Param({"HEAP", "HEAP_BUCKETIZED", "OFF_HEAP"})
+    String storage;
+
+    private Cache cache;
+    private long[] keys;
+    private int next;
+    private long timestamp;
+
+    @Setup
+    public void setup() {
+        switch (TSOServerConfig.CONFLICT_MAP_STORAGE.valueOf(storage)) {
+            case HEAP_BUCKETIZED:
+                cache = new BucketizedLongCache(size);
+                break;
+            case OFF_HEAP:
+                cache = new OffHeapLongCache(size, 32);
+                break;
+            case HEAP:
+            default:
+                cache = new LongCache(size, 32);
+                break;
+        }
+        Random random = new Random(42);
+        keys = new long[NUM_KEYS];
+        for (int i = 0; i < NUM_KEYS; i++) {
+            keys[i] = random.nextLong();
+        }
+        // Fill the cache so the benchmark measures the steady state with evictions
+        for (long i = 0; i < size; i++) {
+            cache.set(random.nextLong(), ++timestamp);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITE_SET_SIZE)
+    public long checkAndUpdateWriteSet() {
+        int first = next;
+        next = (next + WRITE_SET_SIZE) & (NUM_KEYS - 1);
+        long startTimestamp = timestamp - size;
+        long conflicts = 0;
+        for (int i = 0; i < WRITE_SET_SIZE; i++) {
+            if (cache.get(keys[first + i]) >= startTimestamp) {
+                conflicts++;
+            }
+        }
+        long commitTimestamp = ++timestamp;
+        long largestEvicted = 0;
+        for (int i = 0; i < WRITE_SET_SIZE; i++) {
+            largestEvicted = Math.max(cache.set(keys[first + i], commitTimestamp), largestEvicted);
+        }
+        return conflicts + largestEvicted;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITE_SET_SIZE)
+    public long checkAndUpdateWriteSetWithPrefetch() {
+        int first = next;
+        next = (next + WRITE_SET_SIZE) & (NUM_KEYS - 1);
+        for (int i = 0; i < WRITE_SET_SIZE; i++) {
+            cache.prefetch(keys[next + i]);
+        }
+        long startTimestamp = timestamp - size;
+        long conflicts = 0;
+        for (int i = 0; i < WRITE_SET_SIZE; i++) {
+            if (cache.get(keys[first + i]) >= startTimestamp) {
+                conflicts++;
+            }
+        }
+        long commitTimestamp = ++timestamp;
+        long largestEvicted = 0;
+        for (int i = 0; i < WRITE_SET_SIZE; i++) {
+            largestEvicted = Math.max(cache.set(keys[first + i], commitTimestamp), largestEvicted);
+        }
+        return conflicts + largestEvicted;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(LongCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH measurement of the commits per second that the request-0 thread can sequence through the conflict map as the
+ * number of partitions grows. Each invocation emulates a commit as the RequestProcessor does: the write set is
+ * checked, the evictions of the previous commit are collected and the new commit timestamp is stored.
+ *
+ * Small write sets are checked inline, so they should not lose throughput with the partitions, whilst large ones
+ * should gain it as their cells are processed in parallel by the owners.
+ *
+ * Run it from the test classpath with: java org.apache.omid.tso.PartitionedCommitHashMapBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class PartitionedCommitHashMapBenchmark {
+
+    private static final int CONFLICT_MAP_SIZE = 10_000_000;
+    private static final int NUM_KEYS = 1 << 22; // Must be a power of two
+
+    @Param({"1", "2", "4", "8"})
+    int partitions;
+
+    @Param({"4", "64", "1024"})
+    int writeSetSize;
+
+    private PartitionedCommitHashMap map;
+    private long[] keys;
+    private long[] writeSet;
+    private int next;
+    private long timestamp;
+
+    @Setup
+    public void setup() throws Exception {
+        map = new PartitionedCommitHashMap(CONFLICT_MAP_SIZE, partitions);
+        Random random = new Random(42);
+        keys = new long[NUM_KEYS];
+        for (int i = 0; i < NUM_KEYS; i++) {
+            keys[i] = random.nextLong();
+        }
+        writeSet = new long[writeSetSize];
+        // Fill the map so the benchmark measures the steady state with evictions
+        long[] fillWriteSet = new long[1024];
+        for (long i = 0; i < CONFLICT_MAP_SIZE; i += fillWriteSet.length) {
+            for (int j = 0; j < fillWriteSet.length; j++) {
+                fillWriteSet[j] = random.nextLong();
+            }
+            map.putLatestWrites(fillWriteSet, fillWriteSet.length, ++timestamp);
+        }
+        map.drainLargestEvicted(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        map.close();
+    }
+
+    @Benchmark
+    public long commit() throws Exception {
+        System.arraycopy(keys, next, writeSet, 0, writeSetSize);
+        next = (next + writeSetSize) & (NUM_KEYS - 1);
+        if (next + writeSetSize > NUM_KEYS) {
+            next = 0;
+        }
+        long startTimestamp = timestamp - CONFLICT_MAP_SIZE;
+        boolean conflictFound = map.hasConflicts(writeSet, writeSetSize, startTimestamp);
+        long largestEvicted = map.drainLargestEvicted(true);
+        map.putLatestWrites(writeSet, writeSetSize, ++timestamp);
+        return conflictFound ? -largestEvicted : largestEvicted;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(PartitionedCommitHashMapBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -39,7 +39,7 @@ public class PausableTimestampOracle extends TimestampOracleImpl {
     }
 
     @Override
-    public long next() {
+    public long next(int numTimestamps) {
         while (tsoPaused) {
             synchronized (this) {
                 try {
@@ -50,7 +50,7 @@ public class PausableTimestampOracle extends TimestampOracleImpl {
                 }
             }
         }
-        return super.next();
+        return super.next(numTimestamps);
     }
 
     public synchronized void pause() {
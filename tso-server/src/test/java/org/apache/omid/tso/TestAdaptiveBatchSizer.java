@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import org.testng.annotations.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestAdaptiveBatchSizer {
+
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int NUM_WRITERS = 2;
+
+    @Test(timeOut = 10_000)
+    public void testBatchesAreMaxSizedTillThereIsEnoughInfo() throws Exception {
+
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(MAX_BATCH_SIZE, NUM_WRITERS);
+        assertEquals(sizer.getTargetBatchSize(), MAX_BATCH_SIZE);
+        // Arrival rate samples without flush latencies don't change the size
+        sizer.recordBatch(1, System.nanoTime() + MILLISECONDS.toNanos(100));
+        assertEquals(sizer.getTargetBatchSize(), MAX_BATCH_SIZE);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testBatchSizeFollowsTheLoad() throws Exception {
+
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(MAX_BATCH_SIZE, NUM_WRITERS);
+        long flushLatencyInNs = MILLISECONDS.toNanos(1);
+        long now = System.nanoTime();
+
+        // Low load: 1 event every 10 ms, so batches should be flushed right away
+        for (int i = 0; i < 50; i++) {
+            sizer.recordFlushLatency(flushLatencyInNs);
+            now += MILLISECONDS.toNanos(10);
+            sizer.recordBatch(1, now);
+        }
+        assertEquals(sizer.getTargetBatchSize(), 1);
+
+        // High load: 100 events per ms, so batches have to grow to keep up with the writers
+        for (int i = 0; i < 50; i++) {
+            sizer.recordFlushLatency(flushLatencyInNs);
+            now += MILLISECONDS.toNanos(10);
+            sizer.recordBatch(1000, now);
+        }
+        int highLoadBatchSize = sizer.getTargetBatchSize();
+        assertTrue(highLoadBatchSize > 50 && highLoadBatchSize < MAX_BATCH_SIZE, "Wrong size " + highLoadBatchSize);
+
+        // Slower flushes require bigger batches, but never beyond the max
+        for (int i = 0; i < 50; i++) {
+            sizer.recordFlushLatency(MILLISECONDS.toNanos(100));
+            now += MILLISECONDS.toNanos(10);
+            sizer.recordBatch(1000, now);
+        }
+        assertEquals(sizer.getTargetBatchSize(), MAX_BATCH_SIZE);
+
+    }
+
+}
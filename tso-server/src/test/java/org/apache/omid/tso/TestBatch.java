@@ -78,7 +78,7 @@ public class TestBatch {
         // Test when filling the batch with different types of events, that becomes full
         for (int i = 0; i < BATCH_SIZE; i++) {
             if (i % 4 == 0) {
-                batch.addTimestamp(ANY_ST, channel, monCtx);
+                batch.addTimestamp(ANY_ST, 1, channel, monCtx);
             } else if (i % 4 == 1) {
                 batch.addCommit(ANY_ST, ANY_CT, channel, monCtx);
             } else if (i % 4 == 2) {
@@ -145,7 +145,7 @@ public class TestBatch {
         assertEquals(pooledBatch.getObject(), batch);
 
         // Put some elements in the batch...
-        batch.addTimestamp(ANY_ST, channel, monCtx);
+        batch.addTimestamp(ANY_ST, 1, channel, monCtx);
         batch.addCommit(ANY_ST, ANY_CT, channel, monCtx);
         batch.addCommitRetry(ANY_ST, channel, monCtx);
         batch.addAbort(ANY_ST, channel, monCtx);
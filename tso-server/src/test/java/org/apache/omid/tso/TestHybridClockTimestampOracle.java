@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.omid.metrics.MetricsRegistry;
+import org.apache.omid.metrics.NullMetricsProvider;
+import org.apache.omid.timestamp.storage.TimestampStorage;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.omid.tso.HybridClockTimestampOracle.BOUND_INTERVAL_IN_MS;
+import static org.apache.omid.tso.HybridClockTimestampOracle.WINDOW_AHEAD_IN_MS;
+import static org.apache.omid.tso.HybridClockTimestampOracle.toTimestamp;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestHybridClockTimestampOracle {
+
+    private static final long NOW_IN_MS = 1_500_000_000_000L;
+
+    private final MetricsRegistry metrics = new NullMetricsProvider();
+    private final AtomicLong clock = new AtomicLong();
+
+    @BeforeMethod
+    public void resetClock() {
+        clock.set(NOW_IN_MS);
+    }
+
+    @Test(timeOut = 10_000)
+    public void testTimestampsFollowTheClock() throws Exception {
+
+        BlockingTimestampStorage storage = new BlockingTimestampStorage();
+        storage.allowUpdates.countDown();
+        HybridClockTimestampOracle oracle = newOracle(storage);
+        oracle.initialize();
+
+        long first = oracle.next();
+        assertEquals(first, toTimestamp(NOW_IN_MS));
+        // Timestamps given in the same ms are ordered by the logical counter
+        assertEquals(oracle.next(10), first + 1);
+        assertEquals(oracle.getLast(), first + 10);
+        assertEquals(oracle.next(), first + 11);
+
+        // The next ms starts a new sequence of logical timestamps, at an offset that spreads the lowest bits
+        clock.incrementAndGet();
+        assertEquals(oracle.next(), toTimestamp(NOW_IN_MS + 1) + 1);
+
+        // Only a coarse bound ahead of the clock is stored
+        storage.updated.await();
+        assertTrue(storage.getMaxTimestamp() >= toTimestamp(NOW_IN_MS + BOUND_INTERVAL_IN_MS));
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testNewMasterNeverGivesTimestampsBelowTheStoredBound() throws Exception {
+
+        // The previous master stored its bound one second ago, so it may have given timestamps up to the bound
+        TimestampOracleImpl.InMemoryTimestampStorage storage = new TimestampOracleImpl.InMemoryTimestampStorage();
+        long previousMaxTimestamp = toTimestamp(NOW_IN_MS - 1000 + BOUND_INTERVAL_IN_MS);
+        storage.maxTimestamp = previousMaxTimestamp;
+
+        HybridClockTimestampOracle oracle = newOracle(storage);
+        oracle.initialize();
+        long first = oracle.next();
+        assertTrue(first > previousMaxTimestamp);
+        // Its own bound is stored before serving
+        assertTrue(storage.getMaxTimestamp() > first);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testLowestBitsOfTheTimestampsVaryUnderLowLoad() throws Exception {
+
+        HybridClockTimestampOracle oracle = newOracle(new TimestampOracleImpl.InMemoryTimestampStorage());
+        oracle.initialize();
+
+        // A single timestamp per ms still spreads the commit table rows among all the buckets
+        Set<Long> buckets = new HashSet<>();
+        for (int i = 0; i < 16; i++) {
+            clock.incrementAndGet();
+            buckets.add(oracle.next() & 0x0F);
+        }
+        assertEquals(buckets.size(), 16);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testNewMasterWithAClockBehindStartsFromTheStoredBound() throws Exception {
+
+        TimestampOracleImpl.InMemoryTimestampStorage storage = new TimestampOracleImpl.InMemoryTimestampStorage();
+        long previousMaxTimestamp = toTimestamp(NOW_IN_MS + 2 * BOUND_INTERVAL_IN_MS);
+        storage.maxTimestamp = previousMaxTimestamp;
+
+        HybridClockTimestampOracle oracle = newOracle(storage);
+        oracle.initialize();
+        // Nothing given by the previous master can be given again
+        assertEquals(oracle.getLast(), previousMaxTimestamp);
+        // Its own bound only leaves a short window above the previous one, so the drift doesn't pile up
+        assertEquals(storage.getMaxTimestamp(), previousMaxTimestamp + toTimestamp(WINDOW_AHEAD_IN_MS));
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testNewMasterWhoseClockPassedTheStoredBoundServesBeforeStoringItsOwn() throws Exception {
+
+        BlockingTimestampStorage storage = new BlockingTimestampStorage();
+        long previousMaxTimestamp = toTimestamp(NOW_IN_MS - 1000);
+        storage.maxTimestamp = previousMaxTimestamp;
+
+        HybridClockTimestampOracle oracle = newOracle(storage);
+        oracle.initialize();
+        // The timestamps within the window ahead of the clock are given while the bound is still being stored
+        assertEquals(oracle.next(), toTimestamp(NOW_IN_MS));
+        clock.addAndGet(WINDOW_AHEAD_IN_MS / 2);
+        assertEquals(oracle.next(), toTimestamp(NOW_IN_MS + WINDOW_AHEAD_IN_MS / 2) + 4);
+        assertEquals(storage.getMaxTimestamp(), previousMaxTimestamp);
+
+        // Once the bound is stored, the timestamps beyond the window are given as well
+        storage.allowUpdates.countDown();
+        clock.addAndGet(WINDOW_AHEAD_IN_MS);
+        assertEquals(oracle.next(), toTimestamp(NOW_IN_MS + 3 * WINDOW_AHEAD_IN_MS / 2) + 12);
+        assertTrue(storage.getMaxTimestamp() >= toTimestamp(NOW_IN_MS + BOUND_INTERVAL_IN_MS));
+
+    }
+
+    /**
+     * Keeps the updates of the bound waiting till they are allowed
+     */
+    private static class BlockingTimestampStorage extends TimestampOracleImpl.InMemoryTimestampStorage {
+
+        final CountDownLatch allowUpdates = new CountDownLatch(1);
+        final CountDownLatch updated = new CountDownLatch(1);
+
+        @Override
+        public void updateMaxTimestamp(long previousMaxTimestamp, long nextMaxTimestamp) {
+            Uninterruptibles.awaitUninterruptibly(allowUpdates);
+            super.updateMaxTimestamp(previousMaxTimestamp, nextMaxTimestamp);
+            updated.countDown();
+        }
+
+    }
+
+    private HybridClockTimestampOracle newOracle(TimestampStorage storage) throws IOException {
+        return new HybridClockTimestampOracle(metrics, storage, new MockPanicker()) {
+            @Override
+            long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+    }
+
+}
@@ -17,10 +17,12 @@
  */
 package org.apache.omid.tso;
 
+import com.google.common.io.Files;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
@@ -108,4 +110,74 @@ public class TestLongCache {
         assertTrue(avgGap > entries * 0.6, "avgGap should be greater than entries * 0.6");
 
     }
+
+    @Test(timeOut = 10_000)
+    public void testOffHeapCachesBehaveAsHeapCache() throws Exception {
+
+        final int CACHE_SIZE = 1000;
+        final int CACHE_ASSOCIATIVITY = 16;
+        File mappedFileDir = Files.createTempDir();
+        Cache[] caches = new Cache[] {
+                new LongCache(CACHE_SIZE, CACHE_ASSOCIATIVITY),
+                new OffHeapLongCache(CACHE_SIZE, CACHE_ASSOCIATIVITY),
+                new OffHeapLongCache(CACHE_SIZE, CACHE_ASSOCIATIVITY, mappedFileDir)
+        };
+
+        long seed = random.nextLong();
+        LOG.info("Random seed: {}", seed);
+        Random keys = new Random(seed);
+        for (int i = 1; i < CACHE_SIZE * 10; i++) {
+            long key = keys.nextInt(CACHE_SIZE * 4);
+            long evicted = caches[0].set(key, i);
+            for (int c = 1; c < caches.length; c++) {
+                assertEquals(caches[c].set(key, i), evicted);
+            }
+        }
+        for (long key = 0; key < CACHE_SIZE * 4; key++) {
+            long value = caches[0].get(key);
+            for (int c = 1; c < caches.length; c++) {
+                assertEquals(caches[c].get(key), value);
+            }
+        }
+        assertEquals(mappedFileDir.list().length, 0, "The backing file should have been unlinked");
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testBucketizedCacheEvictsTheOldestEntryOfTheBucket() {
+
+        BucketizedLongCache cache = new BucketizedLongCache(1000);
+        assertEquals(cache.capacity(), 1024);
+
+        for (long key = 1; key <= 1000; key++) {
+            cache.prefetch(key);
+            cache.set(key, TEST_VALUE + key);
+        }
+        // Keys that were not evicted keep their last value
+        int found = 0;
+        for (long key = 1; key <= 1000; key++) {
+            long value = cache.get(key);
+            if (value != 0) {
+                assertEquals(value, TEST_VALUE + key);
+                found++;
+            }
+        }
+        assertTrue(found > 700, "Too many entries evicted: " + (1000 - found));
+
+        // Overwriting an existing key does not evict anything
+        long existingKey = 1000;
+        assertEquals(cache.set(existingKey, TEST_VALUE * 10), 0L);
+        assertEquals(cache.get(existingKey), TEST_VALUE * 10);
+
+        // Once full, the entries are evicted and the evicted values are always the smallest of their bucket
+        long largestEvicted = 0;
+        for (long key = 1001; key <= 10_000; key++) {
+            long evicted = cache.set(key, TEST_VALUE * 10 + key);
+            assertTrue(evicted < TEST_VALUE * 10 + key);
+            largestEvicted = Math.max(evicted, largestEvicted);
+        }
+        assertTrue(largestEvicted > 0);
+
+    }
+
 }
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import org.apache.omid.committable.CommitTable;
+import org.apache.omid.committable.CommitTable.CommitTimestamp;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.apache.omid.committable.CommitTable.INVALID_TRANSACTION_MARKER;
+import static org.apache.omid.tso.MappedFileCommitTable.RECORD_SIZE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestMappedFileCommitTable {
+
+    private static final int SEGMENT_SIZE = 100 * RECORD_SIZE;
+
+    private File logDir;
+
+    @BeforeMethod
+    public void createLogDir() {
+        logDir = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void removeLogDir() throws IOException {
+        File[] files = logDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        logDir.delete();
+    }
+
+    @Test(timeOut = 10_000)
+    public void testBasicBehaviour() throws Exception {
+
+        MappedFileCommitTable commitTable = new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+        try {
+            CommitTable.Writer writer = commitTable.getWriter();
+            CommitTable.Client client = commitTable.getClient();
+
+            assertFalse(client.getCommitTimestamp(1L).get().isPresent());
+            assertEquals(client.readLowWatermark().get(), Long.valueOf(0L));
+
+            writer.addCommittedTransaction(1L, 2L);
+            writer.addCommittedTransaction(3L, 4L);
+            writer.updateLowWatermark(1L);
+            // Nothing is visible before flushing
+            assertFalse(client.getCommitTimestamp(1L).get().isPresent());
+            writer.flush();
+            assertCommitted(client, 1L, 2L);
+            assertCommitted(client, 3L, 4L);
+            assertEquals(client.readLowWatermark().get(), Long.valueOf(1L));
+
+            // Committed transactions can't be invalidated, but the rest can
+            assertFalse(client.tryInvalidateTransaction(1L).get());
+            assertTrue(client.tryInvalidateTransaction(5L).get());
+            assertTrue(client.tryInvalidateTransaction(5L).get());
+            assertInvalidated(client, 5L);
+
+            // The invalidation wins over a later commit
+            writer.addCommittedTransaction(5L, 6L);
+            writer.flushAsync().get();
+            assertInvalidated(client, 5L);
+
+            client.completeTransaction(1L).get();
+            assertFalse(client.getCommitTimestamp(1L).get().isPresent());
+        } finally {
+            commitTable.close();
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testInvalidationsAreSyncedBeforeBeingAcknowledged() throws Exception {
+
+        MappedFileCommitTable commitTable = new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+        try {
+            CommitTable.Client client = commitTable.getClient();
+            // Nothing is pending to be synced before each invalidation
+            for (long startTimestamp = 1L; startTimestamp <= 10L; startTimestamp++) {
+                assertEquals(commitTable.getSyncedPosition(), commitTable.getAppendedPosition());
+                long positionBefore = commitTable.getAppendedPosition();
+                assertTrue(client.tryInvalidateTransaction(startTimestamp).get());
+                assertEquals(commitTable.getAppendedPosition(), positionBefore + RECORD_SIZE);
+                assertEquals(commitTable.getSyncedPosition(), commitTable.getAppendedPosition());
+            }
+        } finally {
+            commitTable.close();
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testStateIsRecoveredAfterReopening() throws Exception {
+
+        MappedFileCommitTable commitTable = new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+        CommitTable.Writer writer = commitTable.getWriter();
+        CommitTable.Client client = commitTable.getClient();
+        for (long i = 1; i <= 300; i += 2) {
+            writer.addCommittedTransaction(i, i + 1);
+        }
+        writer.updateLowWatermark(42L);
+        writer.flush();
+        client.completeTransaction(1L).get();
+        assertTrue(client.tryInvalidateTransaction(1000L).get());
+        // Buffered but not flushed, so it's lost
+        writer.addCommittedTransaction(2000L, 2001L);
+        commitTable.close();
+
+        // Another commit table can't use the same log whilst it's open
+        commitTable = new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+        try {
+            new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            client = commitTable.getClient();
+            assertFalse(client.getCommitTimestamp(1L).get().isPresent());
+            for (long i = 3; i <= 300; i += 2) {
+                assertCommitted(client, i, i + 1);
+            }
+            assertInvalidated(client, 1000L);
+            assertFalse(client.getCommitTimestamp(2000L).get().isPresent());
+            assertEquals(client.readLowWatermark().get(), Long.valueOf(42L));
+        } finally {
+            commitTable.close();
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testCompletedSegmentsAreTrimmed() throws Exception {
+
+        MappedFileCommitTable commitTable = new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+        CommitTable.Writer writer = commitTable.getWriter();
+        CommitTable.Client client = commitTable.getClient();
+
+        // An invalidated transaction is never completed, so it must be relocated for its segment to be trimmed
+        assertTrue(client.tryInvalidateTransaction(0L).get());
+        for (long i = 1; i <= 5000; i++) {
+            writer.addCommittedTransaction(i, i + 1);
+            writer.flush();
+            client.completeTransaction(i).get();
+        }
+        writer.updateLowWatermark(5000L);
+        writer.flush();
+        // Each transaction takes 2 records, so 100 segments have been filled
+        assertTrue(commitTable.getNumSegments() <= 2, "Segments: " + commitTable.getNumSegments());
+        assertTrue(logDir.listFiles().length <= 3);
+        commitTable.close();
+
+        commitTable = new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+        try {
+            client = commitTable.getClient();
+            assertInvalidated(client, 0L);
+            assertFalse(client.getCommitTimestamp(5000L).get().isPresent());
+            assertEquals(client.readLowWatermark().get(), Long.valueOf(5000L));
+        } finally {
+            commitTable.close();
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testLiveTransactionsAreRelocatedWhenTrimmingTheirSegments() throws Exception {
+
+        MappedFileCommitTable commitTable = new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+        CommitTable.Writer writer = commitTable.getWriter();
+        CommitTable.Client client = commitTable.getClient();
+
+        // A few transactions that are never completed, whose records are relocated on each roll of the log
+        for (long i = 1; i <= 3; i++) {
+            writer.addCommittedTransaction(-i, 10 * i);
+        }
+        writer.flush();
+        for (long i = 1; i <= 5000; i++) {
+            writer.addCommittedTransaction(i, i + 1);
+            writer.flush();
+            client.completeTransaction(i).get();
+        }
+        assertTrue(commitTable.getNumSegments() <= 2, "Segments: " + commitTable.getNumSegments());
+        commitTable.close();
+
+        commitTable = new MappedFileCommitTable(logDir.getPath(), SEGMENT_SIZE);
+        try {
+            client = commitTable.getClient();
+            for (long i = 1; i <= 3; i++) {
+                assertCommitted(client, -i, 10 * i);
+            }
+            assertFalse(client.getCommitTimestamp(1L).get().isPresent());
+        } finally {
+            commitTable.close();
+        }
+
+    }
+
+    private static void assertCommitted(CommitTable.Client client, long startTimestamp, long commitTimestamp)
+            throws Exception {
+        Optional<CommitTimestamp> ct = client.getCommitTimestamp(startTimestamp).get();
+        assertTrue(ct.isPresent());
+        assertTrue(ct.get().isValid());
+        assertEquals(ct.get().getValue(), commitTimestamp);
+    }
+
+    private static void assertInvalidated(CommitTable.Client client, long startTimestamp) throws Exception {
+        Optional<CommitTimestamp> ct = client.getCommitTimestamp(startTimestamp).get();
+        assertTrue(ct.isPresent());
+        assertFalse(ct.get().isValid());
+        assertEquals(ct.get().getValue(), INVALID_TRANSACTION_MARKER);
+    }
+
+}
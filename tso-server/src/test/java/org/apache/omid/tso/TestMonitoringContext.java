@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.omid.metrics.Histogram;
+import org.apache.omid.metrics.MetricsRegistry;
+import org.apache.omid.metrics.Timer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.apache.omid.tso.MonitoringContext.Stage.REPLY_COMMIT;
+import static org.apache.omid.tso.MonitoringContext.Stage.REQUEST_COMMIT;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.FLUSH_FINISHED;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.FLUSH_STARTED;
+import static org.apache.omid.tso.MonitoringContext.TracePoint.WRITTEN;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestMonitoringContext {
+
+    private MetricsRegistry metrics;
+    private Timer timer;
+    private Histogram histogram;
+
+    @BeforeMethod
+    public void initMocks() {
+        metrics = mock(MetricsRegistry.class);
+        timer = mock(Timer.class);
+        when(metrics.timer(anyString())).thenReturn(timer);
+        histogram = mock(Histogram.class);
+        when(metrics.histogram(anyString())).thenReturn(histogram);
+    }
+
+    @Test(timeOut = 10_000)
+    public void testOnlyTheStoppedStagesArePublished() {
+
+        MonitoringContext monCtx = new MonitoringContext(metrics);
+        monCtx.timerStart(REQUEST_COMMIT);
+        monCtx.timerStop(REQUEST_COMMIT);
+        monCtx.timerStart(REPLY_COMMIT);
+        monCtx.publish();
+        verify(timer, times(1)).update(anyLong());
+
+    }
+
+    @Test(timeOut = 10_000, expectedExceptions = IllegalStateException.class)
+    public void testStoppingAStageThatWasNotStartedFails() {
+
+        new MonitoringContext(metrics).timerStop(REQUEST_COMMIT);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testPublishedContextsAreRecycledClean() {
+
+        MonitoringContext.Factory factory = new MonitoringContext.Factory(metrics, 1);
+        MonitoringContext monCtx = factory.newContext();
+        monCtx.timerStart(REQUEST_COMMIT);
+        monCtx.timerStop(REQUEST_COMMIT);
+        monCtx.publish();
+        verify(timer, times(1)).update(anyLong());
+
+        MonitoringContext recycledMonCtx = factory.newContext();
+        assertSame(recycledMonCtx, monCtx);
+        assertNotSame(factory.newContext(), recycledMonCtx);
+        // The measurements of the previous request must not be published again
+        recycledMonCtx.publish();
+        verify(timer, times(1)).update(anyLong());
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testUnsampledContextsMeasureNothing() {
+
+        MonitoringContext.Factory factory = new MonitoringContext.Factory(metrics, Integer.MAX_VALUE);
+        MonitoringContext monCtx = null;
+        // With such a ratio, getting a sampled context twice in a row is practically impossible
+        for (int i = 0; i < 2; i++) {
+            MonitoringContext next = factory.newContext();
+            if (monCtx != null) {
+                assertSame(next, monCtx);
+            }
+            monCtx = next;
+        }
+        monCtx.timerStop(REQUEST_COMMIT); // No timer was started but the unsampled context ignores it
+        monCtx.publish();
+        verify(timer, never()).update(anyLong());
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testTracesAreRecordedAndExported() throws Exception {
+
+        File traceFile = File.createTempFile("pipeline-traces", ".csv");
+        traceFile.deleteOnExit();
+        MonitoringContext.Factory factory =
+                new MonitoringContext.Factory(metrics, 1, new PipelineTraceWriter(traceFile.getPath(), metrics));
+        MonitoringContext monCtx = factory.newContext(); // Traces the reception
+        monCtx.timerStart(REQUEST_COMMIT);
+        monCtx.timerStop(REQUEST_COMMIT);
+        long flushStartedTime = System.nanoTime();
+        monCtx.trace(FLUSH_STARTED, flushStartedTime);
+        monCtx.trace(FLUSH_FINISHED, flushStartedTime + 2_000L);
+        monCtx.trace(WRITTEN, flushStartedTime + 3_000L);
+        monCtx.publish();
+        factory.close();
+
+        // Received -> flush started, flush started -> flush finished, flush finished -> written, plus the total
+        verify(histogram).update(2_000L);
+        verify(histogram).update(1_000L);
+        verify(histogram, times(4)).update(anyLong());
+
+        List<String> lines = Files.readLines(traceFile, Charsets.UTF_8);
+        assertEquals(lines.size(), 2);
+        assertEquals(lines.get(0), "request,received,request-ring,batch-added,flush-started,flush-finished,"
+                + "reply-ordered,written");
+        String[] fields = lines.get(1).split(",", -1);
+        assertEquals(fields.length, MonitoringContext.TracePoint.values().length + 1);
+        assertEquals(fields[0], "commit");
+        assertTrue(fields[2].isEmpty(), "The request ring was not traced");
+        assertEquals(Long.parseLong(fields[5]) - Long.parseLong(fields[4]), 2_000L);
+
+    }
+
+}
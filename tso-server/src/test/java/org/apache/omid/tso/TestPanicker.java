@@ -139,7 +139,9 @@ public class TestPanicker {
 
         proc.addCommitToBatch(1, 2, null, new MonitoringContext(metrics));
 
-        new RequestProcessorImpl(metrics, mock(TimestampOracle.class), proc, panicker, mock(TSOServerConfig.class));
+        config.setConflictMapSize(1000);
+        new RequestProcessorImpl(metrics, mock(TimestampOracle.class), proc, mock(ReplyProcessor.class),
+                                 mock(LeaseManagement.class), panicker, config);
 
         verify(panicker, timeout(1000).atLeastOnce()).panic(anyString(), any(Throwable.class));
 
@@ -191,7 +193,9 @@ public class TestPanicker {
                                                                  metrics);
         proc.addCommitToBatch(1, 2, null, new MonitoringContext(metrics));
 
-        new RequestProcessorImpl(metrics, mock(TimestampOracle.class), proc, panicker, mock(TSOServerConfig.class));
+        config.setConflictMapSize(1000);
+        new RequestProcessorImpl(metrics, mock(TimestampOracle.class), proc, mock(ReplyProcessor.class),
+                                 mock(LeaseManagement.class), panicker, config);
 
         verify(panicker, timeout(1000).atLeastOnce()).panic(anyString(), any(Throwable.class));
 
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestPartitionedCommitHashMap {
+
+    private static final int CONFLICT_MAP_SIZE = 1000;
+    private static final int NUM_PARTITIONS = 4;
+    // Smallest write set checked by the partition owners instead of inline
+    private static final int LARGE_WRITE_SET_SIZE =
+            PartitionedCommitHashMap.MIN_CELLS_PER_PARTITION_TO_FORK * NUM_PARTITIONS;
+
+    @Test(timeOut = 10_000)
+    public void testConflictsAreDetectedForSmallAndLargeWriteSets() throws Exception {
+
+        PartitionedCommitHashMap map = new PartitionedCommitHashMap(CONFLICT_MAP_SIZE, NUM_PARTITIONS);
+        try {
+            long[] smallWriteSet = writeSet(0, 3);
+            long[] largeWriteSet = writeSet(100, LARGE_WRITE_SET_SIZE);
+
+            assertFalse(map.hasConflicts(smallWriteSet, smallWriteSet.length, 10L));
+            assertFalse(map.hasConflicts(largeWriteSet, largeWriteSet.length, 10L));
+
+            map.putLatestWrites(smallWriteSet, smallWriteSet.length, 11L);
+            map.putLatestWrites(largeWriteSet, largeWriteSet.length, 12L);
+
+            // Transactions started before the commits conflict...
+            assertTrue(map.hasConflicts(smallWriteSet, smallWriteSet.length, 10L));
+            assertTrue(map.hasConflicts(largeWriteSet, largeWriteSet.length, 10L));
+            // ...whilst transactions started after them don't
+            assertFalse(map.hasConflicts(smallWriteSet, smallWriteSet.length, 13L));
+            assertFalse(map.hasConflicts(largeWriteSet, largeWriteSet.length, 13L));
+
+            // A single conflicting cell in a large write set is enough to abort
+            long[] mixedWriteSet = writeSet(10_000, largeWriteSet.length);
+            mixedWriteSet[mixedWriteSet.length - 1] = smallWriteSet[0];
+            assertTrue(map.hasConflicts(mixedWriteSet, mixedWriteSet.length, 10L));
+        } finally {
+            map.close();
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testLargestEvictedTimestampIsReportedAcrossPartitions() throws Exception {
+
+        PartitionedCommitHashMap map = new PartitionedCommitHashMap(CONFLICT_MAP_SIZE, NUM_PARTITIONS);
+        try {
+            long largestEvicted = 0;
+            long commitTimestamp = 1;
+            // Fill the partitions till the entries start to be evicted
+            for (int i = 0; largestEvicted == 0; i++, commitTimestamp++) {
+                long[] writeSet = writeSet(i * CONFLICT_MAP_SIZE, CONFLICT_MAP_SIZE);
+                map.putLatestWrites(writeSet, writeSet.length, commitTimestamp);
+                largestEvicted = map.drainLargestEvicted(true);
+            }
+            assertTrue(largestEvicted > 0 && largestEvicted < commitTimestamp);
+            // The evicted timestamps are reported only once
+            map.putLatestWrites(new long[0], 0, commitTimestamp);
+            assertEquals(map.drainLargestEvicted(true), 0L);
+        } finally {
+            map.close();
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testWritesInFlightAreSeenByTheNextCommits() throws Exception {
+
+        PartitionedCommitHashMap map = new PartitionedCommitHashMap(CONFLICT_MAP_SIZE * 100, NUM_PARTITIONS);
+        try {
+            long[] largeWriteSet = writeSet(0, LARGE_WRITE_SET_SIZE);
+            long[] smallWriteSet = new long[] { largeWriteSet[largeWriteSet.length - 1] };
+            for (long commitTimestamp = 1; commitTimestamp < 1_000; commitTimestamp += 2) {
+                // Large write set checked by the owners right after its previous writes were handed to them...
+                map.putLatestWrites(largeWriteSet, largeWriteSet.length, commitTimestamp);
+                assertTrue(map.hasConflicts(largeWriteSet, largeWriteSet.length, commitTimestamp));
+                assertFalse(map.hasConflicts(largeWriteSet, largeWriteSet.length, commitTimestamp + 1));
+                // ...and small write set checked inline
+                map.putLatestWrites(largeWriteSet, largeWriteSet.length, commitTimestamp + 1);
+                assertTrue(map.hasConflicts(smallWriteSet, smallWriteSet.length, commitTimestamp + 1));
+                assertFalse(map.hasConflicts(smallWriteSet, smallWriteSet.length, commitTimestamp + 2));
+            }
+        } finally {
+            map.close();
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testSinglePartitionHasNoOwnerThreadsAndPartitionOwnersStopOnClose() throws Exception {
+
+        int threadsBefore = countConflictThreads();
+
+        PartitionedCommitHashMap singlePartitionMap = new PartitionedCommitHashMap(CONFLICT_MAP_SIZE, 1);
+        assertEquals(countConflictThreads(), threadsBefore);
+        singlePartitionMap.close();
+
+        PartitionedCommitHashMap map = new PartitionedCommitHashMap(CONFLICT_MAP_SIZE, NUM_PARTITIONS);
+        assertEquals(countConflictThreads(), threadsBefore + NUM_PARTITIONS);
+        long[] writeSet = writeSet(0, 3);
+        map.putLatestWrites(writeSet, writeSet.length, 11L);
+        assertTrue(map.hasConflicts(writeSet, writeSet.length, 10L));
+        map.close();
+        assertEquals(countConflictThreads(), threadsBefore);
+
+        long[] largeWriteSet = writeSet(0, LARGE_WRITE_SET_SIZE);
+        try {
+            map.hasConflicts(largeWriteSet, largeWriteSet.length, 10L);
+            fail("A closed conflict map should not check conflicts");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+    }
+
+    private int countConflictThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("conflict-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long[] writeSet(long firstCellId, int numCells) {
+        long[] writeSet = new long[numCells];
+        for (int i = 0; i < numCells; i++) {
+            writeSet[i] = firstCellId + i;
+        }
+        return writeSet;
+    }
+
+}
@@ -17,6 +17,7 @@
  */
 package org.apache.omid.tso;
 
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.omid.committable.CommitTable;
 import org.apache.omid.metrics.MetricsRegistry;
 import org.apache.omid.metrics.NullMetricsProvider;
@@ -148,7 +149,7 @@ public class TestPersistenceProcessorHandler {
 
         // Prepare test batch
         Batch batch = new Batch(BATCH_ID, BATCH_SIZE);
-        batch.addTimestamp(FIRST_ST, null, mock(MonitoringContext.class));
+        batch.addTimestamp(FIRST_ST, 1, null, mock(MonitoringContext.class));
         PersistBatchEvent batchEvent = new PersistBatchEvent();
         PersistBatchEvent.makePersistBatch(batchEvent, BATCH_SEQUENCE, batch);
         persistenceHandler.onEvent(batchEvent);
@@ -334,7 +335,7 @@ public class TestPersistenceProcessorHandler {
         // Prepare test batch
         Batch batch = new Batch(BATCH_ID, BATCH_SIZE);
 
-        batch.addTimestamp(FIRST_ST, null, mock(MonitoringContext.class));
+        batch.addTimestamp(FIRST_ST, 1, null, mock(MonitoringContext.class));
         batch.addCommitRetry(SECOND_ST, null, mock(MonitoringContext.class));
         batch.addCommit(THIRD_ST, THIRD_CT, null, mock(MonitoringContext.class));
         batch.addAbort(FOURTH_ST, null, mock(MonitoringContext.class));
@@ -473,4 +474,80 @@ public class TestPersistenceProcessorHandler {
 
     }
 
+    @Test(timeOut = 10_000)
+    public void testSeveralFlushesInFlight() throws Exception {
+
+        SettableFuture<Void> firstFlush = SettableFuture.create();
+        SettableFuture<Void> secondFlush = SettableFuture.create();
+        doReturn(firstFlush).doReturn(secondFlush).when(mockWriter).flushAsync();
+
+        TSOServerConfig config = new TSOServerConfig();
+        config.setNumFlushesInFlightPerCTWriter(2);
+        persistenceHandler = spy(new PersistenceProcessorHandler(metrics,
+                                                                 "localhost:1234",
+                                                                 leaseManager,
+                                                                 commitTable,
+                                                                 replyProcessor,
+                                                                 retryProcessor,
+                                                                 panicker,
+                                                                 config));
+
+        // Prepare two batches and take both before any of them is flushed
+        Batch firstBatch = new Batch(BATCH_ID, BATCH_SIZE);
+        firstBatch.addCommit(FIRST_ST, FIRST_CT, null, mock(MonitoringContext.class));
+        Batch secondBatch = new Batch(BATCH_ID + 1, BATCH_SIZE);
+        secondBatch.addCommit(SECOND_ST, SECOND_CT, null, mock(MonitoringContext.class));
+        PersistBatchEvent batchEvent = new PersistBatchEvent();
+        PersistBatchEvent.makePersistBatch(batchEvent, BATCH_SEQUENCE, firstBatch);
+        persistenceHandler.onEvent(batchEvent);
+        PersistBatchEvent.makePersistBatch(batchEvent, BATCH_SEQUENCE + 1, secondBatch);
+        persistenceHandler.onEvent(batchEvent);
+
+        verify(mockWriter, times(2)).flushAsync();
+        verify(mockWriter, never()).flush();
+        verify(replyProcessor, never()).manageResponsesBatch(anyLong(), any(Batch.class));
+
+        // Each batch is handed to the reply processor with its own sequence as soon as its flush completes
+        secondFlush.set(null);
+        verify(replyProcessor, times(1)).manageResponsesBatch(eq(BATCH_SEQUENCE + 1), eq(secondBatch));
+        verify(replyProcessor, never()).manageResponsesBatch(eq(BATCH_SEQUENCE), any(Batch.class));
+        firstFlush.set(null);
+        verify(replyProcessor, times(1)).manageResponsesBatch(eq(BATCH_SEQUENCE), eq(firstBatch));
+        verify(panicker, never()).panic(any(String.class), any(Throwable.class));
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testFlushLatencyIsReportedWhenTheFlushedBatchIsCompleted() throws Exception {
+
+        SettableFuture<Void> flush = SettableFuture.create();
+        doReturn(flush).when(mockWriter).flushAsync();
+
+        TSOServerConfig config = new TSOServerConfig();
+        config.setNumFlushesInFlightPerCTWriter(2);
+        persistenceHandler = spy(new PersistenceProcessorHandler(metrics,
+                                                                 "localhost:1234",
+                                                                 leaseManager,
+                                                                 commitTable,
+                                                                 replyProcessor,
+                                                                 retryProcessor,
+                                                                 panicker,
+                                                                 config));
+        AdaptiveBatchSizer batchSizer = mock(AdaptiveBatchSizer.class);
+        persistenceHandler.setBatchSizer(batchSizer);
+
+        Batch batch = new Batch(BATCH_ID, BATCH_SIZE);
+        batch.addCommit(FIRST_ST, FIRST_CT, null, mock(MonitoringContext.class));
+        PersistBatchEvent batchEvent = new PersistBatchEvent();
+        PersistBatchEvent.makePersistBatch(batchEvent, BATCH_SEQUENCE, batch);
+        persistenceHandler.onEvent(batchEvent);
+
+        // Nothing is reported till the flush of the batch completes
+        verify(batchSizer, never()).recordFlushLatency(anyLong());
+        flush.set(null);
+        verify(batchSizer, times(1)).recordFlushLatency(anyLong());
+        verify(replyProcessor, times(1)).manageResponsesBatch(eq(BATCH_SEQUENCE), eq(batch));
+
+    }
+
 }
@@ -21,7 +21,11 @@ import org.apache.commons.pool2.ObjectPool;
 import org.apache.omid.metrics.MetricsRegistry;
 import org.apache.omid.metrics.NullMetricsProvider;
 import org.apache.omid.tso.ReplyProcessorImpl.ReplyBatchEvent;
+import org.apache.omid.proto.TSOProto;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -35,7 +39,9 @@ import com.lmax.disruptor.BlockingWaitStrategy;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.RETURNS_MOCKS;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -43,6 +49,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
@@ -112,8 +119,8 @@ public class TestReplyProcessor {
         ReplyBatchEvent e = ReplyBatchEvent.EVENT_FACTORY.newInstance();
         ReplyBatchEvent.makeReplyBatch(e, batch, 0);
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 0);
-        assertEquals(replyProcessor.futureEvents.size(), 0);
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 0);
         assertEquals(batchPool.getNumActive(), 1);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE - 1);
 
@@ -124,8 +131,8 @@ public class TestReplyProcessor {
             // Expected
         }
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 0);
-        assertEquals(replyProcessor.futureEvents.size(), 0);
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 0);
         assertEquals(batchPool.getNumActive(), 1);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE - 1);
 
@@ -141,19 +148,19 @@ public class TestReplyProcessor {
         ReplyBatchEvent e = ReplyBatchEvent.EVENT_FACTORY.newInstance();
         ReplyBatchEvent.makeReplyBatch(e, batch, HIGH_SEQUENCE_NUMBER);
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 0);
-        assertEquals(replyProcessor.futureEvents.size(), 0);
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 0);
         assertEquals(batchPool.getNumActive(), 1);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE - 1);
 
         replyProcessor.onEvent(e, ANY_DISRUPTOR_SEQUENCE, false);
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 0);
-        assertEquals(replyProcessor.futureEvents.size(), 1);
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 1);
         assertEquals(batchPool.getNumActive(), 1);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE - 1);
         assertTrue(batch.isEmpty());
-        verify(replyProcessor, times(0)).handleReplyBatchEvent(any(ReplyBatchEvent.class));
+        verify(replyProcessor, times(0)).handleReplyBatch(any(Batch.class));
 
     }
 
@@ -165,19 +172,19 @@ public class TestReplyProcessor {
         ReplyBatchEvent e = ReplyBatchEvent.EVENT_FACTORY.newInstance();
         ReplyBatchEvent.makeReplyBatch(e, batch, 0);
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 0);
-        assertEquals(replyProcessor.futureEvents.size(), 0);
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 0);
         assertEquals(batchPool.getNumActive(), 1);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE - 1);
 
         replyProcessor.onEvent(e, ANY_DISRUPTOR_SEQUENCE, false);
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 1);
-        assertEquals(replyProcessor.futureEvents.size(), 0);
+        assertEquals(replyProcessor.nextIDToHandle, 1);
+        assertEquals(replyProcessor.numBufferedBatches, 0);
         assertEquals(batchPool.getNumActive(), 0);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE);
         assertTrue(batch.isEmpty());
-        verify(replyProcessor, times(1)).handleReplyBatchEvent(eq(e));
+        verify(replyProcessor, times(1)).handleReplyBatch(eq(batch));
 
     }
 
@@ -188,36 +195,36 @@ public class TestReplyProcessor {
 
         // Prepare first a delayed batch (Batch #3)
         Batch thirdBatch = batchPool.borrowObject();
-        thirdBatch.addTimestamp(FIRST_ST, mock(Channel.class), monCtx);
-        thirdBatch.addCommit(SECOND_ST, SECOND_CT, mock(Channel.class), monCtx);
+        thirdBatch.addTimestamp(FIRST_ST, 1, mock(Channel.class, RETURNS_MOCKS), monCtx);
+        thirdBatch.addCommit(SECOND_ST, SECOND_CT, mock(Channel.class, RETURNS_MOCKS), monCtx);
         ReplyBatchEvent thirdBatchEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
         ReplyBatchEvent.makeReplyBatch(thirdBatchEvent, thirdBatch, 2); // Set a higher sequence than the initial one
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 0);
-        assertEquals(replyProcessor.futureEvents.size(), 0);
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 0);
         assertEquals(batchPool.getNumActive(), 1);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE - 1);
 
         replyProcessor.onEvent(thirdBatchEvent, ANY_DISRUPTOR_SEQUENCE, false);
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 0);
-        assertEquals(replyProcessor.futureEvents.size(), 1);
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 1);
         assertEquals(batchPool.getNumActive(), 1);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE - 1);
         assertFalse(thirdBatch.isEmpty());
-        verify(replyProcessor, never()).handleReplyBatchEvent(eq(thirdBatchEvent));
+        verify(replyProcessor, never()).handleReplyBatch(eq(thirdBatch));
 
         // Prepare another delayed batch (Batch #2)
         Batch secondBatch = batchPool.borrowObject();
-        secondBatch.addTimestamp(THIRD_ST, mock(Channel.class), monCtx);
-        secondBatch.addCommit(FOURTH_ST, FOURTH_CT, mock(Channel.class), monCtx);
+        secondBatch.addTimestamp(THIRD_ST, 1, mock(Channel.class, RETURNS_MOCKS), monCtx);
+        secondBatch.addCommit(FOURTH_ST, FOURTH_CT, mock(Channel.class, RETURNS_MOCKS), monCtx);
         ReplyBatchEvent secondBatchEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
         ReplyBatchEvent.makeReplyBatch(secondBatchEvent, secondBatch, 1); // Set another higher sequence
 
         replyProcessor.onEvent(secondBatchEvent, ANY_DISRUPTOR_SEQUENCE, false);
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 0);
-        assertEquals(replyProcessor.futureEvents.size(), 2);
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 2);
         assertEquals(batchPool.getNumActive(), 2);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE - 2);
         assertFalse(secondBatch.isEmpty());
@@ -225,14 +232,14 @@ public class TestReplyProcessor {
 
         // Finally, prepare the batch that should trigger the execution of the other two
         Batch firstBatch = batchPool.borrowObject();
-        firstBatch.addAbort(FIFTH_ST, mock(Channel.class), monCtx);
+        firstBatch.addAbort(FIFTH_ST, mock(Channel.class, RETURNS_MOCKS), monCtx);
         ReplyBatchEvent firstBatchEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
         ReplyBatchEvent.makeReplyBatch(firstBatchEvent, firstBatch, 0); // Set the first batch with a higher sequence
 
         replyProcessor.onEvent(firstBatchEvent, ANY_DISRUPTOR_SEQUENCE, false);
 
-        assertEquals(replyProcessor.nextIDToHandle.get(), 3);
-        assertEquals(replyProcessor.futureEvents.size(), 0);
+        assertEquals(replyProcessor.nextIDToHandle, 3);
+        assertEquals(replyProcessor.numBufferedBatches, 0);
         assertEquals(batchPool.getNumActive(), 0);
         assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE);
         assertTrue(firstBatch.isEmpty());
@@ -242,17 +249,172 @@ public class TestReplyProcessor {
         // Check the method calls have been properly ordered
 
         InOrder inOrderReplyBatchEvents = inOrder(replyProcessor, replyProcessor, replyProcessor);
-        inOrderReplyBatchEvents.verify(replyProcessor, times(1)).handleReplyBatchEvent(eq(firstBatchEvent));
-        inOrderReplyBatchEvents.verify(replyProcessor, times(1)).handleReplyBatchEvent(eq(secondBatchEvent));
-        inOrderReplyBatchEvents.verify(replyProcessor, times(1)).handleReplyBatchEvent(eq(thirdBatchEvent));
+        inOrderReplyBatchEvents.verify(replyProcessor, times(1)).handleReplyBatch(eq(firstBatch));
+        inOrderReplyBatchEvents.verify(replyProcessor, times(1)).handleReplyBatch(eq(secondBatch));
+        inOrderReplyBatchEvents.verify(replyProcessor, times(1)).handleReplyBatch(eq(thirdBatch));
 
         InOrder inOrderReplies = inOrder(replyProcessor, replyProcessor, replyProcessor, replyProcessor, replyProcessor);
-        inOrderReplies.verify(replyProcessor, times(1)).sendAbortResponse(eq(FIFTH_ST), any(Channel.class));
-        inOrderReplies.verify(replyProcessor, times(1)).sendTimestampResponse(eq(THIRD_ST), any(Channel.class));
-        inOrderReplies.verify(replyProcessor, times(1)).sendCommitResponse(eq(FOURTH_ST), eq(FOURTH_CT), any(Channel.class));
-        inOrderReplies.verify(replyProcessor, times(1)).sendTimestampResponse(eq(FIRST_ST), any(Channel.class));
-        inOrderReplies.verify(replyProcessor, times(1)).sendCommitResponse(eq(SECOND_ST), eq(SECOND_CT), any(Channel.class));
+        inOrderReplies.verify(replyProcessor, times(1)).queueAbortResponse(eq(FIFTH_ST), any(Channel.class));
+        inOrderReplies.verify(replyProcessor, times(1)).queueTimestampResponse(eq(THIRD_ST), eq(1), any(Channel.class));
+        inOrderReplies.verify(replyProcessor, times(1)).queueCommitResponse(eq(FOURTH_ST), eq(FOURTH_CT), any(Channel.class));
+        inOrderReplies.verify(replyProcessor, times(1)).queueTimestampResponse(eq(FIRST_ST), eq(1), any(Channel.class));
+        inOrderReplies.verify(replyProcessor, times(1)).queueCommitResponse(eq(SECOND_ST), eq(SECOND_CT), any(Channel.class));
 
     }
 
+    @Test(timeOut = 10_000)
+    public void testReorderBufferIsReusedWhenBatchesArriveOutOfOrderRepeatedly() throws Exception {
+
+        int bufferLength = replyProcessor.reorderBuffer.length;
+        assertTrue(bufferLength >= BATCH_POOL_SIZE, "Buffer can't hold all the batches in the pool");
+
+        long batchSequence = 0;
+        for (int round = 0; round < 100; round++) {
+            // All the batches in the pool arrive in reverse order
+            Batch[] batches = new Batch[BATCH_POOL_SIZE];
+            for (int i = 0; i < BATCH_POOL_SIZE; i++) {
+                batches[i] = batchPool.borrowObject();
+                batches[i].addAbort(batchSequence + i, mock(Channel.class, RETURNS_MOCKS), monCtx);
+            }
+            for (int i = BATCH_POOL_SIZE - 1; i >= 0; i--) {
+                ReplyBatchEvent e = ReplyBatchEvent.EVENT_FACTORY.newInstance();
+                ReplyBatchEvent.makeReplyBatch(e, batches[i], batchSequence + i);
+                replyProcessor.onEvent(e, ANY_DISRUPTOR_SEQUENCE, false);
+            }
+            batchSequence += BATCH_POOL_SIZE;
+            assertEquals(replyProcessor.nextIDToHandle, batchSequence);
+            assertEquals(replyProcessor.numBufferedBatches, 0);
+            assertEquals(batchPool.getNumIdle(), BATCH_POOL_SIZE);
+        }
+        assertEquals(replyProcessor.reorderBuffer.length, bufferLength);
+
+        InOrder inOrderReplies = inOrder(replyProcessor);
+        for (long startTimestamp = 0; startTimestamp < batchSequence; startTimestamp++) {
+            inOrderReplies.verify(replyProcessor).queueAbortResponse(eq(startTimestamp), any(Channel.class));
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testDurableWatermarkAdvancesWithTheOrderedBatchesOnly() throws Exception {
+
+        assertEquals(replyProcessor.getDurableWatermark(), 0L);
+
+        Batch secondBatch = batchPool.borrowObject();
+        secondBatch.addTimestamp(THIRD_ST, 2, mock(Channel.class, RETURNS_MOCKS), monCtx);
+        ReplyBatchEvent secondBatchEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
+        ReplyBatchEvent.makeReplyBatch(secondBatchEvent, secondBatch, 1);
+        replyProcessor.onEvent(secondBatchEvent, ANY_DISRUPTOR_SEQUENCE, false);
+
+        // The buffered batch doesn't count till the previous one is replied...
+        assertEquals(replyProcessor.getDurableWatermark(), 0L);
+
+        // ...but a fast path timestamp is replied right away
+        ReplyBatchEvent timestampEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
+        ReplyBatchEvent.makeTimestampReply(timestampEvent, SIXTH_ST, 1, mock(Channel.class, RETURNS_MOCKS), monCtx);
+        replyProcessor.onEvent(timestampEvent, ANY_DISRUPTOR_SEQUENCE, false);
+        verify(replyProcessor, times(1)).queueTimestampResponse(eq(SIXTH_ST), eq(1), any(Channel.class));
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.getDurableWatermark(), 0L);
+
+        Batch firstBatch = batchPool.borrowObject();
+        firstBatch.addCommit(FIRST_ST, SECOND_CT, mock(Channel.class, RETURNS_MOCKS), monCtx);
+        firstBatch.addAbort(FIFTH_ST, mock(Channel.class, RETURNS_MOCKS), monCtx);
+        ReplyBatchEvent firstBatchEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
+        ReplyBatchEvent.makeReplyBatch(firstBatchEvent, firstBatch, 0);
+        replyProcessor.onEvent(firstBatchEvent, ANY_DISRUPTOR_SEQUENCE, false);
+
+        // Covers the commit of the first batch and the whole range of the second one. Aborts don't count
+        assertEquals(replyProcessor.nextIDToHandle, 2);
+        assertEquals(replyProcessor.getDurableWatermark(), THIRD_ST + 1);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testAbortsAreRepliedWithoutWaitingForPreviousBatches() throws Exception {
+
+        Batch secondBatch = batchPool.borrowObject();
+        secondBatch.addCommit(FIRST_ST, FIRST_CT, mock(Channel.class, RETURNS_MOCKS), monCtx);
+        ReplyBatchEvent secondBatchEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
+        ReplyBatchEvent.makeReplyBatch(secondBatchEvent, secondBatch, 1);
+        replyProcessor.onEvent(secondBatchEvent, ANY_DISRUPTOR_SEQUENCE, false);
+
+        ReplyBatchEvent abortEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
+        ReplyBatchEvent.makeAbortReply(abortEvent, SECOND_ST, mock(Channel.class, RETURNS_MOCKS), monCtx);
+        replyProcessor.onEvent(abortEvent, ANY_DISRUPTOR_SEQUENCE, false);
+
+        verify(replyProcessor, times(1)).queueAbortResponse(eq(SECOND_ST), any(Channel.class));
+        verify(replyProcessor, never()).queueCommitResponse(eq(FIRST_ST), eq(FIRST_CT), any(Channel.class));
+        assertEquals(replyProcessor.nextIDToHandle, 0);
+        assertEquals(replyProcessor.numBufferedBatches, 1);
+        assertEquals(replyProcessor.getDurableWatermark(), 0L);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testResponsesForTheSameChannelAreSentWithASingleWrite() throws Exception {
+
+        Channel firstChannel = mock(Channel.class, RETURNS_MOCKS);
+        Channel secondChannel = mock(Channel.class, RETURNS_MOCKS);
+
+        Batch batch = batchPool.borrowObject();
+        batch.addTimestamp(FIRST_ST, 1, firstChannel, monCtx);
+        batch.addAbort(SECOND_ST, secondChannel, monCtx);
+        batch.addCommit(THIRD_ST, THIRD_CT, firstChannel, monCtx);
+        ReplyBatchEvent batchEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
+        ReplyBatchEvent.makeReplyBatch(batchEvent, batch, 0);
+
+        // Nothing is written till there are no more events available
+        replyProcessor.onEvent(batchEvent, ANY_DISRUPTOR_SEQUENCE, false);
+        verify(firstChannel, never()).write(any());
+        verify(secondChannel, never()).write(any());
+
+        ReplyBatchEvent abortEvent = ReplyBatchEvent.EVENT_FACTORY.newInstance();
+        ReplyBatchEvent.makeAbortReply(abortEvent, FOURTH_ST, firstChannel, monCtx);
+        replyProcessor.onEvent(abortEvent, ANY_DISRUPTOR_SEQUENCE, true);
+
+        ArgumentCaptor<ChannelBuffer> firstFrames = ArgumentCaptor.forClass(ChannelBuffer.class);
+        verify(firstChannel, times(1)).write(firstFrames.capture());
+        TSOProto.Response response = readFrame(firstFrames.getValue());
+        assertEquals(response.getTimestampResponse().getStartTimestamp(), FIRST_ST);
+        response = readFrame(firstFrames.getValue());
+        assertEquals(response.getCommitResponse().getStartTimestamp(), THIRD_ST);
+        assertEquals(response.getCommitResponse().getCommitTimestamp(), THIRD_CT);
+        response = readFrame(firstFrames.getValue());
+        assertEquals(response.getCommitResponse().getStartTimestamp(), FOURTH_ST);
+        assertTrue(response.getCommitResponse().getAborted());
+        assertFalse(firstFrames.getValue().readable());
+
+        ArgumentCaptor<ChannelBuffer> secondFrames = ArgumentCaptor.forClass(ChannelBuffer.class);
+        verify(secondChannel, times(1)).write(secondFrames.capture());
+        response = readFrame(secondFrames.getValue());
+        assertEquals(response.getCommitResponse().getStartTimestamp(), SECOND_ST);
+        assertTrue(response.getCommitResponse().getAborted());
+        assertFalse(secondFrames.getValue().readable());
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testResponseBuffersAreReusedOnceWritten() throws Exception {
+
+        Channel channel = mock(Channel.class);
+        doReturn(Channels.succeededFuture(channel)).when(channel).write(any());
+
+        replyProcessor.queueAbortResponse(FIRST_ST, channel);
+        replyProcessor.flushQueuedResponses();
+        replyProcessor.queueAbortResponse(SECOND_ST, channel);
+        replyProcessor.flushQueuedResponses();
+
+        ArgumentCaptor<ChannelBuffer> frames = ArgumentCaptor.forClass(ChannelBuffer.class);
+        verify(channel, times(2)).write(frames.capture());
+        assertSame(frames.getAllValues().get(0), frames.getAllValues().get(1));
+
+    }
+
+    private TSOProto.Response readFrame(ChannelBuffer frames) throws Exception {
+        byte[] frame = new byte[frames.readInt()];
+        frames.readBytes(frame);
+        return TSOProto.Response.parseFrom(frame);
+    }
+
 }
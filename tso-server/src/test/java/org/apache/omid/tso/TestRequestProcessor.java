@@ -17,10 +17,11 @@
  */
 package org.apache.omid.tso;
 
-import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.SettableFuture;
 import org.apache.omid.metrics.MetricsRegistry;
 import org.apache.omid.metrics.NullMetricsProvider;
+import org.apache.omid.proto.TSOProto;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
@@ -28,12 +29,10 @@ import org.slf4j.LoggerFactory;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
-import java.util.Collections;
-import java.util.List;
-
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.timeout;
@@ -50,6 +49,8 @@ public class TestRequestProcessor {
     private MetricsRegistry metrics = new NullMetricsProvider();
 
     private PersistenceProcessor persist;
+    private ReplyProcessor replyProc;
+    private LeaseManagement leaseManager;
 
     private TSOStateManager stateManager;
 
@@ -72,10 +73,18 @@ public class TestRequestProcessor {
         f.set(null);
         doReturn(f).when(persist).persistLowWatermark(any(Long.class));
 
+        replyProc = mock(ReplyProcessor.class);
+
+        leaseManager = mock(LeaseManagement.class);
+        doReturn(true).when(leaseManager).stillInLeasePeriod();
+
         TSOServerConfig config = new TSOServerConfig();
         config.setConflictMapSize(CONFLICT_MAP_SIZE);
+        // Timestamp requests go through the batches unless a test says otherwise
+        config.setTimestampFastPath(false);
 
-        requestProc = new RequestProcessorImpl(metrics, timestampOracle, persist, new MockPanicker(), config);
+        requestProc = new RequestProcessorImpl(metrics, timestampOracle, persist, replyProc, leaseManager,
+                                               new MockPanicker(), config);
 
         // Initialize the state for the experiment
         stateManager.register(requestProc);
@@ -86,68 +95,121 @@ public class TestRequestProcessor {
     @Test(timeOut = 30_000)
     public void testTimestamp() throws Exception {
 
-        requestProc.timestampRequest(null, new MonitoringContext(metrics));
+        requestProc.timestampRequest(1, null, new MonitoringContext(metrics));
         ArgumentCaptor<Long> firstTScapture = ArgumentCaptor.forClass(Long.class);
         verify(persist, timeout(100).times(1)).addTimestampToBatch(
-                firstTScapture.capture(), any(Channel.class), any(MonitoringContext.class));
+                firstTScapture.capture(), eq(1), any(Channel.class), any(MonitoringContext.class));
 
         long firstTS = firstTScapture.getValue();
         // verify that timestamps increase monotonically
         for (int i = 0; i < 100; i++) {
-            requestProc.timestampRequest(null, new MonitoringContext(metrics));
-            verify(persist, timeout(100).times(1)).addTimestampToBatch(eq(firstTS++), any(Channel.class), any(MonitoringContext.class));
+            requestProc.timestampRequest(1, null, new MonitoringContext(metrics));
+            verify(persist, timeout(100).times(1)).addTimestampToBatch(eq(firstTS++), eq(1), any(Channel.class), any(MonitoringContext.class));
         }
 
     }
 
+    @Test(timeOut = 30_000)
+    public void testTimestampRange() throws Exception {
+
+        requestProc.timestampRequest(10, null, new MonitoringContext(metrics));
+        ArgumentCaptor<Long> rangeTScapture = ArgumentCaptor.forClass(Long.class);
+        verify(persist, timeout(100).times(1)).addTimestampToBatch(
+                rangeTScapture.capture(), eq(10), any(Channel.class), any(MonitoringContext.class));
+        long firstTSInRange = rangeTScapture.getValue();
+
+        // The next timestamp assigned must be beyond the range
+        requestProc.timestampRequest(1, null, new MonitoringContext(metrics));
+        verify(persist, timeout(100).times(1)).addTimestampToBatch(
+                eq(firstTSInRange + 10), eq(1), any(Channel.class), any(MonitoringContext.class));
+
+        // Commits of transactions started with any timestamp in the range get a commit timestamp beyond it too
+        long[] writeSet = new long[] { 1L, 20L, 203L };
+        requestProc.commitRequest(firstTSInRange + 9, writeSet, writeSet.length, false, null,
+                                  new MonitoringContext(metrics));
+        ArgumentCaptor<Long> commitTScapture = ArgumentCaptor.forClass(Long.class);
+        verify(persist, timeout(100).times(1)).addCommitToBatch(eq(firstTSInRange + 9), commitTScapture.capture(),
+                                                               any(Channel.class), any(MonitoringContext.class));
+        assertTrue(commitTScapture.getValue() > firstTSInRange + 10, "Commit TS must be greater than the range");
+
+    }
+
     @Test(timeOut = 30_000)
     public void testCommit() throws Exception {
 
-        requestProc.timestampRequest(null, new MonitoringContext(metrics));
+        requestProc.timestampRequest(1, null, new MonitoringContext(metrics));
         ArgumentCaptor<Long> TScapture = ArgumentCaptor.forClass(Long.class);
         verify(persist, timeout(100).times(1)).addTimestampToBatch(
-                TScapture.capture(), any(Channel.class), any(MonitoringContext.class));
+                TScapture.capture(), eq(1), any(Channel.class), any(MonitoringContext.class));
         long firstTS = TScapture.getValue();
 
-        List<Long> writeSet = Lists.newArrayList(1L, 20L, 203L);
-        requestProc.commitRequest(firstTS - 1, writeSet, false, null, new MonitoringContext(metrics));
-        verify(persist, timeout(100).times(1)).addAbortToBatch(eq(firstTS - 1), any(Channel.class), any(MonitoringContext.class));
+        long[] writeSet = new long[] { 1L, 20L, 203L };
+        requestProc.commitRequest(firstTS - 1, writeSet, writeSet.length, false, null, new MonitoringContext(metrics));
+        verify(replyProc, timeout(100).times(1)).manageAbortResponse(eq(firstTS - 1), any(Channel.class), any(MonitoringContext.class));
 
-        requestProc.commitRequest(firstTS, writeSet, false, null, new MonitoringContext(metrics));
+        requestProc.commitRequest(firstTS, writeSet, writeSet.length, false, null, new MonitoringContext(metrics));
         ArgumentCaptor<Long> commitTScapture = ArgumentCaptor.forClass(Long.class);
 
         verify(persist, timeout(100).times(1)).addCommitToBatch(eq(firstTS), commitTScapture.capture(), any(Channel.class), any(MonitoringContext.class));
         assertTrue(commitTScapture.getValue() > firstTS, "Commit TS must be greater than start TS");
 
         // test conflict
-        requestProc.timestampRequest(null, new MonitoringContext(metrics));
+        requestProc.timestampRequest(1, null, new MonitoringContext(metrics));
         TScapture = ArgumentCaptor.forClass(Long.class);
         verify(persist, timeout(100).times(2)).addTimestampToBatch(
-                TScapture.capture(), any(Channel.class), any(MonitoringContext.class));
+                TScapture.capture(), eq(1), any(Channel.class), any(MonitoringContext.class));
         long secondTS = TScapture.getValue();
 
-        requestProc.timestampRequest(null, new MonitoringContext(metrics));
+        requestProc.timestampRequest(1, null, new MonitoringContext(metrics));
         TScapture = ArgumentCaptor.forClass(Long.class);
         verify(persist, timeout(100).times(3)).addTimestampToBatch(
-                TScapture.capture(), any(Channel.class), any(MonitoringContext.class));
+                TScapture.capture(), eq(1), any(Channel.class), any(MonitoringContext.class));
         long thirdTS = TScapture.getValue();
 
-        requestProc.commitRequest(thirdTS, writeSet, false, null, new MonitoringContext(metrics));
+        requestProc.commitRequest(thirdTS, writeSet, writeSet.length, false, null, new MonitoringContext(metrics));
         verify(persist, timeout(100).times(1)).addCommitToBatch(eq(thirdTS), anyLong(), any(Channel.class), any(MonitoringContext.class));
-        requestProc.commitRequest(secondTS, writeSet, false, null, new MonitoringContext(metrics));
-        verify(persist, timeout(100).times(1)).addAbortToBatch(eq(secondTS), any(Channel.class), any(MonitoringContext.class));
+        requestProc.commitRequest(secondTS, writeSet, writeSet.length, false, null, new MonitoringContext(metrics));
+        verify(replyProc, timeout(100).times(1)).manageAbortResponse(eq(secondTS), any(Channel.class), any(MonitoringContext.class));
+
+    }
+
+    @Test(timeOut = 30_000)
+    public void testDecodedCommitRequestsAreCheckedForConflicts() throws Exception {
+
+        requestProc.timestampRequest(1, null, new MonitoringContext(metrics));
+        ArgumentCaptor<Long> TScapture = ArgumentCaptor.forClass(Long.class);
+        verify(persist, timeout(100).times(1)).addTimestampToBatch(
+                TScapture.capture(), eq(1), any(Channel.class), any(MonitoringContext.class));
+        long startTS = TScapture.getValue();
+
+        TSORequestDecoder decoder = new TSORequestDecoder();
+        TSOProto.Request request = TSOProto.Request.newBuilder()
+                .setCommitRequest(TSOProto.CommitRequest.newBuilder()
+                                          .setStartTimestamp(startTS).addCellId(1L).addCellId(20L))
+                .build();
+        requestProc.commitRequest((TSORequestDecoder.DecodedCommitRequest) decoder.decode(
+                null, null, ChannelBuffers.wrappedBuffer(request.toByteArray())), null, new MonitoringContext(metrics));
+        verify(persist, timeout(100).times(1)).addCommitToBatch(eq(startTS), anyLong(),
+                                                                any(Channel.class), any(MonitoringContext.class));
+
+        // The write set of the decoded request was registered, so a concurrent transaction writing a cell conflicts
+        long[] conflictingWriteSet = new long[] { 20L };
+        requestProc.commitRequest(startTS, conflictingWriteSet, conflictingWriteSet.length, false, null,
+                                  new MonitoringContext(metrics));
+        verify(replyProc, timeout(100).times(1)).manageAbortResponse(eq(startTS), any(Channel.class),
+                                                                     any(MonitoringContext.class));
 
     }
 
     @Test(timeOut = 30_000)
     public void testCommitRequestAbortsWhenResettingRequestProcessorState() throws Exception {
 
-        List<Long> writeSet = Collections.emptyList();
+        long[] writeSet = new long[0];
 
         // Start a transaction...
-        requestProc.timestampRequest(null, new MonitoringContext(metrics));
+        requestProc.timestampRequest(1, null, new MonitoringContext(metrics));
         ArgumentCaptor<Long> capturedTS = ArgumentCaptor.forClass(Long.class);
-        verify(persist, timeout(100).times(1)).addTimestampToBatch(capturedTS.capture(),
+        verify(persist, timeout(100).times(1)).addTimestampToBatch(capturedTS.capture(), eq(1),
                                                                    any(Channel.class),
                                                                    any(MonitoringContext.class));
         long startTS = capturedTS.getValue();
@@ -157,8 +219,8 @@ public class TestRequestProcessor {
         stateManager.initialize();
 
         // ...check that the transaction is aborted when trying to commit
-        requestProc.commitRequest(startTS, writeSet, false, null, new MonitoringContext(metrics));
-        verify(persist, timeout(100).times(1)).addAbortToBatch(eq(startTS), any(Channel.class), any(MonitoringContext.class));
+        requestProc.commitRequest(startTS, writeSet, writeSet.length, false, null, new MonitoringContext(metrics));
+        verify(replyProc, timeout(100).times(1)).manageAbortResponse(eq(startTS), any(Channel.class), any(MonitoringContext.class));
 
     }
 
@@ -172,8 +234,8 @@ public class TestRequestProcessor {
         // Fill the cache to provoke a cache eviction
         for (long i = 0; i < CONFLICT_MAP_SIZE + CONFLICT_MAP_ASSOCIATIVITY; i++) {
             long writeSetElementHash = i + 1; // This is to match the assigned CT: K/V in cache = WS Element Hash/CT
-            List<Long> writeSet = Lists.newArrayList(writeSetElementHash);
-            requestProc.commitRequest(ANY_START_TS, writeSet, false, null, new MonitoringContext(metrics));
+            long[] writeSet = new long[] { writeSetElementHash };
+            requestProc.commitRequest(ANY_START_TS, writeSet, writeSet.length, false, null, new MonitoringContext(metrics));
         }
 
         Thread.currentThread().sleep(3000); // Allow the Request processor to finish the request processing
@@ -187,4 +249,119 @@ public class TestRequestProcessor {
 
     }
 
-}
\ No newline at end of file
+    @Test(timeOut = 30_000)
+    public void testConflictsInBatchedModeAreResolvedInArrivalOrder() throws Exception {
+
+        TimestampOracleImpl timestampOracle =
+                new TimestampOracleImpl(metrics, new TimestampOracleImpl.InMemoryTimestampStorage(), new MockPanicker());
+        TSOStateManager batchingStateManager = new TSOStateManagerImpl(timestampOracle);
+        TSOServerConfig config = new TSOServerConfig();
+        config.setConflictMapSize(CONFLICT_MAP_SIZE);
+        config.setRequestBatchSize(16);
+        config.setTimestampFastPath(false);
+        RequestProcessor batchingRequestProc =
+                new RequestProcessorImpl(metrics, timestampOracle, persist, replyProc, leaseManager, new MockPanicker(),
+                                         config);
+        batchingStateManager.register(batchingRequestProc);
+        batchingStateManager.initialize();
+
+        batchingRequestProc.timestampRequest(1, null, new MonitoringContext(metrics));
+        ArgumentCaptor<Long> TScapture = ArgumentCaptor.forClass(Long.class);
+        verify(persist, timeout(100).times(1)).addTimestampToBatch(
+                TScapture.capture(), eq(1), any(Channel.class), any(MonitoringContext.class));
+        long startTS = TScapture.getValue();
+
+        // Transactions with the same start timestamp sent back to back, so they are likely to be in the same batch
+        long[] firstWriteSet = new long[] { 1L, 2L };
+        long[] conflictingWriteSet = new long[] { 2L, 3L };
+        long[] disjointWriteSet = new long[] { 4L, 5L };
+        batchingRequestProc.commitRequest(startTS, firstWriteSet, firstWriteSet.length, false, null,
+                                          new MonitoringContext(metrics));
+        batchingRequestProc.commitRequest(startTS + 1, conflictingWriteSet, conflictingWriteSet.length, false, null,
+                                          new MonitoringContext(metrics));
+        batchingRequestProc.commitRequest(startTS + 2, disjointWriteSet, disjointWriteSet.length, false, null,
+                                          new MonitoringContext(metrics));
+
+        ArgumentCaptor<Long> firstCommitTS = ArgumentCaptor.forClass(Long.class);
+        verify(persist, timeout(1000).times(1)).addCommitToBatch(eq(startTS), firstCommitTS.capture(),
+                                                                 any(Channel.class), any(MonitoringContext.class));
+        verify(replyProc, timeout(1000).times(1)).manageAbortResponse(eq(startTS + 1),
+                                                                    any(Channel.class), any(MonitoringContext.class));
+        ArgumentCaptor<Long> lastCommitTS = ArgumentCaptor.forClass(Long.class);
+        verify(persist, timeout(1000).times(1)).addCommitToBatch(eq(startTS + 2), lastCommitTS.capture(),
+                                                                 any(Channel.class), any(MonitoringContext.class));
+        assertTrue(lastCommitTS.getValue() > firstCommitTS.getValue(), "Commit TSs must follow the arrival order");
+
+        batchingRequestProc.close();
+
+    }
+
+    @Test(timeOut = 30_000)
+    public void testTimestampsSkipTheBatchesOnlyWhenNothingIsInFlight() throws Exception {
+
+        TimestampOracleImpl timestampOracle =
+                new TimestampOracleImpl(metrics, new TimestampOracleImpl.InMemoryTimestampStorage(), new MockPanicker());
+        TSOStateManager fastPathStateManager = new TSOStateManagerImpl(timestampOracle);
+        TSOServerConfig config = new TSOServerConfig();
+        config.setConflictMapSize(CONFLICT_MAP_SIZE);
+        RequestProcessor fastPathRequestProc =
+                new RequestProcessorImpl(metrics, timestampOracle, persist, replyProc, leaseManager, new MockPanicker(),
+                                         config);
+        fastPathStateManager.register(fastPathRequestProc);
+        fastPathStateManager.initialize();
+
+        // Nothing in flight: the timestamp is replied right away
+        fastPathRequestProc.timestampRequest(1, null, new MonitoringContext(metrics));
+        ArgumentCaptor<Long> TScapture = ArgumentCaptor.forClass(Long.class);
+        verify(replyProc, timeout(100).times(1)).manageTimestampResponse(
+                TScapture.capture(), eq(1), any(Channel.class), any(MonitoringContext.class));
+        long startTS = TScapture.getValue();
+
+        // A commit waiting to be persisted sends the next timestamps through the batches
+        long[] writeSet = new long[] { 1L, 2L };
+        fastPathRequestProc.commitRequest(startTS, writeSet, writeSet.length, false, null,
+                                          new MonitoringContext(metrics));
+        ArgumentCaptor<Long> commitTScapture = ArgumentCaptor.forClass(Long.class);
+        verify(persist, timeout(100).times(1)).addCommitToBatch(eq(startTS), commitTScapture.capture(),
+                                                                any(Channel.class), any(MonitoringContext.class));
+        fastPathRequestProc.timestampRequest(1, null, new MonitoringContext(metrics));
+        verify(persist, timeout(100).times(1)).addTimestampToBatch(
+                eq(commitTScapture.getValue() + 1), eq(1), any(Channel.class), any(MonitoringContext.class));
+
+        // Once the commit and the batched timestamp are replied, the fast path is taken again
+        doReturn(commitTScapture.getValue() + 1).when(replyProc).getDurableWatermark();
+        fastPathRequestProc.timestampRequest(1, null, new MonitoringContext(metrics));
+        verify(replyProc, timeout(100).times(1)).manageTimestampResponse(
+                eq(commitTScapture.getValue() + 2), eq(1), any(Channel.class), any(MonitoringContext.class));
+
+        // Without the lease, the timestamps go through the batches, where the mastership is checked
+        doReturn(false).when(leaseManager).stillInLeasePeriod();
+        fastPathRequestProc.timestampRequest(1, null, new MonitoringContext(metrics));
+        verify(persist, timeout(100).times(1)).addTimestampToBatch(
+                eq(commitTScapture.getValue() + 3), eq(1), any(Channel.class), any(MonitoringContext.class));
+
+        fastPathRequestProc.close();
+
+    }
+
+    @Test(timeOut = 5_000)
+    public void testBatchFlushesAreRequestedWithoutArrivals() throws Exception {
+
+        // No requests arrive, but the flush timer keeps asking the persistence stage to flush the old batches
+        verify(persist, timeout(1000).atLeast(2)).triggerCurrentBatchFlushIfOlderThan(anyLong());
+
+    }
+
+    @Test(timeOut = 5_000)
+    public void testFlushRequestsAreHandledLikeTheClientRequests() throws Exception {
+
+        RequestProcessorImpl.RequestEvent flushEvent = RequestProcessorImpl.RequestEvent.EVENT_FACTORY.newInstance();
+        RequestProcessorImpl.RequestEvent.makeFlushRequest(flushEvent);
+
+        // A flush tick goes through the same steps as the client requests, monitoring included
+        ((RequestProcessorImpl) requestProc).onEvent(flushEvent, 0, true);
+        verify(persist, atLeast(1)).triggerCurrentBatchFlushIfOlderThan(anyLong());
+
+    }
+
+}
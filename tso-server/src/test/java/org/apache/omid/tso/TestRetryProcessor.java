@@ -37,6 +37,8 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.testng.Assert.assertEquals;
@@ -72,7 +74,7 @@ public class TestRetryProcessor {
         ObjectPool<Batch> batchPool = new BatchPoolModule(new TSOServerConfig()).getBatchPool();
 
         // The element to test
-        RetryProcessor retryProc = new RetryProcessorImpl(new YieldingWaitStrategy(), metrics, commitTable, replyProc, panicker, batchPool);
+        RetryProcessor retryProc = new RetryProcessorImpl(new TSOServerConfig(), new YieldingWaitStrategy(), metrics, commitTable, replyProc, panicker, batchPool);
 
         // Test we'll reply with an abort for a retry request when the start timestamp IS NOT in the commit table
         retryProc.disambiguateRetryRequestHeuristically(NON_EXISTING_ST_TX, channel, new MonitoringContext(metrics));
@@ -88,7 +90,7 @@ public class TestRetryProcessor {
         ObjectPool<Batch> batchPool = new BatchPoolModule(new TSOServerConfig()).getBatchPool();
 
         // The element to test
-        RetryProcessor retryProc = new RetryProcessorImpl(new YieldingWaitStrategy(), metrics, commitTable, replyProc, panicker, batchPool);
+        RetryProcessor retryProc = new RetryProcessorImpl(new TSOServerConfig(), new YieldingWaitStrategy(), metrics, commitTable, replyProc, panicker, batchPool);
 
         // Test we'll reply with a commit for a retry request when the start timestamp IS in the commit table
         commitTable.getWriter().addCommittedTransaction(ST_TX_1, CT_TX_1);
@@ -122,7 +124,7 @@ public class TestRetryProcessor {
         ObjectPool<Batch> batchPool = new BatchPoolModule(new TSOServerConfig()).getBatchPool();
 
         // The element to test
-        RetryProcessor retryProc = new RetryProcessorImpl(new YieldingWaitStrategy(), metrics, commitTable, replyProc, panicker, batchPool);
+        RetryProcessor retryProc = new RetryProcessorImpl(new TSOServerConfig(), new YieldingWaitStrategy(), metrics, commitTable, replyProc, panicker, batchPool);
 
         // Test we return an Abort to a retry request when the transaction id IS in the commit table BUT invalidated
         retryProc.disambiguateRetryRequestHeuristically(ST_TX_1, channel, new MonitoringContext(metrics));
@@ -133,5 +135,54 @@ public class TestRetryProcessor {
 
     }
 
-}
+    @Test(timeOut = 10_000)
+    public void testSeveralRetriedRequestsAreAnsweredIndividually() throws Exception {
+        ObjectPool<Batch> batchPool = new BatchPoolModule(new TSOServerConfig()).getBatchPool();
+        // Meters that can be marked, as the retries looked up together are replied one after the other
+        MetricsRegistry nullMetrics = new NullMetricsProvider();
+
+        // The element to test
+        RetryProcessor retryProc = new RetryProcessorImpl(new TSOServerConfig(), new YieldingWaitStrategy(), nullMetrics, commitTable, replyProc, panicker, batchPool);
+
+        // Retries received together are looked up in the commit table at once, but each one gets its own response
+        commitTable.getWriter().addCommittedTransaction(ST_TX_1, CT_TX_1);
+        commitTable.getWriter().addCommittedTransaction(ST_TX_1 + 2, CT_TX_1 + 2);
+        retryProc.disambiguateRetryRequestHeuristically(ST_TX_1, channel, new MonitoringContext(nullMetrics));
+        retryProc.disambiguateRetryRequestHeuristically(NON_EXISTING_ST_TX, channel, new MonitoringContext(nullMetrics));
+        retryProc.disambiguateRetryRequestHeuristically(ST_TX_1 + 2, channel, new MonitoringContext(nullMetrics));
+
+        verify(replyProc, timeout(100).times(1)).sendCommitResponse(eq(ST_TX_1), eq(CT_TX_1), any(Channel.class));
+        verify(replyProc, timeout(100).times(1)).sendCommitResponse(eq(ST_TX_1 + 2), eq(CT_TX_1 + 2), any(Channel.class));
+        verify(replyProc, timeout(100).times(1)).sendAbortResponse(eq(NON_EXISTING_ST_TX), any(Channel.class));
+
+    }
 
+    @Test(timeOut = 10_000)
+    public void testBurstOfRetriesIsSpreadAmongTheWorkers() throws Exception {
+        ObjectPool<Batch> batchPool = new BatchPoolModule(new TSOServerConfig()).getBatchPool();
+        TSOServerConfig config = new TSOServerConfig();
+        config.setNumRetryWorkers(4);
+        MetricsRegistry nullMetrics = new NullMetricsProvider();
+
+        // The element to test
+        RetryProcessor retryProc = new RetryProcessorImpl(config, new YieldingWaitStrategy(), nullMetrics, commitTable,
+                                                          replyProc, panicker, batchPool);
+
+        // More retries than fit in a single look up, so they are resolved by several workers
+        int numRetries = RetryProcessorImpl.MAX_RETRIES_PER_LOOKUP * 3 + 1;
+        for (int i = 0; i < numRetries; i++) {
+            commitTable.getWriter().addCommittedTransaction(i, i + numRetries);
+        }
+        for (int i = 0; i < numRetries; i++) {
+            retryProc.disambiguateRetryRequestHeuristically(i, channel, new MonitoringContext(nullMetrics));
+        }
+
+        verify(replyProc, timeout(5_000).times(numRetries)).sendCommitResponse(anyLong(), anyLong(), any(Channel.class));
+        verify(replyProc, timeout(100).times(1)).sendCommitResponse(eq((long) numRetries - 1),
+                                                                    eq((long) numRetries * 2 - 1),
+                                                                    any(Channel.class));
+        retryProc.close();
+
+    }
+
+}
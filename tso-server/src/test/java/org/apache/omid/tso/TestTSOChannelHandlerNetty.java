@@ -35,6 +35,7 @@ import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
 import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
 import org.jboss.netty.handler.codec.protobuf.ProtobufDecoder;
 import org.jboss.netty.handler.codec.protobuf.ProtobufEncoder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.slf4j.Logger;
@@ -49,9 +50,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyCollectionOf;
-import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.timeout;
@@ -258,9 +257,13 @@ public class TestTSOChannelHandlerNetty {
         tsBuilder.setTimestampRequest(tsRequestBuilder.build());
         // Write into the channel
         channel.write(tsBuilder.build()).await();
-        verify(requestProcessor, timeout(100).times(1)).timestampRequest(any(Channel.class), any(MonitoringContext.class));
+        verify(requestProcessor, timeout(100).times(1)).timestampRequest(eq(1), any(Channel.class), any(MonitoringContext.class));
+        // Write a request for a range of timestamps
+        tsBuilder.setTimestampRequest(tsRequestBuilder.setCount(10).build());
+        channel.write(tsBuilder.build()).await();
+        verify(requestProcessor, timeout(100).times(1)).timestampRequest(eq(10), any(Channel.class), any(MonitoringContext.class));
         verify(requestProcessor, timeout(100).never())
-                .commitRequest(anyLong(), anyCollectionOf(Long.class), anyBoolean(), any(Channel.class), any(MonitoringContext.class));
+                .commitRequest(any(TSORequestDecoder.DecodedCommitRequest.class), any(Channel.class), any(MonitoringContext.class));
     }
 
     private void testWritingCommitRequest(Channel channel) throws InterruptedException {
@@ -275,9 +278,15 @@ public class TestTSOChannelHandlerNetty {
         assertTrue(r.hasCommitRequest());
         // Write into the channel
         channel.write(commitBuilder.build()).await();
-        verify(requestProcessor, timeout(100).never()).timestampRequest(any(Channel.class), any(MonitoringContext.class));
+        verify(requestProcessor, timeout(100).never()).timestampRequest(anyInt(), any(Channel.class), any(MonitoringContext.class));
+        ArgumentCaptor<TSORequestDecoder.DecodedCommitRequest> crCapture =
+                ArgumentCaptor.forClass(TSORequestDecoder.DecodedCommitRequest.class);
         verify(requestProcessor, timeout(100).times(1))
-                .commitRequest(eq(666L), anyCollectionOf(Long.class), eq(false), any(Channel.class), any(MonitoringContext.class));
+                .commitRequest(crCapture.capture(), any(Channel.class), any(MonitoringContext.class));
+        // No more requests are decoded in the channel, so the decoded request still holds the values of this one
+        assertEquals(crCapture.getValue().getStartTimestamp(), 666L);
+        assertEquals(crCapture.getValue().getNumCells(), 1);
+        assertFalse(crCapture.getValue().isRetry());
     }
 
     // ----------------------------------------------------------------------------------------------------------------
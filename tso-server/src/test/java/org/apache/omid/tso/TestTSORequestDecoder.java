@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.apache.omid.proto.TSOProto;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestTSORequestDecoder {
+
+    private final TSORequestDecoder decoder = new TSORequestDecoder();
+
+    @Test(timeOut = 10_000)
+    public void testCommitRequestsAreDecodedToPrimitiveWriteSets() throws Exception {
+
+        TSOProto.CommitRequest.Builder commitBuilder = TSOProto.CommitRequest.newBuilder()
+                .setStartTimestamp(666L)
+                .setIsRetry(true);
+        for (long cellId = -100; cellId < 100; cellId++) { // Includes negative ids and more cells than the initial capacity
+            commitBuilder.addCellId(cellId * 1_000_003L);
+        }
+        TSOProto.Request request = TSOProto.Request.newBuilder().setCommitRequest(commitBuilder).build();
+
+        Object decoded = decoder.decode(null, null, ChannelBuffers.wrappedBuffer(request.toByteArray()));
+
+        assertTrue(decoded instanceof TSORequestDecoder.DecodedCommitRequest);
+        TSORequestDecoder.DecodedCommitRequest cr = (TSORequestDecoder.DecodedCommitRequest) decoded;
+        assertEquals(cr.getStartTimestamp(), 666L);
+        assertTrue(cr.isRetry());
+        assertEquals(cr.getNumCells(), 200);
+        long[] cellIds = new long[cr.getNumCells()];
+        cr.readCellIds(cellIds);
+        for (int i = 0; i < cr.getNumCells(); i++) {
+            assertEquals(cellIds[i], commitBuilder.getCellId(i));
+        }
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testUnpackedCellIdsAreDecoded() throws Exception {
+
+        // Encode the cell ids as if they were declared without [packed=true], as old clients do
+        ByteArrayOutputStream commitBytes = new ByteArrayOutputStream();
+        CodedOutputStream commitOut = CodedOutputStream.newInstance(commitBytes);
+        commitOut.writeInt64(TSOProto.CommitRequest.STARTTIMESTAMP_FIELD_NUMBER, 1L);
+        commitOut.writeInt64(TSOProto.CommitRequest.CELLID_FIELD_NUMBER, 10L);
+        commitOut.writeInt64(TSOProto.CommitRequest.CELLID_FIELD_NUMBER, -20L);
+        commitOut.flush();
+        ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+        CodedOutputStream requestOut = CodedOutputStream.newInstance(requestBytes);
+        requestOut.writeBytes(TSOProto.Request.COMMITREQUEST_FIELD_NUMBER,
+                              com.google.protobuf.ByteString.copyFrom(commitBytes.toByteArray()));
+        requestOut.flush();
+
+        Object decoded = decoder.decode(null, null, ChannelBuffers.wrappedBuffer(requestBytes.toByteArray()));
+
+        TSORequestDecoder.DecodedCommitRequest cr = (TSORequestDecoder.DecodedCommitRequest) decoded;
+        assertEquals(cr.getStartTimestamp(), 1L);
+        assertFalse(cr.isRetry());
+        assertEquals(cr.getNumCells(), 2);
+        long[] cellIds = new long[cr.getNumCells()];
+        cr.readCellIds(cellIds);
+        assertEquals(cellIds[0], 10L);
+        assertEquals(cellIds[1], -20L);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testOtherRequestsAreDecodedAsProtobufMessages() throws Exception {
+
+        TSOProto.Request tsRequest = TSOProto.Request.newBuilder()
+                .setTimestampRequest(TSOProto.TimestampRequest.newBuilder()).build();
+        assertEquals(decoder.decode(null, null, ChannelBuffers.wrappedBuffer(tsRequest.toByteArray())), tsRequest);
+
+        TSOProto.Request handshake = TSOProto.Request.newBuilder()
+                .setHandshakeRequest(TSOProto.HandshakeRequest.newBuilder()
+                                             .setClientCapabilities(TSOProto.Capabilities.newBuilder())).build();
+        assertEquals(decoder.decode(null, null, ChannelBuffers.wrappedBuffer(handshake.toByteArray())), handshake);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testCommitRequestsAreReadFromTheFrameInPlace() throws Exception {
+
+        TSOProto.CommitRequest.Builder commitBuilder = TSOProto.CommitRequest.newBuilder().setStartTimestamp(1L);
+        for (long cellId = 0; cellId < 10; cellId++) {
+            commitBuilder.addCellId(Long.MAX_VALUE - cellId);
+        }
+        byte[] request = TSOProto.Request.newBuilder().setCommitRequest(commitBuilder).build().toByteArray();
+
+        // The frame is a slice in the middle of a bigger array
+        byte[] array = new byte[request.length + 20];
+        System.arraycopy(request, 0, array, 10, request.length);
+        Object decoded = decoder.decode(null, null, ChannelBuffers.wrappedBuffer(array, 10, request.length));
+
+        TSORequestDecoder.DecodedCommitRequest cr = (TSORequestDecoder.DecodedCommitRequest) decoded;
+        assertEquals(cr.getNumCells(), 10);
+        long[] cellIds = new long[cr.getNumCells()];
+        cr.readCellIds(cellIds);
+        for (int i = 0; i < cr.getNumCells(); i++) {
+            assertEquals(cellIds[i], Long.MAX_VALUE - i);
+        }
+
+    }
+
+    @Test(timeOut = 10_000, expectedExceptions = InvalidProtocolBufferException.class)
+    public void testTruncatedCommitRequestsAreRejected() throws Exception {
+
+        TSOProto.CommitRequest.Builder commitBuilder = TSOProto.CommitRequest.newBuilder()
+                .setStartTimestamp(1L)
+                .addCellId(1L)
+                .addCellId(1L << 40);
+        byte[] request = TSOProto.Request.newBuilder().setCommitRequest(commitBuilder).build().toByteArray();
+
+        decoder.decode(null, null, ChannelBuffers.wrappedBuffer(request, 0, request.length - 1));
+
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.omid.tso;
+
+import org.apache.omid.proto.TSOProto;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestTSOResponseEncoder {
+
+    private final TSOResponseEncoder encoder = new TSOResponseEncoder();
+
+    @Test(timeOut = 10_000)
+    public void testResponsesAreEncodedAsLengthPrefixedFrames() throws Exception {
+
+        TSOProto.Response response = TSOProto.Response.newBuilder()
+                .setTimestampResponse(TSOProto.TimestampResponse.newBuilder().setStartTimestamp(666L).setCount(10))
+                .build();
+
+        Object encoded = encoder.encode(null, null, response);
+
+        assertTrue(encoded instanceof ChannelBuffer);
+        ChannelBuffer frame = (ChannelBuffer) encoded;
+        assertEquals(frame.readInt(), response.getSerializedSize());
+        assertEquals(frame.readableBytes(), response.getSerializedSize());
+        byte[] bytes = new byte[frame.readableBytes()];
+        frame.readBytes(bytes);
+        assertEquals(TSOProto.Response.parseFrom(bytes), response);
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testPrebuiltFramesArePassedThrough() throws Exception {
+
+        ChannelBuffer frames = ChannelBuffers.dynamicBuffer(1); // Forces the buffer to grow
+        for (long startTimestamp = 1; startTimestamp <= 100; startTimestamp++) {
+            TSOProto.CommitResponse.Builder commitBuilder = TSOProto.CommitResponse.newBuilder()
+                    .setAborted(false)
+                    .setStartTimestamp(startTimestamp)
+                    .setCommitTimestamp(startTimestamp + 1);
+            TSOResponseEncoder.writeFrame(TSOProto.Response.newBuilder().setCommitResponse(commitBuilder).build(),
+                                          frames);
+        }
+
+        assertSame(encoder.encode(null, null, frames), frames);
+
+        for (long startTimestamp = 1; startTimestamp <= 100; startTimestamp++) {
+            byte[] bytes = new byte[frames.readInt()];
+            frames.readBytes(bytes);
+            TSOProto.CommitResponse commitResponse = TSOProto.Response.parseFrom(bytes).getCommitResponse();
+            assertEquals(commitResponse.getStartTimestamp(), startTimestamp);
+            assertEquals(commitResponse.getCommitTimestamp(), startTimestamp + 1);
+        }
+        assertFalse(frames.readable());
+
+    }
+
+    @Test(timeOut = 10_000)
+    public void testHandWrittenFramesMatchTheGeneratedEncoding() throws Exception {
+
+        long[] timestamps = { 0L, 1L, 127L, 128L, 16_383L, 16_384L, 1L << 35, Long.MAX_VALUE, -1L };
+        for (long startTimestamp : timestamps) {
+            for (long commitTimestamp : timestamps) {
+                TSOProto.CommitResponse.Builder commitBuilder = TSOProto.CommitResponse.newBuilder()
+                        .setAborted(false)
+                        .setStartTimestamp(startTimestamp)
+                        .setCommitTimestamp(commitTimestamp);
+                ChannelBuffer frame = ChannelBuffers.buffer(TSOResponseEncoder.MAX_FIXED_RESPONSE_FRAME_SIZE);
+                TSOResponseEncoder.writeCommitResponseFrame(frame, startTimestamp, commitTimestamp);
+                assertFrameEquals(frame, TSOProto.Response.newBuilder().setCommitResponse(commitBuilder).build());
+            }
+
+            TSOProto.CommitResponse.Builder abortBuilder = TSOProto.CommitResponse.newBuilder()
+                    .setAborted(true)
+                    .setStartTimestamp(startTimestamp);
+            ChannelBuffer frame = ChannelBuffers.buffer(TSOResponseEncoder.MAX_FIXED_RESPONSE_FRAME_SIZE);
+            TSOResponseEncoder.writeAbortResponseFrame(frame, startTimestamp);
+            assertFrameEquals(frame, TSOProto.Response.newBuilder().setCommitResponse(abortBuilder).build());
+
+            for (int numTimestamps : new int[] { 1, 2, 1024 }) {
+                TSOProto.TimestampResponse.Builder tsBuilder = TSOProto.TimestampResponse.newBuilder()
+                        .setStartTimestamp(startTimestamp);
+                if (numTimestamps > 1) {
+                    tsBuilder.setCount(numTimestamps);
+                }
+                frame = ChannelBuffers.buffer(TSOResponseEncoder.MAX_FIXED_RESPONSE_FRAME_SIZE);
+                TSOResponseEncoder.writeTimestampResponseFrame(frame, startTimestamp, numTimestamps);
+                assertFrameEquals(frame, TSOProto.Response.newBuilder().setTimestampResponse(tsBuilder).build());
+            }
+        }
+
+    }
+
+    private void assertFrameEquals(ChannelBuffer frame, TSOProto.Response expected) {
+        byte[] expectedBytes = expected.toByteArray();
+        assertEquals(frame.readInt(), expectedBytes.length);
+        byte[] bytes = new byte[frame.readableBytes()];
+        frame.readBytes(bytes);
+        assertEquals(bytes, expectedBytes);
+    }
+
+}
@@ -37,6 +37,7 @@ import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
@@ -77,6 +78,46 @@ public class TestTimestampOracle {
         LOG.info("Last timestamp: {}", last);
     }
 
+    @Test(timeOut = 10_000)
+    public void testTimestampRangesAreContiguousAcrossAllocationBatches() throws Exception {
+
+        // Intialize component under test
+        timestampOracle.initialize();
+
+        final int rangeSize = 1000;
+        long last = timestampOracle.next();
+        for (int i = 0; i < (3 * TimestampOracleImpl.TIMESTAMP_BATCH) / rangeSize; i++) {
+            long first = timestampOracle.next(rangeSize);
+            assertEquals(first, last + 1, "Range is not contiguous with the previous timestamp");
+            assertEquals(timestampOracle.getLast(), first + rangeSize - 1, "Wrong end of the range");
+            last = timestampOracle.getLast();
+        }
+        assertEquals(timestampOracle.next(), last + 1, "Not monotonic growth after ranges");
+    }
+
+    @Test(timeOut = 10_000)
+    public void testRangesAreReservedAheadOfTimeFollowingTheAllocationRate() throws Exception {
+
+        // Intialize component under test
+        timestampOracle.initialize();
+
+        // The first range and a spare one are requested right away
+        long batch = TimestampOracleImpl.TIMESTAMP_BATCH;
+        verify(timestampStorage, timeout(1000)).updateMaxTimestamp(0, batch);
+        verify(timestampStorage, timeout(1000)).updateMaxTimestamp(batch, 2 * batch);
+
+        for (int i = 0; i < (3 * TimestampOracleImpl.TIMESTAMP_BATCH); i++) {
+            timestampOracle.next();
+        }
+        // Allocating timestamps in a tight loop requires larger ranges than the initial ones...
+        long rangeSize = timestampOracle.getRangeSize();
+        assertTrue(rangeSize > batch && rangeSize <= TimestampOracleImpl.MAX_TIMESTAMP_BATCH,
+                   "Unexpected range size " + rangeSize);
+        // ...and there's always a spare range reserved beyond the current one
+        assertTrue(timestampOracle.getMaxRequestedTimestamp() - timestampOracle.getLast() > rangeSize,
+                   "No spare range reserved");
+    }
+
     @Test(timeOut = 10_000)
     public void testTimestampOraclePanicsWhenTheStorageHasProblems() throws Exception {
 
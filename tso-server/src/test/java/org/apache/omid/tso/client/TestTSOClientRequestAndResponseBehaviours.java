@@ -147,6 +147,30 @@ public class TestTSOClientRequestAndResponseBehaviours {
 
     }
 
+    @Test(timeOut = 30_000)
+    public void testConcurrentTimestampRequestsGetFreshAndDistinctTimestamps() throws Exception {
+
+        TSOClient client = TSOClient.newInstance(tsoClientConf);
+
+        long startTS = client.getNewStartTimestamp().get();
+        long commitTS = client.commit(startTS, testWriteSet).get();
+
+        // Concurrent requests are coalesced in ranges, but each one gets its own timestamp in request order
+        List<Future<Long>> timestamps = new ArrayList<>();
+        for (int i = 0; i < 5 * TSOClient.MAX_TIMESTAMPS_PER_REQUEST; i++) {
+            timestamps.add(client.getNewStartTimestamp());
+        }
+        long previousTS = commitTS;
+        for (Future<Long> f : timestamps) {
+            long ts = f.get();
+            assertTrue(ts > previousTS, "Timestamps must be fresh and unique");
+            previousTS = ts;
+        }
+
+        client.close().get();
+
+    }
+
     @Test(timeOut = 30_000)
     public void testCommitGetsServiceUnavailableExceptionWhenCommunicationFails() throws Exception {
 
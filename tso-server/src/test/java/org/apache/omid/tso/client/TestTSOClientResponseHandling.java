@@ -26,8 +26,11 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import static org.testng.Assert.assertEquals;
 
@@ -93,4 +96,23 @@ public class TestTSOClientResponseHandling {
         assertEquals(commitTS, COMMIT_TS);
     }
 
+    @Test(timeOut = 10_000)
+    public void testConcurrentTimestampRequestsAreSentOneByOneToServersWithoutTimestampRanges() throws Exception {
+        // The programmable TSO doesn't advertise timestamp ranges in the handshake, like the older servers, which
+        // reply a single timestamp per request
+
+        int numRequests = 3;
+        for (int i = 0; i < numRequests; i++) {
+            tsoServer.queueResponse(new TimestampResponse(START_TS + i));
+        }
+
+        List<Future<Long>> startTimestamps = new ArrayList<>(numRequests);
+        for (int i = 0; i < numRequests; i++) {
+            startTimestamps.add(tsoClient.getNewStartTimestamp());
+        }
+        for (int i = 0; i < numRequests; i++) {
+            assertEquals(startTimestamps.get(i).get(), Long.valueOf(START_TS + i));
+        }
+    }
+
 }